@@ -0,0 +1,105 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.BackfillHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.BackfillCheckpoint;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubCloudWatchClient;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+
+/**
+ * a whole backfill of an archive of website monitor mails, listed and read from an in-memory stand-in of S3 whose requests are delayed as by the network;
+ * the score is the time of one backfill: <code>mails / score</code> is the throughput
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackfillBenchmark {
+
+	/**
+	 * number of mails of the archive
+	 */
+	@Param({"10000"})
+	private int mails;
+
+	/**
+	 * number of mails read and classified at the same time
+	 */
+	@Param({"16", "64"})
+	private int concurrency;
+
+	/**
+	 * time added to each S3 request
+	 */
+	@Param({"0", "5"})
+	private long s3LatencyMillis;
+
+	private StubS3Client s3Client;
+
+	private StubCloudWatchClient cwClient;
+
+	private BackfillHandler backfill;
+
+	@Setup
+	public void setUp() throws Exception {
+		String[] fixtures = {"jetpack_down.txt", "jetpack_still_down.txt", "jetpack_back_online.txt"};
+		byte[][] emls = new byte[fixtures.length][];
+		for (int i = 0; i < fixtures.length; i++) {
+			emls[i] = BenchmarkMails.load(fixtures[i]);
+		}
+		s3Client = new StubS3Client();
+		for (int i = 0; i < mails; i++) {
+			s3Client.putObject(String.format("archive/%08d.eml", i), emls[i % emls.length]);
+		}
+		s3Client.setLatencyMillis(s3LatencyMillis);
+
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		s3Service.setRequestPermits(new Semaphore(concurrency));
+		cwClient = new StubCloudWatchClient();
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+
+		backfill = new BackfillHandler(s3Service, cwService, concurrency);
+		// a few days after the mails, so CloudWatch would accept them
+		backfill.setClock(Clock.fixed(Instant.parse("2024-11-20T00:00:00Z"), ZoneOffset.UTC));
+	}
+
+	@TearDown
+	public void tearDown() {
+		backfill.close();
+	}
+
+	@Benchmark
+	public BackfillCheckpoint backfill() {
+		BackfillCheckpoint checkpoint = backfill.run("ses-received-mail-mihaiadam", "archive/");
+		if (checkpoint.getDatums() != mails) {
+			throw new IllegalStateException("datums put: " + checkpoint.getDatums() + " of " + mails);
+		}
+		return checkpoint;
+	}
+}
@@ -0,0 +1,133 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * inputs of the benchmarks: the website monitor mails from the test fixtures, and synthetic mails of a given size
+ * @author mike
+ *
+ */
+public class BenchmarkMails {
+
+	/**
+	 * prefix of the synthetic mail names, followed by the size in KB; ex: synthetic-1024
+	 */
+	public static final String SYNTHETIC_PREFIX = "synthetic-";
+	/**
+	 * prefix of the synthetic mail names with an attachment, followed by the attachment size in KB; ex: attachment-4096
+	 */
+	public static final String ATTACHMENT_PREFIX = "attachment-";
+	/**
+	 * filler paragraph repeated in the synthetic mail parts
+	 */
+	private static final String FILLER = "Jetpack Monitor checks your site every five minutes and lets you know when it goes down or comes back online. ";
+
+	/**
+	 * 
+	 * @param name file name of a test fixture, or a synthetic mail name
+	 * @return email bytes
+	 * @throws IOException when the fixture could not be read
+	 */
+	public static byte[] load(String name) throws IOException {
+		if (name.startsWith(SYNTHETIC_PREFIX)) {
+			return synthetic(Integer.parseInt(name.substring(SYNTHETIC_PREFIX.length())) * 1024, "214785651/server");
+		}
+		if (name.startsWith(ATTACHMENT_PREFIX)) {
+			return withAttachment(Integer.parseInt(name.substring(ATTACHMENT_PREFIX.length())) * 1024, "214785651/server");
+		}
+		return resource("/" + name);
+	}
+
+	/**
+	 * 
+	 * @param name class path resource
+	 * @return resource bytes
+	 * @throws IOException when the resource could not be read
+	 */
+	public static byte[] resource(String name) throws IOException {
+		try (InputStream resource = BenchmarkMails.class.getResourceAsStream(name)) {
+			if (resource == null) {
+				throw new IOException("resource not found: " + name);
+			}
+			return resource.readAllBytes();
+		}
+	}
+
+	/**
+	 * builds a website monitor mail with a plain text part and a quoted-printable html part, 
+	 * padded so the mail has about <code>size</code> bytes; the status line is at the end of both parts, the worst case for a scan
+	 * @param size approximate size of the mail in bytes
+	 * @param reference value of the status line, ex: 214785651/server
+	 * @return email bytes
+	 */
+	public static byte[] synthetic(int size, String reference) {
+		StringBuilder eml = new StringBuilder(size + 2048);
+		eml.append("Date: Sat, 16 Nov 2024 11:47:29 +0000\r\n")
+			.append("To: contact@mihaiadam.com\r\n")
+			.append("From: Jetpack Support <support+monitor@jetpack.com>\r\n")
+			.append("Subject: mihaiadam.com is down\r\n")
+			.append("MIME-Version: 1.0\r\n")
+			.append("Content-Type: multipart/alternative; boundary=\"b1_synthetic\"\r\n\r\n");
+
+		int partSize = size / 2;
+
+		eml.append("--b1_synthetic\r\n")
+			.append("Content-Type: text/plain; charset=us-ascii\r\n")
+			.append("Content-Transfer-Encoding: 7bit\r\n\r\n");
+		int end = eml.length() + partSize;
+		while (eml.length() < end) {
+			eml.append(FILLER).append("\r\n");
+		}
+		eml.append("Error reference: ").append(reference).append("\r\n");
+
+		eml.append("--b1_synthetic\r\n")
+			.append("Content-Type: text/html; charset=us-ascii\r\n")
+			.append("Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+		end = eml.length() + partSize;
+		while (eml.length() < end) {
+			eml.append("<p style=3D\"color: #333;\">").append(FILLER).append("</p>=\r\n");
+		}
+		eml.append("<p>Error reference: ").append(reference).append("</p>\r\n");
+
+		eml.append("--b1_synthetic--\r\n");
+
+		return eml.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * builds a website monitor mail with a short plain text part and a base64 PDF attachment of about <code>size</code> bytes;
+	 * the status line is in the text part
+	 * @param size approximate size of the attachment in bytes
+	 * @param reference value of the status line, ex: 214785651/server
+	 * @return email bytes
+	 */
+	public static byte[] withAttachment(int size, String reference) {
+		StringBuilder eml = new StringBuilder(size + 2048);
+		eml.append("Date: Sat, 16 Nov 2024 11:47:29 +0000\r\n")
+			.append("To: contact@mihaiadam.com\r\n")
+			.append("From: Jetpack Support <support+monitor@jetpack.com>\r\n")
+			.append("Subject: mihaiadam.com is down\r\n")
+			.append("MIME-Version: 1.0\r\n")
+			.append("Content-Type: multipart/mixed; boundary=\"b1_attachment\"\r\n\r\n");
+
+		eml.append("--b1_attachment\r\n")
+			.append("Content-Type: text/plain; charset=us-ascii\r\n")
+			.append("Content-Transfer-Encoding: 7bit\r\n\r\n")
+			.append(FILLER).append("\r\n")
+			.append("Error reference: ").append(reference).append("\r\n");
+
+		eml.append("--b1_attachment\r\n")
+			.append("Content-Type: application/pdf; name=\"report.pdf\"\r\n")
+			.append("Content-Disposition: attachment; filename=\"report.pdf\"\r\n")
+			.append("Content-Transfer-Encoding: base64\r\n\r\n");
+		int end = eml.length() + size;
+		while (eml.length() < end) {
+			eml.append("JVBERi0xLjQKJcOkw7zDtsOfCjIgMCBvYmoKPDwvTGVuZ3RoIDMgMCBSL0ZpbHRlci9GbGF0ZURl\r\n");
+		}
+		eml.append("--b1_attachment--\r\n");
+
+		return eml.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,121 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.LazyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubCloudWatchClient;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
+
+/**
+ * time to the first response of <code>handleRequest</code> in a fresh JVM, as in a Lambda cold start:
+ * each fork builds the handler, decodes the event and handles it once; nothing is warmed up<br>
+ * the services are built lazily; with <code>clients=sdk</code> the real AWS SDK clients are built (class loading, configuration),
+ * then replaced by local stubs so no request leaves the machine; with <code>clients=stub</code> only the stubs are built<br>
+ * an invalid event (not from the monitor) is answered without building any service
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+
+	/**
+	 * key of the mail in sns-event.json; written here instead of decoded in the setup,
+	 * so the measured invocation is the first to load the JSON classes of its JVM
+	 */
+	private static final String KEY = "0bv4pm8l96o4tsro68h7freolp7u0sa1r3fkosg1";
+
+	/**
+	 * valid: a mail from the monitor; invalid: the filter of the message does not match this processor
+	 */
+	@Param({"valid", "invalid"})
+	private String event;
+
+	/**
+	 * sdk: the real AWS SDK clients are built before the stubs are swapped in; stub: only the stubs
+	 */
+	@Param({"sdk", "stub"})
+	private String clients;
+
+	/**
+	 * SNS event as received by the runtime, not decoded yet
+	 */
+	private String eventJson;
+
+	/**
+	 * mail stored in the stub S3 client
+	 */
+	private byte[] mail;
+
+	@Setup
+	public void setUp() throws Exception {
+		try (InputStream json = ColdStartBenchmark.class.getResourceAsStream("/sns-event.json")) {
+			eventJson = new String(json.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		if ("invalid".equals(event)) {
+			eventJson = eventJson.replace("@jetpack", "@example.com");
+		}
+		mail = BenchmarkMails.load("jetpack_down.txt");
+	}
+
+	/**
+	 * first invocation of a new handler, from the raw event
+	 */
+	@Benchmark
+	public String firstResponse() {
+		boolean sdk = "sdk".equals(clients);
+
+		LazyService<S3Service> s3Service = new LazyService<S3Service>(() -> {
+			S3Service service = (sdk) ? S3Service.build() : new S3Service();
+			StubS3Client s3Client = new StubS3Client();
+			s3Client.putObject(KEY, mail);
+			service.setS3Client(s3Client);
+			return service;
+		});
+		LazyService<CloudWatchService> cwService = new LazyService<CloudWatchService>(() -> {
+			CloudWatchService service = (sdk) ? CloudWatchService.build() : new CloudWatchService();
+			service.setCwClient(new StubCloudWatchClient());
+			service.setPublishMode(PublishMode.API);
+			return service;
+		});
+		LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Service, cwService, new IdempotencyService());
+
+		SNSEvent snsEvent = LambdaEventSerializers
+				.serializerFor(SNSEvent.class, SNSEvent.class.getClassLoader())
+				.fromJson(eventJson);
+		TestContext context = new TestContext();
+		context.setFunctionName("SiteHealthStatusMetric");
+		try {
+			return handler.handleRequest(snsEvent, context);
+		} catch (RuntimeException e) {
+			// invalid event: rejected before any service is needed
+			return e.getMessage();
+		}
+	}
+}
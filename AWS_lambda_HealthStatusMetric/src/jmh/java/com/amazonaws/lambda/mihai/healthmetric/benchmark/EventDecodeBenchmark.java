@@ -0,0 +1,83 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.StreamFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.NotifiedMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.services.lambda.runtime.events.LambdaDestinationEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.serialization.PojoSerializer;
+import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
+
+/**
+ * first stage of the handler: SNS record message decoded to {@link LambdaDestinationEvent} and then to {@link FilteredMail},
+ * compared with the streaming decode of {@link StreamFunctionHandler} from the invocation bytes
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDecodeBenchmark {
+
+	/**
+	 * same deserializer as the handler
+	 */
+	private PojoSerializer<LambdaDestinationEvent> serializer;
+	/**
+	 * message of the SNS record from sns-event.json
+	 */
+	private String snsMessage;
+	/**
+	 * the whole sns-event.json, as received by the handler
+	 */
+	private byte[] snsEvent;
+	/**
+	 * deserializer of the SNS event, as used by the Lambda runtime
+	 */
+	private PojoSerializer<SNSEvent> snsSerializer;
+
+	@Setup
+	public void setUp() throws Exception {
+		serializer = LambdaEventSerializers.serializerFor(LambdaDestinationEvent.class, LambdaDestinationEvent.class.getClassLoader());
+		snsSerializer = LambdaEventSerializers.serializerFor(SNSEvent.class, SNSEvent.class.getClassLoader());
+		snsEvent = BenchmarkMails.resource("/sns-event.json");
+		snsMessage = snsSerializer.fromJson(new String(snsEvent, StandardCharsets.UTF_8)).getRecords().get(0).getSNS().getMessage();
+	}
+
+	@Benchmark
+	public SNSEvent decodeSnsEvent() {
+		return snsSerializer.fromJson(new String(snsEvent, StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public FilteredMail decodeFilteredMail() {
+		LambdaDestinationEvent event = serializer.fromJson(snsMessage);
+		return Utils.getValueAsObject(event.getResponsePayload(), FilteredMail.class);
+	}
+
+	@Benchmark
+	public List<NotifiedMail> decodeStream() throws IOException {
+		return StreamFunctionHandler.readNotifiedMails(new ByteArrayInputStream(snsEvent));
+	}
+}
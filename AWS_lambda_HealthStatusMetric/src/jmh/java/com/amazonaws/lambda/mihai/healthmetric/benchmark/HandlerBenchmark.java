@@ -0,0 +1,89 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubCloudWatchClient;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.LambdaDestinationEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
+
+/**
+ * the whole <code>handleRequest</code> on sns-event.json, with S3 and CloudWatch clients stubbed in memory
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+	/**
+	 * mail referenced by the event: fixture file name or synthetic mail size in KB
+	 */
+	@Param({"jetpack_down.txt", "jetpack_back_online.txt", "synthetic-1024"})
+	private String mail;
+
+	private LambdaFunctionHandler handler;
+
+	private SNSEvent event;
+
+	private Context context;
+
+	@Setup
+	public void setUp() throws Exception {
+		event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+
+		String snsMessage = event.getRecords().get(0).getSNS().getMessage();
+		LambdaDestinationEvent destinationEvent = LambdaEventSerializers
+				.serializerFor(LambdaDestinationEvent.class, LambdaDestinationEvent.class.getClassLoader())
+				.fromJson(snsMessage);
+		String key = Utils.getValueAsObject(destinationEvent.getResponsePayload(), FilteredMail.class).getS3Key();
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject(key, BenchmarkMails.load(mail));
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(new StubCloudWatchClient());
+		cwService.setPublishMode(PublishMode.API);
+
+		// the same event is sent again and again: an idempotency cache of 0 keys makes each invocation read the mail
+		handler = new LambdaFunctionHandler(s3Service, cwService, new IdempotencyService(0, IdempotencyService.DEFAULT_TTL, null));
+
+		TestContext testContext = new TestContext();
+		testContext.setFunctionName("SiteHealthStatusMetric");
+		context = testContext;
+	}
+
+	@Benchmark
+	public String handleRequest() {
+		return handler.handleRequest(event, context);
+	}
+}
@@ -0,0 +1,85 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HtmlTextNormalizer;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+
+/**
+ * html part of a website monitor mail turned into text: the streaming normalizer against a regular expression that strips the tags
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlTextBenchmark {
+
+	/**
+	 * size of the html in KB
+	 */
+	@Param({"16", "1024"})
+	private int size;
+	/**
+	 * html with the status line at the end, the worst case for a scan
+	 */
+	private String html;
+
+	@Setup
+	public void setUp() {
+		StringBuilder text = new StringBuilder(size * 1024 + 256);
+		while (text.length() < size * 1024) {
+			text.append("<p style=\"color: #333;\">Jetpack Monitor checks your <b>site</b> every five minutes &amp; ")
+				.append("lets you know when it goes down or comes back online.</p>\n");
+		}
+		text.append("<p>Error reference: <strong>214785651</strong>&#47;<span>server</span></p>\n");
+		html = text.toString();
+	}
+
+	/**
+	 * characters of text received by the matcher; the lines themselves are not kept
+	 */
+	@Benchmark
+	public long normalize() {
+		long[] characters = new long[1];
+		HtmlTextNormalizer normalizer = new HtmlTextNormalizer(line -> {
+			characters[0] += line.length();
+			return false;
+		});
+		normalizer.feed(html, 0, html.length());
+		normalizer.finish();
+		return characters[0];
+	}
+
+	@Benchmark
+	public String normalizeAndMatch() {
+		StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+		HtmlTextNormalizer normalizer = new HtmlTextNormalizer(matcher);
+		normalizer.feed(html, 0, html.length());
+		normalizer.finish();
+		return matcher.getStatus();
+	}
+
+	/**
+	 * baseline: the whole text is built by regular expressions, entities are not decoded
+	 */
+	@Benchmark
+	public String regexStrip() {
+		return html.replaceAll("<[^>]*>", "").replaceAll("\\s+", " ");
+	}
+}
@@ -0,0 +1,191 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientFactory;
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientType;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * the HTTP clients of {@link HttpClientFactory} against a local HTTP stand-in of S3, which answers ranged GET requests with a mail:
+ * <code>firstCall</code> is the cold start, a fresh JVM per fork that builds the clients and reads the first range of the mail;
+ * <code>call</code> reads the first range with a warm client<br>
+ * only the clients packaged can be measured: run with <code>-P benchmarks,http-url-connection,http-crt</code> for all of them;
+ * the setup of a client not packaged fails, instead of measuring the Apache fallback twice
+ * @author mike
+ *
+ */
+public class HttpClientBenchmark {
+
+	/**
+	 * bucket of the mail, in the path of the requests
+	 */
+	private static final String BUCKET = "ses-received-mail-mihaiadam";
+	/**
+	 * key of the mail, in the path of the requests
+	 */
+	private static final String KEY = "jetpack_down.txt";
+
+	/**
+	 * local HTTP server that answers as S3 does to GET object requests, with or without range
+	 */
+	@State(Scope.Benchmark)
+	public static class LocalS3 {
+
+		@Param({"URL_CONNECTION", "CRT", "APACHE"})
+		private HttpClientType type;
+
+		private HttpServer server;
+
+		private ExecutorService executor;
+
+		private URI endpoint;
+
+		@Setup
+		public void setUp() throws IOException {
+			// looked up without loading the class, so the cold start still loads it
+			if (LocalS3.class.getClassLoader().getResource(type.getClassName().replace('.', '/') + ".class") == null) {
+				throw new IllegalStateException(type + " not packaged, run with its profile, ex: -P benchmarks,http-url-connection");
+			}
+
+			byte[] mail = BenchmarkMails.load(KEY);
+			// without it, headers and body of a response wait for the delayed ACK of the client: about 40 ms per call
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/" + BUCKET + "/" + KEY, exchange -> answer(exchange, mail));
+			executor = Executors.newCachedThreadPool();
+			server.setExecutor(executor);
+			server.start();
+			endpoint = URI.create("http://localhost:" + server.getAddress().getPort());
+		}
+
+		@TearDown
+		public void tearDown() {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+
+		/**
+		 * S3 answer: 206 with Content-Range when a range is requested, else 200 with the whole object
+		 */
+		private static void answer(HttpExchange exchange, byte[] object) throws IOException {
+			try (InputStream request = exchange.getRequestBody()) {
+				request.readAllBytes();
+			}
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			int start = 0;
+			int end = object.length - 1;
+			int status = 200;
+			if (range != null && range.startsWith("bytes=")) {
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				start = Integer.parseInt(bounds[0]);
+				end = Math.min(end, Integer.parseInt(bounds[1]));
+				status = 206;
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + object.length);
+			}
+			exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(status, end - start + 1);
+			try (OutputStream response = exchange.getResponseBody()) {
+				response.write(object, start, end - start + 1);
+			}
+		}
+
+		/**
+		 *
+		 * @return a new S3 Service, with a new client of the HTTP client measured
+		 */
+		S3Service newS3Service() {
+			HttpClientFactory factory = new HttpClientFactory();
+			factory.setType(type);
+
+			S3Service s3Service = new S3Service();
+			s3Service.setHttpClientFactory(factory);
+			s3Service.setS3Client(S3Client.builder()
+					.region(Region.US_WEST_2)
+					.endpointOverride(endpoint)
+					.forcePathStyle(true)
+					.credentialsProvider(AnonymousCredentialsProvider.create())
+					.httpClient(factory.getHttpClient())
+					.overrideConfiguration(factory.getOverrideConfiguration())
+					.build());
+			return s3Service;
+		}
+	}
+
+	/**
+	 * S3 Service built once per trial, its connections already open
+	 */
+	@State(Scope.Benchmark)
+	public static class WarmClient {
+
+		private S3Service s3Service;
+
+		@Setup
+		public void setUp(LocalS3 localS3) {
+			s3Service = localS3.newS3Service();
+		}
+
+		@TearDown
+		public void tearDown() {
+			s3Service.getS3Client().close();
+			s3Service.getHttpClientFactory().getHttpClient().close();
+		}
+	}
+
+	/**
+	 * first range of the mail read by a new client in a fresh JVM: class loading, client building, first connection
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(10)
+	public int firstCall(LocalS3 localS3) throws IOException {
+		S3Service s3Service = localS3.newS3Service();
+		try (InputStream mail = s3Service.getMailEMLRangeStream(BUCKET, KEY)) {
+			return mail.readNBytes(1024).length;
+		}
+	}
+
+	/**
+	 * first range of the mail read by a warm client
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	@Fork(1)
+	public int call(WarmClient client) throws IOException {
+		try (InputStream mail = client.s3Service.getMailEMLRangeStream(BUCKET, KEY)) {
+			return mail.readNBytes(1024).length;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRules;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteStatusMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+
+/**
+ * mail stages of the handler, on each fixture mail and on synthetic mails: 
+ * <code>MimeMessage</code> construction, text extraction, mail filter, status classification
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailPipelineBenchmark {
+
+	/**
+	 * fixture file name or synthetic mail size in KB
+	 */
+	@Param({"jetpack_down.txt", "jetpack_still_down.txt", "jetpack_back_online.txt", "synthetic-64", "synthetic-1024", "attachment-64", "attachment-4096"})
+	private String mail;
+	/**
+	 * email bytes, as read from S3
+	 */
+	private byte[] eml;
+	/**
+	 * plain text of the mail body, extracted once
+	 */
+	private String text;
+	/**
+	 * mail session shared by all parsed emails
+	 */
+	private Session session;
+	/**
+	 * filter used by the mail filter lambda for website monitor mails
+	 */
+	private MailFilter filter;
+
+	@Setup
+	public void setUp() throws Exception {
+		eml = BenchmarkMails.load(mail);
+		session = Session.getInstance(new Properties());
+		text = MailFilter.extractTextContent(new MimeMessage(session, new SharedByteArrayInputStream(eml)));
+
+		filter = new MailFilter();
+		filter.setField(MailFilter.FILTER_FIELD_FROM);
+		filter.setModifier(MailFilter.FILTER_MODIFIER_CONTAINS);
+		filter.setValue("@jetpack");
+	}
+
+	@Benchmark
+	public MimeMessage parseMimeMessage() throws Exception {
+		return new MimeMessage(session, new ByteArrayInputStream(eml));
+	}
+
+	@Benchmark
+	public MimeMessage parseMimeMessageShared() throws Exception {
+		return new MimeMessage(session, new SharedByteArrayInputStream(eml));
+	}
+
+	@Benchmark
+	public String extractTextContent() throws Exception {
+		return MailFilter.extractTextContent(new MimeMessage(session, new SharedByteArrayInputStream(eml)));
+	}
+
+	/**
+	 * the extraction before the text budget: every part is decoded, attachments included
+	 */
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public String getTextFromMessage() throws Exception {
+		return MailFilter.getTextFromMessage(new MimeMessage(session, new SharedByteArrayInputStream(eml)).getContent());
+	}
+
+	@Benchmark
+	public Boolean filtered() throws Exception {
+		return filter.filtered(new MimeMessage(session, new SharedByteArrayInputStream(eml)));
+	}
+
+	@Benchmark
+	public Boolean filteredHeaders() throws Exception {
+		return filter.filtered(new InternetHeaders(new ByteArrayInputStream(eml)));
+	}
+
+	@Benchmark
+	public String classifyText() {
+		StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+		matcher.matchText(text);
+		return matcher.getStatus();
+	}
+
+	@Benchmark
+	public int classifySiteRules() {
+		SiteStatusMatcher matcher = SiteRules.getConfigured().newMatcher();
+		matcher.matchText(text);
+		return matcher.getStatuses().size();
+	}
+
+	@Benchmark
+	public ScanResult classifyStream() throws Exception {
+		return new MimeStatusScanner(new SharedByteArrayInputStream(eml)).scan(new StatusReferenceMatcher());
+	}
+}
@@ -0,0 +1,135 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.ExecutionMode;
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.handler.RecordExecutor;
+import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubCloudWatchClient;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.LambdaDestinationEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNSRecord;
+import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
+
+/**
+ * <code>handleRequest</code> on an event of many records, with the S3 requests delayed as by the network:
+ * the records run on virtual threads or on the fixed platform pool<br>
+ * VIRTUAL needs a Java 21+ runtime; on an older runtime its setup fails, instead of measuring the platform pool twice
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordExecutorBenchmark {
+
+	@Param({"VIRTUAL", "PLATFORM"})
+	private ExecutionMode mode;
+
+	/**
+	 * number of records of the event
+	 */
+	@Param({"8", "64"})
+	private int records;
+
+	/**
+	 * time added to each S3 request
+	 */
+	@Param({"5"})
+	private long s3LatencyMillis;
+
+	/**
+	 * S3 requests in flight at the same time
+	 */
+	@Param({"16"})
+	private int maxInFlight;
+
+	private RecordExecutor executor;
+
+	private LambdaFunctionHandler handler;
+
+	private SNSEvent event;
+
+	private Context context;
+
+	@Setup
+	public void setUp() throws Exception {
+		executor = new RecordExecutor(mode);
+		if (executor.getMode() != mode) {
+			executor.close();
+			throw new IllegalStateException("no virtual threads on Java " + Runtime.version().feature() + ", run on Java 21+");
+		}
+
+		SNSEvent prototype = TestUtils.parse("/sns-event.json", SNSEvent.class);
+		SNSRecord record = prototype.getRecords().get(0);
+		List<SNSRecord> eventRecords = new ArrayList<SNSRecord>(records);
+		for (int i = 0; i < records; i++) {
+			eventRecords.add(record);
+		}
+		event = new SNSEvent();
+		event.setRecords(eventRecords);
+
+		LambdaDestinationEvent destinationEvent = LambdaEventSerializers
+				.serializerFor(LambdaDestinationEvent.class, LambdaDestinationEvent.class.getClassLoader())
+				.fromJson(record.getSNS().getMessage());
+		String key = Utils.getValueAsObject(destinationEvent.getResponsePayload(), FilteredMail.class).getS3Key();
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject(key, BenchmarkMails.load("jetpack_down.txt"));
+		s3Client.setLatencyMillis(s3LatencyMillis);
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		s3Service.setRequestPermits(new Semaphore(maxInFlight));
+
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(new StubCloudWatchClient());
+		cwService.setPublishMode(PublishMode.API);
+
+		// the same record is repeated: an idempotency cache of 0 keys makes each record read the mail
+		handler = new LambdaFunctionHandler(s3Service, cwService, new IdempotencyService(0, IdempotencyService.DEFAULT_TTL, null));
+		handler.setRecordExecutor(executor);
+
+		TestContext testContext = new TestContext();
+		testContext.setFunctionName("SiteHealthStatusMetric");
+		context = testContext;
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.close();
+	}
+
+	@Benchmark
+	public String handleRequest() {
+		return handler.handleRequest(event, context);
+	}
+}
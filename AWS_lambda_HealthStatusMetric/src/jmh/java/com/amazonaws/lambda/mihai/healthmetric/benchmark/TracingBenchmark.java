@@ -0,0 +1,70 @@
+package com.amazonaws.lambda.mihai.healthmetric.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.mihai.healthmetric.aspect.TraceMode;
+import com.amazonaws.lambda.mihai.healthmetric.aspect.TracingAspect;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+
+/**
+ * cost of the tracing aspect around a traced method that does almost nothing: {@link CloudWatchService#flush(long)} in API mode
+ * without journal; OFF is the cost of the advice alone, TIMING adds the clock reads and the lock free accumulation of the method times,
+ * FULL with debug disabled (log4j2-benchmarks.xml) adds the logger check; run on several threads, as the records of an event
+ * @author mike
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TracingBenchmark {
+
+	@Param({"OFF", "TIMING", "FULL"})
+	private TraceMode mode;
+	/**
+	 * Service with a traced method that sends nothing
+	 */
+	private CloudWatchService cwService;
+	/**
+	 * mode before the benchmark
+	 */
+	private TraceMode previousMode;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cwService = new CloudWatchService();
+		cwService.setPublishMode(PublishMode.API);
+		previousMode = TracingAspect.getMode();
+		TracingAspect.setMode(mode);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		TracingAspect.logTimings();
+		TracingAspect.setMode(previousMode);
+	}
+
+	@Benchmark
+	public void tracedCall() {
+		cwService.flush();
+	}
+}
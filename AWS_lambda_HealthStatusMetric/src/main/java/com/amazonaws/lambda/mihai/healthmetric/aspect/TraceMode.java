@@ -0,0 +1,38 @@
+package com.amazonaws.lambda.mihai.healthmetric.aspect;
+
+/**
+ * used in AspectJ architecture to choose how much is traced for each method execution
+ * @author mike
+ *
+ */
+public enum TraceMode {
+	/**
+	 * methods are executed without any tracing
+	 */
+	OFF,
+	/**
+	 * only execution time is measured; times are accumulated per method and logged once, by {@link TracingAspect#logTimings()}
+	 */
+	TIMING,
+	/**
+	 * parameters, returned values and execution time are logged for each sampled method execution
+	 */
+	FULL;
+
+	/**
+	 *
+	 * @param value name of the mode, case insensitive
+	 * @param defaultMode used when value is missing or unknown
+	 * @return the mode with the given name
+	 */
+	public static TraceMode from(String value, TraceMode defaultMode) {
+		if (value == null) {
+			return defaultMode;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return defaultMode;
+		}
+	}
+}
@@ -1,20 +1,33 @@
 package com.amazonaws.lambda.mihai.healthmetric.aspect;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 /**
  * used in AspectJ architecture to trace methods execution<br>
- * logs info on start and end of methods
+ * logs info on start and end of methods, according to the {@link TraceMode} configured by environment variables 
+ * (or system properties, used in tests):
+ * <ul>
+ * <li>TRACE_MODE (trace.mode): OFF, TIMING (default), FULL</li>
+ * <li>TRACE_SAMPLE_RATE (trace.sample.rate): fraction of method executions logged in FULL mode, default 1</li>
+ * <li>TRACE_MAX_ARG_LENGTH (trace.max.arg.length): maximum length of logged parameters and returned values, default 1024</li>
+ * </ul>
+ * a malformed setting is logged as a warning and its default is used
  * @author mike
  *
  */
@@ -23,7 +36,27 @@ public class TracingAspect {
 	
 	private static Logger logger = LogManager.getLogger(TracingAspect.class);
 	//TODO in code, where this is used, exclude yoda time fields from JSON read
-	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+	/**
+	 * how much is traced
+	 */
+	private static volatile TraceMode mode = TraceMode.from(config("TRACE_MODE", "trace.mode"), TraceMode.TIMING);
+	/**
+	 * fraction of method executions that are logged in FULL mode
+	 */
+	private static volatile double sampleRate = parseDouble(config("TRACE_SAMPLE_RATE", "trace.sample.rate"), 1);
+	/**
+	 * maximum length of logged parameters and returned values; longer values are truncated
+	 */
+	private static volatile int maxArgLength = parseInt(config("TRACE_MAX_ARG_LENGTH", "trace.max.arg.length"), 1024);
+	/**
+	 * parameter names, per join point
+	 */
+	private static final ConcurrentMap<JoinPoint.StaticPart, String[]> PARAMETER_NAMES = new ConcurrentHashMap<JoinPoint.StaticPart, String[]>();
+	/**
+	 * execution times accumulated in TIMING mode, per method
+	 */
+	private static final ConcurrentMap<JoinPoint.StaticPart, MethodTiming> TIMINGS = new ConcurrentHashMap<JoinPoint.StaticPart, MethodTiming>();
 	 
 	  @Around("execution(* *(..)) && @annotation(com.amazonaws.lambda.mihai.healthmetric.aspect.Trace)")
 	  public Object traceMethod (ProceedingJoinPoint jp) throws Throwable {
@@ -41,22 +74,47 @@ public class TracingAspect {
 	  }
 
 	  private Object logMethods(ProceedingJoinPoint jp) throws Throwable {
+		TraceMode traceMode = mode;
+		
+		if (traceMode == TraceMode.OFF) {
+			return jp.proceed();
+		}
+		
+		if (traceMode == TraceMode.TIMING) {
+			long startTime = System.nanoTime();
+			try {
+				return jp.proceed();
+			} finally {
+				long elapsed = System.nanoTime() - startTime;
+				MethodTiming timing = TIMINGS.get(jp.getStaticPart());
+				if (timing == null) {
+					timing = TIMINGS.computeIfAbsent(jp.getStaticPart(), staticPart -> new MethodTiming());
+				}
+				timing.add(elapsed);
+			}
+		}
+		
+		if (!logger.isDebugEnabled() || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return jp.proceed();
+		}
+		
         String methodName = jp.getSignature().getName();
         
         logger.debug("\nSTART method: " + methodName + " with params: " + getMethodParameters(jp));
         
-        long startTime = new Date().getTime();
-        Object result = jp.proceed(jp.getArgs());
-        long endTime = new Date().getTime();
+        long startTime = System.nanoTime();
+        Object result = jp.proceed();
+        long endTime = System.nanoTime();
         
-        logger.debug("\nEND method: " + methodName + " with execution time: " + (endTime - startTime) + " ms");
-        logger.debug("AOP method: " + methodName + ", returned: \n" + OBJECT_MAPPER.writeValueAsString(result) + "\n");
+        logger.debug("\nEND method: " + methodName + " with execution time: " + ((endTime - startTime) / 1000) + " us");
+        logger.debug("AOP method: " + methodName + ", returned: \n" + toJson(result) + "\n");
 
         return result;
 	  }
 
-    private String getMethodParameters(ProceedingJoinPoint jp) throws Exception {
-        String[] argNames = ((MethodSignature) jp.getSignature()).getParameterNames();
+    private String getMethodParameters(ProceedingJoinPoint jp) {
+        String[] argNames = PARAMETER_NAMES.computeIfAbsent(jp.getStaticPart(), 
+        		staticPart -> ((MethodSignature) staticPart.getSignature()).getParameterNames());
         Object[] values = jp.getArgs();
         Map<String, Object> params = new HashMap<String, Object>();
         if (argNames.length != 0) {
@@ -65,8 +123,122 @@ public class TracingAspect {
             }
         }
         
-        return OBJECT_MAPPER.writeValueAsString(params);
+        return toJson(params);
 
     }
+    
+    /**
+     * 
+     * @param value parameter or returned value
+     * @return value as JSON, truncated to the maximum length
+     */
+    private String toJson(Object value) {
+    	String json;
+    	try {
+    		json = OBJECT_MAPPER.writeValueAsString(value);
+    	} catch (Exception e) {
+    		json = "<not serializable: " + e.getClass().getSimpleName() + ">";
+    	}
+    	
+    	if (json.length() > maxArgLength) {
+    		return json.substring(0, maxArgLength) + "...(" + json.length() + " chars)";
+    	}
+    	return json;
+    }
+    
+    /**
+     * logs the execution times accumulated in TIMING mode since the last call, then resets them; 
+     * called once per invocation, so the traced methods do not pay for logging
+     */
+    public static void logTimings() {
+    	if (TIMINGS.isEmpty() || !logger.isDebugEnabled()) {
+    		return;
+    	}
+    	StringBuilder sb = new StringBuilder("\nTIMINGS:");
+    	for (Map.Entry<JoinPoint.StaticPart, MethodTiming> timing : TIMINGS.entrySet()) {
+    		MethodTiming methodTiming = timing.getValue();
+    		long calls = methodTiming.calls.sumThenReset();
+    		if (calls == 0) {
+    			continue;
+    		}
+    		sb.append("\n method: ").append(timing.getKey().getSignature().toShortString())
+    			.append(" calls: ").append(calls)
+    			.append(" total: ").append(methodTiming.totalNanos.sumThenReset() / 1000).append(" us")
+    			.append(" max: ").append(methodTiming.maxNanos.getThenReset() / 1000).append(" us");
+    	}
+    	logger.debug(sb.toString());
+    }
+    
+    public static TraceMode getMode() {
+    	return mode;
+    }
+    
+    public static void setMode(TraceMode traceMode) {
+    	mode = traceMode;
+    }
+    
+    public static void setSampleRate(double rate) {
+    	sampleRate = rate;
+    }
+    
+    public static void setMaxArgLength(int length) {
+    	maxArgLength = length;
+    }
+    
+    private static String config(String envName, String propertyName) {
+    	String value = System.getProperty(propertyName);
+    	return (value != null) ? value : System.getenv(envName);
+    }
+    
+    /**
+     * a malformed setting must not fail the loading of the traced classes: the default is used instead
+     * @param value setting, may be null
+     * @param defaultValue used when the setting is missing or not a number
+     * @return the setting as a number
+     */
+    private static double parseDouble(String value, double defaultValue) {
+    	if (value == null || value.isBlank()) {
+    		return defaultValue;
+    	}
+    	try {
+    		return Double.parseDouble(value.trim());
+    	} catch (NumberFormatException e) {
+    		logger.warn("trace setting not a number: " + value + ", " + defaultValue + " used");
+    		return defaultValue;
+    	}
+    }
+    
+    /**
+     * a malformed setting must not fail the loading of the traced classes: the default is used instead
+     * @param value setting, may be null
+     * @param defaultValue used when the setting is missing or not a number
+     * @return the setting as a number
+     */
+    private static int parseInt(String value, int defaultValue) {
+    	if (value == null || value.isBlank()) {
+    		return defaultValue;
+    	}
+    	try {
+    		return Integer.parseInt(value.trim());
+    	} catch (NumberFormatException e) {
+    		logger.warn("trace setting not a number: " + value + ", " + defaultValue + " used");
+    		return defaultValue;
+    	}
+    }
+    
+    /**
+     * execution times of one method, updated without locks
+     */
+    private static class MethodTiming {
+    	private final LongAdder calls = new LongAdder();
+    	private final LongAdder totalNanos = new LongAdder();
+    	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    	
+    	private void add(long nanos) {
+    		calls.increment();
+    		totalNanos.add(nanos);
+    		maxNanos.accumulate(nanos);
+    	}
+    }
 
 }
@@ -0,0 +1,388 @@
+package com.amazonaws.lambda.mihai.healthmetric.handler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.BackfillCheckpoint;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientFactory;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * backfill mode: rebuilds the history of the health metric from the emails archived under an S3 prefix<br>
+ * the prefix is listed page by page with ListObjectsV2; the emails of a page are read and classified concurrently,
+ * by the same detection as the notified emails, on a bounded pool of workers, while the next page is listed and read;
+ * the statuses of a page are put with the Date header of their email as timestamp, in timestamp order, in batches of PutMetricData requests<br>
+ * after each page, the last key done is saved in a checkpoint file: a stopped backfill resumes after it, and a page whose emails failed is not put<br>
+ * CloudWatch rejects timestamps older than two weeks: older emails are counted, not read, when their S3 object is older too
+ * @author mike
+ *
+ */
+public class BackfillHandler implements AutoCloseable {
+
+	/**
+	 * default number of emails read and classified at the same time
+	 */
+	public static final int DEFAULT_CONCURRENCY = 64;
+	/**
+	 * default number of keys of a ListObjectsV2 page, the most S3 returns
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	/**
+	 * time kept before {@link CloudWatchService#MAX_DATUM_AGE}, so a datum is not rejected while its request is sent
+	 */
+	private static final long AGE_MARGIN_MILLIS = 3_600_000;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(BackfillHandler.class);
+	/**
+	 * handler whose detection classifies the archived emails
+	 */
+	private final LambdaFunctionHandler classifier;
+	/**
+	 * AWS client for S3 Service, to list the prefix
+	 */
+	private final S3Client s3Client;
+	/**
+	 * POJO from the Service layer; puts the statuses into CloudWatch
+	 */
+	private final CloudWatchService cwService;
+	/**
+	 * workers that read and classify the emails
+	 */
+	private final ExecutorService executor;
+	/**
+	 * number of keys of a ListObjectsV2 page
+	 */
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	/**
+	 * file of the checkpoint; null when the progress is not saved
+	 */
+	private Path checkpointFile;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * emails of one page being classified
+	 */
+	private static class Page {
+		/**
+		 * last key of the page; null for an empty page
+		 */
+		private String lastKey;
+		/**
+		 * classification of each email read
+		 */
+		private final List<Future<List<MailStatus>>> classified = new ArrayList<Future<List<MailStatus>>>();
+		/**
+		 * key of each email read, in the order of the classifications
+		 */
+		private final List<String> keys = new ArrayList<String>();
+		/**
+		 * emails not read: stored before the oldest timestamp accepted
+		 */
+		private long tooOld;
+	}
+
+	/**
+	 *
+	 * @param s3Service reads the emails and lists the prefix; its GET requests in flight should allow <code>concurrency</code>
+	 * @param cwService puts the statuses
+	 * @param concurrency number of emails read and classified at the same time
+	 */
+	public BackfillHandler(S3Service s3Service, CloudWatchService cwService, int concurrency) {
+
+		this.classifier = new LambdaFunctionHandler(s3Service, cwService);
+		this.s3Client = s3Service.getS3Client();
+		this.cwService = cwService;
+		this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+			Thread thread = new Thread(runnable, "backfill-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * builds the backfill with the AWS clients of the cloud environment; the shared HTTP client has a connection for each worker
+	 * @param concurrency number of emails read and classified at the same time
+	 * @return a new backfill
+	 */
+	public static BackfillHandler build(int concurrency) {
+
+		HttpClientFactory httpClientFactory = HttpClientFactory.getShared();
+		if (httpClientFactory.getMaxConnections() < concurrency) {
+			httpClientFactory.setMaxConnections(concurrency);
+		}
+		S3Service s3Service = S3Service.build();
+		s3Service.setRequestPermits(new Semaphore(concurrency));
+
+		return new BackfillHandler(s3Service, CloudWatchService.build(), concurrency);
+	}
+
+	/**
+	 * runs a backfill; arguments: bucket prefix, options: --concurrency n --page-size n --checkpoint file
+	 * @param args arguments and options
+	 * @throws Exception when the backfill stopped before the end of the prefix
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			throw new IllegalArgumentException("usage: BackfillHandler bucket prefix [--concurrency n] [--page-size n] [--checkpoint file]");
+		}
+		int concurrency = DEFAULT_CONCURRENCY;
+		int pageSize = DEFAULT_PAGE_SIZE;
+		Path checkpointFile = Paths.get("backfill-checkpoint.json");
+		for (int i = 2; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("no value for " + option);
+			}
+			String value = args[++i];
+
+			switch (option) {
+			case "--concurrency": concurrency = Integer.parseInt(value); break;
+			case "--page-size": pageSize = Integer.parseInt(value); break;
+			case "--checkpoint": checkpointFile = Paths.get(value); break;
+			default: throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+
+		try (BackfillHandler backfill = build(concurrency)) {
+			backfill.setPageSize(pageSize);
+			backfill.setCheckpointFile(checkpointFile);
+			System.out.println(Utils.getObjectAsJson(backfill.run(args[0], args[1])));
+		}
+	}
+
+	/**
+	 * backfills the health metric from the emails under the prefix, after the key of the checkpoint when there is one
+	 * @param bucket S3 bucket of the archived emails
+	 * @param prefix key prefix of the archived emails
+	 * @return progress at the end of the prefix
+	 * @throws RuntimeException when an email could not be read or the statuses could not be put; the checkpoint is the last page done
+	 */
+	public BackfillCheckpoint run(String bucket, String prefix) {
+
+		BackfillCheckpoint checkpoint = loadCheckpoint(bucket, prefix);
+		long oldest = clock.millis() - CloudWatchService.MAX_DATUM_AGE.toMillis() + AGE_MARGIN_MILLIS;
+		logger.info("backfill of s3://" + bucket + "/" + prefix + " from " + checkpoint.getStartAfter() + ", oldest mail date " + new Date(oldest));
+
+		ListObjectsV2Request request = ListObjectsV2Request.builder()
+				.bucket(bucket)
+				.prefix(prefix)
+				.startAfter(checkpoint.getStartAfter())
+				.maxKeys(pageSize)
+				.build();
+
+		// one page is classified while the next one is listed and queued behind it, so the workers are not idle between pages
+		Deque<Page> pages = new ArrayDeque<Page>(2);
+		try {
+			for (ListObjectsV2Response response : s3Client.listObjectsV2Paginator(request)) {
+				pages.add(submit(bucket, response.contents(), oldest));
+				if (pages.size() > 1) {
+					complete(pages.poll(), checkpoint, oldest);
+				}
+			}
+			while (!pages.isEmpty()) {
+				complete(pages.poll(), checkpoint, oldest);
+			}
+		} finally {
+			for (Page page : pages) {
+				page.classified.forEach(classification -> classification.cancel(true));
+			}
+		}
+
+		logger.info("backfill done: " + checkpoint);
+		return checkpoint;
+	}
+
+	/**
+	 * starts the classification of the emails of one page; emails stored before the oldest timestamp accepted are not read
+	 * @param bucket S3 bucket of the archived emails
+	 * @param objects objects of the page, in key order
+	 * @param oldest oldest mail date put, epoch millis
+	 * @return page being classified
+	 */
+	private Page submit(String bucket, List<S3Object> objects, long oldest) {
+
+		Page page = new Page();
+		for (S3Object object : objects) {
+			String key = object.key();
+			page.lastKey = key;
+			if (key.endsWith("/")) {
+				continue;
+			}
+			// an email is stored after its Date header: an object older than the limit is an email older than the limit
+			if (object.lastModified() != null && object.lastModified().toEpochMilli() < oldest) {
+				page.tooOld++;
+				continue;
+			}
+			Date storedAt = (object.lastModified() == null) ? new Date(clock.millis()) : Date.from(object.lastModified());
+			page.keys.add(key);
+			page.classified.add(executor.submit(() -> classifier.classifyMail(bucket, key, storedAt)));
+		}
+		return page;
+	}
+
+	/**
+	 * waits for the classification of one page, puts its statuses and saves the checkpoint after its last key
+	 * @param page page being classified
+	 * @param checkpoint progress, updated
+	 * @param oldest oldest mail date put, epoch millis
+	 */
+	private void complete(Page page, BackfillCheckpoint checkpoint, long oldest) {
+
+		List<MailStatus> statuses = new ArrayList<MailStatus>(page.classified.size());
+		long mails = 0;
+		long skipped = 0;
+		long tooOld = page.tooOld;
+		RuntimeException failure = null;
+
+		for (int i = 0; i < page.classified.size(); i++) {
+			try {
+				List<MailStatus> classified = page.classified.get(i).get();
+				if (classified == null) {
+					skipped++;
+					continue;
+				}
+				mails++;
+				for (MailStatus status : classified) {
+					if (status.getMailDate().getTime() < oldest) {
+						tooOld++;
+					} else {
+						statuses.add(status);
+					}
+				}
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = new RuntimeException("backfill stopped before " + page.keys.get(i) + ", resume from " + checkpoint.getStartAfter(), e.getCause());
+				} else {
+					failure.addSuppressed(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+
+		if (!statuses.isEmpty()) {
+			cwService.putHistoricalData(statuses);
+		}
+
+		checkpoint.setMails(checkpoint.getMails() + mails);
+		checkpoint.setSkipped(checkpoint.getSkipped() + skipped);
+		checkpoint.setTooOld(checkpoint.getTooOld() + tooOld);
+		checkpoint.setDatums(checkpoint.getDatums() + statuses.size());
+		checkpoint.setRequests(checkpoint.getRequests() + (statuses.size() + CloudWatchService.MAX_DATUMS_PER_REQUEST - 1) / CloudWatchService.MAX_DATUMS_PER_REQUEST);
+		if (page.lastKey != null) {
+			checkpoint.setStartAfter(page.lastKey);
+		}
+		checkpoint.setUpdatedAt(clock.millis());
+		saveCheckpoint(checkpoint);
+
+		logger.info("backfill page done: " + checkpoint);
+	}
+
+	/**
+	 *
+	 * @return saved progress of this backfill; a new checkpoint when none is saved, or when the one saved is for another prefix
+	 */
+	private BackfillCheckpoint loadCheckpoint(String bucket, String prefix) {
+
+		if (checkpointFile != null) {
+			try {
+				BackfillCheckpoint saved = Utils.getJsonAsObject(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8), BackfillCheckpoint.class);
+				if (saved.isFor(bucket, prefix)) {
+					return saved;
+				}
+				logger.info("checkpoint of another backfill ignored: " + saved);
+
+			} catch (NoSuchFileException e) {
+				logger.debug("no checkpoint: " + checkpointFile);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return BackfillCheckpoint.build(bucket, prefix);
+	}
+
+	/**
+	 * saves the progress; the file is written next to its final name and then moved, so a stopped backfill never leaves half a checkpoint
+	 */
+	private void saveCheckpoint(BackfillCheckpoint checkpoint) {
+
+		if (checkpointFile == null) {
+			return;
+		}
+		try {
+			Path directory = checkpointFile.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			Path temp = Files.createTempFile(directory, checkpointFile.getFileName().toString(), ".tmp");
+			Files.write(temp, Utils.getObjectAsJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * stops the workers; running classifications are interrupted
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public Path getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public void setCheckpointFile(Path checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
@@ -0,0 +1,37 @@
+package com.amazonaws.lambda.mihai.healthmetric.handler;
+
+/**
+ * threads that run the records of one event in {@link RecordExecutor};
+ * selected per deployment with the environment variable HEALTH_METRIC_EXECUTION_MODE (or the system property health.metric.execution.mode)
+ * @author mike
+ *
+ */
+public enum ExecutionMode {
+	/**
+	 * one virtual thread for each record; used only on a runtime that has virtual threads (Java 21+), else PLATFORM is used
+	 */
+	VIRTUAL,
+	/**
+	 * fixed pool of platform threads, reused across invocations
+	 */
+	PLATFORM;
+
+	/**
+	 *
+	 * @return mode configured for this deployment; VIRTUAL when not configured
+	 */
+	public static ExecutionMode fromEnvironment() {
+		String value = System.getProperty("health.metric.execution.mode");
+		if (value == null) {
+			value = System.getenv("HEALTH_METRIC_EXECUTION_MODE");
+		}
+		if (value == null || value.isBlank()) {
+			return VIRTUAL;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return VIRTUAL;
+		}
+	}
+}
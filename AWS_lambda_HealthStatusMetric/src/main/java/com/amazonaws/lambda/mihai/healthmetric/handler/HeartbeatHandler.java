@@ -0,0 +1,174 @@
+package com.amazonaws.lambda.mihai.healthmetric.handler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteHealthState;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRule;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRules;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientFactory;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricChangeFilter;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+
+/**
+ * scheduled entry point of publish on change: the heartbeat of {@link MetricChangeFilter} is checked only when an email arrives,
+ * so a site without emails would leave its alarm without data; invoked by an EventBridge schedule, this handler puts again
+ * the health status of every site not published for a heartbeat interval<br>
+ * the statuses are read from the durable health state, see {@link HealthStateService}: the due sites are claimed by a conditional write,
+ * so concurrent invocations do not put them twice, then put without the change filter<br>
+ * needs HEALTH_METRIC_HEARTBEAT_SECONDS and a health state store; the schedule rate should be a fraction of the heartbeat interval
+ * @author mike
+ *
+ */
+public class HeartbeatHandler implements RequestHandler<ScheduledEvent, String> {
+
+	/**
+	 * time kept after the last AWS call, so the handler still answers
+	 */
+	private static final long FLUSH_SAFETY_MARGIN_MILLIS = 500;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(HeartbeatHandler.class);
+	/**
+	 * longest time without publishing a site; null when publish on change is not enabled
+	 */
+	private final Duration heartbeat;
+	/**
+	 * health state shared by all instances; null when the state is not kept
+	 */
+	private final HealthStateService healthStateService;
+	/**
+	 * POJO from the Service layer; puts the statuses into CloudWatch
+	 */
+	private final CloudWatchService cwService;
+	/**
+	 * HTTP client shared by the AWS clients, and the deadline of their calls; null in local test environment
+	 */
+	private HttpClientFactory httpClientFactory;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * constructor used in cloud environment
+	 */
+	public HeartbeatHandler() {
+		this(MetricChangeFilter.heartbeatFromEnvironment(), HealthStateService.build(), CloudWatchService.build());
+		httpClientFactory = HttpClientFactory.getShared();
+	}
+
+	/**
+	 * constructor used only in local test environment
+	 * @param heartbeat longest time without publishing a site
+	 * @param healthStateService durable health state
+	 * @param cwService puts the statuses; its change filter is removed, the heartbeat decides here
+	 */
+	public HeartbeatHandler(Duration heartbeat, HealthStateService healthStateService, CloudWatchService cwService) {
+		this.heartbeat = heartbeat;
+		this.healthStateService = healthStateService;
+		this.cwService = cwService;
+		cwService.setChangeFilter(null);
+	}
+
+	/**
+	 * entry point in this handler class; invoked by an EventBridge schedule in cloud environment
+	 * @return number of sites published again, ex: "republished : 2"
+	 */
+	@Override
+	public String handleRequest(ScheduledEvent event, Context context) {
+
+		if (heartbeat == null || healthStateService == null) {
+			logger.info("heartbeat not enabled: needs HEALTH_METRIC_HEARTBEAT_SECONDS and a health state store");
+			return "republished : 0";
+		}
+		if (httpClientFactory != null) {
+			httpClientFactory.startInvocation(context.getRemainingTimeInMillis() - FLUSH_SAFETY_MARGIN_MILLIS);
+		}
+
+		List<MailStatus> due = claimDueSites();
+		if (!due.isEmpty()) {
+			cwService.putHealthStatusData(due);
+		}
+		cwService.flush();
+
+		logger.info("republished " + due.size() + " sites");
+		return "republished : " + due.size();
+	}
+
+	/**
+	 * selects the sites not published for a heartbeat interval and records them as published now;
+	 * on a conflict the selection is made again on the newer state, so a site just published by an email is not put again
+	 * @return current status of each due site, with the dimensions of its rule
+	 */
+	private List<MailStatus> claimDueSites() {
+
+		long now = clock.millis();
+		// the sites are published by the other instances: the cached state misses their sites and their puts; 
+		// the fresh state is also the one claimed below, so the claim has no conflict of its own
+		if (healthStateService.readFresh().getSites().values().stream().noneMatch(siteState -> isDue(siteState, now))) {
+			return new ArrayList<MailStatus>();
+		}
+		Map<String, SiteRule> rules = new HashMap<String, SiteRule>();
+		for (SiteRule rule : SiteRules.getConfigured().getRules()) {
+			rules.put(rule.getSiteId(), rule);
+		}
+
+		List<MailStatus> due = new ArrayList<MailStatus>();
+		healthStateService.update(state -> {
+			due.clear();
+			for (Map.Entry<String, SiteHealthState> site : state.getSites().entrySet()) {
+				SiteHealthState siteState = site.getValue();
+				if (!isDue(siteState, now)) {
+					continue;
+				}
+				SiteRule rule = rules.get(site.getKey());
+				if (rule == null) {
+					logger.debug("no rule for site " + site.getKey() + ", not published again");
+					continue;
+				}
+				MailStatus status = new MailStatus();
+				status.setSiteId(site.getKey());
+				status.setStatus(siteState.getStatus());
+				status.setHealthy(siteState.getHealthy());
+				status.setDimensions(rule.getDimensions());
+				due.add(status);
+
+				siteState.setLastPublishedAt(now);
+			}
+			return state;
+		});
+		return due;
+	}
+
+	/**
+	 *
+	 * @param siteState durable state of a site
+	 * @param now current moment, epoch millis
+	 * @return true if the site has a status not published for a heartbeat interval
+	 */
+	private boolean isDue(SiteHealthState siteState, long now) {
+		return siteState.getHealthy() != null && now - siteState.getLastPublishedAt() >= heartbeat.toMillis();
+	}
+
+	public void setHttpClientFactory(HttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
@@ -1,31 +1,69 @@
 package com.amazonaws.lambda.mihai.healthmetric.handler;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
 
+import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.net.ssl.SSLContext;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.crac.Core;
+import org.crac.Resource;
 
+import com.amazonaws.lambda.mihai.healthmetric.aspect.TracingAspect;
 import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
 import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.model.NotifiedMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.ProcessedMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRule;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRules;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteStatusMatcher;
 import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
 import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthAggregator;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientFactory;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.LazyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3RangeInputStream;
 import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.LambdaDestinationEvent;
 import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNS;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNSRecord;
 import com.amazonaws.services.lambda.runtime.serialization.PojoSerializer;
 import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.s3.S3Client;
 
 /**
  * handler that is used by cloud platform<br>
@@ -33,30 +71,98 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * @author mikeaws
  *
  */
-public class LambdaFunctionHandler implements RequestHandler<SNSEvent, String> {
+public class LambdaFunctionHandler implements RequestHandler<SNSEvent, String>, Resource {
+	/**
+	 * time kept at the end of the invocation, after the records deadline, to put the metric data
+	 */
+	private static final long PUBLISH_SAFETY_MARGIN_MILLIS = 1000;
+	/**
+	 * time kept at the end of the invocation, after the last AWS call
+	 */
+	private static final long FLUSH_SAFETY_MARGIN_MILLIS = 500;
+	/**
+	 * reads of one email, when it is overwritten while read
+	 */
+	private static final int MAX_READ_ATTEMPTS = 3;
+	/**
+	 * part of the sender address of the mails handled by this processor
+	 */
+	private static final String PROCESSOR_FROM = "@jetpack";
+	/**
+	 * filter of the mails handled by this processor: mails sent by website monitor; the filter of the events, 
+	 * and the headers of the emails, are checked with it
+	 */
+	private static final MailFilter PROCESSOR_MAIL_FILTER = processorFilter();
+	/**
+	 * key of the emails selected by the filter of this processor, compared with the key of the filter of each event
+	 */
+	private static final String PROCESSOR_FILTER_KEY = PROCESSOR_MAIL_FILTER.selectionKey();
+	/**
+	 * filter of this processor compiled, tested on the headers of each email
+	 */
+	private static final Predicate<InternetHeaders> PROCESSOR_FILTER = PROCESSOR_MAIL_FILTER.compile();
+	/**
+	 * mail session shared by all parsed emails
+	 */
+	private static final Session MAIL_SESSION = Session.getInstance(new Properties());
+	/**
+	 * deserializer of the events sent by Lambda destinations; built once, it is thread safe
+	 */
+	private static final PojoSerializer<LambdaDestinationEvent> LAMBDA_EVENT_SERIALIZER = LambdaEventSerializers.serializerFor(LambdaDestinationEvent.class, LambdaDestinationEvent.class.getClassLoader());
 	/**
 	 * logger named by this class
 	 */
 	private Logger logger = LogManager.getLogger(LambdaFunctionHandler.class);
 	/**
-	 * POJO from the Service layer; wrapper for AWS SDK S3 Service client
+	 * processes the records of one event concurrently (S3 fetch and MIME parse), on virtual threads when the runtime has them
+	 */
+	private RecordExecutor recordExecutor = RecordExecutor.build();
+	/**
+	 * POJO from the Service layer; wrapper for AWS SDK S3 Service client, built when the first email is read
 	 */
-	private S3Service s3Service;
+	private LazyService<S3Service> s3Service;
 	/**
-	 * POJO from the Service layer; wrapper for AWS SDK CloudWatch Service client
+	 * POJO from the Service layer; wrapper for AWS SDK CloudWatch Service client, built when the first email is read (in parallel with S3) or when the first status is put
 	 */
-	private CloudWatchService cwService;
+	private LazyService<CloudWatchService> cwService;
+	/**
+	 * POJO from the Service layer; emails already processed by this execution environment (or by the durable store)
+	 */
+	private IdempotencyService idempotencyService;
+	/**
+	 * HTTP client shared by the AWS clients, and the deadline of their calls; null in local test environment
+	 */
+	private HttpClientFactory httpClientFactory;
+	/**
+	 * aggregation stage: turns the statuses of a site into one debounced verdict; null when every status is published as detected
+	 */
+	private HealthAggregator healthAggregator;
+	/**
+	 * health state shared by all instances: state of each site and aggregation windows; null when the state is not kept
+	 */
+	private HealthStateService healthStateService;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
 	/**
 	 * constructor used in cloud environment
 	 */
     public LambdaFunctionHandler() {
-    	s3Service = S3Service.build();
-    	cwService = CloudWatchService.build();
+    	// the AWS clients are built only for events that need them: invalid or duplicate events do not pay for them
+    	s3Service = new LazyService<S3Service>(S3Service::build);
+    	cwService = new LazyService<CloudWatchService>(CloudWatchService::build);
+    	idempotencyService = IdempotencyService.build();
+    	httpClientFactory = HttpClientFactory.getShared();
+    	healthAggregator = HealthAggregator.build();
+    	healthStateService = HealthStateService.build();
     	
+    	// SnapStart: prime before the snapshot, rebuild the clients after restore
+    	Core.getGlobalContext().register(this);
     }
 
     /**
-     * constructor used only in local test environment
+     * constructor used in local test environment, and by {@link BackfillHandler} to classify archived emails
      * @param s3Service {@link com.amazonaws.lambda.mihai.healthmetric.service.S3Service}
      * @param cwService {@link com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService}
      */
@@ -64,92 +170,552 @@ public class LambdaFunctionHandler implements RequestHandler<SNSEvent, String> {
     		S3Service s3Service, 
     		CloudWatchService cwService) {
     	
+    	this(s3Service, cwService, new IdempotencyService());
+    }
+
+    /**
+     * constructor used only in local test environment
+     * @param s3Service {@link com.amazonaws.lambda.mihai.healthmetric.service.S3Service}
+     * @param cwService {@link com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService}
+     * @param idempotencyService {@link com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService}
+     */
+    public LambdaFunctionHandler(
+    		S3Service s3Service, 
+    		CloudWatchService cwService,
+    		IdempotencyService idempotencyService) {
+    	
+    	this(LazyService.of(s3Service), LazyService.of(cwService), idempotencyService);
+    }
+
+    /**
+     * constructor used only in local test environment, ex: cold start benchmark
+     * @param s3Service holder of {@link com.amazonaws.lambda.mihai.healthmetric.service.S3Service}
+     * @param cwService holder of {@link com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService}
+     * @param idempotencyService {@link com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService}
+     */
+    public LambdaFunctionHandler(
+    		LazyService<S3Service> s3Service, 
+    		LazyService<CloudWatchService> cwService,
+    		IdempotencyService idempotencyService) {
+    	
     	this.s3Service = s3Service;
     	this.cwService = cwService;
-    	
+    	this.idempotencyService = idempotencyService;
     }
     /**
-     * entry point in this handler class; invoked by Lambda Service in cloud environment 
+     * entry point in this handler class; invoked by Lambda Service in cloud environment<br>
+     * all records of the event are processed, and only the newest status of each site is put into CloudWatch<br>
+     * records of emails already processed are answered from the idempotency layer, and their statuses are not put again
      */
     @Override
     public String handleRequest(SNSEvent event, Context context) {
     	//logger.debug("SNSEvent: " + event);
-        String snsMsg = event.getRecords().get(0).getSNS().getMessage();       
+    	List<NotifiedMail> mails = new ArrayList<NotifiedMail>(event.getRecords().size());
+    	for (SNSRecord record : event.getRecords()) {
+    		SNS sns = record.getSNS();
+    		mails.add(NotifiedMail.build(sns.getMessageId(), (sns.getTimestamp() == null) ? null : sns.getTimestamp().toDate(), sns.getMessage()));
+    	}
+    	
+    	return handleMails(mails, context);
+    }
+    
+    /**
+     * processes the notified emails of one invocation, decoded by any entry point: 
+     * all of them are processed, and only the newest status of each site is put into CloudWatch<br>
+     * records of emails already processed are answered from the idempotency layer, and their statuses are not put again
+     * @param records notified emails, in event order
+     * @param context Lambda context of the invocation
+     * @return health status of each site, ex: "healthy : false"
+     */
+    public String handleMails(List<NotifiedMail> records, Context context) {
+    	
+    	// AWS calls of this invocation time out before Lambda stops it, so the handler still answers
+    	if (httpClientFactory != null) {
+    		httpClientFactory.startInvocation(context.getRemainingTimeInMillis() - FLUSH_SAFETY_MARGIN_MILLIS);
+    	}
+    	
+    	List<ProcessedMail> processed = new ArrayList<ProcessedMail>(records.size());
+    	List<Exception> failures = new ArrayList<Exception>();
+    	
+    	List<Callable<ProcessedMail>> tasks = new ArrayList<Callable<ProcessedMail>>(records.size());
+    	for (NotifiedMail record : records) {
+    		tasks.add(() -> processMail(record));
+    	}
+    	// records not processed before the deadline fail, so the metric data of the others is still put in time
+    	recordExecutor.invokeAll(tasks, context.getRemainingTimeInMillis() - PUBLISH_SAFETY_MARGIN_MILLIS, processed, failures);
+    	
+    	Map<String, MailStatus> newestBySite = new LinkedHashMap<String, MailStatus>();
+    	Set<MailStatus> alreadyPut = new HashSet<MailStatus>();
+    	for (ProcessedMail mail : processed) {
+    		for (MailStatus status : mail.getStatuses()) {
+    			if (status.isNewerThan(newestBySite.get(status.getSiteId()))) {
+    				newestBySite.put(status.getSiteId(), status);
+    			}
+    			if (mail.isDuplicate()) {
+    				alreadyPut.add(status);
+    			}
+    		}
+    	}
+    	
+    	List<MailStatus> toPut = new ArrayList<MailStatus>(newestBySite.size());
+    	if (healthStateService == null) {
+    		toPut.addAll(selectToPut(processed, newestBySite, alreadyPut));
+    	} else if (processed.stream().anyMatch(mail -> !mail.isDuplicate())) {
+    		// one conditional write shared by all instances: on a conflict, the verdicts are computed again on the newer state
+    		healthStateService.update(state -> {
+    			if (healthAggregator != null) {
+    				healthAggregator.restore(state.getAggregation());
+    			}
+    			toPut.clear();
+    			toPut.addAll(selectToPut(processed, newestBySite, alreadyPut));
+    			if (healthAggregator != null) {
+    				state.setAggregation(healthAggregator.snapshot());
+    			}
+    			long now = clock.millis();
+    			for (MailStatus status : toPut) {
+    				state.site(status.getSiteId()).record(status, now);
+    			}
+    			return state;
+    		});
+    	}
+    	List<MailStatus> published = new ArrayList<MailStatus>();
+    	if (!toPut.isEmpty()) {
+    		published.addAll(cwService.get().putHealthStatusData(toPut));
+    	}
+    	
+    	TracingAspect.logTimings();
+    	
+    	// with the journal, the datums journaled by former invocations are put; a Service not built yet has nothing to put
+    	CloudWatchService builtCwService = cwService.getIfBuilt();
+    	if (builtCwService != null) {
+    		builtCwService.flush();
+    	}
+    	
+    	// the heartbeat counts from the last put: statuses dropped by publish on change, or rejected, were not published
+    	if (healthStateService != null && !published.isEmpty()) {
+    		long now = clock.millis();
+    		healthStateService.update(state -> {
+    			for (MailStatus status : published) {
+    				state.site(status.getSiteId()).published(now);
+    			}
+    			return state;
+    		});
+    	}
+    	
+    	// only now the metric data of these emails is in CloudWatch: a retry of the failed records skips them
+    	for (ProcessedMail mail : processed) {
+    		if (!mail.isDuplicate()) {
+    			idempotencyService.save(mail);
+    		}
+    	}
+    	
+    	if (!failures.isEmpty()) {
+    		RuntimeException failure = new RuntimeException(failures.get(0));
+    		for (int i = 1; i < failures.size(); i++) {
+    			failure.addSuppressed(failures.get(i));
+    		}
+    		failures.forEach(Exception::printStackTrace);
+    		throw failure;
+    	}
+    	
+    	StringBuilder response = new StringBuilder();
+    	for (MailStatus status : newestBySite.values()) {
+    		if (response.length() > 0) {
+    			response.append("; ");
+    		}
+    		response.append("healthy : " + status.getHealthy());
+    	}
+    	
+        return response.toString();
+    }
+    
+    /**
+     * selects the statuses to put: the newest status of each site, unless it was already put by the invocation that processed its email;
+     * with the aggregation stage, every new status counts in the window of its site, and the verdicts are put instead of the statuses
+     * @param processed emails processed by this invocation
+     * @param newestBySite newest status of each site; the verdicts replace the statuses
+     * @param alreadyPut statuses of duplicate emails
+     * @return statuses to put into CloudWatch
+     */
+    private List<MailStatus> selectToPut(List<ProcessedMail> processed, Map<String, MailStatus> newestBySite, Set<MailStatus> alreadyPut) {
+    	
+    	List<MailStatus> toPut = new ArrayList<MailStatus>(newestBySite.size());
+    	if (healthAggregator != null) {
+    		List<MailStatus> signals = new ArrayList<MailStatus>();
+    		for (ProcessedMail mail : processed) {
+    			if (!mail.isDuplicate()) {
+    				signals.addAll(mail.getStatuses());
+    			}
+    		}
+    		Map<String, MailStatus> verdicts = healthAggregator.aggregate(signals);
+    		newestBySite.putAll(verdicts);
+    		toPut.addAll(verdicts.values());
+    		return toPut;
+    	}
+    	
+    	for (MailStatus status : newestBySite.values()) {
+    		if (!alreadyPut.contains(status)) {
+    			toPut.add(status);
+    		}
+    	}
+    	return toPut;
+    }
+    
+    /**
+     * reads the email referenced by one SNS notification and detects the health status from its body<br>
+     * a duplicate is detected before any S3 request: first by the SNS message id, then by the S3 object of the email
+     * @param record SNS notification of a filtered mail
+     * @return health status of each site found in the email, with the idempotency keys of the email; no status when the email 
+     * was not sent by website monitor
+     * @throws Exception when the record is not valid or the email could not be read
+     */
+    private ProcessedMail processMail(NotifiedMail record) throws Exception {
+    	
+    	List<String> keys = new ArrayList<String>(2);
+    	String messageId = record.getMessageId();
+    	if (messageId != null) {
+    		keys.add("sns:" + messageId);
+    		ProcessedMail processed = idempotencyService.find(keys.get(0));
+    		if (processed != null) {
+    			return processed;
+    		}
+    	}
+    	
+    	FilteredMail mail = readMailInfo(record);
         
-        InputStream eventStream = new ByteArrayInputStream(snsMsg.getBytes());
-  		PojoSerializer<LambdaDestinationEvent> lambdaEventSerializer = LambdaEventSerializers.serializerFor(LambdaDestinationEvent.class, LambdaDestinationEvent.class.getClassLoader());
-  		LambdaDestinationEvent lbdDestEvt = lambdaEventSerializer.fromJson(eventStream);
+        String bucket = mail.getS3Bucket();
+        String key = mail.getS3Key();
+        
+        keys.add("s3:" + bucket + "/" + key + ((mail.getS3ETag() == null) ? "" : "#" + mail.getS3ETag()));
+        ProcessedMail processed = idempotencyService.find(keys.get(keys.size() - 1));
+        if (processed != null) {
+        	return processed;
+        }
+        
+        // both Services are needed from now on: the CloudWatch client is built in background while this thread builds the S3 client
+        cwService.start();
+        
+        List<MailStatus> statuses = readStatus(record, bucket, key);
+        if (statuses == null) {
+        	// ex: a forwarded or relayed email; read again it would not change: skipped, not failed, so the event is not retried
+        	logger.info("mail " + key + " not sent by website monitor, skipped");
+        	return ProcessedMail.build(keys, new ArrayList<MailStatus>());
+        }
+        return ProcessedMail.build(keys, statuses);
+    }
+    
+    /**
+     * reads the email with ranged GET requests and detects the health status from its body, see {@link #scanStatus(NotifiedMail, InputStream, String, String)}<br>
+     * website monitor writes the status line near the top: usually the first range is enough; 
+     * when the email is overwritten between two ranges, or before a malformed email is read whole, it is read again from the start
+     * @return health status of each site found in the email; null when the email was not sent by website monitor
+     */
+    private List<MailStatus> readStatus(NotifiedMail record, String bucket, String key) throws Exception {
+    	
+    	for (int attempt = 1; ; attempt++) {
+    		try (InputStream inputStream = s3Service.get().getMailEMLRangeStream(bucket, key)) {
+    			return scanStatus(record, inputStream, bucket, key);
+    		} catch (S3RangeInputStream.ObjectChangedException e) {
+    			if (attempt >= MAX_READ_ATTEMPTS) {
+    				throw e;
+    			}
+    			logger.debug("mail read again: " + e.getMessage());
+    		}
+    	}
+    }
+    
+    /**
+     * 
+     * @param record SNS notification; its message is a lambda destination event with filtered mail info, unless already decoded
+     * @return filtered mail info
+     * @throws Exception when the record is not valid
+     */
+    private FilteredMail readMailInfo(NotifiedMail record) throws Exception {
+    	
+    	FilteredMail mail = record.getMail();
+    	if (mail == null && !record.isRejected()) {
+  			LambdaDestinationEvent lbdDestEvt = LAMBDA_EVENT_SERIALIZER.fromJson(record.getMessage());
   		
-           	
+  			mail = Utils.getValueAsObject(lbdDestEvt.getResponsePayload(), FilteredMail.class);
+    	}
+
+        logger.debug("mail info: " + mail);
+        
+        if (record.isRejected() || !validMessage(mail)) {
+        	throw new RuntimeException("Filtered mail key not for this processor !!!");
+        }
+        
+        return mail;
+    }
+    
+    /**
+     * classifies an email stored in S3 without SNS notification, with the same detection as the notified emails, ex: archived emails of a backfill
+     * @param bucket S3 bucket where the email file is stored
+     * @param key name of the email file
+     * @param storedAt moment the email was stored, used as mail date when the email has no valid Date header
+     * @return health status of each site found in the email; null when the email was not sent by website monitor
+     * @throws Exception when the email could not be read
+     */
+    public List<MailStatus> classifyMail(String bucket, String key, Date storedAt) throws Exception {
+    	
+        return readStatus(NotifiedMail.build(null, storedAt, null), bucket, key);
+    }
+    
+    /**
+     * detects the health status of each configured site from the body of the email<br>
+     * the email is scanned as a stream, and the status lines of all sites are searched in one pass; the full <code>MimeMessage</code> model is used only for malformed emails
+     * @param record SNS notification of the filtered mail
+     * @param inputStream email read from S3, fetched in ranges or as a {@link javax.mail.internet.SharedInputStream}
+     * @param bucket S3 bucket where the email file is stored
+     * @param key name of the email file
+     * @return health status of each site found in the email; the default site is healthy when the email has no status line
+     * @throws Exception when the email could not be read, or was not sent by website monitor
+     */
+    private List<MailStatus> detectStatus(NotifiedMail record, InputStream inputStream, String bucket, String key) throws Exception {
+    	
+    	List<MailStatus> statuses = scanStatus(record, inputStream, bucket, key);
+    	if (statuses == null) {
+    		throw new RuntimeException("Mail " + key + " not for this processor !!!");
+    	}
+    	return statuses;
+    }
+    
+    /**
+     * same as {@link #detectStatus(NotifiedMail, InputStream, String, String)}
+     * @return health status of each site found in the email; null when the email was not sent by website monitor
+     */
+    private List<MailStatus> scanStatus(NotifiedMail record, InputStream inputStream, String bucket, String key) throws Exception {
+        
+    	MimeStatusScanner scanner = new MimeStatusScanner(inputStream);
+    	InternetHeaders headers = scanner.readHeaders();
+    	if (!PROCESSOR_FILTER.test(headers)) {
+    		return null;
+    	}
+    	SiteRules siteRules = SiteRules.getConfigured();
+    	SiteStatusMatcher matcher = siteRules.newMatcher();
+    	
+    	ScanResult result;
     	try {
-      		FilteredMail mail = Utils.getJsonAsObject((new ObjectMapper()).writeValueAsString((Map)lbdDestEvt.getResponsePayload()), FilteredMail.class);
-
-            logger.debug("mail info: " + mail);
-            
-            if (!validMessage(mail)) {
-            	throw new RuntimeException("Filtered mail key not for this processor !!!");
-            }
-            
-            String bucket = mail.getS3Bucket();
-            String key = mail.getS3Key();
-            
-	    	String emlFile = s3Service.getMailEMLFile(bucket, key);
-	        
-	        
-	        Properties props = new Properties();
-	        Session mailSession = Session.getDefaultInstance(props);
-	        InputStream inputStream = new ByteArrayInputStream(emlFile.getBytes(StandardCharsets.UTF_8));
-	        MimeMessage message = new MimeMessage(mailSession, inputStream);
-	        
-	        logger.debug("Subject : " + message.getSubject());
-	        logger.debug("From : " + Arrays.toString(message.getFrom()));
-	        logger.debug("Body : " +  message.getContent());
-	        
-	        String contentType = message.getContentType();
-	        if (contentType.contains("multipart")) {
-	        	Multipart multiPart = (Multipart) message.getContent();
-	        	logger.debug("Multipart EMail File with Parts:::" + multiPart.getCount());
-	        }
-	        
-	        String body = MailFilter.extractTextContent(message);
-	        
-	        //format: "Error reference: <site number>/<status>" 
-	        //status in (server, blocked, client, intermittent, redirection, success, unknown)
-	        Boolean statusHealthy = Boolean.TRUE;
-	        if (body.contains("Error reference: 214785651/success")) {
-	        	statusHealthy = Boolean.TRUE;
-	        		        	
-	        } else if (body.contains("Error reference: 214785651/")) {
-	        	statusHealthy = Boolean.FALSE;
-	        	
-	        } else {
-	        	statusHealthy = Boolean.TRUE;
-	        }
+    		result = scanner.scan(matcher);
+    	} catch (MessagingException e) {
+    		logger.debug("malformed mail " + key + ": " + e.getMessage());
+    		result = ScanResult.INCOMPLETE;
+    	}
+    	logger.debug("scan result: " + result + matcher);
+    	
+    	if (result == ScanResult.INCOMPLETE) {
+    		matcher = siteRules.newMatcher();
+    		if (inputStream instanceof SharedInputStream) {
+    			matcher.matchText(extractTextContent(inputStream));
+    		} else {
+    			// the version of the ranges already read: when the email was overwritten since, the read starts again
+    			String eTag = (inputStream instanceof S3RangeInputStream) ? ((S3RangeInputStream) inputStream).getETag() : null;
+    			try (InputStream wholeMail = s3Service.get().getMailEMLStream(bucket, key, eTag)) {
+    				matcher.matchText(extractTextContent(wholeMail));
+    			}
+    		}
+    	}
+        
+        //format: "Error reference: <site number>/<status>" 
+        //status in (server, blocked, client, intermittent, redirection, success, unknown); any status not healthy for the rule is unhealthy
+        Map<SiteRule, String> siteStatuses = matcher.getStatuses();
+        if (siteStatuses.isEmpty()) {
+        	siteStatuses = new LinkedHashMap<SiteRule, String>();
+        	siteStatuses.put(siteRules.getDefaultRule(), null);
+        }
+        
+        Date mailDate = null;
+        String dateHeader = headers.getHeader("Date", null);
+        if (dateHeader != null) {
+        	try {
+        		mailDate = new MailDateFormat().parse(dateHeader);
+        	} catch (ParseException e) {
+        		logger.debug("mail date not valid: " + dateHeader);
+        	}
+        }
+        if (mailDate == null) {
+        	mailDate = record.getTimestamp();
+        }
+        
+        List<MailStatus> statuses = new ArrayList<MailStatus>(siteStatuses.size());
+        for (Map.Entry<SiteRule, String> siteStatus : siteStatuses.entrySet()) {
+        	SiteRule rule = siteStatus.getKey();
+        	
+	        MailStatus status = new MailStatus();
+	        status.setSiteId(rule.getSiteId());
+	        status.setStatus(siteStatus.getValue());
+	        status.setHealthy((siteStatus.getValue() == null) ? Boolean.TRUE : rule.isHealthy(siteStatus.getValue()));
+	        status.setDimensions(rule.getDimensions());
+	        status.setMailDate(mailDate);
+	        status.setS3Bucket(bucket);
+	        status.setS3Key(key);
 	        
-	        cwService.putHealthStatusData(statusHealthy);
-	                    
-            return "healthy : " + statusHealthy;
-    	} catch (Exception e) {
-            e.printStackTrace();            
-            throw new RuntimeException(e);
+	        logger.debug("mail status: " + status);
+	        statuses.add(status);
+        }
+        
+        return statuses;
+    }
+    /**
+     * fallback for emails that could not be scanned: the full <code>MimeMessage</code> model is built from the same shared bytes
+     * @param inputStream email read from S3, as a {@link javax.mail.internet.SharedInputStream}
+     * @return plain text of the mail body
+     * @throws Exception when the email could not be read
+     */
+    private String extractTextContent(InputStream inputStream) throws Exception {
+    	
+        MimeMessage message = new MimeMessage(MAIL_SESSION, ((SharedInputStream) inputStream).newStream(0, -1));
+        
+        logger.debug("Subject : " + message.getSubject());
+        logger.debug("From : " + Arrays.toString(message.getFrom()));
+        
+        String contentType = message.getContentType();
+        if (contentType.contains("multipart")) {
+        	Multipart multiPart = (Multipart) message.getContent();
+        	logger.debug("Multipart EMail File with Parts:::" + multiPart.getCount());
         }
+        
+        return MailFilter.extractTextContent(message);
+    }
+    /**
+     * runs the hot path once on a canned event and email, without network calls, 
+     * so the classes it needs are loaded and initialized before the SnapStart snapshot: 
+     * event deserializers, JSON mappers, site rule automaton, MIME scanner and javax.mail fallback, metric datum builders, TLS context
+     * @throws Exception when the canned data could not be processed
+     */
+    public void prime() throws Exception {
+    	
+    	NotifiedMail record = NotifiedMail.build(null, new Date(), new String(readResource("/priming/destination-event.json"), StandardCharsets.UTF_8));
+    	
+    	FilteredMail mail = readMailInfo(record);
+    	byte[] eml = readResource("/priming/" + mail.getS3Key());
+    	
+    	MailStatus status = detectStatus(record, new SharedByteArrayInputStream(eml), mail.getS3Bucket(), mail.getS3Key()).get(0);
+    	SiteRules.getConfigured().newMatcher().matchText(extractTextContent(new SharedByteArrayInputStream(eml)));
+    	
+    	cwService.get().buildHealthStatusDatum(status);
+    	Utils.getObjectAsJson(status);
+    	SSLContext.getDefault();
+    	
+    	logger.debug("primed with " + status);
+    }
+    
+    /**
+     * SnapStart hook: primes the handler before the snapshot is taken
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws Exception {
+    	prime();
     }
+    
+    /**
+     * SnapStart hook: connections opened before the snapshot are not valid in the restored environment, so the AWS clients are rebuilt
+     */
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) throws Exception {
+    	
+    	// Services not built before the snapshot are built after restore, with new clients; 
+    	// the new clients use a new HTTP client, the old one is closed after the old clients
+    	SdkHttpClient httpClient = (httpClientFactory == null) ? null : httpClientFactory.renewHttpClient();
+    	
+    	S3Service builtS3Service = s3Service.getIfBuilt();
+    	if (builtS3Service != null) {
+    		S3Client s3Client = builtS3Service.getS3Client();
+    		builtS3Service.setS3Client(S3Service.buildS3Client());
+    		s3Client.close();
+    	}
+    	
+    	CloudWatchService builtCwService = cwService.getIfBuilt();
+    	if (builtCwService != null) {
+	    	CloudWatchClient cwClient = builtCwService.getCwClient();
+	    	builtCwService.setCwClient(CloudWatchService.buildCwClient());
+	    	cwClient.close();
+	    	
+	    	if (builtCwService.getJournal() != null) {
+	    		builtCwService.getJournal().renewS3Client();
+	    	}
+    	}
+    	
+    	if (healthStateService != null) {
+    		healthStateService.renewClients();
+    	}
+    	
+    	if (httpClient != null) {
+    		httpClient.close();
+    	}
+    }
+    
+    private static byte[] readResource(String name) throws IOException {
+    	try (InputStream resource = LambdaFunctionHandler.class.getResourceAsStream(name)) {
+    		return resource.readAllBytes();
+    	}
+    }
+    
+	public HealthAggregator getHealthAggregator() {
+		return healthAggregator;
+	}
+
+	public void setHealthAggregator(HealthAggregator healthAggregator) {
+		this.healthAggregator = healthAggregator;
+	}
+
+	public HealthStateService getHealthStateService() {
+		return healthStateService;
+	}
+
+	public void setHealthStateService(HealthStateService healthStateService) {
+		this.healthStateService = healthStateService;
+	}
+
+	public RecordExecutor getRecordExecutor() {
+		return recordExecutor;
+	}
+
+	public void setRecordExecutor(RecordExecutor recordExecutor) {
+		this.recordExecutor = recordExecutor;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+    
     /**
      * 
      * @param mailInfo event data for analysed mail
-     * @return true if event is valid: is for a mail that came from website monitor
+     * @return true if event is valid: is for a mail that came from website monitor; 
+     * the filter of the event selects the same emails as the filter of this processor, see {@link MailFilter#selectionKey()}
      */
     public Boolean validMessage(FilteredMail mailInfo) {
-    	Boolean valid = Boolean.TRUE;
     	
-    	if (!(MailFilter.FILTER_FIELD_FROM.equals(mailInfo.getFilter().getField())
-    			&& MailFilter.FILTER_MODIFIER_CONTAINS.equals(mailInfo.getFilter().getModifier())
-    			&& "@jetpack".equals(mailInfo.getFilter().getValue()))) {
-    		
-    		valid = Boolean.FALSE;
+    	if (mailInfo == null || mailInfo.getFilter() == null) {
+    		return false;
     	}
+    	MailFilter filter = mailInfo.getFilter();
+    	return isProcessorFilter(filter.getField(), filter.getModifier(), filter.getValue());
+    }
+    
+    /**
+     * same check as {@link #validMessage(FilteredMail)}, on the raw filter fields, before any object is built
+     * @param field filter field, ex: FROM
+     * @param modifier filter modifier, ex: CONTAINS
+     * @param value filter value, ex: @jetpack
+     * @return true if the filter selects the same emails as the filter of this processor
+     */
+    public static boolean isProcessorFilter(String field, String modifier, String value) {
     	
-    	return valid;
+    	return PROCESSOR_FILTER_KEY.equals(MailFilter.selectionKey(field, modifier, value));
+    }
+    
+    /**
+     * 
+     * @return filter of the mails sent by website monitor: FROM CONTAINS @jetpack
+     */
+    private static MailFilter processorFilter() {
+    	MailFilter filter = new MailFilter();
+    	filter.setField(MailFilter.FILTER_FIELD_FROM);
+    	filter.setModifier(MailFilter.FILTER_MODIFIER_CONTAINS);
+    	filter.setValue(PROCESSOR_FROM);
+    	return filter;
     }
 
 }
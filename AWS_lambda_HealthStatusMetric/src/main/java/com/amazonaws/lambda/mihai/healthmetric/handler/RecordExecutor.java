@@ -0,0 +1,131 @@
+package com.amazonaws.lambda.mihai.healthmetric.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * runs the records of one event concurrently, each record in its own task, until a deadline<br>
+ * on a runtime with virtual threads (Java 21+) each task has its own virtual thread; on older runtimes,
+ * or when {@link ExecutionMode#PLATFORM} is configured, the tasks share a fixed pool of platform threads<br>
+ * the failure of one task does not stop the others: the results and the failures are collected separately
+ * @author mike
+ *
+ */
+public class RecordExecutor implements AutoCloseable {
+
+	/**
+	 * number of platform threads of the fallback pool
+	 */
+	public static final int PLATFORM_POOL_SIZE = 8;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(RecordExecutor.class);
+	/**
+	 * mode actually used: VIRTUAL only when the runtime has virtual threads
+	 */
+	private final ExecutionMode mode;
+	/**
+	 * executor of the tasks; threads are created only when needed
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 *
+	 * @param mode requested mode; VIRTUAL falls back to PLATFORM on a runtime without virtual threads
+	 */
+	public RecordExecutor(ExecutionMode mode) {
+
+		ExecutorService virtualExecutor = (mode == ExecutionMode.VIRTUAL) ? newVirtualThreadPerTaskExecutor() : null;
+		if (virtualExecutor != null) {
+			this.mode = ExecutionMode.VIRTUAL;
+			this.executor = virtualExecutor;
+		} else {
+			this.mode = ExecutionMode.PLATFORM;
+			this.executor = Executors.newFixedThreadPool(PLATFORM_POOL_SIZE, runnable -> {
+				Thread thread = new Thread(runnable, "record-processor");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		logger.debug("record executor: " + this.mode + ", requested " + mode);
+	}
+
+	/**
+	 * builds the executor configured for this deployment, see {@link ExecutionMode#fromEnvironment()}
+	 * @return a new executor
+	 */
+	public static RecordExecutor build() {
+		return new RecordExecutor(ExecutionMode.fromEnvironment());
+	}
+
+	/**
+	 * runs all tasks concurrently and waits for them until the deadline; tasks still running at the deadline are interrupted
+	 * and reported as failures with a {@link TimeoutException}
+	 * @param <T> type of the task results
+	 * @param tasks tasks to run
+	 * @param timeoutMillis time left until the deadline
+	 * @param results receives the result of each task that ended normally, in task order
+	 * @param failures receives the exception of each task that failed or did not end before the deadline, in task order
+	 */
+	public <T> void invokeAll(List<? extends Callable<T>> tasks, long timeoutMillis, List<T> results, List<Exception> failures) {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+
+		for (int i = 0; i < futures.size(); i++) {
+			Future<T> future = futures.get(i);
+			try {
+				results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			} catch (ExecutionException e) {
+				failures.add((e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+			} catch (TimeoutException | CancellationException e) {
+				future.cancel(true);
+				failures.add(new TimeoutException("task " + i + " not done before the deadline of the invocation"));
+			} catch (InterruptedException e) {
+				futures.forEach(running -> running.cancel(true));
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return a new virtual thread per task executor; null when the runtime has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		// the code is compiled for Java 11: the Java 21 factory is looked up at runtime
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * stops the threads; running tasks are interrupted
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	public ExecutionMode getMode() {
+		return mode;
+	}
+}
@@ -0,0 +1,265 @@
+package com.amazonaws.lambda.mihai.healthmetric.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.NotifiedMail;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * handler that can be used by cloud platform instead of {@link LambdaFunctionHandler}, with the same behavior<br>
+ * the invocation bytes are read with a streaming JSON parser that keeps only the fields the handler needs
+ * (SNS message id, timestamp and the s3Bucket, s3Key, filter of the response payload), without building the SNS event
+ * or the lambda destination event; a filter that is not the filter of this processor is rejected from the raw tokens
+ * @author mike
+ *
+ */
+public class StreamFunctionHandler implements RequestStreamHandler {
+
+	/**
+	 * factory of parsers and generators; thread safe
+	 */
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(StreamFunctionHandler.class);
+	/**
+	 * handler that processes the decoded notifications
+	 */
+	private final LambdaFunctionHandler handler;
+
+	/**
+	 * constructor used in cloud environment
+	 */
+	public StreamFunctionHandler() {
+		this(new LambdaFunctionHandler());
+	}
+
+	/**
+	 * constructor used only in local test environment
+	 * @param handler handler that processes the decoded notifications
+	 */
+	public StreamFunctionHandler(LambdaFunctionHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * entry point in this handler class; invoked by Lambda Service in cloud environment<br>
+	 * the response is the same JSON string as the response of {@link LambdaFunctionHandler}
+	 */
+	@Override
+	public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+
+		List<NotifiedMail> mails = readNotifiedMails(input);
+		logger.debug("notified mails: " + mails);
+
+		String response = handler.handleMails(mails, context);
+
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+			generator.writeString(response);
+		}
+	}
+
+	/**
+	 * reads the SNS event: {"Records":[{"Sns":{"MessageId":..,"Timestamp":..,"Message":..}}]}; other fields are skipped
+	 * @param input invocation bytes
+	 * @return one notification for each record
+	 * @throws IOException when the event is not valid JSON
+	 */
+	public static List<NotifiedMail> readNotifiedMails(InputStream input) throws IOException {
+
+		List<NotifiedMail> mails = new ArrayList<NotifiedMail>();
+		try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("SNS event is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				if ("Records".equalsIgnoreCase(name) && parser.nextToken() == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						mails.add(readRecord(parser));
+					}
+				} else {
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			}
+		}
+		return mails;
+	}
+
+	/**
+	 *
+	 * @param parser positioned on the start of a record
+	 * @return notification of the record
+	 * @throws IOException when the record is not valid JSON
+	 */
+	private static NotifiedMail readRecord(JsonParser parser) throws IOException {
+
+		NotifiedMail notified = new NotifiedMail();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			if ("Sns".equalsIgnoreCase(name) && token == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String snsName = parser.getCurrentName();
+					JsonToken snsToken = parser.nextToken();
+
+					if ("MessageId".equalsIgnoreCase(snsName) && snsToken == JsonToken.VALUE_STRING) {
+						notified.setMessageId(parser.getText());
+					} else if ("Timestamp".equalsIgnoreCase(snsName) && snsToken == JsonToken.VALUE_STRING) {
+						notified.setTimestamp(parseTimestamp(parser.getText()));
+					} else if ("Message".equalsIgnoreCase(snsName) && snsToken == JsonToken.VALUE_STRING) {
+						readMessage(parser.getText(), notified);
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return notified;
+	}
+
+	/**
+	 * reads the response payload of the lambda destination event in the SNS message;
+	 * a message that could not be read is kept raw, so the handler decodes it, and fails, as {@link LambdaFunctionHandler} does
+	 * @param message SNS message
+	 * @param notified notification that receives the filtered mail, or the rejection
+	 */
+	private static void readMessage(String message, NotifiedMail notified) {
+
+		try (JsonParser parser = JSON_FACTORY.createParser(message)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("message is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				if ("responsePayload".equals(name) && token == JsonToken.START_OBJECT) {
+					readPayload(parser, notified);
+					return;
+				}
+				parser.skipChildren();
+			}
+			// no payload: not a mail filtered for this processor
+			notified.setRejected(true);
+
+		} catch (IOException e) {
+			notified.setMessage(message);
+		}
+	}
+
+	/**
+	 *
+	 * @param parser positioned on the start of the response payload
+	 * @param notified notification that receives the filtered mail, or the rejection
+	 * @throws IOException when the payload is not valid JSON
+	 */
+	private static void readPayload(JsonParser parser, NotifiedMail notified) throws IOException {
+
+		String s3Bucket = null;
+		String s3Key = null;
+		String s3ETag = null;
+		String[] filter = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			if ("s3Bucket".equals(name)) {
+				s3Bucket = textValue(parser, token);
+			} else if ("s3Key".equals(name)) {
+				s3Key = textValue(parser, token);
+			} else if ("s3ETag".equals(name)) {
+				s3ETag = textValue(parser, token);
+			} else if ("filter".equals(name) && token == JsonToken.START_OBJECT) {
+				filter = new String[3];
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String filterName = parser.getCurrentName();
+					JsonToken filterToken = parser.nextToken();
+
+					if ("field".equals(filterName)) {
+						filter[0] = textValue(parser, filterToken);
+					} else if ("modifier".equals(filterName)) {
+						filter[1] = textValue(parser, filterToken);
+					} else if ("value".equals(filterName)) {
+						filter[2] = textValue(parser, filterToken);
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (filter == null || !LambdaFunctionHandler.isProcessorFilter(filter[0], filter[1], filter[2])) {
+			notified.setRejected(true);
+			return;
+		}
+
+		MailFilter mailFilter = new MailFilter();
+		mailFilter.setField(filter[0]);
+		mailFilter.setModifier(filter[1]);
+		mailFilter.setValue(filter[2]);
+
+		FilteredMail mail = new FilteredMail();
+		mail.setS3Bucket(s3Bucket);
+		mail.setS3Key(s3Key);
+		mail.setS3ETag(s3ETag);
+		mail.setFilter(mailFilter);
+		notified.setMail(mail);
+	}
+
+	/**
+	 *
+	 * @param parser positioned on a value
+	 * @param token token of the value
+	 * @return text of a scalar value, null for JSON null; objects and arrays are skipped
+	 * @throws IOException when the value is not valid JSON
+	 */
+	private static String textValue(JsonParser parser, JsonToken token) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token.isScalarValue()) {
+			return parser.getText();
+		}
+		parser.skipChildren();
+		return null;
+	}
+
+	/**
+	 *
+	 * @param timestamp ISO-8601 moment, ex: 2024-11-19T08:40:23.114Z
+	 * @return the moment; null when not valid
+	 */
+	private static Date parseTimestamp(String timestamp) {
+		try {
+			return Date.from(Instant.parse(timestamp));
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+/**
+ * domain entity for the progress of a backfill: the last key of the prefix whose statuses are in CloudWatch, and the counters so far;
+ * a stopped backfill is resumed after that key
+ * @author mike
+ */
+public class BackfillCheckpoint {
+
+	/**
+	 * S3 bucket of the archived emails
+	 */
+	private String bucket;
+	/**
+	 * key prefix of the archived emails; ex: archive/2024/
+	 */
+	private String prefix;
+	/**
+	 * last key done, in listing order; null before the first page
+	 */
+	private String startAfter;
+	/**
+	 * emails classified
+	 */
+	private long mails;
+	/**
+	 * emails not sent by website monitor
+	 */
+	private long skipped;
+	/**
+	 * emails and statuses older than CloudWatch accepts
+	 */
+	private long tooOld;
+	/**
+	 * datums put into CloudWatch
+	 */
+	private long datums;
+	/**
+	 * PutMetricData requests sent
+	 */
+	private long requests;
+	/**
+	 * moment (epoch millis) of the last page done
+	 */
+	private long updatedAt;
+
+	/**
+	 *
+	 * @param bucket S3 bucket of the archived emails
+	 * @param prefix key prefix of the archived emails
+	 * @return a new checkpoint, before the first key of the prefix
+	 */
+	public static BackfillCheckpoint build(String bucket, String prefix) {
+
+		BackfillCheckpoint checkpoint = new BackfillCheckpoint();
+		checkpoint.setBucket(bucket);
+		checkpoint.setPrefix(prefix);
+
+		return checkpoint;
+	}
+
+	/**
+	 *
+	 * @param bucket S3 bucket of a backfill
+	 * @param prefix key prefix of a backfill
+	 * @return true if this checkpoint is the progress of that backfill
+	 */
+	public boolean isFor(String bucket, String prefix) {
+		return this.bucket != null && this.bucket.equals(bucket) && String.valueOf(this.prefix).equals(String.valueOf(prefix));
+	}
+
+	@Override
+	public String toString() {
+		return " bucket : " + bucket
+				+ " prefix : " + prefix
+				+ " startAfter : " + startAfter
+				+ " mails : " + mails
+				+ " skipped : " + skipped
+				+ " tooOld : " + tooOld
+				+ " datums : " + datums
+				+ " requests : " + requests
+				+ " updatedAt : " + updatedAt;
+	}
+
+	public String getBucket() {
+		return bucket;
+	}
+
+	public void setBucket(String bucket) {
+		this.bucket = bucket;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public String getStartAfter() {
+		return startAfter;
+	}
+
+	public void setStartAfter(String startAfter) {
+		this.startAfter = startAfter;
+	}
+
+	public long getMails() {
+		return mails;
+	}
+
+	public void setMails(long mails) {
+		this.mails = mails;
+	}
+
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(long skipped) {
+		this.skipped = skipped;
+	}
+
+	public long getTooOld() {
+		return tooOld;
+	}
+
+	public void setTooOld(long tooOld) {
+		this.tooOld = tooOld;
+	}
+
+	public long getDatums() {
+		return datums;
+	}
+
+	public void setDatums(long datums) {
+		this.datums = datums;
+	}
+
+	public long getRequests() {
+		return requests;
+	}
+
+	public void setRequests(long requests) {
+		this.requests = requests;
+	}
+
+	public long getUpdatedAt() {
+		return updatedAt;
+	}
+
+	public void setUpdatedAt(long updatedAt) {
+		this.updatedAt = updatedAt;
+	}
+}
@@ -14,6 +14,10 @@ public class FilteredMail {
 	 * name of the email file
 	 */
 	private String s3Key;
+	/**
+	 * ETag of the email file, when the filter sends it; part of the idempotency key of the email
+	 */
+	private String s3ETag;
 	/**
 	 * filter that filtered/selected this email
 	 */
@@ -23,6 +27,7 @@ public class FilteredMail {
 	public String toString() {
 		return " s3Bucket : " + s3Bucket
 				+ " s3Key : " + s3Key
+				+ " s3ETag : " + s3ETag
 				+ " filter : " + filter;
 	}
 
@@ -34,6 +39,14 @@ public class FilteredMail {
 		this.s3Key = s3Key;
 	}
 
+	public String getS3ETag() {
+		return s3ETag;
+	}
+
+	public void setS3ETag(String s3ETag) {
+		this.s3ETag = s3ETag;
+	}
+
 	public MailFilter getFilter() {
 		return filter;
 	}
@@ -0,0 +1,155 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * domain entity for the policy that turns the statuses of a site, in mail date order, into one health verdict:
+ * a site is declared down when <code>failuresToDown</code> of its last <code>window</code> statuses are failures,
+ * and it has been failing for at least <code>minDownDuration</code>; an immediate status (ex: server, blocked) declares it down at once;
+ * it is declared up again after <code>successesToUp</code> healthy statuses in a row<br>
+ * enabled with the environment variable HEALTH_AGGREGATION_WINDOW (or the system property health.aggregation.window);
+ * the other settings are HEALTH_AGGREGATION_FAILURES, HEALTH_AGGREGATION_MIN_DOWN_SECONDS, HEALTH_AGGREGATION_IMMEDIATE_STATUSES
+ * (comma separated) and HEALTH_AGGREGATION_RECOVERY
+ * @author mike
+ *
+ */
+public class HealthPolicy {
+
+	/**
+	 * longest window of statuses kept for a site
+	 */
+	public static final int MAX_WINDOW = 64;
+	/**
+	 * number of last statuses of a site that are considered
+	 */
+	private int window = 5;
+	/**
+	 * failures in the window that declare the site down
+	 */
+	private int failuresToDown = 3;
+	/**
+	 * shortest time between the first failure in a row and the down verdict; zero declares it down on the failures alone
+	 */
+	private Duration minDownDuration = Duration.ZERO;
+	/**
+	 * statuses that declare the site down at once, whatever the window; ex: server, blocked
+	 */
+	private List<String> immediateStatuses = Arrays.asList("server", "blocked");
+	/**
+	 * healthy statuses in a row that declare a down site up again
+	 */
+	private int successesToUp = 1;
+
+	/**
+	 *
+	 * @return policy configured for this deployment; null when the aggregation is not enabled
+	 */
+	public static HealthPolicy fromEnvironment() {
+
+		String window = setting("health.aggregation.window", "HEALTH_AGGREGATION_WINDOW");
+		if (window == null) {
+			return null;
+		}
+		HealthPolicy policy = new HealthPolicy();
+		policy.setWindow(Integer.parseInt(window));
+		// default: a majority of the window
+		policy.setFailuresToDown(policy.getWindow() / 2 + 1);
+
+		String failures = setting("health.aggregation.failures", "HEALTH_AGGREGATION_FAILURES");
+		if (failures != null) {
+			policy.setFailuresToDown(Integer.parseInt(failures));
+		}
+		String minDownSeconds = setting("health.aggregation.min.down.seconds", "HEALTH_AGGREGATION_MIN_DOWN_SECONDS");
+		if (minDownSeconds != null) {
+			policy.setMinDownDuration(Duration.ofSeconds(Long.parseLong(minDownSeconds)));
+		}
+		String immediate = setting("health.aggregation.immediate.statuses", "HEALTH_AGGREGATION_IMMEDIATE_STATUSES");
+		if (immediate != null) {
+			List<String> statuses = new ArrayList<String>();
+			for (String status : immediate.split(",")) {
+				if (!status.isBlank()) {
+					statuses.add(status.trim());
+				}
+			}
+			policy.setImmediateStatuses(statuses);
+		}
+		String recovery = setting("health.aggregation.recovery", "HEALTH_AGGREGATION_RECOVERY");
+		if (recovery != null) {
+			policy.setSuccessesToUp(Integer.parseInt(recovery));
+		}
+		return policy;
+	}
+
+	/**
+	 *
+	 * @param status status reported by website monitor; ex: server
+	 * @return true if the status declares the site down at once
+	 */
+	public boolean isImmediate(String status) {
+		return status != null && immediateStatuses.contains(status);
+	}
+
+	private static String setting(String property, String variable) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			value = System.getenv(variable);
+		}
+		return (value == null || value.isBlank()) ? null : value.trim();
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 *
+	 * @param window number of last statuses considered, between 1 and {@link #MAX_WINDOW}
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(1, Math.min(MAX_WINDOW, window));
+	}
+
+	public int getFailuresToDown() {
+		return failuresToDown;
+	}
+
+	public void setFailuresToDown(int failuresToDown) {
+		this.failuresToDown = failuresToDown;
+	}
+
+	public Duration getMinDownDuration() {
+		return minDownDuration;
+	}
+
+	public void setMinDownDuration(Duration minDownDuration) {
+		this.minDownDuration = minDownDuration;
+	}
+
+	public List<String> getImmediateStatuses() {
+		return immediateStatuses;
+	}
+
+	public void setImmediateStatuses(List<String> immediateStatuses) {
+		this.immediateStatuses = immediateStatuses;
+	}
+
+	public int getSuccessesToUp() {
+		return successesToUp;
+	}
+
+	public void setSuccessesToUp(int successesToUp) {
+		this.successesToUp = successesToUp;
+	}
+
+	@Override
+	public String toString() {
+		return " window : " + window
+				+ " failuresToDown : " + failuresToDown
+				+ " minDownDuration : " + minDownDuration
+				+ " immediateStatuses : " + immediateStatuses
+				+ " successesToUp : " + successesToUp;
+	}
+}
@@ -0,0 +1,79 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * domain entity for the health state shared by all execution environments of the function: the state of each site,
+ * and the snapshot of the aggregation windows; stored as one small JSON document, see <code>HealthStateStore</code>
+ * @author mike
+ */
+public class HealthState {
+
+	/**
+	 * state of each site, by website monitor id
+	 */
+	private Map<String, SiteHealthState> sites = new TreeMap<String, SiteHealthState>();
+	/**
+	 * binary snapshot of the aggregation windows (base64 in JSON); null when the aggregation is not enabled
+	 */
+	private byte[] aggregation;
+	/**
+	 * moment (epoch millis) of the last update
+	 */
+	private long updatedAt;
+
+	/**
+	 *
+	 * @param siteId website monitor id
+	 * @return state of the site, added when missing
+	 */
+	public SiteHealthState site(String siteId) {
+		return sites.computeIfAbsent(siteId, id -> new SiteHealthState());
+	}
+
+	/**
+	 *
+	 * @return a deep copy of this state, changed without changing this one
+	 */
+	public HealthState copy() {
+
+		HealthState copy = new HealthState();
+		sites.forEach((siteId, site) -> copy.getSites().put(siteId, site.copy()));
+		copy.setAggregation((aggregation == null) ? null : aggregation.clone());
+		copy.setUpdatedAt(updatedAt);
+
+		return copy;
+	}
+
+	public Map<String, SiteHealthState> getSites() {
+		return sites;
+	}
+
+	public void setSites(Map<String, SiteHealthState> sites) {
+		this.sites = new TreeMap<String, SiteHealthState>(sites);
+	}
+
+	public byte[] getAggregation() {
+		return aggregation;
+	}
+
+	public void setAggregation(byte[] aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	public long getUpdatedAt() {
+		return updatedAt;
+	}
+
+	public void setUpdatedAt(long updatedAt) {
+		this.updatedAt = updatedAt;
+	}
+
+	@Override
+	public String toString() {
+		return " sites : " + sites
+				+ " aggregation : " + ((aggregation == null) ? null : aggregation.length + " bytes")
+				+ " updatedAt : " + updatedAt;
+	}
+}
@@ -0,0 +1,416 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Arrays;
+
+/**
+ * turns the text of a <code>text/html</code> part into lines of plain text, in one pass and without building a DOM:
+ * tags and comments are stripped, the content of script and style is dropped, entities are decoded and whitespace is collapsed<br>
+ * block tags (p, br, div, tr, li, headings...) end a line of text; inline tags (b, span, a...) do not,
+ * so a status split by markup, ex: <code>Error reference: &lt;b&gt;214785651&lt;/b&gt;/server</code>, is one line<br>
+ * the html is fed in pieces of any size, a tag or an entity may span pieces; each line of text is sent to the
+ * {@link TextMatcher} as soon as it ends, from one reused buffer, so memory is proportional to the longest line of text<br>
+ * as a {@link TextMatcher} it receives the html line by line, ex: from {@link MimeStatusScanner}; {@link #finish()} sends the last line
+ * @author mike
+ *
+ */
+public class HtmlTextNormalizer implements TextMatcher {
+
+	/**
+	 * a line of text longer than this is sent in pieces
+	 */
+	public static final int MAX_LINE_LENGTH = 16 * 1024;
+	/**
+	 * tags that end a line of text, sorted
+	 */
+	private static final String[] BLOCK_TAGS = sorted(
+			"address", "article", "aside", "blockquote", "body", "br", "dd", "div", "dl", "dt", "footer", "form",
+			"h1", "h2", "h3", "h4", "h5", "h6", "head", "header", "hr", "html", "li", "main", "nav", "ol", "p",
+			"pre", "section", "table", "tbody", "tfoot", "thead", "title", "tr", "ul");
+	/**
+	 * tags that separate words without ending the line, sorted
+	 */
+	private static final String[] CELL_TAGS = sorted("td", "th", "img", "input", "button", "option");
+	/**
+	 * longest tag name that is compared with the tag sets
+	 */
+	private static final int MAX_TAG_NAME = 12;
+	/**
+	 * longest entity, between '&amp;' and ';'
+	 */
+	private static final int MAX_ENTITY = 10;
+	/**
+	 * named entities that may appear around a status, sorted; other names are kept as written
+	 */
+	private static final String[] ENTITY_NAMES = {
+			"amp", "apos", "bull", "colon", "copy", "gt", "hellip", "ldquo", "lsquo", "lt",
+			"mdash", "nbsp", "ndash", "quot", "rdquo", "reg", "rsquo", "sol"};
+	/**
+	 * characters of the named entities, in the order of <code>ENTITY_NAMES</code>
+	 */
+	private static final char[] ENTITY_CHARACTERS = {
+			'&', '\'', '\u2022', ':', '\u00a9', '>', '\u2026', '\u201c', '\u2018', '<',
+			'\u2014', '\u00a0', '\u2013', '"', '\u201d', '\u00ae', '\u2019', '/'};
+
+	/**
+	 * where the parser is in the html
+	 */
+	private enum State {
+		/** text between tags */
+		TEXT,
+		/** after '&lt;', reading the tag name */
+		TAG_NAME,
+		/** inside a tag, after its name */
+		TAG,
+		/** inside a quoted attribute value */
+		ATTRIBUTE_VALUE,
+		/** inside '&lt;!--' ... '--&gt;' */
+		COMMENT,
+		/** inside '&lt;!' or '&lt;?' declarations */
+		DECLARATION,
+		/** after '&amp;', reading the entity */
+		ENTITY,
+		/** content of script or style, until its end tag */
+		RAW_TEXT
+	}
+
+	/**
+	 * receives the lines of text
+	 */
+	private final TextMatcher matcher;
+	/**
+	 * current line of text; reused for all lines
+	 */
+	private final StringBuilder line = new StringBuilder(256);
+	/**
+	 * name of the current tag, lower case
+	 */
+	private final StringBuilder tagName = new StringBuilder(MAX_TAG_NAME);
+	/**
+	 * current entity, without '&amp;'
+	 */
+	private final StringBuilder entity = new StringBuilder(MAX_ENTITY);
+	private State state = State.TEXT;
+	/**
+	 * true if the current tag is an end tag
+	 */
+	private boolean endTag;
+	/**
+	 * quote that closes the current attribute value
+	 */
+	private char quote;
+	/**
+	 * number of '-' just read in a comment, at most 2
+	 */
+	private int dashes;
+	/**
+	 * end tag searched in raw text, ex: "&lt;/script"; null outside raw text
+	 */
+	private String rawTextEnd;
+	/**
+	 * number of characters of <code>rawTextEnd</code> matched so far
+	 */
+	private int rawTextMatched;
+	/**
+	 * true if whitespace was read after the last character of the line
+	 */
+	private boolean pendingSpace;
+	/**
+	 * true when the matcher found what it searches; the rest of the html is ignored
+	 */
+	private boolean found;
+
+	/**
+	 *
+	 * @param matcher receives the lines of text
+	 */
+	public HtmlTextNormalizer(TextMatcher matcher) {
+		this.matcher = matcher;
+	}
+
+	/**
+	 * feeds one line of html; the end of the line is whitespace, as in html
+	 */
+	@Override
+	public boolean matchLine(CharSequence html) {
+		feed(html, 0, html.length());
+		return feed('\n');
+	}
+
+	/**
+	 * feeds a piece of html
+	 * @param html html text
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return true when the matcher found what it searches
+	 */
+	public boolean feed(CharSequence html, int start, int end) {
+		for (int i = start; i < end && !found; i++) {
+			feed(html.charAt(i));
+		}
+		return found;
+	}
+
+	/**
+	 * feeds a piece of html
+	 * @param html html characters
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return true when the matcher found what it searches
+	 */
+	public boolean feed(char[] html, int start, int end) {
+		for (int i = start; i < end && !found; i++) {
+			feed(html[i]);
+		}
+		return found;
+	}
+
+	/**
+	 * sends the last line of text; call it at the end of the html
+	 * @return true when the matcher found what it searches
+	 */
+	public boolean finish() {
+		if (state == State.ENTITY) {
+			literalEntity();
+		}
+		state = State.TEXT;
+		endLine();
+		return found;
+	}
+
+	/**
+	 * feeds one character of html
+	 * @return true when the matcher found what it searches
+	 */
+	private boolean feed(char c) {
+		switch (state) {
+		case TEXT:
+			if (c == '<') {
+				state = State.TAG_NAME;
+				tagName.setLength(0);
+				endTag = false;
+			} else if (c == '&') {
+				state = State.ENTITY;
+				entity.setLength(0);
+			} else {
+				text(c);
+			}
+			break;
+
+		case TAG_NAME:
+			if (tagName.length() == 0 && !endTag && c == '/') {
+				endTag = true;
+			} else if (tagName.length() == 0 && !endTag && c == '!') {
+				state = State.DECLARATION;
+				dashes = 0;
+			} else if (tagName.length() == 0 && !endTag && c == '?') {
+				state = State.DECLARATION;
+				dashes = 2;
+			} else if (Character.isLetter(c) || (tagName.length() > 0 && Character.isDigit(c))) {
+				if (tagName.length() < MAX_TAG_NAME) {
+					tagName.append(Character.toLowerCase(c));
+				}
+			} else if (tagName.length() == 0) {
+				// not a tag, ex: "a < b"
+				state = State.TEXT;
+				text('<');
+				if (endTag) {
+					text('/');
+				}
+				feed(c);
+			} else if (c == '>') {
+				endOfTag();
+			} else {
+				state = State.TAG;
+			}
+			break;
+
+		case TAG:
+			if (c == '"' || c == '\'') {
+				state = State.ATTRIBUTE_VALUE;
+				quote = c;
+			} else if (c == '>') {
+				endOfTag();
+			}
+			break;
+
+		case ATTRIBUTE_VALUE:
+			if (c == quote) {
+				state = State.TAG;
+			}
+			break;
+
+		case DECLARATION:
+			// "<!--" starts a comment, other declarations end at '>'
+			if (c == '-' && dashes < 2) {
+				dashes++;
+				if (dashes == 2) {
+					state = State.COMMENT;
+					dashes = 0;
+				}
+			} else if (c == '>') {
+				state = State.TEXT;
+			} else {
+				dashes = 2;
+			}
+			break;
+
+		case COMMENT:
+			if (c == '>' && dashes == 2) {
+				state = State.TEXT;
+			} else if (c == '-') {
+				dashes = Math.min(2, dashes + 1);
+			} else {
+				dashes = 0;
+			}
+			break;
+
+		case ENTITY:
+			if (c == ';') {
+				decodeEntity();
+			} else if ((Character.isLetterOrDigit(c) || (c == '#' && entity.length() == 0)) && entity.length() < MAX_ENTITY) {
+				entity.append(c);
+			} else {
+				literalEntity();
+				feed(c);
+			}
+			break;
+
+		case RAW_TEXT:
+			char lower = Character.toLowerCase(c);
+			if (lower == rawTextEnd.charAt(rawTextMatched)) {
+				rawTextMatched++;
+				if (rawTextMatched == rawTextEnd.length()) {
+					rawTextEnd = null;
+					endTag = true;
+					state = State.TAG;
+				}
+			} else {
+				rawTextMatched = (lower == '<') ? 1 : 0;
+			}
+			break;
+		}
+		return found;
+	}
+
+	/**
+	 * a tag ended: block tags end the line, cell tags separate words, script and style start raw text
+	 */
+	private void endOfTag() {
+		state = State.TEXT;
+		if (indexOf(BLOCK_TAGS, tagName) >= 0) {
+			endLine();
+		} else if (indexOf(CELL_TAGS, tagName) >= 0) {
+			pendingSpace = true;
+		} else if (!endTag && ("script".contentEquals(tagName) || "style".contentEquals(tagName))) {
+			state = State.RAW_TEXT;
+			rawTextEnd = (tagName.charAt(1) == 'c') ? "</script" : "</style";
+			rawTextMatched = 0;
+		}
+	}
+
+	/**
+	 * decodes the current entity; an unknown entity is kept as written
+	 */
+	private void decodeEntity() {
+		state = State.TEXT;
+		int codePoint = -1;
+		if (entity.length() > 1 && entity.charAt(0) == '#') {
+			try {
+				boolean hex = entity.charAt(1) == 'x' || entity.charAt(1) == 'X';
+				codePoint = Integer.parseInt(entity, (hex) ? 2 : 1, entity.length(), (hex) ? 16 : 10);
+			} catch (NumberFormatException e) {
+				codePoint = -1;
+			}
+		} else {
+			int index = indexOf(ENTITY_NAMES, entity);
+			codePoint = (index < 0) ? -1 : ENTITY_CHARACTERS[index];
+		}
+
+		if (codePoint <= 0 || !Character.isValidCodePoint(codePoint)) {
+			literalEntity();
+			text(';');
+			return;
+		}
+		if (Character.isBmpCodePoint(codePoint)) {
+			text((char) codePoint);
+		} else {
+			text(Character.highSurrogate(codePoint));
+			line.append(Character.lowSurrogate(codePoint));
+		}
+	}
+
+	/**
+	 * the current entity is not an entity: it is kept as written
+	 */
+	private void literalEntity() {
+		state = State.TEXT;
+		text('&');
+		for (int i = 0; i < entity.length(); i++) {
+			text(entity.charAt(i));
+		}
+	}
+
+	/**
+	 * appends one character of text, collapsing whitespace
+	 */
+	private void text(char c) {
+		if (Character.isWhitespace(c) || c == 0xa0) {
+			pendingSpace = true;
+			return;
+		}
+		if (pendingSpace && line.length() > 0) {
+			line.append(' ');
+		}
+		pendingSpace = false;
+		line.append(c);
+		if (line.length() >= MAX_LINE_LENGTH) {
+			endLine();
+		}
+	}
+
+	/**
+	 *
+	 * @param tags tag names
+	 * @return the tag names, sorted for {@link #indexOf(String[], CharSequence)}
+	 */
+	private static String[] sorted(String... tags) {
+		Arrays.sort(tags);
+		return tags;
+	}
+
+	/**
+	 * binary search of a tag or entity name, without building a string for it
+	 * @param sortedNames sorted names
+	 * @param name name searched
+	 * @return index of the name; -1 when not found
+	 */
+	private static int indexOf(String[] sortedNames, CharSequence name) {
+		int low = 0;
+		int high = sortedNames.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = CharSequence.compare(sortedNames[middle], name);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * sends the current line of text to the matcher
+	 */
+	private void endLine() {
+		pendingSpace = false;
+		if (line.length() == 0 || found) {
+			line.setLength(0);
+			return;
+		}
+		found = matcher.matchLine(line);
+		line.setLength(0);
+	}
+}
@@ -1,16 +1,22 @@
 package com.amazonaws.lambda.mihai.healthmetric.model;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.ListIterator;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
 
-import javax.mail.Address;
 import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -32,6 +38,18 @@ public class MailFilter {
 	public static final String FILTER_MODIFIER_EXACT = "EXACT";
 	/** Value: CONTAINS */
 	public static final String FILTER_MODIFIER_CONTAINS = "CONTAINS";
+	/**
+	 * most filters kept compiled; the filters come with the events, beyond this number they are compiled on each use
+	 */
+	private static final int MAX_COMPILED_FILTERS = 64;
+	/**
+	 * compiled filters, by the key of the emails they select, see {@link #selectionKey()}; at most {@link #MAX_COMPILED_FILTERS}
+	 */
+	private static final ConcurrentMap<String, Predicate<InternetHeaders>> COMPILED_FILTERS = new ConcurrentHashMap<String, Predicate<InternetHeaders>>();
+	/**
+	 * extractor of the mail body text, with the default budget
+	 */
+	private static final TextExtractor TEXT_EXTRACTOR = new TextExtractor(TextExtractor.DEFAULT_MAX_DEPTH, TextExtractor.DEFAULT_MAX_TEXT_SIZE);
 	/**
 	 * logger named by this class
 	 */
@@ -51,85 +69,174 @@ public class MailFilter {
 	private String modifier;
 	
 	/**
-	 * selects email parameter according to filter details: email field (FROM, TO), modifier of the field (CONTAINS, EXACT), value of the field (e.g. jetpack)
+	 * selects email parameter according to filter details: email field (FROM, TO, SUBJECT), modifier of the field (CONTAINS, EXACT), value of the field (e.g. jetpack)<br>
+	 * only the headers of the email are read, the body is not decoded
 	 * @param message mail package specific object that holds an email
 	 * @return true if mail is selected 
 	 * @throws Exception when reading from email data
 	 */
 	public Boolean filtered(MimeMessage message) throws Exception {
+		
+		InternetHeaders headers = new InternetHeaders();
+		Enumeration<?> headerLines = message.getAllHeaderLines();
+		while (headerLines.hasMoreElements()) {
+			headers.addHeaderLine((String) headerLines.nextElement());
+		}
+		
+		return filtered(headers);
+	}
 	
-		Boolean filtered = Boolean.FALSE;
+	/**
+	 * 
+	 * @param headers headers of the email
+	 * @return true if mail is selected 
+	 */
+	public Boolean filtered(InternetHeaders headers) {
+		
+		Boolean filtered = compile().test(headers);
+		logger.debug("filter" + this + " : " + filtered);
 		
-        logger.debug("Subject : " + message.getSubject());
-        logger.debug("From : " + Arrays.toString(message.getFrom()));
-        logger.debug("Body : " +  message.getContent());
-        
-        String contentType = message.getContentType();
-        
-        if (contentType.contains("multipart")) {
-        	logger.debug("Multipart EMail File");
-        	Multipart multiPart = (Multipart) message.getContent();
-        	int numberOfParts = multiPart.getCount();
-        	logger.debug("Parts:::"+numberOfParts);
-        }
-        		
-		switch (field) {
+		return filtered;
+	}
+	
+	/**
+	 * the predicate is built once for each distinct filter (field, modifier, value) and then shared, 
+	 * so equal filters from different events get the same predicate instance; the first {@link #MAX_COMPILED_FILTERS} distinct filters 
+	 * are kept, so events with ever new filters do not grow the memory of the execution environment
+	 * @return this filter as a predicate over the headers of an email
+	 */
+	public Predicate<InternetHeaders> compile() {
+		String key = selectionKey();
+		Predicate<InternetHeaders> predicate = COMPILED_FILTERS.get(key);
+		if (predicate != null) {
+			return predicate;
+		}
+		if (COMPILED_FILTERS.size() >= MAX_COMPILED_FILTERS) {
+			return compile(field, modifier, value);
+		}
+		return COMPILED_FILTERS.computeIfAbsent(key, filterKey -> compile(field, modifier, value));
+	}
+	
+	/**
+	 * 
+	 * @return key of the emails selected by this filter, see {@link #selectionKey(String, String, String)}
+	 */
+	public String selectionKey() {
+		return selectionKey(field, modifier, value);
+	}
+	
+	/**
+	 * filters with equal keys select the same emails: same field and modifier, and the same value as the match compares it
+	 * @param field email field: FROM, TO, SUBJECT
+	 * @param modifier type of match: CONTAINS, EXACT
+	 * @param value value matched with the field
+	 * @return key of the emails selected by the filter; the value is lower case when the match ignores case
+	 */
+	public static String selectionKey(String field, String modifier, String value) {
+		boolean ignoresCase = !(FILTER_FIELD_SUBJECT.equals(field) && FILTER_MODIFIER_EXACT.equals(modifier));
+		return field + "\n" + modifier + "\n" + ((value == null || !ignoresCase) ? value : value.toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * 
+	 * @param field email field: FROM, TO, SUBJECT
+	 * @param modifier type of match: CONTAINS, ignoring case; EXACT, ignoring case for an address (as mail servers do), 
+	 * case sensitive for the subject
+	 * @param value value matched with the field
+	 * @return filter as a predicate over the headers of an email; a filter with unknown field or modifier selects no email
+	 */
+	private static Predicate<InternetHeaders> compile(String field, String modifier, String value) {
+		
+		if (value == null || (!FILTER_MODIFIER_CONTAINS.equals(modifier) && !FILTER_MODIFIER_EXACT.equals(modifier))) {
+			return headers -> false;
+		}
+		
+		String lowerValue = value.toLowerCase(Locale.ROOT);
+		
+		switch (field == null ? "" : field) {
 		case FILTER_FIELD_FROM:
-			Address[] fromAddrs = message.getFrom();
+		case FILTER_FIELD_TO:
+			String headerName = FILTER_FIELD_FROM.equals(field) ? "From" : "To";
 			
 			if (FILTER_MODIFIER_CONTAINS.equals(modifier)) {
-				ListIterator<Address> iter = Arrays.asList(fromAddrs).listIterator();
-				while(iter.hasNext()) {
-					if (value.contains(iter.next().toString())) {
-						filtered = Boolean.TRUE;
-						break;
-					}
-				}
+				// the whole address, with personal name: Jetpack Support <support+monitor@jetpack.com>
+				return headers -> anyAddress(headers, headerName, address -> address.toUnicodeString().toLowerCase(Locale.ROOT).contains(lowerValue));
 			}
-			if (FILTER_MODIFIER_EXACT.equals(modifier)) {
-				Address addr = new InternetAddress(value);
-				ListIterator<Address> iter = Arrays.asList(fromAddrs).listIterator();
-				while(iter.hasNext()) {
-					if (addr.equals(iter.next())) {
-						filtered = Boolean.TRUE;
-						break;
-					}
-				}
-			}
-			
-			break;
-			
-		case FILTER_FIELD_TO:
-			break;
+			return headers -> anyAddress(headers, headerName, address -> address.getAddress() != null && address.getAddress().equalsIgnoreCase(value));
 			
-		case FILTER_FIELD_SUBJECT:	
-			break;
+		case FILTER_FIELD_SUBJECT:
+			if (FILTER_MODIFIER_CONTAINS.equals(modifier)) {
+				return headers -> {
+					String subject = subject(headers);
+					return subject != null && subject.toLowerCase(Locale.ROOT).contains(lowerValue);
+				};
+			}
+			return headers -> value.equals(subject(headers));
 
 		default:
-			break;
+			return headers -> false;
 		}
-		
-		
-		return filtered;
 	}
+	
+	/**
+	 * 
+	 * @param headers headers of the email
+	 * @param headerName address header: From, To
+	 * @param test condition for one address
+	 * @return true if at least one address from the header meets the condition
+	 */
+	private static boolean anyAddress(InternetHeaders headers, String headerName, Predicate<InternetAddress> test) {
+		String header = headers.getHeader(headerName, ",");
+		if (header == null) {
+			return false;
+		}
+		try {
+			for (InternetAddress address : InternetAddress.parseHeader(header, false)) {
+				if (test.test(address)) {
+					return true;
+				}
+			}
+		} catch (AddressException e) {
+			return false;
+		}
+		return false;
+	}
+	
 	/**
 	 * 
+	 * @param headers headers of the email
+	 * @return decoded subject, or null if the email has no subject
+	 */
+	private static String subject(InternetHeaders headers) {
+		String subject = headers.getHeader("Subject", null);
+		if (subject == null) {
+			return null;
+		}
+		try {
+			return MimeUtility.decodeText(MimeUtility.unfold(subject));
+		} catch (UnsupportedEncodingException e) {
+			return subject;
+		}
+	}
+	/**
+	 * only the text parts are decoded, attachments are skipped; see {@link TextExtractor}
 	 * @param message mail message
 	 * @return plain text of the mail body, even if it contains Multiparts
 	 * @throws MessagingException when errors in processing mail body Multiparts
 	 * @throws IOException when reading email 
 	 */
 	public static String extractTextContent(Message message) throws MessagingException, IOException {
-	    Object content = message.getContent();
-	    return getTextFromMessage(content);
+	    return TEXT_EXTRACTOR.extract(message);
 	}
 	/**
 	 * recursive function through Multiparts
+	 * @deprecated decodes every part, attachments included, without limits; use {@link #extractTextContent(Message)}
 	 * @param content of the mail
 	 * @return plain text of the mail body, even if it contains Multiparts
 	 * @throws MessagingException when errors in processing mail body Multiparts
 	 * @throws IOException when reading email 
 	 */
+	@Deprecated
 	public static String getTextFromMessage(Object content) throws MessagingException, IOException {
 	    if (content instanceof Multipart) {
 	        Multipart multipart = (Multipart) content;
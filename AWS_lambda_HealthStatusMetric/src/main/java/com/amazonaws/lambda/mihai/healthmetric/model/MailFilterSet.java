@@ -0,0 +1,111 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javax.mail.internet.InternetHeaders;
+
+/**
+ * domain entity for a set of mail filters composed with AND or OR; sets can be nested
+ * @author mike
+ *
+ */
+public class MailFilterSet {
+
+	/** Value: AND */
+	public static final String OPERATOR_AND = "AND";
+	/** Value: OR */
+	public static final String OPERATOR_OR = "OR";
+
+	/**
+	 * how the results of the filters are composed: AND, OR
+	 */
+	private String operator = OPERATOR_AND;
+	/**
+	 * filters of this set
+	 */
+	private List<MailFilter> filters = new ArrayList<MailFilter>();
+	/**
+	 * nested filter sets, composed with the same operator as the filters
+	 */
+	private List<MailFilterSet> sets = new ArrayList<MailFilterSet>();
+	/**
+	 * this set as a predicate, compiled at the first {@link #filtered(InternetHeaders)}; reset by the setters, 
+	 * the lists must not be changed after the first use
+	 */
+	private volatile Predicate<InternetHeaders> compiled;
+
+	/**
+	 * the filters of the set are compiled, and the predicates are composed in the order of the set, 
+	 * so the evaluation stops at the first filter that decides the result
+	 * @return this set as a predicate over the headers of an email
+	 */
+	public Predicate<InternetHeaders> compile() {
+
+		boolean or = OPERATOR_OR.equals(operator);
+		Predicate<InternetHeaders> predicate = null;
+
+		List<Predicate<InternetHeaders>> members = new ArrayList<Predicate<InternetHeaders>>(filters.size() + sets.size());
+		filters.forEach(filter -> members.add(filter.compile()));
+		// a nested set is tested with its own compiled predicate, so a change of its setters is seen by this set
+		sets.forEach(set -> members.add(set::filtered));
+
+		for (Predicate<InternetHeaders> member : members) {
+			predicate = (predicate == null) ? member : (or ? predicate.or(member) : predicate.and(member));
+		}
+		if (predicate == null) {
+			// an empty AND set selects all emails, an empty OR set selects none
+			return headers -> !or;
+		}
+		return predicate;
+	}
+
+	/**
+	 * 
+	 * @param headers headers of the email
+	 * @return true if mail is selected by the set
+	 */
+	public Boolean filtered(InternetHeaders headers) {
+		Predicate<InternetHeaders> predicate = compiled;
+		if (predicate == null) {
+			predicate = compile();
+			compiled = predicate;
+		}
+		return predicate.test(headers);
+	}
+
+	public String getOperator() {
+		return operator;
+	}
+
+	public void setOperator(String operator) {
+		this.operator = operator;
+		this.compiled = null;
+	}
+
+	public List<MailFilter> getFilters() {
+		return filters;
+	}
+
+	public void setFilters(List<MailFilter> filters) {
+		this.filters = filters;
+		this.compiled = null;
+	}
+
+	public List<MailFilterSet> getSets() {
+		return sets;
+	}
+
+	public void setSets(List<MailFilterSet> sets) {
+		this.sets = sets;
+		this.compiled = null;
+	}
+
+	@Override
+	public String toString() {
+		return " operator : " + operator
+				+ " filters : " + filters
+				+ " sets : " + sets;
+	}
+}
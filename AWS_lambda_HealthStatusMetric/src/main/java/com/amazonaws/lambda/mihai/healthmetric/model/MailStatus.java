@@ -0,0 +1,123 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * domain entity for the health status that was detected in one filtered email
+ * @author mike
+ */
+public class MailStatus {
+
+	/**
+	 * website monitor id of the site; ex: 214785651
+	 */
+	private String siteId;
+	/**
+	 * online status of the site, as reported by website monitor; ex: success, intermittent
+	 */
+	private String status;
+	/**
+	 * health status of the site, derived from <code>status</code>
+	 */
+	private Boolean healthy;
+	/**
+	 * moment when the email was sent; used to keep only the newest status of a site
+	 */
+	private Date mailDate;
+	/**
+	 * S3 bucket where the email file is stored
+	 */
+	private String s3Bucket;
+	/**
+	 * name of the email file
+	 */
+	private String s3Key;
+	/**
+	 * dimensions of the health metric of the site; ex: HostedZoneId = Z04702051WDZH2C7LSLUO
+	 */
+	private Map<String, String> dimensions;
+
+	/**
+	 *
+	 * @param other status of the same site
+	 * @return true if this status was sent after the <code>other</code> status
+	 */
+	public boolean isNewerThan(MailStatus other) {
+		if (other == null || other.getMailDate() == null) {
+			return true;
+		}
+		if (mailDate == null) {
+			return false;
+		}
+		return !mailDate.before(other.getMailDate());
+	}
+
+	@Override
+	public String toString() {
+		return " siteId : " + siteId
+				+ " status : " + status
+				+ " healthy : " + healthy
+				+ " mailDate : " + mailDate
+				+ " s3Bucket : " + s3Bucket
+				+ " s3Key : " + s3Key
+				+ " dimensions : " + dimensions;
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public void setSiteId(String siteId) {
+		this.siteId = siteId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Boolean getHealthy() {
+		return healthy;
+	}
+
+	public void setHealthy(Boolean healthy) {
+		this.healthy = healthy;
+	}
+
+	public Date getMailDate() {
+		return mailDate;
+	}
+
+	public void setMailDate(Date mailDate) {
+		this.mailDate = mailDate;
+	}
+
+	public String getS3Bucket() {
+		return s3Bucket;
+	}
+
+	public void setS3Bucket(String s3Bucket) {
+		this.s3Bucket = s3Bucket;
+	}
+
+	public String getS3Key() {
+		return s3Key;
+	}
+
+	public void setS3Key(String s3Key) {
+		this.s3Key = s3Key;
+	}
+
+	public Map<String, String> getDimensions() {
+		return dimensions;
+	}
+
+	public void setDimensions(Map<String, String> dimensions) {
+		this.dimensions = dimensions;
+	}
+
+}
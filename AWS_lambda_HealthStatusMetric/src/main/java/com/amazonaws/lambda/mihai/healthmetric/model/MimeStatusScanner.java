@@ -0,0 +1,441 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.ParseException;
+
+/**
+ * streaming pull parser for emails; used to search the status of the site without building the whole <code>MimeMessage</code> model<br>
+ * walks the multipart boundaries, decodes only the text parts (quoted-printable, base64 or plain) line by line and
+ * stops as soon as the {@link TextMatcher} finds what it searches; attachments and non text parts are skipped without decoding<br>
+ * html parts reach the matcher as plain text, through a {@link HtmlTextNormalizer}
+ * @author mike
+ */
+public class MimeStatusScanner {
+
+	/**
+	 * outcome of a scan
+	 */
+	public enum ScanResult {
+		/** the matcher found what it searched */
+		FOUND,
+		/** the whole email was scanned and the matcher found nothing */
+		NOT_FOUND,
+		/** the email ended before its multipart structure was closed; result is not reliable */
+		INCOMPLETE
+	}
+
+	/**
+	 * maximum nesting level of multiparts; deeper emails are treated as malformed
+	 */
+	public static final int MAX_DEPTH = 10;
+	/**
+	 * index of the boundary that ended the last part when the email ended instead
+	 */
+	private static final int NO_BOUNDARY = -1;
+	/**
+	 * alphabet of base64 encoding, indexed by character
+	 */
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	/**
+	 * raw email
+	 */
+	private InputStream in;
+	/**
+	 * read buffer over <code>in</code>
+	 */
+	private byte[] buffer = new byte[8192];
+	private int bufferPos;
+	private int bufferLimit;
+	/**
+	 * current raw line, without line terminator
+	 */
+	private byte[] line = new byte[1024];
+	private int lineLength;
+	/**
+	 * decoded bytes of the current text line
+	 */
+	private byte[] decoded = new byte[1024];
+	private int decodedLength;
+	/**
+	 * delimiters ("--" + boundary) of the enclosing multiparts; the innermost is the last
+	 */
+	private List<byte[]> boundaries = new ArrayList<byte[]>();
+	/**
+	 * index in <code>boundaries</code> of the delimiter that ended the last part, or {@link #NO_BOUNDARY} at the end of the email
+	 */
+	private int terminator;
+	/**
+	 * true if the delimiter that ended the last part is a close delimiter ("--" + boundary + "--")
+	 */
+	private boolean terminatorClosing;
+	/**
+	 * true if the email ended inside a multipart
+	 */
+	private boolean incomplete;
+	/**
+	 * headers of the email, parsed on demand
+	 */
+	private InternetHeaders headers;
+
+	/**
+	 *
+	 * @param in raw email; it is read only once, from its current position
+	 */
+	public MimeStatusScanner(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * parses only the header block of the email, the body is not read
+	 * @return headers of the email
+	 * @throws IOException when reading email
+	 */
+	public InternetHeaders readHeaders() throws IOException {
+		if (headers == null) {
+			headers = readHeaderBlock();
+		}
+		return headers;
+	}
+
+	/**
+	 * scans the text parts of the email until the matcher finds what it searches
+	 * @param matcher receives the decoded text lines
+	 * @return outcome of the scan
+	 * @throws IOException when reading email
+	 * @throws MessagingException when the email is malformed; ex: multipart without boundary, too deep nesting
+	 */
+	public ScanResult scan(TextMatcher matcher) throws IOException, MessagingException {
+		readHeaders();
+
+		if (scanEntity(headers, matcher, 0)) {
+			return ScanResult.FOUND;
+		}
+		return (incomplete) ? ScanResult.INCOMPLETE : ScanResult.NOT_FOUND;
+	}
+
+	/**
+	 * scans one entity (the email or one of its parts) whose headers were already read
+	 * @return true if the matcher found what it searches
+	 */
+	private boolean scanEntity(InternetHeaders entityHeaders, TextMatcher matcher, int depth) throws IOException, MessagingException {
+		ContentType contentType = contentType(entityHeaders);
+
+		if (contentType.match("multipart/*")) {
+			if (depth >= MAX_DEPTH) {
+				throw new MessagingException("Multipart nesting deeper than " + MAX_DEPTH);
+			}
+			String boundary = contentType.getParameter("boundary");
+			if (boundary == null || boundary.isEmpty()) {
+				throw new MessagingException("Multipart without boundary");
+			}
+			return scanMultipart(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1), matcher, depth);
+		}
+
+		if ("text".equalsIgnoreCase(contentType.getPrimaryType()) && !attachment(entityHeaders)) {
+			return scanText(entityHeaders, contentType, matcher);
+		}
+
+		skipToBoundary();
+		return false;
+	}
+
+	private boolean scanMultipart(byte[] delimiter, TextMatcher matcher, int depth) throws IOException, MessagingException {
+		boundaries.add(delimiter);
+		int own = boundaries.size() - 1;
+
+		// preamble
+		skipToBoundary();
+
+		while (true) {
+			if (terminator == NO_BOUNDARY) {
+				incomplete = true;
+				boundaries.remove(own);
+				return false;
+			}
+			if (terminator != own) {
+				// close delimiter is missing, the enclosing multipart continues
+				boundaries.remove(own);
+				return false;
+			}
+			if (terminatorClosing) {
+				boundaries.remove(own);
+				// epilogue
+				skipToBoundary();
+				return false;
+			}
+
+			InternetHeaders partHeaders = readHeaderBlock();
+			if (scanEntity(partHeaders, matcher, depth + 1)) {
+				boundaries.remove(own);
+				return true;
+			}
+		}
+	}
+
+	private boolean scanText(InternetHeaders entityHeaders, ContentType contentType, TextMatcher matcher) throws IOException {
+		if (!contentType.match("text/html")) {
+			return scanTextLines(entityHeaders, contentType, matcher);
+		}
+		HtmlTextNormalizer html = new HtmlTextNormalizer(matcher);
+		return scanTextLines(entityHeaders, contentType, html) || html.finish();
+	}
+
+	private boolean scanTextLines(InternetHeaders entityHeaders, ContentType contentType, TextMatcher matcher) throws IOException {
+		String encoding = entityHeaders.getHeader("Content-Transfer-Encoding", null);
+		encoding = (encoding == null) ? "7bit" : encoding.trim().toLowerCase();
+		boolean quotedPrintable = "quoted-printable".equals(encoding);
+		boolean base64 = "base64".equals(encoding);
+		Charset charset = charset(contentType);
+
+		int quantum = 0;
+		int quantumBits = 0;
+		decodedLength = 0;
+
+		while (readLine()) {
+			if (boundaryLine()) {
+				return emitDecoded(charset, matcher);
+			}
+
+			if (quotedPrintable) {
+				boolean softBreak = decodeQuotedPrintable();
+				if (!softBreak && emitDecoded(charset, matcher)) {
+					return true;
+				}
+
+			} else if (base64) {
+				for (int i = 0; i < lineLength; i++) {
+					int c = line[i] & 0xff;
+					if (c == '=') {
+						// padding: the remaining bits are not data
+						quantum = 0;
+						quantumBits = 0;
+						continue;
+					}
+					int value = (c < 128) ? BASE64_VALUES[c] : -1;
+					if (value < 0) {
+						continue;
+					}
+					quantum = (quantum << 6) | value;
+					quantumBits += 6;
+					if (quantumBits >= 8) {
+						quantumBits -= 8;
+						byte b = (byte) (quantum >> quantumBits);
+						quantum &= (1 << quantumBits) - 1;
+						if (b == '\n') {
+							if (emitDecoded(charset, matcher)) {
+								return true;
+							}
+						} else {
+							appendDecoded(b);
+						}
+					}
+				}
+
+			} else {
+				for (int i = 0; i < lineLength; i++) {
+					appendDecoded(line[i]);
+				}
+				if (emitDecoded(charset, matcher)) {
+					return true;
+				}
+			}
+		}
+
+		terminator = NO_BOUNDARY;
+		return emitDecoded(charset, matcher);
+	}
+
+	/**
+	 * decodes the current quoted-printable line into <code>decoded</code>
+	 * @return true if the line ends with a soft line break
+	 */
+	private boolean decodeQuotedPrintable() {
+		int end = lineLength;
+		while (end > 0 && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+			end--;
+		}
+		for (int i = 0; i < end; i++) {
+			byte b = line[i];
+			if (b != '=') {
+				appendDecoded(b);
+				continue;
+			}
+			if (i == end - 1) {
+				return true;
+			}
+			int high = (i + 2 < end) ? Character.digit(line[i + 1], 16) : -1;
+			int low = (i + 2 < end) ? Character.digit(line[i + 2], 16) : -1;
+			if (high < 0 || low < 0) {
+				appendDecoded(b);
+				continue;
+			}
+			appendDecoded((byte) ((high << 4) | low));
+			i += 2;
+		}
+		return false;
+	}
+
+	private void appendDecoded(byte b) {
+		if (decodedLength == decoded.length) {
+			decoded = Arrays.copyOf(decoded, decoded.length * 2);
+		}
+		decoded[decodedLength++] = b;
+	}
+
+	/**
+	 * sends the decoded bytes, as one line of text, to the matcher
+	 * @return true if the matcher found what it searches
+	 */
+	private boolean emitDecoded(Charset charset, TextMatcher matcher) {
+		int end = decodedLength;
+		if (end > 0 && decoded[end - 1] == '\r') {
+			end--;
+		}
+		decodedLength = 0;
+		if (end == 0) {
+			return false;
+		}
+		return matcher.matchLine(new String(decoded, 0, end, charset));
+	}
+
+	/**
+	 * reads lines until a delimiter of an enclosing multipart or the end of the email
+	 */
+	private void skipToBoundary() throws IOException {
+		while (readLine()) {
+			if (boundaryLine()) {
+				return;
+			}
+		}
+		terminator = NO_BOUNDARY;
+	}
+
+	/**
+	 * checks if the current line is a delimiter of an enclosing multipart, and if so, remembers which
+	 */
+	private boolean boundaryLine() {
+		if (lineLength < 2 || line[0] != '-' || line[1] != '-') {
+			return false;
+		}
+		for (int index = boundaries.size() - 1; index >= 0; index--) {
+			byte[] delimiter = boundaries.get(index);
+			if (lineLength < delimiter.length) {
+				continue;
+			}
+			boolean match = true;
+			for (int i = 2; i < delimiter.length && match; i++) {
+				match = (line[i] == delimiter[i]);
+			}
+			if (!match) {
+				continue;
+			}
+			boolean closing = lineLength >= delimiter.length + 2
+					&& line[delimiter.length] == '-' && line[delimiter.length + 1] == '-';
+			int rest = delimiter.length + ((closing) ? 2 : 0);
+			// only transport padding is allowed after the delimiter
+			for (int i = rest; i < lineLength && match; i++) {
+				match = (line[i] == ' ' || line[i] == '\t');
+			}
+			if (match) {
+				terminator = index;
+				terminatorClosing = closing;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * reads a header block until the empty line that separates it from the body
+	 */
+	private InternetHeaders readHeaderBlock() throws IOException {
+		InternetHeaders block = new InternetHeaders();
+		while (readLine() && lineLength > 0) {
+			block.addHeaderLine(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+		}
+		return block;
+	}
+
+	/**
+	 * reads the next raw line into <code>line</code>, without the line terminator
+	 * @return false at the end of the email
+	 */
+	private boolean readLine() throws IOException {
+		lineLength = 0;
+		boolean read = false;
+		while (true) {
+			if (bufferPos == bufferLimit) {
+				bufferLimit = in.read(buffer, 0, buffer.length);
+				bufferPos = 0;
+				if (bufferLimit <= 0) {
+					bufferLimit = 0;
+					return read;
+				}
+			}
+			read = true;
+			byte b = buffer[bufferPos++];
+			if (b == '\n') {
+				if (lineLength > 0 && line[lineLength - 1] == '\r') {
+					lineLength--;
+				}
+				return true;
+			}
+			if (lineLength == line.length) {
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[lineLength++] = b;
+		}
+	}
+
+	private static ContentType contentType(InternetHeaders entityHeaders) throws ParseException {
+		String value = entityHeaders.getHeader("Content-Type", null);
+		if (value == null) {
+			return new ContentType("text", "plain", null);
+		}
+		return new ContentType(value);
+	}
+
+	private static boolean attachment(InternetHeaders entityHeaders) {
+		String value = entityHeaders.getHeader("Content-Disposition", null);
+		if (value == null) {
+			return false;
+		}
+		try {
+			return "attachment".equalsIgnoreCase(new ContentDisposition(value).getDisposition());
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	private static Charset charset(ContentType contentType) {
+		String name = contentType.getParameter("charset");
+		if (name == null || "us-ascii".equalsIgnoreCase(name)) {
+			return StandardCharsets.ISO_8859_1;
+		}
+		try {
+			return Charset.forName(name.trim());
+		} catch (RuntimeException e) {
+			return StandardCharsets.ISO_8859_1;
+		}
+	}
+}
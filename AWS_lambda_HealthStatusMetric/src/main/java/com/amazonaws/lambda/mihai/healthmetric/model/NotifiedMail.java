@@ -0,0 +1,97 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Date;
+
+/**
+ * domain entity for one SNS notification of a filtered email, as needed by the handler:
+ * either the raw message, decoded later, or the filtered mail already decoded from the invocation bytes
+ * @author mike
+ */
+public class NotifiedMail {
+
+	/**
+	 * SNS message id; an idempotency key of the notification
+	 */
+	private String messageId;
+	/**
+	 * moment when SNS published the notification; used when the email has no valid Date header
+	 */
+	private Date timestamp;
+	/**
+	 * SNS message: a lambda destination event whose response payload is the filtered mail; null when <code>mail</code> was already decoded
+	 */
+	private String message;
+	/**
+	 * filtered mail decoded from the message; null until decoded
+	 */
+	private FilteredMail mail;
+	/**
+	 * true when the filter of the message is not the filter of this processor; the mail was not decoded
+	 */
+	private boolean rejected;
+
+	/**
+	 *
+	 * @param messageId SNS message id
+	 * @param timestamp moment when SNS published the notification
+	 * @param message SNS message, not yet decoded
+	 * @return a new notification
+	 */
+	public static NotifiedMail build(String messageId, Date timestamp, String message) {
+
+		NotifiedMail notified = new NotifiedMail();
+		notified.setMessageId(messageId);
+		notified.setTimestamp(timestamp);
+		notified.setMessage(message);
+
+		return notified;
+	}
+
+	@Override
+	public String toString() {
+		return " messageId : " + messageId
+				+ " timestamp : " + timestamp
+				+ " mail : " + mail
+				+ " rejected : " + rejected;
+	}
+
+	public String getMessageId() {
+		return messageId;
+	}
+
+	public void setMessageId(String messageId) {
+		this.messageId = messageId;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(Date timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public FilteredMail getMail() {
+		return mail;
+	}
+
+	public void setMail(FilteredMail mail) {
+		this.mail = mail;
+	}
+
+	public boolean isRejected() {
+		return rejected;
+	}
+
+	public void setRejected(boolean rejected) {
+		this.rejected = rejected;
+	}
+}
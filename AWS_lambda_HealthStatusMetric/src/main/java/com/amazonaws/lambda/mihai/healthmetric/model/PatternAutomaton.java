@@ -0,0 +1,174 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds many ASCII patterns in one pass over a text,
+ * so the search time depends on the text length and not on the number of patterns<br>
+ * the automaton is compiled to a table of transitions (a DFA), indexed by state and char class;
+ * only the chars used in patterns have their own class, any other char moves back to the start state<br>
+ * an instance is immutable after construction and can be shared by threads
+ * @author mike
+ *
+ */
+public class PatternAutomaton {
+
+	/**
+	 * receives the matches found in a text
+	 */
+	public interface MatchListener {
+		/**
+		 *
+		 * @param pattern index of the pattern in the list given to the constructor
+		 * @param end index in text after the last char of the match
+		 * @return true to stop the search
+		 */
+		boolean onMatch(int pattern, int end);
+	}
+
+	/**
+	 * class of each ASCII char; 0 for chars that are not in any pattern
+	 */
+	private final int[] charClass = new int[128];
+	/**
+	 * number of char classes, including class 0
+	 */
+	private final int classes;
+	/**
+	 * next state for each state and char class: <code>transitions[state * classes + class]</code>
+	 */
+	private final int[] transitions;
+	/**
+	 * pattern that ends in each state, or -1; when patterns are suffixes of each other, the longest one is kept
+	 */
+	private final int[] output;
+	/**
+	 * first char of all patterns, when they all start with the same char; -1 otherwise<br>
+	 * in the start state, the search jumps to the next occurrence of this char
+	 */
+	private final int startChar;
+
+	/**
+	 * compiles the patterns
+	 * @param patterns ASCII patterns, not empty
+	 */
+	public PatternAutomaton(List<String> patterns) {
+
+		int classCount = 1;
+		int maxStates = 1;
+		int firstChar = -2;
+		for (String pattern : patterns) {
+			if (pattern.isEmpty()) {
+				throw new IllegalArgumentException("empty pattern");
+			}
+			if (firstChar == -2) {
+				firstChar = pattern.charAt(0);
+			} else if (pattern.charAt(0) != firstChar) {
+				firstChar = -1;
+			}
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (c >= 128) {
+					throw new IllegalArgumentException("not an ASCII pattern: " + pattern);
+				}
+				if (charClass[c] == 0) {
+					charClass[c] = classCount++;
+				}
+			}
+			maxStates += pattern.length();
+		}
+		classes = classCount;
+		startChar = Math.max(firstChar, -1);
+
+		// trie: transitions not defined are -1
+		int[] trie = new int[maxStates * classes];
+		Arrays.fill(trie, -1);
+		int[] out = new int[maxStates];
+		Arrays.fill(out, -1);
+		int states = 1;
+
+		for (int p = 0; p < patterns.size(); p++) {
+			String pattern = patterns.get(p);
+			int state = 0;
+			for (int i = 0; i < pattern.length(); i++) {
+				int index = state * classes + charClass[pattern.charAt(i)];
+				if (trie[index] < 0) {
+					trie[index] = states++;
+				}
+				state = trie[index];
+			}
+			out[state] = p;
+		}
+
+		// breadth first: failure links are folded in the transitions, so the search never follows a link
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+
+		for (int c = 0; c < classes; c++) {
+			int next = trie[c];
+			if (next < 0) {
+				trie[c] = 0;
+			} else {
+				fail[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			if (out[state] < 0) {
+				out[state] = out[fail[state]];
+			}
+			for (int c = 0; c < classes; c++) {
+				int index = state * classes + c;
+				int next = trie[index];
+				if (next < 0) {
+					trie[index] = trie[fail[state] * classes + c];
+				} else {
+					fail[next] = trie[fail[state] * classes + c];
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		transitions = Arrays.copyOf(trie, states * classes);
+		output = Arrays.copyOf(out, states);
+	}
+
+	/**
+	 * searches all patterns in the text, in one pass
+	 * @param text text to be searched
+	 * @param listener receives each match, in the order of the match end
+	 * @return true if the search was stopped by the listener
+	 */
+	public boolean search(CharSequence text, MatchListener listener) {
+		String string = (text instanceof String) ? (String) text : text.toString();
+		int length = string.length();
+		int state = 0;
+		for (int i = 0; i < length; i++) {
+			if (state == 0 && startChar >= 0) {
+				// no partial match: skip to the next char that can start a pattern
+				i = string.indexOf(startChar, i);
+				if (i < 0) {
+					return false;
+				}
+			}
+			char c = string.charAt(i);
+			state = transitions[state * classes + ((c < 128) ? charClass[c] : 0)];
+			if (output[state] >= 0 && listener.onMatch(output[state], i + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return number of states of the compiled automaton
+	 */
+	public int getStates() {
+		return output.length;
+	}
+}
@@ -0,0 +1,96 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * domain entity for an email that was already processed: the statuses detected in it, kept by the idempotency layer
+ * so a duplicate delivery of the same email is answered without reading it again
+ * @author mike
+ */
+public class ProcessedMail {
+
+	/**
+	 * idempotency keys of the email; ex: sns:&lt;MessageId&gt;, s3:&lt;bucket&gt;/&lt;key&gt;
+	 */
+	private List<String> keys;
+	/**
+	 * health statuses detected in the email
+	 */
+	private List<MailStatus> statuses;
+	/**
+	 * moment (epoch millis) after which the record is no longer used
+	 */
+	private long expiresAt;
+	/**
+	 * true when the record was found by the idempotency layer, not built by this invocation; never stored
+	 */
+	@JsonIgnore
+	private boolean duplicate;
+
+	/**
+	 *
+	 * @param keys idempotency keys of the email
+	 * @param statuses health statuses detected in the email
+	 * @return a new record of a processed email
+	 */
+	public static ProcessedMail build(List<String> keys, List<MailStatus> statuses) {
+
+		ProcessedMail mail = new ProcessedMail();
+		mail.setKeys(keys);
+		mail.setStatuses(statuses);
+
+		return mail;
+	}
+
+	/**
+	 *
+	 * @return a copy of this record, marked as found by the idempotency layer
+	 */
+	public ProcessedMail asDuplicate() {
+
+		ProcessedMail mail = build(keys, statuses);
+		mail.setExpiresAt(expiresAt);
+		mail.duplicate = true;
+
+		return mail;
+	}
+
+	@Override
+	public String toString() {
+		return " keys : " + keys
+				+ " statuses : " + statuses
+				+ " expiresAt : " + expiresAt
+				+ " duplicate : " + duplicate;
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	public void setKeys(List<String> keys) {
+		this.keys = keys;
+	}
+
+	public List<MailStatus> getStatuses() {
+		return statuses;
+	}
+
+	public void setStatuses(List<MailStatus> statuses) {
+		this.statuses = statuses;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	@JsonIgnore
+	public boolean isDuplicate() {
+		return duplicate;
+	}
+}
@@ -0,0 +1,103 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+/**
+ * domain entity for the durable health state of one site: its current status, when it last changed and when it was last published
+ * @author mike
+ */
+public class SiteHealthState {
+
+	/**
+	 * health status of the site, as last detected (or decided by the aggregation stage); null before the first status
+	 */
+	private Boolean healthy;
+	/**
+	 * online status of the newest email, as reported by website monitor; ex: success, intermittent
+	 */
+	private String status;
+	/**
+	 * moment (epoch millis) of the email that changed the health status; 0 before the first status
+	 */
+	private long lastTransitionAt;
+	/**
+	 * moment (epoch millis) when the health status was last put into CloudWatch; 0 before the first put
+	 */
+	private long lastPublishedAt;
+
+	/**
+	 * records the newest health status of the site; the moment of its put is recorded apart, see {@link #published(long)}: 
+	 * publish on change may not put it
+	 * @param detected newest status, with its mail date
+	 * @param now current moment, epoch millis; the transition moment when the status has no mail date
+	 */
+	public void record(MailStatus detected, long now) {
+
+		if (healthy == null || !healthy.equals(detected.getHealthy())) {
+			lastTransitionAt = (detected.getMailDate() == null) ? now : detected.getMailDate().getTime();
+		}
+		healthy = detected.getHealthy();
+		status = detected.getStatus();
+	}
+
+	/**
+	 * records a put of the health status into CloudWatch; a put recorded later by another instance is kept
+	 * @param now moment of the put, epoch millis
+	 */
+	public void published(long now) {
+		lastPublishedAt = Math.max(lastPublishedAt, now);
+	}
+
+	/**
+	 *
+	 * @return a copy of this state
+	 */
+	public SiteHealthState copy() {
+
+		SiteHealthState copy = new SiteHealthState();
+		copy.setHealthy(healthy);
+		copy.setStatus(status);
+		copy.setLastTransitionAt(lastTransitionAt);
+		copy.setLastPublishedAt(lastPublishedAt);
+
+		return copy;
+	}
+
+	public Boolean getHealthy() {
+		return healthy;
+	}
+
+	public void setHealthy(Boolean healthy) {
+		this.healthy = healthy;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public long getLastTransitionAt() {
+		return lastTransitionAt;
+	}
+
+	public void setLastTransitionAt(long lastTransitionAt) {
+		this.lastTransitionAt = lastTransitionAt;
+	}
+
+	public long getLastPublishedAt() {
+		return lastPublishedAt;
+	}
+
+	public void setLastPublishedAt(long lastPublishedAt) {
+		this.lastPublishedAt = lastPublishedAt;
+	}
+
+	@Override
+	public String toString() {
+		return " healthy : " + healthy
+				+ " status : " + status
+				+ " lastTransitionAt : " + lastTransitionAt
+				+ " lastPublishedAt : " + lastPublishedAt;
+	}
+}
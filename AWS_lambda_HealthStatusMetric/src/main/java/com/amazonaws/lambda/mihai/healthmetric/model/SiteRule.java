@@ -0,0 +1,68 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * domain entity for one row of the site rule table: a site checked by website monitor, 
+ * the dimensions of its health metric and the statuses that count as healthy
+ * @author mike
+ *
+ */
+public class SiteRule {
+
+	/**
+	 * website monitor id of the site; ex: 214785651
+	 */
+	private String siteId;
+	/**
+	 * dimensions of the health metric of this site; ex: HostedZoneId = Z04702051WDZH2C7LSLUO
+	 */
+	private Map<String, String> dimensions = new LinkedHashMap<String, String>();
+	/**
+	 * statuses reported by website monitor that are converted to healthy; the others are unhealthy
+	 */
+	private List<String> healthyStatuses = Arrays.asList("success");
+
+	/**
+	 *
+	 * @param status status reported by website monitor; ex: success, intermittent
+	 * @return health status of the site
+	 */
+	public Boolean isHealthy(String status) {
+		return healthyStatuses.contains(status);
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public void setSiteId(String siteId) {
+		this.siteId = siteId;
+	}
+
+	public Map<String, String> getDimensions() {
+		return dimensions;
+	}
+
+	public void setDimensions(Map<String, String> dimensions) {
+		this.dimensions = dimensions;
+	}
+
+	public List<String> getHealthyStatuses() {
+		return healthyStatuses;
+	}
+
+	public void setHealthyStatuses(List<String> healthyStatuses) {
+		this.healthyStatuses = healthyStatuses;
+	}
+
+	@Override
+	public String toString() {
+		return " siteId : " + siteId
+				+ " dimensions : " + dimensions
+				+ " healthyStatuses : " + healthyStatuses;
+	}
+}
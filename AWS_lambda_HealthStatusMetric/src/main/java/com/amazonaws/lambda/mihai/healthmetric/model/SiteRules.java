@@ -0,0 +1,131 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * table of the monitored sites, loaded once and compiled in a {@link PatternAutomaton} 
+ * that searches the status lines of all sites in one pass over the mail body: the automaton finds the status reference of a site,
+ * the status is the word after it, so any status is found, and classified by the rule of the site (unhealthy, unless the rule lists it)<br>
+ * the table is the class path resource site-rules.json, or the file given by the environment variable SITE_RULES_FILE (or the system property site.rules.file)
+ * @author mike
+ *
+ */
+public class SiteRules {
+
+	/** Value: Error reference: */
+	public static final String STATUS_TOKEN = "Error reference:";
+	/**
+	 * class path resource with the default rule table
+	 */
+	private static final String DEFAULT_RULES_RESOURCE = "/site-rules.json";
+	/**
+	 * rule table of this deployment, loaded on first use
+	 */
+	private static volatile SiteRules configured;
+
+	/**
+	 * rules in table order; the first one is the default rule
+	 */
+	private final List<SiteRule> rules;
+	/**
+	 * one pattern for each site, the status reference without the status: "Error reference: &lt;site&gt;/"
+	 */
+	private final PatternAutomaton automaton;
+	/**
+	 * rule of each pattern of the automaton
+	 */
+	private final SiteRule[] patternRules;
+
+	/**
+	 * compiles the rules
+	 * @param rules rule table; not empty
+	 */
+	public SiteRules(List<SiteRule> rules) {
+		if (rules.isEmpty()) {
+			throw new IllegalArgumentException("no site rules");
+		}
+		this.rules = Collections.unmodifiableList(new ArrayList<SiteRule>(rules));
+
+		List<String> patterns = new ArrayList<String>(rules.size());
+		patternRules = new SiteRule[rules.size()];
+
+		for (SiteRule rule : rules) {
+			patternRules[patterns.size()] = rule;
+			patterns.add(STATUS_TOKEN + " " + rule.getSiteId() + "/");
+		}
+		automaton = new PatternAutomaton(patterns);
+	}
+
+	/**
+	 *
+	 * @return rule table of this deployment; loaded and compiled on first call
+	 */
+	public static SiteRules getConfigured() {
+		SiteRules siteRules = configured;
+		if (siteRules == null) {
+			synchronized (SiteRules.class) {
+				siteRules = configured;
+				if (siteRules == null) {
+					siteRules = load();
+					configured = siteRules;
+				}
+			}
+		}
+		return siteRules;
+	}
+
+	/**
+	 * 
+	 * @return rule table from the file configured for this deployment, or from the class path resource
+	 */
+	private static SiteRules load() {
+		String file = System.getProperty("site.rules.file");
+		if (file == null) {
+			file = System.getenv("SITE_RULES_FILE");
+		}
+
+		try (InputStream json = (file == null || file.isBlank()) 
+				? SiteRules.class.getResourceAsStream(DEFAULT_RULES_RESOURCE) 
+				: new FileInputStream(file)) {
+
+			return new SiteRules(Arrays.asList(Utils.getObjectReader(SiteRule[].class).<SiteRule[]>readValue(json)));
+
+		} catch (IOException e) {
+			throw new RuntimeException("site rules not loaded from " + ((file == null) ? DEFAULT_RULES_RESOURCE : file), e);
+		}
+	}
+
+	/**
+	 *
+	 * @return a new matcher for one mail body
+	 */
+	public SiteStatusMatcher newMatcher() {
+		return new SiteStatusMatcher(this);
+	}
+
+	/**
+	 *
+	 * @return rule of the site that receives the status of mails without a status line, ex: "back online" mails
+	 */
+	public SiteRule getDefaultRule() {
+		return rules.get(0);
+	}
+
+	public List<SiteRule> getRules() {
+		return rules;
+	}
+
+	PatternAutomaton getAutomaton() {
+		return automaton;
+	}
+
+	SiteRule getPatternRule(int pattern) {
+		return patternRules[pattern];
+	}
+}
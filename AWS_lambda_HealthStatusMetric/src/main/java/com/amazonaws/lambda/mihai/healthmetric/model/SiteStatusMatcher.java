@@ -0,0 +1,59 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * searches the status lines of all sites from {@link SiteRules} in mail body, in one pass over each line<br>
+ * the status is the word after "Error reference: &lt;site&gt;/", whatever it is: a status unknown to the rules is unhealthy, as an empty one;
+ * the first status found for a site is kept; lines are read until all sites have a status
+ * @author mike
+ *
+ */
+public class SiteStatusMatcher implements TextMatcher {
+
+	/**
+	 * compiled rule table
+	 */
+	private final SiteRules siteRules;
+	/**
+	 * status found for each site, in the order of the status lines
+	 */
+	private final Map<SiteRule, String> statuses = new LinkedHashMap<SiteRule, String>();
+
+	/**
+	 *
+	 * @param siteRules compiled rule table
+	 */
+	SiteStatusMatcher(SiteRules siteRules) {
+		this.siteRules = siteRules;
+	}
+
+	@Override
+	public boolean matchLine(CharSequence line) {
+		return siteRules.getAutomaton().search(line, (pattern, end) -> {
+			// the status is a whole word: "successful" is not "success"
+			int statusEnd = end;
+			while (statusEnd < line.length() && Character.isLetterOrDigit(line.charAt(statusEnd))) {
+				statusEnd++;
+			}
+			statuses.putIfAbsent(siteRules.getPatternRule(pattern), line.subSequence(end, statusEnd).toString());
+			return statuses.size() == siteRules.getRules().size();
+		});
+	}
+
+	/**
+	 *
+	 * @return status found for each site; empty if the mail has no status line
+	 */
+	public Map<SiteRule, String> getStatuses() {
+		return statuses;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(" statuses :");
+		statuses.forEach((rule, status) -> text.append(" " + rule.getSiteId() + "/" + status));
+		return text.toString();
+	}
+}
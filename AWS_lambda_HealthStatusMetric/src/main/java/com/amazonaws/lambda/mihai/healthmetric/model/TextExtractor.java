@@ -0,0 +1,225 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * extracts the text of an email with a budget: only <code>text/*</code> parts are decoded,
+ * attachments and other parts are skipped from their headers, without decoding their content<br>
+ * in a <code>multipart/alternative</code> only one alternative is read, <code>text/plain</code> when there is one;
+ * <code>text/html</code> parts are turned into lines of plain text by a {@link HtmlTextNormalizer};
+ * the nesting depth and the number of characters extracted are limited, so memory and time do not grow with the attachments<br>
+ * thread safe: the budget of each extraction is kept on the stack
+ * @author mike
+ *
+ */
+public class TextExtractor {
+
+	/**
+	 * default nesting depth of the multiparts that are read; the message is at depth 0
+	 */
+	public static final int DEFAULT_MAX_DEPTH = 8;
+	/**
+	 * default number of characters extracted from one email, at most
+	 */
+	public static final int DEFAULT_MAX_TEXT_SIZE = 1024 * 1024;
+	/**
+	 * charset of the text parts without charset parameter, as in javax.mail
+	 */
+	private static final Charset DEFAULT_CHARSET = StandardCharsets.US_ASCII;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(TextExtractor.class);
+	/**
+	 * nesting depth of the multiparts that are read
+	 */
+	private final int maxDepth;
+	/**
+	 * number of characters extracted from one email, at most
+	 */
+	private final int maxTextSize;
+
+	/**
+	 *
+	 * @param maxDepth nesting depth of the multiparts that are read; the message is at depth 0
+	 * @param maxTextSize number of characters extracted from one email, at most
+	 */
+	public TextExtractor(int maxDepth, int maxTextSize) {
+		this.maxDepth = maxDepth;
+		this.maxTextSize = maxTextSize;
+	}
+
+	/**
+	 *
+	 * @param part email, or one of its parts
+	 * @return text of the <code>text/*</code> parts, in mail order, cut at the budget
+	 * @throws MessagingException when the structure of the email is not valid
+	 * @throws IOException when reading the email
+	 */
+	public String extract(Part part) throws MessagingException, IOException {
+		StringBuilder text = new StringBuilder();
+		append(part, 0, text);
+		return text.toString();
+	}
+
+	/**
+	 * appends the text of one part
+	 * @param part email part
+	 * @param depth nesting depth of the part
+	 * @param text extracted text; its length is the budget already used
+	 * @throws MessagingException when the structure of the email is not valid
+	 * @throws IOException when reading the email
+	 */
+	private void append(Part part, int depth, StringBuilder text) throws MessagingException, IOException {
+
+		if (text.length() >= maxTextSize) {
+			return;
+		}
+		if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+			logger.debug("attachment skipped: " + part.getContentType());
+			return;
+		}
+
+		if (part.isMimeType("multipart/*")) {
+			if (depth >= maxDepth) {
+				logger.debug("multipart skipped at depth " + depth);
+				return;
+			}
+			Object content = part.getContent();
+			if (!(content instanceof Multipart)) {
+				return;
+			}
+			Multipart multipart = (Multipart) content;
+			if (part.isMimeType("multipart/alternative")) {
+				BodyPart alternative = chooseAlternative(multipart);
+				if (alternative != null) {
+					append(alternative, depth + 1, text);
+				}
+				return;
+			}
+			for (int i = 0; i < multipart.getCount() && text.length() < maxTextSize; i++) {
+				append(multipart.getBodyPart(i), depth + 1, text);
+			}
+
+		} else if (part.isMimeType("text/*")) {
+			appendText(part, text);
+		}
+	}
+
+	/**
+	 *
+	 * @param alternative parts of a multipart/alternative, from the simplest to the richest
+	 * @return the text/plain alternative; else the richest alternative that is not an attachment; null when none
+	 * @throws MessagingException when the structure of the email is not valid
+	 */
+	private static BodyPart chooseAlternative(Multipart alternative) throws MessagingException {
+
+		BodyPart chosen = null;
+		for (int i = 0; i < alternative.getCount(); i++) {
+			BodyPart part = alternative.getBodyPart(i);
+			if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+				continue;
+			}
+			if (part.isMimeType("text/plain")) {
+				return part;
+			}
+			if (part.isMimeType("text/*") || part.isMimeType("multipart/*")) {
+				chosen = part;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * appends the decoded text of a text part, only as far as the budget allows
+	 * @param part text part
+	 * @param text extracted text; its length is the budget already used
+	 * @throws MessagingException when the headers of the part are not valid
+	 * @throws IOException when reading the email
+	 */
+	private void appendText(Part part, StringBuilder text) throws MessagingException, IOException {
+
+		char[] buffer = new char[Math.min(8192, maxTextSize - text.length())];
+		try (InputStream in = part.getInputStream(); Reader reader = new InputStreamReader(in, charset(part))) {
+			int count;
+			if (part.isMimeType("text/html")) {
+				HtmlTextNormalizer html = new HtmlTextNormalizer(line -> appendLine(line, text));
+				while (text.length() < maxTextSize && (count = reader.read(buffer, 0, buffer.length)) != -1) {
+					html.feed(buffer, 0, count);
+				}
+				html.finish();
+			} else {
+				while (text.length() < maxTextSize
+						&& (count = reader.read(buffer, 0, Math.min(buffer.length, maxTextSize - text.length()))) != -1) {
+					text.append(buffer, 0, count);
+				}
+			}
+		}
+		if (text.length() >= maxTextSize) {
+			logger.debug("text cut at " + maxTextSize + " characters");
+		}
+	}
+
+	/**
+	 * appends one line of text of an html part, only as far as the budget allows
+	 * @param line line of text
+	 * @param text extracted text; its length is the budget already used
+	 * @return true when the budget is used up
+	 */
+	private boolean appendLine(CharSequence line, StringBuilder text) {
+		int room = maxTextSize - text.length();
+		text.append(line, 0, Math.min(line.length(), room));
+		if (text.length() < maxTextSize) {
+			text.append('\n');
+		}
+		return text.length() >= maxTextSize;
+	}
+
+	/**
+	 *
+	 * @param part text part
+	 * @return charset of the part; us-ascii when not given, ISO-8859-1 when not supported, so every byte is kept
+	 * @throws MessagingException when the content type could not be read
+	 */
+	private static Charset charset(Part part) throws MessagingException {
+
+		String name = null;
+		try {
+			name = new ContentType(part.getContentType()).getParameter("charset");
+		} catch (ParseException e) {
+			return DEFAULT_CHARSET;
+		}
+		if (name == null) {
+			return DEFAULT_CHARSET;
+		}
+		try {
+			return Charset.forName(MimeUtility.javaCharset(name));
+		} catch (IllegalArgumentException e) {
+			return StandardCharsets.ISO_8859_1;
+		}
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxTextSize() {
+		return maxTextSize;
+	}
+}
@@ -0,0 +1,35 @@
+package com.amazonaws.lambda.mihai.healthmetric.model;
+
+/**
+ * receives the decoded text of an email, line by line, and searches something in it
+ * @author mike
+ */
+public interface TextMatcher {
+
+	/**
+	 *
+	 * @param line one decoded line of text, without line terminator
+	 * @return true when the searched text was found and no more lines are needed
+	 */
+	boolean matchLine(CharSequence line);
+
+	/**
+	 * feeds a whole text, line by line, until the searched text is found
+	 * @param text mail body as text
+	 * @return true if the searched text was found
+	 */
+	default boolean matchText(String text) {
+		int start = 0;
+		while (start <= text.length()) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			if (matchLine(text.substring(start, end))) {
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+}
@@ -1,9 +1,13 @@
 package com.amazonaws.lambda.mihai.healthmetric.model;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
 /**
@@ -12,6 +16,23 @@ import com.fasterxml.jackson.databind.ObjectWriter;
  */
 public class Utils {
 
+	/**
+	 * mapper configured once and shared by all conversions; configuration is not changed after build, so it is thread safe
+	 */
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+			.setSerializationInclusion(Include.NON_NULL)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, false)
+			.configure(DeserializationFeature.FAIL_ON_NUMBERS_FOR_ENUMS, false);
+	/**
+	 * immutable writer shared by all serializations
+	 */
+	private static final ObjectWriter OBJECT_WRITER = OBJECT_MAPPER.writer();
+	/**
+	 * immutable readers, one per deserialized type
+	 */
+	private static final ConcurrentMap<Class<?>, ObjectReader> OBJECT_READERS = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
 	/**
 	 * 
 	 * @param <T> ANY type of Object that is deserialized from JSON
@@ -23,14 +44,8 @@ public class Utils {
     	
 		T result = null;
 		
-		ObjectMapper om = new ObjectMapper().setSerializationInclusion(Include.NON_NULL);
-		
-		om.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		om.configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, false);
-		om.configure(DeserializationFeature.FAIL_ON_NUMBERS_FOR_ENUMS, false);
-		
 		try {
-			result = om.readValue(jsonObject.getBytes(), objectClass);
+			result = getObjectReader(objectClass).readValue(jsonObject);
 			
 		} catch (Exception ex) {
 			ex.printStackTrace();
@@ -41,6 +56,33 @@ public class Utils {
 		return result;
 	}
 	
+	/**
+	 * converts an already deserialized object, ex: a Map, to another type, without writing it as JSON text
+	 * @param <T> ANY type of Object that is converted to
+	 * @param object object to be converted
+	 * @param objectClass class of the converted object
+	 * @return the converted object
+	 */
+	public static <T> T getValueAsObject(Object object, Class<T> objectClass) {
+		
+		try {
+			return OBJECT_MAPPER.convertValue(object, objectClass);
+			
+		} catch (IllegalArgumentException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param objectClass class of any object that will be deserialized
+	 * @return reader for the class, built on first use
+	 */
+	public static ObjectReader getObjectReader(Class<?> objectClass) {
+		return OBJECT_READERS.computeIfAbsent(objectClass, OBJECT_MAPPER::readerFor);
+	}
+	
 	   /**
 	    * 
 	    * @param object that will be serialized as JSON
@@ -48,13 +90,9 @@ public class Utils {
 	    */
 	    public static String getObjectAsJson (Object object) {
 	    	StringBuffer sb = new StringBuffer();
-	    	    	
-	    	ObjectMapper om = new ObjectMapper().setSerializationInclusion(Include.NON_NULL);
-	    	//ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
-			ObjectWriter ow = om.writer();
 	    	
 	    	try {
-	    		sb.append(ow.writeValueAsString(object));
+	    		sb.append(OBJECT_WRITER.writeValueAsString(object));
 	    		
 	    	} catch (JsonProcessingException ex) {
 	    		ex.printStackTrace();
@@ -0,0 +1,64 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+
+/**
+ * write-through cache of a {@link HealthStateStore} for a warm execution environment: a read is answered from memory
+ * when this environment wrote or read the state before, and a write goes to the store first, then to memory<br>
+ * the cached state may be stale when another instance wrote since; the write then fails on its version, 
+ * and {@link #refresh()} reads the store again, so a stale cache costs one GET and never loses an update
+ * @author mike
+ *
+ */
+public class CachedHealthStateStore implements HealthStateStore {
+
+	/**
+	 * store of the state
+	 */
+	private final HealthStateStore store;
+	/**
+	 * state and version last read or written; null before the first read
+	 */
+	private Stored cached;
+
+	/**
+	 *
+	 * @param store store of the state
+	 */
+	public CachedHealthStateStore(HealthStateStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * the state is returned as stored: a caller that changes it works on a copy
+	 */
+	@Override
+	public synchronized Stored read() {
+		if (cached == null) {
+			cached = store.read();
+		}
+		return cached;
+	}
+
+	/**
+	 * reads the store again, ex: after a write rejected on its version
+	 * @return stored state and its version
+	 */
+	public synchronized Stored refresh() {
+		cached = store.read();
+		return cached;
+	}
+
+	@Override
+	public synchronized String write(HealthState state, String version) {
+		String written = store.write(state, version);
+		if (written != null) {
+			cached = new Stored(state, written);
+		}
+		return written;
+	}
+
+	public HealthStateStore getStore() {
+		return store;
+	}
+}
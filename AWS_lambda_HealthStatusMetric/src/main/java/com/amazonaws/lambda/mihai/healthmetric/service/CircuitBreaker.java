@@ -0,0 +1,246 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+/**
+ * circuit breaker of the calls to CloudWatch: after <code>failureThreshold</code> failures in a row, or at once on throttling, the circuit opens
+ * and the calls are not made until the open time expired; then one call probes the service (half open): a success closes the circuit,
+ * a failure opens it again for twice the time, up to <code>maxOpenMillis</code> (adaptive backoff); the open time has a random part,
+ * so the execution environments do not probe all at once<br>
+ * only failures that a later call may not have count, see {@link #isRetryable(Throwable)}: a request rejected by CloudWatch (4xx) is not a failure of the service<br>
+ * configured with the environment variables HEALTH_METRIC_BREAKER_FAILURES, HEALTH_METRIC_BREAKER_OPEN_MILLIS and HEALTH_METRIC_BREAKER_MAX_OPEN_MILLIS
+ * (or the system properties health.metric.breaker.failures, health.metric.breaker.open.millis, health.metric.breaker.max.open.millis)
+ * @author mike
+ *
+ */
+public class CircuitBreaker {
+
+	/**
+	 * state of the circuit
+	 */
+	public enum State {
+		/**
+		 * calls are made
+		 */
+		CLOSED,
+		/**
+		 * calls are not made until the open time expired
+		 */
+		OPEN,
+		/**
+		 * one call probes the service
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(CircuitBreaker.class);
+	/**
+	 * failures in a row that open the circuit
+	 */
+	private int failureThreshold = 2;
+	/**
+	 * first open time, in milliseconds
+	 */
+	private long baseOpenMillis = 1000;
+	/**
+	 * longest open time, in milliseconds
+	 */
+	private long maxOpenMillis = 60_000;
+	/**
+	 * state of the circuit
+	 */
+	private State state = State.CLOSED;
+	/**
+	 * failures in a row
+	 */
+	private int failures;
+	/**
+	 * open time of the next opening, doubled by each failed probe
+	 */
+	private long openMillis = baseOpenMillis;
+	/**
+	 * moment (epoch millis) until which no call is made; in half open state, until which the probe is waited
+	 */
+	private long openUntil;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 *
+	 * @return circuit breaker configured for this deployment
+	 */
+	public static CircuitBreaker fromEnvironment() {
+
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold((int) setting("health.metric.breaker.failures", "HEALTH_METRIC_BREAKER_FAILURES", breaker.getFailureThreshold()));
+		breaker.setBaseOpenMillis(setting("health.metric.breaker.open.millis", "HEALTH_METRIC_BREAKER_OPEN_MILLIS", breaker.getBaseOpenMillis()));
+		breaker.setMaxOpenMillis(setting("health.metric.breaker.max.open.millis", "HEALTH_METRIC_BREAKER_MAX_OPEN_MILLIS", breaker.getMaxOpenMillis()));
+		return breaker;
+	}
+
+	/**
+	 * asks to make a call; every call allowed must be reported by {@link #onSuccess()} or {@link #onFailure(Throwable)}
+	 * @return true if the call can be made
+	 */
+	public synchronized boolean allowRequest() {
+
+		long now = clock.millis();
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (now < openUntil) {
+				return false;
+			}
+			// one probe; if it is never reported, another one is allowed after the open time
+			state = State.HALF_OPEN;
+			openUntil = now + openMillis;
+			return true;
+		default:
+			if (now < openUntil) {
+				return false;
+			}
+			openUntil = now + openMillis;
+			return true;
+		}
+	}
+
+	/**
+	 * reports a call that succeeded: the circuit is closed and the backoff is reset
+	 */
+	public synchronized void onSuccess() {
+
+		if (state != State.CLOSED) {
+			logger.info("circuit closed");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		openMillis = baseOpenMillis;
+	}
+
+	/**
+	 * reports a call that failed: the circuit opens after the threshold of failures in a row, on throttling, or when the probe failed
+	 * @param failure exception of the call; retryable, see {@link #isRetryable(Throwable)}
+	 */
+	public synchronized void onFailure(Throwable failure) {
+
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold || isThrottling(failure)) {
+			long now = clock.millis();
+			// half of the open time is random: equal jitter
+			long open = openMillis / 2 + ThreadLocalRandom.current().nextLong(openMillis / 2 + 1);
+			openUntil = now + open;
+			state = State.OPEN;
+			logger.info("circuit open for " + open + " ms after " + failures + " failures: " + failure);
+			openMillis = Math.min(maxOpenMillis, openMillis * 2);
+		}
+	}
+
+	/**
+	 * a failure that the same call may not have later: throttling, a server error (5xx), a timeout, or a network error;
+	 * a request rejected by the service for itself (4xx, ex: InvalidParameterValue, AccessDenied) fails again on every call
+	 * @param failure exception of a call
+	 * @return true if the call should be made again later
+	 */
+	public static boolean isRetryable(Throwable failure) {
+
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SdkServiceException) {
+				SdkServiceException serviceException = (SdkServiceException) cause;
+				return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+			}
+			// timeouts of the SDK are client exceptions
+			if (cause instanceof SdkClientException || cause instanceof TimeoutException || cause instanceof IOException || cause instanceof InterruptedException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @param failure exception of a call
+	 * @return true if the service asked to slow down
+	 */
+	private static boolean isThrottling(Throwable failure) {
+
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SdkServiceException) {
+				return ((SdkServiceException) cause).isThrottlingException();
+			}
+		}
+		return false;
+	}
+
+	private static long setting(String property, String variable, long defaultValue) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			value = System.getenv(variable);
+		}
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			// a wrong setting must not fail the cold start of every invocation
+			LogManager.getLogger(CircuitBreaker.class).warn("breaker setting " + variable + " not a number: " + value + ", " + defaultValue + " used");
+			return defaultValue;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 *
+	 * @return failures in a row; 0 when the last call succeeded
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	public long getBaseOpenMillis() {
+		return baseOpenMillis;
+	}
+
+	public synchronized void setBaseOpenMillis(long baseOpenMillis) {
+		this.baseOpenMillis = baseOpenMillis;
+		this.openMillis = baseOpenMillis;
+	}
+
+	public long getMaxOpenMillis() {
+		return maxOpenMillis;
+	}
+
+	public void setMaxOpenMillis(long maxOpenMillis) {
+		this.maxOpenMillis = maxOpenMillis;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
@@ -1,12 +1,20 @@
 package com.amazonaws.lambda.mihai.healthmetric.service;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.amazonaws.lambda.mihai.healthmetric.aspect.TraceAll;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
 
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
@@ -40,6 +48,30 @@ public class CloudWatchService {
 	 * Business concept from CloudWatch Metrics Server: value of a Dimension
 	 */
 	private static final String AWS_METRICS_DIMENSION_VALUE = "Z04702051WDZH2C7LSLUO";
+	/**
+	 * maximum number of MetricDatum items accepted by CloudWatch in one PutMetricData request
+	 */
+	public static final int MAX_DATUMS_PER_REQUEST = 1000;
+	/**
+	 * maximum size of a PutMetricData request payload accepted by CloudWatch: 1 MB
+	 */
+	public static final int MAX_REQUEST_BYTES = 1024 * 1024;
+	/**
+	 * space kept for the request parameters that are not datums (Action, Version, Namespace)
+	 */
+	private static final int REQUEST_OVERHEAD_BYTES = 512;
+	/**
+	 * upper bound of the name of one form parameter of a datum, ex: MetricData.member.1000.Dimensions.member.30.Value=
+	 */
+	private static final int PARAMETER_NAME_BYTES = 64;
+	/**
+	 * oldest timestamp accepted by PutMetricData, before now; older datums are rejected
+	 */
+	public static final Duration MAX_DATUM_AGE = Duration.ofDays(14);
+	/**
+	 * journaled batches put by one invocation, at most
+	 */
+	public static final int MAX_REPLAY_BATCHES = 5;
 	/**
 	 * logger named by this class
 	 */
@@ -49,6 +81,31 @@ public class CloudWatchService {
 	 * AWS client for CloudWatch Service 
 	 */
 	private CloudWatchClient cwClient;
+	/**
+	 * timeouts of the calls, within the deadline of the invocation; null when the calls have only the timeouts of the client, ex: in local test environment
+	 */
+	private HttpClientFactory httpClientFactory;
+	/**
+	 * how metric data is sent to CloudWatch
+	 */
+	private PublishMode publishMode = PublishMode.fromEnvironment();
+	/**
+	 * writer of metric data in EMF mode
+	 */
+	private EmfMetricPublisher emfPublisher = new EmfMetricPublisher();
+	/**
+	 * publish on change: drops the datums that repeat the last published value of their series; null when every datum is sent
+	 */
+	private MetricChangeFilter changeFilter;
+	/**
+	 * write-ahead journal of the datums not put: a failed put does not fail the invocation, the datums are put by a later one; 
+	 * null when a failed put throws
+	 */
+	private MetricJournal journal;
+	/**
+	 * circuit breaker of the puts, used with the journal: while CloudWatch fails, the datums go to the journal without a call
+	 */
+	private CircuitBreaker breaker = new CircuitBreaker();
 	
 	/**
 	 * builds an instance of this Service on each invocation
@@ -56,43 +113,399 @@ public class CloudWatchService {
 	 */
     public static CloudWatchService build() {
     	
-    	CloudWatchClient cwClient = CloudWatchClient.builder()
-    			.region(Region.US_EAST_1)
-    			.build();
-
     	CloudWatchService cwSrv = new CloudWatchService();
-    	cwSrv.setCwClient(cwClient);
+    	cwSrv.setCwClient(buildCwClient());
+    	cwSrv.setHttpClientFactory(HttpClientFactory.getShared());
+    	Duration heartbeat = MetricChangeFilter.heartbeatFromEnvironment();
+    	if (heartbeat != null) {
+    		cwSrv.setChangeFilter(new MetricChangeFilter(heartbeat));
+    	}
+    	cwSrv.setJournal(MetricJournal.build());
+    	cwSrv.setBreaker(CircuitBreaker.fromEnvironment());
     	
     	return cwSrv;
     }
     
+    /**
+     * builds the AWS client used by this Service; a new client is needed when the connections of the old one are no longer valid, ex: after a SnapStart restore<br>
+     * the client uses the HTTP client shared by all Services, see {@link HttpClientFactory}
+     * @return a new client for CloudWatch Service
+     */
+    public static CloudWatchClient buildCwClient() {
+    	
+    	HttpClientFactory httpClientFactory = HttpClientFactory.getShared();
+    	return CloudWatchClient.builder()
+    			.region(Region.US_EAST_1)
+    			.httpClient(httpClientFactory.getHttpClient())
+    			.overrideConfiguration(httpClientFactory.getOverrideConfiguration())
+    			.build();
+    }
+    
     /**
      * convert online status to health status and put it into AWS CloudWatch Metrics Service
      * @param onoff online status of the website
      */
     public void putHealthStatusData (Boolean onoff) {
     	
-        // Create MetricDatum objects.
-        MetricDatum datum1 = MetricDatum.builder()
+        List<MetricDatum> metricDataList = new ArrayList<MetricDatum>();
+        metricDataList.add(buildHealthStatusDatum(onoff, null));
+        
+        putMetricData(metricDataList);
+    }
+    
+    /**
+     * put the health status of all the given mails into AWS CloudWatch Metrics Service, using as few requests as possible
+     * @param statuses health status detected in mails; one datum is built for each of them
+     * @return statuses whose datum was put or journaled; without those dropped by publish on change, or rejected by CloudWatch
+     */
+    public List<MailStatus> putHealthStatusData (Collection<MailStatus> statuses) {
+    	
+        List<MetricDatum> metricDataList = new ArrayList<MetricDatum>(statuses.size());
+        for (MailStatus status : statuses) {
+        	metricDataList.add(buildHealthStatusDatum(status));
+        }
+        
+        // the change filter selects the same datum instances
+        Set<MetricDatum> sent = Collections.newSetFromMap(new IdentityHashMap<MetricDatum, Boolean>());
+        sent.addAll(putMetricData(metricDataList));
+        List<MailStatus> published = new ArrayList<MailStatus>(sent.size());
+        int i = 0;
+        for (MailStatus status : statuses) {
+        	if (sent.contains(metricDataList.get(i++))) {
+        		published.add(status);
+        	}
+        }
+        return published;
+    }
+    
+    /**
+     * put past health statuses into AWS CloudWatch Metrics Service, each at the date of its mail, ex: when the history is rebuilt from archived mails<br>
+     * the datums are sent in timestamp order, in synchronous PutMetricData requests, see {@link #putMetricRequests(String, List)}, 
+     * whatever the publish mode: they are not the current value of their series, so publish on change does not apply<br>
+     * CloudWatch rejects timestamps older than {@link #MAX_DATUM_AGE}: the caller drops them
+     * @param statuses health status detected in mails, each with its mail date
+     */
+    public void putHistoricalData (Collection<MailStatus> statuses) {
+    	
+    	List<MetricDatum> metricDataList = new ArrayList<MetricDatum>(statuses.size());
+    	for (MailStatus status : statuses) {
+    		metricDataList.add(buildHealthStatusDatum(status).toBuilder().timestamp(status.getMailDate().toInstant()).build());
+    	}
+    	metricDataList.sort(Comparator.comparing(MetricDatum::timestamp));
+    	
+    	putMetricRequests(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    }
+    
+    /**
+     * 
+     * @param status health status detected in a mail
+     * @return health status as metric datum, with the dimensions of the site; the default dimension when the site has none
+     */
+    public MetricDatum buildHealthStatusDatum (MailStatus status) {
+    	
+    	if (status.getDimensions() == null || status.getDimensions().isEmpty()) {
+    		return buildHealthStatusDatum(status.getHealthy(), null);
+    	}
+    	
+    	List<Dimension> dimensions = new ArrayList<Dimension>(status.getDimensions().size());
+    	status.getDimensions().forEach((name, value) -> dimensions.add(Dimension.builder().name(name).value(value).build()));
+    	
+        return MetricDatum.builder()
+            .metricName(AWS_METRICS_NAME)
+            .unit(StandardUnit.COUNT)
+            .value((status.getHealthy())?1.0:0.0)
+            .dimensions(dimensions)
+            .build();
+    }
+    
+    /**
+     * 
+     * @param onoff online status of the website
+     * @param timestamp moment of the status; when null, CloudWatch uses the time it receives the datum
+     * @return health status as metric datum
+     */
+    public MetricDatum buildHealthStatusDatum (Boolean onoff, Instant timestamp) {
+    	
+        return MetricDatum.builder()
             .metricName(AWS_METRICS_NAME)
             .unit(StandardUnit.COUNT)
             .value((onoff)?1.0:0.0)
+            .timestamp(timestamp)
             .dimensions(Dimension.builder().name(AWS_METRICS_DIMENSION_NAME).value(AWS_METRICS_DIMENSION_VALUE).build())
             .build();
+    }
+    
+    /**
+     * sends datums in PutMetricData requests, see {@link #putMetricRequests(String, List)}, or as EMF lines in {@link PublishMode#EMF} mode<br>
+     * with publish on change, only the datums selected by {@link MetricChangeFilter} are sent<br>
+     * with the journal, datums that could not be put, or that were not sent because the circuit is open, are journaled instead of failing the caller; 
+     * datums rejected by CloudWatch (4xx) would be rejected again: they are quarantined, not journaled, and do not open the circuit
+     * @param metricDataList datums to be sent
+     * @return datums put or journaled; empty when none was selected, or when CloudWatch rejected them
+     */
+    private List<MetricDatum> putMetricData (List<MetricDatum> metricDataList) {
+    	
+    	if (changeFilter != null) {
+    		metricDataList = changeFilter.select(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    		if (metricDataList.isEmpty()) {
+    			return metricDataList;
+    		}
+    	}
+    	
+    	if (isJournaled() && !breaker.allowRequest()) {
+    		// CloudWatch is failing: the datums wait in the journal, without a call; they will be put, so the filter remembers them
+    		journal.append(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    		commitChanges();
+    		return metricDataList;
+    	}
+    	
+    	try {
+    		sendMetricData(metricDataList);
+    	} catch (RuntimeException e) {
+    		if (!isJournaled()) {
+    			if (changeFilter != null) {
+    				changeFilter.rollback();
+    			}
+    			throw e;
+    		}
+    		if (!CircuitBreaker.isRetryable(e)) {
+    			// CloudWatch answered: not a failure of the service; the next status of the series is sent again
+    			breaker.onSuccess();
+    			logger.error("put rejected, " + metricDataList.size() + " datums quarantined: " + e);
+    			journal.quarantine(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    			if (changeFilter != null) {
+    				changeFilter.rollback();
+    			}
+    			return new ArrayList<MetricDatum>();
+    		}
+    		breaker.onFailure(e);
+    		logger.info("put failed, " + metricDataList.size() + " datums journaled: " + e);
+    		journal.append(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    		commitChanges();
+    		return metricDataList;
+    	}
+    	if (isJournaled()) {
+    		breaker.onSuccess();
+    	}
+    	commitChanges();
+    	return metricDataList;
+    }
+    
+    /**
+     * commits the datums selected by publish on change, when enabled
+     */
+    private void commitChanges () {
+    	if (changeFilter != null) {
+    		changeFilter.commit();
+    	}
+    }
+    
+    /**
+     * 
+     * @return true if the datums not put are journaled; EMF lines are written to the log and never fail
+     */
+    private boolean isJournaled () {
+    	return journal != null && publishMode != PublishMode.EMF;
+    }
+    
+    /**
+     * sends datums in EMF mode, or in API mode with synchronous requests
+     * @param metricDataList datums to be sent
+     */
+    private void sendMetricData (List<MetricDatum> metricDataList) {
+    	
+    	if (publishMode == PublishMode.EMF) {
+    		emfPublisher.publish(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    		return;
+    	}
+    	
+    	putMetricRequests(AWS_METRICS_NAMESPACE_ROUTE53, metricDataList);
+    }
+    
+    /**
+     * sends datums with synchronous PutMetricData requests, each one as big as CloudWatch accepts: 
+     * at most {@link #MAX_DATUMS_PER_REQUEST} datums and {@link #MAX_REQUEST_BYTES} of payload
+     * @param namespace CloudWatch namespace of the datums
+     * @param metricDataList datums to be sent, in the order of the requests
+     */
+    private void putMetricRequests (String namespace, List<MetricDatum> metricDataList) {
+    	
+    	int from = 0;
+    	while (from < metricDataList.size()) {
+    		int to = from;
+    		long requestBytes = REQUEST_OVERHEAD_BYTES;
+    		while (to < metricDataList.size() && to - from < MAX_DATUMS_PER_REQUEST) {
+    			long datumBytes = estimateSize(metricDataList.get(to), to - from + 1);
+    			if (to > from && requestBytes + datumBytes > MAX_REQUEST_BYTES) {
+    				break;
+    			}
+    			requestBytes += datumBytes;
+    			to++;
+    		}
+    		
+	    	PutMetricDataRequest request = PutMetricDataRequest.builder()
+	                .namespace(namespace)
+	                .metricData(metricDataList.subList(from, to))
+	                .overrideConfiguration((httpClientFactory == null) ? null : httpClientFactory.requestOverride())
+	                .build();
+	    	
+	    	PutMetricDataResponse resp = cwClient.putMetricData(request);
+	    	logger.debug("put " + (to - from) + " datums, about " + requestBytes + " bytes, request id: " 
+	    			+ ((resp == null || resp.responseMetadata() == null) ? null : resp.responseMetadata().requestId()));
+	    	from = to;
+    	}
+    }
+    
+    /**
+     * upper bound of the size of one datum in the form encoded request: each field is a parameter "name=value&amp;"
+     * @param datum metric datum
+     * @param index position of the datum in the request, starting with 1
+     * @return estimated size in bytes
+     */
+    private static long estimateSize(MetricDatum datum, int index) {
+    	
+    	long size = 0;
+    	int parameters = 0;
+    	
+    	size += encodedLength(datum.metricName());
+    	parameters++;
+    	if (datum.unit() != null) {
+    		size += datum.unitAsString().length();
+    		parameters++;
+    	}
+    	if (datum.value() != null) {
+    		size += 24;
+    		parameters++;
+    	}
+    	if (datum.timestamp() != null) {
+    		size += 30;
+    		parameters++;
+    	}
+    	if (datum.storageResolution() != null) {
+    		size += 11;
+    		parameters++;
+    	}
+    	if (datum.statisticValues() != null) {
+    		size += 4 * 24;
+    		parameters += 4;
+    	}
+    	if (datum.hasValues()) {
+    		size += datum.values().size() * 24L;
+    		parameters += datum.values().size();
+    	}
+    	if (datum.hasCounts()) {
+    		size += datum.counts().size() * 24L;
+    		parameters += datum.counts().size();
+    	}
+    	for (Dimension dimension : datum.dimensions()) {
+    		size += encodedLength(dimension.name()) + encodedLength(dimension.value());
+    		parameters += 2;
+    	}
+    	
+    	return size + (long) parameters * (PARAMETER_NAME_BYTES + String.valueOf(index).length());
+    }
+    
+    /**
+     * 
+     * @param value parameter value
+     * @return length after URL encoding: 3 bytes for each byte that is not left as is
+     */
+    private static long encodedLength(String value) {
+    	
+    	if (value == null) {
+    		return 0;
+    	}
+    	long length = 0;
+    	for (int i = 0; i < value.length(); i++) {
+    		char c = value.charAt(i);
+    		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~') {
+    			length++;
+    		} else {
+    			// up to 3 UTF-8 bytes for a char, each one written as %XX
+    			length += (c < 0x80) ? 3 : 9;
+    		}
+    	}
+    	return length;
+    }
 
-
-        List<MetricDatum> metricDataList = new ArrayList<MetricDatum>();
-        metricDataList.add(datum1);
-        
-    	PutMetricDataRequest request = PutMetricDataRequest.builder()
-                .namespace(AWS_METRICS_NAMESPACE_ROUTE53)
-                .metricData(metricDataList)
-                .build();
+    /**
+     * ends the puts of the invocation: with the journal, the datums journaled by former invocations are put 
+     * when CloudWatch answered the last call, see {@link #replayJournal()}; the datums of this invocation were put by then
+     */
+    public void flush() {
     	
-    	PutMetricDataResponse resp = cwClient.putMetricData(request);
+    	if (isJournaled()) {
+    		replayJournal();
+    	}
+    }
+    
+    /**
+     * puts the datums journaled by former invocations, in timestamp order, at most {@link #MAX_REPLAY_BATCHES} batches, 
+     * only when the last call to CloudWatch succeeded; a failed batch counts as a failed put, a rejected batch is quarantined by the journal
+     */
+    private void replayJournal () {
     	
+    	if (breaker.getState() != CircuitBreaker.State.CLOSED || breaker.getFailures() > 0) {
+    		return;
+    	}
+    	try {
+    		journal.replay(MAX_REPLAY_BATCHES, this::putMetricRequests);
+    	} catch (RuntimeException e) {
+    		if (CircuitBreaker.isRetryable(e)) {
+    			breaker.onFailure(e);
+    		}
+    		logger.info("journal replay stopped: " + e);
+    	}
     }
 
+	public PublishMode getPublishMode() {
+		return publishMode;
+	}
+
+	public void setPublishMode(PublishMode publishMode) {
+		this.publishMode = publishMode;
+	}
+
+	public EmfMetricPublisher getEmfPublisher() {
+		return emfPublisher;
+	}
+
+	public void setEmfPublisher(EmfMetricPublisher emfPublisher) {
+		this.emfPublisher = emfPublisher;
+	}
+
+	public MetricChangeFilter getChangeFilter() {
+		return changeFilter;
+	}
+
+	public void setChangeFilter(MetricChangeFilter changeFilter) {
+		this.changeFilter = changeFilter;
+	}
+
+	public MetricJournal getJournal() {
+		return journal;
+	}
+
+	public void setJournal(MetricJournal journal) {
+		this.journal = journal;
+	}
+
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	public void setBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	public HttpClientFactory getHttpClientFactory() {
+		return httpClientFactory;
+	}
+
+	public void setHttpClientFactory(HttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
+
 	public CloudWatchClient getCwClient() {
 		return cwClient;
 	}
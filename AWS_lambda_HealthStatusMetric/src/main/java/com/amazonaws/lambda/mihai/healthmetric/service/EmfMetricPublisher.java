@@ -0,0 +1,119 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.time.Clock;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+
+/**
+ * writes metric data as CloudWatch Embedded Metric Format (EMF) lines; 
+ * in Lambda, stdout goes to CloudWatch Logs, that extracts the metrics asynchronously, without a PutMetricData call in the invocation<br>
+ * one JSON line is written for each datum, ex:<br>
+ * <code>{"_aws":{"Timestamp":1731757649000,"CloudWatchMetrics":[{"Namespace":"MIKE/Route53","Dimensions":[["HostedZoneId"]],
+ * "Metrics":[{"Name":"ExternalHealthCheckStatus","Unit":"Count"}]}]},"HostedZoneId":"Z04702051WDZH2C7LSLUO","ExternalHealthCheckStatus":1.0}</code>
+ * @author Mihai ADAM
+ *
+ */
+public class EmfMetricPublisher {
+
+	/**
+	 * factory of the streaming generators used to write the lines
+	 */
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	/**
+	 * where the lines are written; stdout in cloud environment
+	 */
+	private PrintStream out = System.out;
+	/**
+	 * timestamp of the datums that have no timestamp
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * writes one EMF line for each datum
+	 * @param namespace CloudWatch namespace of the datums
+	 * @param metricDataList datums to be written
+	 */
+	public void publish(String namespace, List<MetricDatum> metricDataList) {
+		for (MetricDatum datum : metricDataList) {
+			String line = toEmf(namespace, datum);
+			// one call per line, so lines of parallel writers are not interleaved
+			out.println(line);
+		}
+		out.flush();
+	}
+
+	/**
+	 * 
+	 * @param namespace CloudWatch namespace of the datum
+	 * @param datum metric datum
+	 * @return datum as one EMF JSON line
+	 */
+	public String toEmf(String namespace, MetricDatum datum) {
+		StringWriter writer = new StringWriter(256);
+		long timestamp = (datum.timestamp() != null) ? datum.timestamp().toEpochMilli() : clock.millis();
+
+		try (JsonGenerator json = JSON_FACTORY.createGenerator(writer)) {
+			json.writeStartObject();
+
+			json.writeObjectFieldStart("_aws");
+			json.writeNumberField("Timestamp", timestamp);
+			json.writeArrayFieldStart("CloudWatchMetrics");
+			json.writeStartObject();
+			json.writeStringField("Namespace", namespace);
+			json.writeArrayFieldStart("Dimensions");
+			json.writeStartArray();
+			for (Dimension dimension : datum.dimensions()) {
+				json.writeString(dimension.name());
+			}
+			json.writeEndArray();
+			json.writeEndArray();
+			json.writeArrayFieldStart("Metrics");
+			json.writeStartObject();
+			json.writeStringField("Name", datum.metricName());
+			if (datum.unit() != null) {
+				json.writeStringField("Unit", datum.unitAsString());
+			}
+			json.writeEndObject();
+			json.writeEndArray();
+			json.writeEndObject();
+			json.writeEndArray();
+			json.writeEndObject();
+
+			for (Dimension dimension : datum.dimensions()) {
+				json.writeStringField(dimension.name(), dimension.value());
+			}
+			json.writeNumberField(datum.metricName(), datum.value());
+
+			json.writeEndObject();
+
+		} catch (IOException e) {
+			// a StringWriter does not fail
+			throw new IllegalStateException(e);
+		}
+		return writer.toString();
+	}
+
+	public PrintStream getOut() {
+		return out;
+	}
+
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
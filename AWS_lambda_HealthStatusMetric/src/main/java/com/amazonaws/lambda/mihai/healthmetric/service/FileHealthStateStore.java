@@ -0,0 +1,123 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+
+/**
+ * health state store on the local file system, for local runs and tests: one JSON file, versioned by the SHA-256 of its content<br>
+ * a write checks the version and replaces the file under a lock on a file next to it, so processes sharing the directory
+ * behave as instances sharing the S3 object; the file is written next to its final name and then moved<br>
+ * a file lock is held by the whole JVM, so the stores of one JVM also take a monitor of the file first
+ * @author mike
+ *
+ */
+public class FileHealthStateStore implements HealthStateStore {
+
+	/**
+	 * monitor of each lock file, shared by the stores of this JVM
+	 */
+	private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<Path, Object>();
+	/**
+	 * file of the state
+	 */
+	private final Path file;
+	/**
+	 * file locked during a write
+	 */
+	private final Path lockFile;
+
+	/**
+	 *
+	 * @param file file of the state; its directory is created when missing
+	 */
+	public FileHealthStateStore(Path file) {
+		this.file = file.toAbsolutePath();
+		this.lockFile = this.file.resolveSibling(this.file.getFileName() + ".lock");
+		try {
+			Files.createDirectories(this.file.getParent());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Stored read() {
+		try {
+			byte[] content = Files.readAllBytes(file);
+			return new Stored(Utils.getJsonAsObject(new String(content, StandardCharsets.UTF_8), HealthState.class), version(content));
+
+		} catch (NoSuchFileException e) {
+			return new Stored(null, null);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public String write(HealthState state, String version) {
+
+		byte[] content = Utils.getObjectAsJson(state).getBytes(StandardCharsets.UTF_8);
+		synchronized (MONITORS.computeIfAbsent(lockFile, path -> new Object())) {
+			return write(content, version);
+		}
+	}
+
+	/**
+	 * checks the version and replaces the file, under the file lock
+	 */
+	private String write(byte[] content, String version) {
+
+		try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+
+			String stored = Files.exists(file) ? version(Files.readAllBytes(file)) : null;
+			if ((stored == null) ? version != null : !stored.equals(version)) {
+				return null;
+			}
+			Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			Files.write(temp, content);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return version(content);
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @param content content of the file
+	 * @return version of the content
+	 */
+	private static String version(byte[] content) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder version = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				version.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return version.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,98 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.ProcessedMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+
+/**
+ * idempotency store on the local file system: one JSON file per key, named by the SHA-256 of the key<br>
+ * a file is written next to its final name and then moved, so readers never see a partial record;
+ * in Lambda the directory (ex: /tmp) lives as long as the execution environment, so this store is mostly for local runs and tests
+ * @author mike
+ *
+ */
+public class FileIdempotencyStore implements IdempotencyStore {
+
+	/**
+	 * directory of the record files
+	 */
+	private final Path directory;
+
+	/**
+	 *
+	 * @param directory directory of the record files; created when missing
+	 */
+	public FileIdempotencyStore(Path directory) {
+		this.directory = directory;
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public ProcessedMail get(String key) {
+		try {
+			return Utils.getJsonAsObject(Files.readString(file(key), StandardCharsets.UTF_8), ProcessedMail.class);
+
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void put(String key, ProcessedMail mail) {
+		Path file = file(key);
+		try {
+			Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+			Files.writeString(temp, Utils.getObjectAsJson(mail), StandardCharsets.UTF_8);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		try {
+			Files.deleteIfExists(file(key));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @param key idempotency key
+	 * @return file of the key record
+	 */
+	private Path file(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(hash.length * 2 + 5);
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return directory.resolve(name.append(".json").toString());
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+}
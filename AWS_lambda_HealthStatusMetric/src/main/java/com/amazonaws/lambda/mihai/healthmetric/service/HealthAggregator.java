@@ -0,0 +1,330 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthPolicy;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+
+/**
+ * aggregation stage between the statuses detected in the emails and {@link CloudWatchService}: keeps a window of the last statuses
+ * of each site (failure or not, mail Date header) and turns them into one verdict with a {@link HealthPolicy},
+ * so a single "intermittent" mail does not fail the Route53 health check over and back<br>
+ * each status costs O(1): the window is a ring buffer with a running count of its failures; a status older than the newest one
+ * of its site is ignored, so a retried event does not count its statuses twice<br>
+ * the state survives across invocations as a compact binary snapshot, see {@link #snapshot()}: in memory for a warm
+ * execution environment, and in the {@link com.amazonaws.lambda.mihai.healthmetric.model.HealthState} of {@link HealthStateService} when configured
+ * @author mike
+ *
+ */
+public class HealthAggregator {
+
+	/**
+	 * version of the snapshot format
+	 */
+	private static final byte SNAPSHOT_VERSION = 1;
+
+	/**
+	 * window of the last statuses of one site, and its verdict
+	 */
+	private static class SiteWindow {
+		/**
+		 * mail dates (epoch millis) of the statuses, in a ring
+		 */
+		private final long[] times;
+		/**
+		 * bit i is set when the status at ring position i is a failure
+		 */
+		private long failureBits;
+		/**
+		 * ring position of the next status
+		 */
+		private int head;
+		/**
+		 * number of statuses in the window
+		 */
+		private int count;
+		/**
+		 * number of failures in the window
+		 */
+		private int failures;
+		/**
+		 * mail date of the newest status; older statuses are ignored
+		 */
+		private long lastAt = Long.MIN_VALUE;
+		/**
+		 * mail date of the first failure in a row; 0 after a healthy status
+		 */
+		private long downSince;
+		/**
+		 * healthy statuses in a row
+		 */
+		private int healthyStreak;
+		/**
+		 * aggregated verdict; a new site is healthy
+		 */
+		private boolean healthy = true;
+
+		private SiteWindow(int window) {
+			this.times = new long[window];
+		}
+
+		/**
+		 * adds a status to the ring, evicting the oldest one when full
+		 */
+		private void push(long at, boolean failure) {
+			long bit = 1L << head;
+			if (count == times.length) {
+				if ((failureBits & bit) != 0) {
+					failures--;
+				}
+			} else {
+				count++;
+			}
+			times[head] = at;
+			if (failure) {
+				failureBits |= bit;
+				failures++;
+			} else {
+				failureBits &= ~bit;
+			}
+			head = (head + 1) % times.length;
+		}
+
+		/**
+		 *
+		 * @param age 0 for the oldest status of the window
+		 * @return ring position of the status
+		 */
+		private int position(int age) {
+			return (head - count + age + times.length) % times.length;
+		}
+	}
+
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(HealthAggregator.class);
+	/**
+	 * policy of the verdicts
+	 */
+	private final HealthPolicy policy;
+	/**
+	 * window of each site, by site id
+	 */
+	private final Map<String, SiteWindow> sites = new HashMap<String, SiteWindow>();
+	/**
+	 * source of the current time for statuses without mail date, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 *
+	 * @param policy policy of the verdicts
+	 */
+	public HealthAggregator(HealthPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * builds the aggregation stage configured for this deployment
+	 * @return a new instance of this Service; null when the aggregation is not enabled, see {@link HealthPolicy#fromEnvironment()}
+	 */
+	public static HealthAggregator build() {
+
+		HealthPolicy policy = HealthPolicy.fromEnvironment();
+		if (policy == null) {
+			return null;
+		}
+		return new HealthAggregator(policy);
+	}
+
+	/**
+	 * adds the statuses to the windows of their sites, in mail date order
+	 * @param statuses statuses detected in the emails of one invocation, in any order
+	 * @return verdict of each site that has statuses, as a copy of its newest status with the aggregated health
+	 */
+	public synchronized Map<String, MailStatus> aggregate(Collection<MailStatus> statuses) {
+
+		List<MailStatus> ordered = new ArrayList<MailStatus>(statuses);
+		ordered.sort(Comparator.comparingLong(this::timeOf));
+
+		Map<String, MailStatus> verdicts = new LinkedHashMap<String, MailStatus>();
+		for (MailStatus status : ordered) {
+			boolean healthy = offer(status.getSiteId(), status.getStatus(), Boolean.TRUE.equals(status.getHealthy()), timeOf(status));
+			verdicts.put(status.getSiteId(), verdict(status, healthy));
+		}
+		return verdicts;
+	}
+
+	/**
+	 * adds one status to the window of its site and updates the verdict
+	 * @param siteId website monitor id of the site
+	 * @param status status reported by website monitor; ex: intermittent
+	 * @param healthy health of the status alone
+	 * @param at mail date, epoch millis
+	 * @return aggregated verdict of the site
+	 */
+	public synchronized boolean offer(String siteId, String status, boolean healthy, long at) {
+
+		SiteWindow site = sites.computeIfAbsent(siteId, id -> new SiteWindow(policy.getWindow()));
+		if (at <= site.lastAt) {
+			logger.debug("status of " + siteId + " not newer than the window, ignored: " + status);
+			return site.healthy;
+		}
+		site.lastAt = at;
+		site.push(at, !healthy);
+
+		if (healthy) {
+			site.downSince = 0;
+			site.healthyStreak++;
+			if (!site.healthy && site.healthyStreak >= policy.getSuccessesToUp()) {
+				site.healthy = true;
+			}
+		} else {
+			site.healthyStreak = 0;
+			if (site.downSince == 0) {
+				site.downSince = at;
+			}
+			if (policy.isImmediate(status)
+					|| (site.failures >= policy.getFailuresToDown() && at - site.downSince >= policy.getMinDownDuration().toMillis())) {
+				site.healthy = false;
+			}
+		}
+		logger.debug("site " + siteId + " " + status + ": " + site.failures + " failures of " + site.count + ", healthy : " + site.healthy);
+		return site.healthy;
+	}
+
+	/**
+	 *
+	 * @param siteId website monitor id of the site
+	 * @return aggregated verdict of the site; null when no status of the site is known
+	 */
+	public synchronized Boolean getVerdict(String siteId) {
+		SiteWindow site = sites.get(siteId);
+		return (site == null) ? null : site.healthy;
+	}
+
+	/**
+	 * serializes the state: for each site its verdict, its counters and its window, with the mail dates in seconds before the newest one
+	 * @return compact binary snapshot, read by {@link #restore(byte[])}
+	 */
+	public synchronized byte[] snapshot() {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + sites.size() * 64);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(SNAPSHOT_VERSION);
+			out.writeInt(sites.size());
+			for (Map.Entry<String, SiteWindow> entry : sites.entrySet()) {
+				SiteWindow site = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeBoolean(site.healthy);
+				out.writeLong(site.lastAt);
+				out.writeLong(site.downSince);
+				out.writeInt(site.healthyStreak);
+				out.writeByte(site.count);
+				long failureBits = 0;
+				for (int age = 0; age < site.count; age++) {
+					int position = site.position(age);
+					if ((site.failureBits & (1L << position)) != 0) {
+						failureBits |= 1L << age;
+					}
+				}
+				out.writeLong(failureBits);
+				for (int age = 0; age < site.count; age++) {
+					out.writeInt((int) Math.min(Integer.MAX_VALUE, (site.lastAt - site.times[site.position(age)]) / 1000));
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * replaces the state by the one of a snapshot; a window longer than the policy keeps only its newest statuses
+	 * @param snapshot binary snapshot written by {@link #snapshot()}; null for no state
+	 */
+	public synchronized void restore(byte[] snapshot) {
+
+		Map<String, SiteWindow> restored = new HashMap<String, SiteWindow>();
+		if (snapshot == null) {
+			sites.clear();
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+			byte version = in.readByte();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("snapshot version " + version + " not supported");
+			}
+			int siteCount = in.readInt();
+			for (int i = 0; i < siteCount; i++) {
+				String siteId = in.readUTF();
+				SiteWindow site = new SiteWindow(policy.getWindow());
+				site.healthy = in.readBoolean();
+				long lastAt = in.readLong();
+				site.downSince = in.readLong();
+				site.healthyStreak = in.readInt();
+				int count = in.readUnsignedByte();
+				long failureBits = in.readLong();
+				for (int age = 0; age < count; age++) {
+					site.push(lastAt - in.readInt() * 1000L, (failureBits & (1L << age)) != 0);
+				}
+				site.lastAt = lastAt;
+				restored.put(siteId, site);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		sites.clear();
+		sites.putAll(restored);
+	}
+
+	/**
+	 *
+	 * @return mail date of the status, epoch millis; now when the status has none
+	 */
+	private long timeOf(MailStatus status) {
+		return (status.getMailDate() == null) ? clock.millis() : status.getMailDate().getTime();
+	}
+
+	/**
+	 *
+	 * @return copy of the status with the aggregated health
+	 */
+	private static MailStatus verdict(MailStatus status, boolean healthy) {
+
+		MailStatus verdict = new MailStatus();
+		verdict.setSiteId(status.getSiteId());
+		verdict.setStatus(status.getStatus());
+		verdict.setHealthy(healthy);
+		verdict.setMailDate(status.getMailDate());
+		verdict.setS3Bucket(status.getS3Bucket());
+		verdict.setS3Key(status.getS3Key());
+		verdict.setDimensions(status.getDimensions());
+
+		return verdict;
+	}
+
+	public HealthPolicy getPolicy() {
+		return policy;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
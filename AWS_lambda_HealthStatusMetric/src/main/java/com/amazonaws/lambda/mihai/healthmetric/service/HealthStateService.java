@@ -0,0 +1,150 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.function.UnaryOperator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+
+/**
+ * layer between lambda logic and the durable {@link HealthState}: reads it through a write-through cache and changes it with
+ * optimistic concurrency; when another instance wrote the state in between, the change is made again on the newer state,
+ * so concurrent instances never lose an update<br>
+ * a warm execution environment reads the state from memory; a cold one, or one whose cache is stale, makes one small GET<br>
+ * configured with the environment variables HEALTH_STATE_BUCKET and HEALTH_STATE_KEY (S3 object), or HEALTH_STATE_FILE (local file)
+ * (or the system properties health.state.bucket, health.state.key, health.state.file)
+ * @author mike
+ *
+ */
+public class HealthStateService {
+
+	/**
+	 * default number of attempts of a change, the first one included
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(HealthStateService.class);
+	/**
+	 * store of the state, behind its cache
+	 */
+	private final CachedHealthStateStore store;
+	/**
+	 * attempts of a change, the first one included
+	 */
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 *
+	 * @param store store of the state; a cache is added in front of it
+	 */
+	public HealthStateService(HealthStateStore store) {
+		this.store = (store instanceof CachedHealthStateStore) ? (CachedHealthStateStore) store : new CachedHealthStateStore(store);
+	}
+
+	/**
+	 * builds the state layer configured for this deployment
+	 * @return a new instance of this Service; null when no store is configured
+	 */
+	public static HealthStateService build() {
+
+		String bucket = setting("health.state.bucket", "HEALTH_STATE_BUCKET");
+		if (bucket != null) {
+			String key = setting("health.state.key", "HEALTH_STATE_KEY");
+			// the client is built at the first read: an invocation without new status does not pay for it
+			S3HealthStateStore s3Store = new S3HealthStateStore(S3Service::buildS3Client, bucket, (key == null) ? S3HealthStateStore.DEFAULT_KEY : key);
+			s3Store.setHttpClientFactory(HttpClientFactory.getShared());
+			return new HealthStateService(s3Store);
+		}
+		String file = setting("health.state.file", "HEALTH_STATE_FILE");
+		if (file != null) {
+			return new HealthStateService(new FileHealthStateStore(Paths.get(file)));
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return the state, as known by this execution environment; an empty state when nothing is stored yet; must not be changed
+	 */
+	public HealthState read() {
+		HealthState state = store.read().getState();
+		return (state == null) ? new HealthState() : state;
+	}
+
+	/**
+	 * reads the state from the store, and caches it; needed by a reader that must see the writes of the other instances, 
+	 * ex: the scheduled heartbeat, whose cache is otherwise refreshed only by a failed write
+	 * @return the stored state; an empty state when nothing is stored yet; must not be changed
+	 */
+	public HealthState readFresh() {
+		HealthState state = store.refresh().getState();
+		return (state == null) ? new HealthState() : state;
+	}
+
+	/**
+	 * changes the state with a conditional write; on a conflict the store is read again and the change is made again,
+	 * so the change must depend only on the state it receives
+	 * @param change changes a copy of the state and returns it
+	 * @return the state written
+	 */
+	public HealthState update(UnaryOperator<HealthState> change) {
+
+		HealthStateStore.Stored stored = store.read();
+		for (int attempt = 1; ; attempt++) {
+			HealthState state = change.apply((stored.getState() == null) ? new HealthState() : stored.getState().copy());
+			state.setUpdatedAt(clock.millis());
+
+			if (store.write(state, stored.getVersion()) != null) {
+				return state;
+			}
+			if (attempt >= maxAttempts) {
+				throw new RuntimeException("health state not written after " + attempt + " attempts: concurrent updates");
+			}
+			logger.debug("health state changed by another instance, attempt " + (attempt + 1));
+			stored = store.refresh();
+		}
+	}
+
+	/**
+	 * SnapStart: the client of an S3 store built before the snapshot is replaced, see {@link S3HealthStateStore#renewS3Client()}; 
+	 * the cached state is kept, a stale one is detected by the next conditional write
+	 */
+	public void renewClients() {
+		if (store.getStore() instanceof S3HealthStateStore) {
+			((S3HealthStateStore) store.getStore()).renewS3Client();
+		}
+	}
+
+	private static String setting(String property, String variable) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			value = System.getenv(variable);
+		}
+		return (value == null || value.isBlank()) ? null : value.trim();
+	}
+
+	public CachedHealthStateStore getStore() {
+		return store;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
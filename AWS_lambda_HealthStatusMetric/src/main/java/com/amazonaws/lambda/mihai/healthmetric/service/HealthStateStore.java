@@ -0,0 +1,55 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+
+/**
+ * durable store of the {@link HealthState} shared by all execution environments, with optimistic concurrency:
+ * each read returns the version of the state, and a write succeeds only when the stored version is still the one read,
+ * so two instances of the function never overwrite each other's update<br>
+ * implementations must be thread safe; failures are thrown as {@link RuntimeException}
+ * @author mike
+ *
+ */
+public interface HealthStateStore {
+
+	/**
+	 * state read from the store, with its version
+	 */
+	class Stored {
+		/**
+		 * state; null when nothing is stored yet
+		 */
+		private final HealthState state;
+		/**
+		 * version of the state, ex: ETag of the S3 object; null when nothing is stored yet
+		 */
+		private final String version;
+
+		public Stored(HealthState state, String version) {
+			this.state = state;
+			this.version = version;
+		}
+
+		public HealthState getState() {
+			return state;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 *
+	 * @return stored state and its version; both null when nothing is stored yet
+	 */
+	Stored read();
+
+	/**
+	 * writes the state only if the stored version is still <code>version</code>
+	 * @param state new state
+	 * @param version version read before the change; null when nothing was stored
+	 * @return version of the state written; null when the stored version changed since it was read
+	 */
+	String write(HealthState state, String version);
+}
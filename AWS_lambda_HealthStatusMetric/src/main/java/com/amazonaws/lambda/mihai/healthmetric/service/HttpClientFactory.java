@@ -0,0 +1,332 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.time.Duration;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.utils.AttributeMap;
+
+/**
+ * builds the one HTTP client shared by the AWS clients of all Services, and the timeouts and retries of their calls<br>
+ * the HTTP client is chosen with {@link HttpClientType} and built only when the first AWS client needs it;
+ * connection pool size and timeouts are given as defaults to the builder of the chosen client, so the same settings apply to all of them<br>
+ * each invocation sets its deadline with {@link #startInvocation(long)}: the call timeout of a request is never beyond it,
+ * so a slow AWS call fails in time for the handler to answer, instead of being killed with the execution environment<br>
+ * settings: system property health.metric.http.* or environment variable HEALTH_METRIC_HTTP_*, see {@link #build()}
+ * @author mike
+ *
+ */
+public class HttpClientFactory {
+
+	/**
+	 * connections of the pool, for the clients that have one; more than the S3 requests in flight, see {@link S3Service#DEFAULT_MAX_IN_FLIGHT_REQUESTS}
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 24;
+	/**
+	 * time to open a connection; the AWS endpoints are in the same region
+	 */
+	public static final long DEFAULT_CONNECTION_TIMEOUT_MILLIS = 1000;
+	/**
+	 * time without data on an open connection
+	 */
+	public static final long DEFAULT_SOCKET_TIMEOUT_MILLIS = 3000;
+	/**
+	 * time of one attempt of a call
+	 */
+	public static final long DEFAULT_CALL_ATTEMPT_TIMEOUT_MILLIS = 3000;
+	/**
+	 * time of a call, with all its attempts
+	 */
+	public static final long DEFAULT_CALL_TIMEOUT_MILLIS = 8000;
+	/**
+	 * attempts of a call, the first one included
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	/**
+	 * shortest call timeout: after the deadline, a call still gets this time, and fails fast
+	 */
+	public static final long MIN_CALL_TIMEOUT_MILLIS = 100;
+	/**
+	 * factory shared by the Services of this execution environment; built on first use
+	 */
+	private static HttpClientFactory shared;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(HttpClientFactory.class);
+	/**
+	 * client requested; the client built may be APACHE, when the requested one is not packaged
+	 */
+	private HttpClientType type = HttpClientType.APACHE;
+	/**
+	 * connections of the pool
+	 */
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	/**
+	 * time to open a connection, or to get one from the pool
+	 */
+	private long connectionTimeoutMillis = DEFAULT_CONNECTION_TIMEOUT_MILLIS;
+	/**
+	 * time without data on an open connection
+	 */
+	private long socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+	/**
+	 * time of one attempt of a call
+	 */
+	private long callAttemptTimeoutMillis = DEFAULT_CALL_ATTEMPT_TIMEOUT_MILLIS;
+	/**
+	 * time of a call, with all its attempts
+	 */
+	private long callTimeoutMillis = DEFAULT_CALL_TIMEOUT_MILLIS;
+	/**
+	 * attempts of a call, the first one included
+	 */
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	/**
+	 * end of the current invocation, in epoch millis; 0 when no invocation set it
+	 */
+	private volatile long deadline;
+	/**
+	 * HTTP client shared by the AWS clients; null until the first AWS client is built
+	 */
+	private SdkHttpClient httpClient;
+	/**
+	 * client actually built; null until the HTTP client is built
+	 */
+	private HttpClientType builtType;
+
+	/**
+	 * builds a factory with the settings of this deployment
+	 * @return a new factory; its HTTP client is not built yet
+	 */
+	public static HttpClientFactory build() {
+
+		HttpClientFactory factory = new HttpClientFactory();
+		factory.setType(HttpClientType.fromEnvironment());
+		factory.setMaxConnections((int) setting("max.connections", DEFAULT_MAX_CONNECTIONS));
+		factory.setConnectionTimeoutMillis(setting("connection.timeout.millis", DEFAULT_CONNECTION_TIMEOUT_MILLIS));
+		factory.setSocketTimeoutMillis(setting("socket.timeout.millis", DEFAULT_SOCKET_TIMEOUT_MILLIS));
+		factory.setCallAttemptTimeoutMillis(setting("call.attempt.timeout.millis", DEFAULT_CALL_ATTEMPT_TIMEOUT_MILLIS));
+		factory.setCallTimeoutMillis(setting("call.timeout.millis", DEFAULT_CALL_TIMEOUT_MILLIS));
+		factory.setMaxAttempts((int) setting("max.attempts", DEFAULT_MAX_ATTEMPTS));
+
+		return factory;
+	}
+
+	/**
+	 *
+	 * @return factory shared by the Services of this execution environment
+	 */
+	public static synchronized HttpClientFactory getShared() {
+		if (shared == null) {
+			shared = build();
+		}
+		return shared;
+	}
+
+	/**
+	 * replaces the shared factory, ex: in benchmarks
+	 * @param factory new shared factory; null to build it again from the settings
+	 */
+	public static synchronized void setShared(HttpClientFactory factory) {
+		shared = factory;
+	}
+
+	/**
+	 *
+	 * @return HTTP client shared by the AWS clients, built on first call; the AWS clients do not close it
+	 */
+	public synchronized SdkHttpClient getHttpClient() {
+		if (httpClient == null) {
+			httpClient = buildHttpClient();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * replaces the HTTP client, ex: after a SnapStart restore, when the connections of the old one are no longer valid;
+	 * the AWS clients built after this call use the new one
+	 * @return the old HTTP client, to be closed when the AWS clients using it are replaced; null when none was built
+	 */
+	public synchronized SdkHttpClient renewHttpClient() {
+		SdkHttpClient old = httpClient;
+		httpClient = null;
+		return old;
+	}
+
+	/**
+	 *
+	 * @return timeouts and retries of the calls of an AWS client
+	 */
+	public ClientOverrideConfiguration getOverrideConfiguration() {
+
+		return ClientOverrideConfiguration.builder()
+				.apiCallAttemptTimeout(Duration.ofMillis(callAttemptTimeoutMillis))
+				.apiCallTimeout(Duration.ofMillis(callTimeoutMillis))
+				.retryStrategy(retry -> retry.maxAttempts(maxAttempts))
+				.build();
+	}
+
+	/**
+	 * sets the deadline of the calls made by this invocation
+	 * @param remainingMillis time left for the calls, ex: <code>Context.getRemainingTimeInMillis()</code> minus a safety margin
+	 */
+	public void startInvocation(long remainingMillis) {
+		deadline = System.currentTimeMillis() + remainingMillis;
+	}
+
+	/**
+	 *
+	 * @return timeouts of one call, so it ends before the deadline of the invocation; null when no deadline is set
+	 */
+	public AwsRequestOverrideConfiguration requestOverride() {
+
+		long end = deadline;
+		if (end == 0) {
+			return null;
+		}
+		long remaining = Math.max(MIN_CALL_TIMEOUT_MILLIS, end - System.currentTimeMillis());
+		return AwsRequestOverrideConfiguration.builder()
+				.apiCallTimeout(Duration.ofMillis(Math.min(callTimeoutMillis, remaining)))
+				.apiCallAttemptTimeout(Duration.ofMillis(Math.min(callAttemptTimeoutMillis, remaining)))
+				.build();
+	}
+
+	/**
+	 * builds the requested client with the settings of this factory; the client builder is found by name,
+	 * so only the artifact of the client used must be packaged
+	 * @return a new HTTP client
+	 */
+	private SdkHttpClient buildHttpClient() {
+
+		AttributeMap settings = AttributeMap.builder()
+				.put(SdkHttpConfigurationOption.MAX_CONNECTIONS, maxConnections)
+				.put(SdkHttpConfigurationOption.CONNECTION_TIMEOUT, Duration.ofMillis(connectionTimeoutMillis))
+				.put(SdkHttpConfigurationOption.CONNECTION_ACQUIRE_TIMEOUT, Duration.ofMillis(connectionTimeoutMillis))
+				.put(SdkHttpConfigurationOption.READ_TIMEOUT, Duration.ofMillis(socketTimeoutMillis))
+				.put(SdkHttpConfigurationOption.WRITE_TIMEOUT, Duration.ofMillis(socketTimeoutMillis))
+				.build();
+
+		SdkHttpClient.Builder<?> builder = builder(type);
+		builtType = type;
+		if (builder == null && type != HttpClientType.APACHE) {
+			logger.warn("HTTP client " + type + " not packaged, " + HttpClientType.APACHE + " is used");
+			builder = builder(HttpClientType.APACHE);
+			builtType = HttpClientType.APACHE;
+		}
+		if (builder == null) {
+			throw new IllegalStateException("no HTTP client packaged for the AWS clients");
+		}
+		logger.debug("HTTP client: " + builtType + ", requested " + type);
+
+		return builder.buildWithDefaults(settings);
+	}
+
+	/**
+	 *
+	 * @param clientType HTTP client
+	 * @return a new builder of the client; null when the client is not packaged
+	 */
+	private static SdkHttpClient.Builder<?> builder(HttpClientType clientType) {
+		try {
+			return (SdkHttpClient.Builder<?>) Class.forName(clientType.getClassName()).getMethod("builder").invoke(null);
+		} catch (ClassNotFoundException | NoClassDefFoundError e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @param name name of the setting, ex: "max.attempts" for the system property health.metric.http.max.attempts
+	 * or the environment variable HEALTH_METRIC_HTTP_MAX_ATTEMPTS
+	 * @param defaultValue value when not configured, or not a number
+	 * @return value of the setting
+	 */
+	private static long setting(String name, long defaultValue) {
+		String value = System.getProperty("health.metric.http." + name);
+		if (value == null) {
+			value = System.getenv("HEALTH_METRIC_HTTP_" + name.replace('.', '_').toUpperCase());
+		}
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			// a wrong setting must not fail the construction of every client
+			LogManager.getLogger(HttpClientFactory.class).warn("HTTP setting " + name + " not a number: " + value + ", " + defaultValue + " used");
+			return defaultValue;
+		}
+	}
+
+	public HttpClientType getType() {
+		return type;
+	}
+
+	public void setType(HttpClientType type) {
+		this.type = type;
+	}
+
+	/**
+	 *
+	 * @return client actually built; null until the HTTP client is built
+	 */
+	public synchronized HttpClientType getBuiltType() {
+		return builtType;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public long getConnectionTimeoutMillis() {
+		return connectionTimeoutMillis;
+	}
+
+	public void setConnectionTimeoutMillis(long connectionTimeoutMillis) {
+		this.connectionTimeoutMillis = connectionTimeoutMillis;
+	}
+
+	public long getSocketTimeoutMillis() {
+		return socketTimeoutMillis;
+	}
+
+	public void setSocketTimeoutMillis(long socketTimeoutMillis) {
+		this.socketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	public long getCallAttemptTimeoutMillis() {
+		return callAttemptTimeoutMillis;
+	}
+
+	public void setCallAttemptTimeoutMillis(long callAttemptTimeoutMillis) {
+		this.callAttemptTimeoutMillis = callAttemptTimeoutMillis;
+	}
+
+	public long getCallTimeoutMillis() {
+		return callTimeoutMillis;
+	}
+
+	public void setCallTimeoutMillis(long callTimeoutMillis) {
+		this.callTimeoutMillis = callTimeoutMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+}
@@ -0,0 +1,56 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+/**
+ * HTTP client used by the AWS clients of the Services, see {@link HttpClientFactory};
+ * selected per deployment with the environment variable HEALTH_METRIC_HTTP_CLIENT (or the system property health.metric.http.client)<br>
+ * APACHE comes with the service artifacts and is the default; the others are optional artifacts of the AWS SDK, packaged with a Maven profile:
+ * a client whose artifact is not packaged falls back to APACHE
+ * @author mike
+ *
+ */
+public enum HttpClientType {
+	/**
+	 * client of the JDK (<code>url-connection-client</code> artifact): no dependencies, the fastest to load, one connection per request
+	 */
+	URL_CONNECTION("software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient"),
+	/**
+	 * native client of the AWS Common Runtime (<code>aws-crt-client</code> artifact): fast to start, small heap, pooled connections
+	 */
+	CRT("software.amazon.awssdk.http.crt.AwsCrtHttpClient"),
+	/**
+	 * Apache client (<code>apache-client</code> artifact), the default of the SDK: pooled connections, the slowest to load
+	 */
+	APACHE("software.amazon.awssdk.http.apache.ApacheHttpClient");
+
+	/**
+	 * class of the client, with a static <code>builder()</code>
+	 */
+	private final String className;
+
+	private HttpClientType(String className) {
+		this.className = className;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 *
+	 * @return client configured for this deployment; APACHE when not configured, the client always packaged
+	 */
+	public static HttpClientType fromEnvironment() {
+		String value = System.getProperty("health.metric.http.client");
+		if (value == null) {
+			value = System.getenv("HEALTH_METRIC_HTTP_CLIENT");
+		}
+		if (value == null || value.isBlank()) {
+			return APACHE;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return APACHE;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.ProcessedMail;
+
+/**
+ * idempotency layer: remembers the emails already processed, so SNS duplicate deliveries and Lambda retries
+ * are answered with the cached statuses, without reading the email again and without putting the metric again<br>
+ * the first tier is an LRU map in memory, bounded in size and with a time to live, that lives as long as the warm execution environment;
+ * the optional second tier is a durable {@link IdempotencyStore}<br>
+ * configured with the environment variables IDEMPOTENCY_CACHE_SIZE, IDEMPOTENCY_TTL_SECONDS and IDEMPOTENCY_STORE_DIR
+ * (or the system properties idempotency.cache.size, idempotency.ttl.seconds, idempotency.store.dir)
+ * @author mike
+ *
+ */
+public class IdempotencyService {
+
+	/**
+	 * default number of keys kept in memory
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	/**
+	 * default time to live of a record: Lambda retries an asynchronous event for up to 6 hours
+	 */
+	public static final Duration DEFAULT_TTL = Duration.ofHours(6);
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(IdempotencyService.class);
+	/**
+	 * maximum number of keys kept in memory
+	 */
+	private final int maxEntries;
+	/**
+	 * time to live of a record
+	 */
+	private final Duration ttl;
+	/**
+	 * durable tier; null when not configured
+	 */
+	private final IdempotencyStore store;
+	/**
+	 * memory tier, in access order: the least recently used key is evicted first
+	 */
+	private final Map<String, ProcessedMail> entries;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * memory tier only, with the default size and time to live
+	 */
+	public IdempotencyService() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, null);
+	}
+
+	/**
+	 *
+	 * @param maxEntries maximum number of keys kept in memory
+	 * @param ttl time to live of a record
+	 * @param store durable tier; may be null
+	 */
+	public IdempotencyService(int maxEntries, Duration ttl, IdempotencyStore store) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		this.store = store;
+		this.entries = new LinkedHashMap<String, ProcessedMail>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ProcessedMail> eldest) {
+				return size() > IdempotencyService.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * builds the idempotency layer configured for this deployment
+	 * @return a new instance of this Service
+	 */
+	public static IdempotencyService build() {
+
+		String size = setting("idempotency.cache.size", "IDEMPOTENCY_CACHE_SIZE");
+		String ttlSeconds = setting("idempotency.ttl.seconds", "IDEMPOTENCY_TTL_SECONDS");
+		String storeDir = setting("idempotency.store.dir", "IDEMPOTENCY_STORE_DIR");
+
+		return new IdempotencyService(
+				(size == null) ? DEFAULT_MAX_ENTRIES : Integer.parseInt(size),
+				(ttlSeconds == null) ? DEFAULT_TTL : Duration.ofSeconds(Long.parseLong(ttlSeconds)),
+				(storeDir == null) ? null : new FileIdempotencyStore(Paths.get(storeDir)));
+	}
+
+	/**
+	 * looks for the key in memory, then in the durable tier
+	 * @param key idempotency key
+	 * @return the processed email, marked as duplicate; null when the key is unknown or expired
+	 */
+	public ProcessedMail find(String key) {
+
+		long now = clock.millis();
+		ProcessedMail mail;
+		synchronized (entries) {
+			mail = entries.get(key);
+			if (mail != null && mail.getExpiresAt() <= now) {
+				entries.remove(key);
+				mail = null;
+			}
+		}
+
+		if (mail == null && store != null) {
+			try {
+				mail = store.get(key);
+				if (mail != null && mail.getExpiresAt() <= now) {
+					store.remove(key);
+					mail = null;
+				}
+			} catch (RuntimeException e) {
+				// an unavailable store only costs a reprocessing
+				logger.warn("idempotency store not read for " + key + ": " + e.getMessage());
+				mail = null;
+			}
+			if (mail != null) {
+				synchronized (entries) {
+					entries.put(key, mail);
+				}
+			}
+		}
+
+		if (mail == null) {
+			return null;
+		}
+		logger.debug("duplicate " + key);
+		return mail.asDuplicate();
+	}
+
+	/**
+	 * remembers the processed email under all its keys, until the time to live ends
+	 * @param mail processed email
+	 */
+	public void save(ProcessedMail mail) {
+
+		mail.setExpiresAt(clock.millis() + ttl.toMillis());
+
+		synchronized (entries) {
+			for (String key : mail.getKeys()) {
+				entries.put(key, mail);
+			}
+		}
+		if (store != null) {
+			for (String key : mail.getKeys()) {
+				try {
+					store.put(key, mail);
+				} catch (RuntimeException e) {
+					logger.warn("idempotency store not written for " + key + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return number of keys kept in memory
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 *
+	 * @param property system property
+	 * @param variable environment variable, used when the property is not set
+	 * @return value of the setting; null when not set
+	 */
+	private static String setting(String property, String variable) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			value = System.getenv(variable);
+		}
+		return (value == null || value.isBlank()) ? null : value.trim();
+	}
+
+	public IdempotencyStore getStore() {
+		return store;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
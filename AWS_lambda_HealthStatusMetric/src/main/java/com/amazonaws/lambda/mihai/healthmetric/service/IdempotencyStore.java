@@ -0,0 +1,32 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.ProcessedMail;
+
+/**
+ * durable tier of the idempotency layer: keeps the processed emails beyond the life of one execution environment<br>
+ * implementations must be thread safe; failures are thrown as {@link RuntimeException}
+ * @author mike
+ *
+ */
+public interface IdempotencyStore {
+
+	/**
+	 *
+	 * @param key idempotency key
+	 * @return record stored for the key, expired or not; null when none
+	 */
+	ProcessedMail get(String key);
+
+	/**
+	 * stores the record for the key, replacing the old one
+	 * @param key idempotency key
+	 * @param mail processed email
+	 */
+	void put(String key, ProcessedMail mail);
+
+	/**
+	 * removes the record of the key, if any
+	 * @param key idempotency key
+	 */
+	void remove(String key);
+}
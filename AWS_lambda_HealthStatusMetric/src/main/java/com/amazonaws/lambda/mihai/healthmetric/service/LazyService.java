@@ -0,0 +1,121 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * holder of a Service that is built only when it is first needed, then kept for the life of the execution environment<br>
+ * the build may be started in background with {@link #start()}, so the clients of two Services are built in parallel;
+ * a caller of {@link #get()} waits for a build in progress instead of starting another one; a failed build is tried again by the next caller
+ * @author mike
+ *
+ * @param <T> type of the Service
+ */
+public class LazyService<T> {
+
+	/**
+	 * builds the Service; called at most once, unless it fails
+	 */
+	private final Supplier<T> factory;
+	/**
+	 * Service, built or in progress; null until the first build starts
+	 */
+	private volatile CompletableFuture<T> service;
+
+	/**
+	 *
+	 * @param factory builds the Service, ex: <code>S3Service::build</code>
+	 */
+	public LazyService(Supplier<T> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * holder of a Service that is already built, ex: in local test environment
+	 * @param <T> type of the Service
+	 * @param service the Service
+	 * @return holder that never builds
+	 */
+	public static <T> LazyService<T> of(T service) {
+		LazyService<T> holder = new LazyService<T>(() -> service);
+		holder.service = CompletableFuture.completedFuture(service);
+		return holder;
+	}
+
+	/**
+	 * builds the Service on the calling thread, or waits for the build already in progress
+	 * @return the Service
+	 */
+	public T get() {
+		CompletableFuture<T> built = service;
+		while (built == null) {
+			built = claim();
+			if (built != null) {
+				build(built);
+			} else {
+				built = service;
+			}
+		}
+		try {
+			return built.join();
+		} catch (CompletionException e) {
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * starts the build in a background thread, if no build was started; does not wait for it
+	 */
+	public void start() {
+		CompletableFuture<T> claimed = (service == null) ? claim() : null;
+		if (claimed == null) {
+			return;
+		}
+		Thread thread = new Thread(() -> build(claimed), "service-init");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 *
+	 * @return the Service when its build is done; null when it was not built, it is in progress or it failed
+	 */
+	public T getIfBuilt() {
+		CompletableFuture<T> built = service;
+		if (built == null || !built.isDone() || built.isCompletedExceptionally()) {
+			return null;
+		}
+		return built.join();
+	}
+
+	/**
+	 * marks the build as started
+	 * @return the future of the build, for the caller that must build; null when another caller started the build
+	 */
+	private synchronized CompletableFuture<T> claim() {
+		if (service != null) {
+			return null;
+		}
+		CompletableFuture<T> claimed = new CompletableFuture<T>();
+		service = claimed;
+		return claimed;
+	}
+
+	/**
+	 * builds the Service and completes the future; after a failure, the next caller builds again
+	 * @param claimed future of the build
+	 */
+	private void build(CompletableFuture<T> claimed) {
+		try {
+			claimed.complete(factory.get());
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				if (service == claimed) {
+					service = null;
+				}
+			}
+			claimed.completeExceptionally(e);
+		}
+	}
+}
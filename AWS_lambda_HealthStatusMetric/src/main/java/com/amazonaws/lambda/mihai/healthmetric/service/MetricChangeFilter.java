@@ -0,0 +1,166 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+
+/**
+ * publish on change: remembers the last value published for each metric series (namespace, metric name, dimensions)
+ * and lets a datum through only when the value changed, or when the heartbeat interval passed since the last publish,
+ * so the alarm on the metric always has data; the heartbeat is checked when datums are selected, a site without emails is published again
+ * by the scheduled {@link com.amazonaws.lambda.mihai.healthmetric.handler.HeartbeatHandler}<br>
+ * the selected datums are staged until {@link #commit()}, called when they were accepted by CloudWatch; a cold filter,
+ * ex: a new execution environment, knows no series and lets the first datum of each one through<br>
+ * enabled with the environment variable HEALTH_METRIC_HEARTBEAT_SECONDS (or the system property health.metric.heartbeat.seconds)
+ * @author mike
+ *
+ */
+public class MetricChangeFilter {
+
+	/**
+	 * value published for a metric series
+	 */
+	private static class Published {
+		/**
+		 * value of the datum
+		 */
+		private final Double value;
+		/**
+		 * moment (epoch millis) when the datum was published
+		 */
+		private final long publishedAt;
+
+		private Published(Double value, long publishedAt) {
+			this.value = value;
+			this.publishedAt = publishedAt;
+		}
+	}
+
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(MetricChangeFilter.class);
+	/**
+	 * longest time without publishing a series
+	 */
+	private final Duration heartbeat;
+	/**
+	 * last value accepted by CloudWatch for each series
+	 */
+	private final Map<String, Published> published = new HashMap<String, Published>();
+	/**
+	 * values selected and not yet accepted by CloudWatch
+	 */
+	private final Map<String, Published> staged = new HashMap<String, Published>();
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 *
+	 * @param heartbeat longest time without publishing a series; should be shorter than the period of the alarm on the metric
+	 */
+	public MetricChangeFilter(Duration heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 *
+	 * @return heartbeat interval configured for this deployment; null when publish on change is not enabled
+	 */
+	public static Duration heartbeatFromEnvironment() {
+		String value = System.getProperty("health.metric.heartbeat.seconds");
+		if (value == null) {
+			value = System.getenv("HEALTH_METRIC_HEARTBEAT_SECONDS");
+		}
+		if (value == null || value.isBlank()) {
+			return null;
+		}
+		long seconds = Long.parseLong(value.trim());
+		return (seconds > 0) ? Duration.ofSeconds(seconds) : null;
+	}
+
+	/**
+	 * selects the datums that change their series, or whose series was not published for a heartbeat interval, and stages them
+	 * @param namespace CloudWatch namespace of the datums
+	 * @param metricDataList datums to be sent
+	 * @return datums to be sent now, in the given order
+	 */
+	public synchronized List<MetricDatum> select(String namespace, List<MetricDatum> metricDataList) {
+
+		long now = clock.millis();
+		List<MetricDatum> selected = new ArrayList<MetricDatum>(metricDataList.size());
+
+		for (MetricDatum datum : metricDataList) {
+			String series = seriesKey(namespace, datum);
+			Published last = staged.get(series);
+			if (last == null) {
+				last = published.get(series);
+			}
+
+			if (last == null || !last.value.equals(datum.value()) || now - last.publishedAt >= heartbeat.toMillis()) {
+				selected.add(datum);
+				staged.put(series, new Published(datum.value(), now));
+			} else {
+				logger.debug("unchanged " + series.replace('\n', ' ') + " = " + datum.value());
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * the staged datums were accepted by CloudWatch: they become the last published values
+	 */
+	public synchronized void commit() {
+		published.putAll(staged);
+		staged.clear();
+	}
+
+	/**
+	 * the staged datums were not sent: the next datums of their series are compared with the values published before
+	 */
+	public synchronized void rollback() {
+		staged.clear();
+	}
+
+	/**
+	 *
+	 * @param namespace CloudWatch namespace
+	 * @param datum metric datum
+	 * @return identity of the series of the datum; dimensions are sorted by name, as CloudWatch does not keep their order
+	 */
+	private static String seriesKey(String namespace, MetricDatum datum) {
+
+		StringBuilder key = new StringBuilder(namespace).append('\n').append(datum.metricName());
+		Map<String, String> dimensions = new TreeMap<String, String>();
+		for (Dimension dimension : datum.dimensions()) {
+			dimensions.put(dimension.name(), dimension.value());
+		}
+		dimensions.forEach((name, value) -> key.append('\n').append(name).append('=').append(value));
+
+		return key.toString();
+	}
+
+	public Duration getHeartbeat() {
+		return heartbeat;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
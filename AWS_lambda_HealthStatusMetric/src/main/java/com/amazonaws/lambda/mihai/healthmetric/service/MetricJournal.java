@@ -0,0 +1,543 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * write-ahead journal of the metric data that could not be put into CloudWatch: the datums are appended to a file in /tmp,
+ * and put by a later invocation, in timestamp order and in batches, when CloudWatch answers again<br>
+ * the file is a sequence of compact binary records, one per spill: length, namespace and datums (name, unit, value, timestamp, dimensions), CRC32;
+ * a record is forced to disk before the invocation ends, and a record cut by a crash is ignored with the records after it<br>
+ * with the optional durable tier, the records are moved to S3 objects under a prefix right after the spill, so they survive
+ * the execution environment, and any environment puts them later; a datum put twice (by two environments) has the same timestamp and value<br>
+ * configured with the environment variables HEALTH_METRIC_JOURNAL (OFF to disable), HEALTH_METRIC_JOURNAL_DIR, HEALTH_METRIC_JOURNAL_BUCKET
+ * and HEALTH_METRIC_JOURNAL_PREFIX (or the system properties health.metric.journal, health.metric.journal.dir, health.metric.journal.bucket,
+ * health.metric.journal.prefix)
+ * @author mike
+ *
+ */
+public class MetricJournal {
+
+	/**
+	 * default directory of the journal file
+	 */
+	public static final String DEFAULT_DIRECTORY = "/tmp/health-metric-journal";
+	/**
+	 * default key prefix of the journal segments in the durable tier
+	 */
+	public static final String DEFAULT_PREFIX = "metric-journal/";
+	/**
+	 * name of the journal file
+	 */
+	private static final String FILE_NAME = "metrics.journal";
+	/**
+	 * name of the quarantine file, next to the journal file
+	 */
+	private static final String QUARANTINE_FILE_NAME = "metrics.quarantine";
+	/**
+	 * biggest quarantine file; datums rejected beyond it are only logged
+	 */
+	private static final long MAX_QUARANTINE_BYTES = 1024 * 1024;
+	/**
+	 * version of the record format
+	 */
+	private static final byte RECORD_VERSION = 1;
+	/**
+	 * shortest time between two listings of the durable tier by one execution environment
+	 */
+	private static final long DURABLE_LIST_INTERVAL_MILLIS = 5 * 60_000;
+	/**
+	 * durable segments put by one replay, at most
+	 */
+	private static final int MAX_SEGMENTS_PER_REPLAY = 10;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(MetricJournal.class);
+	/**
+	 * journal file
+	 */
+	private final Path file;
+	/**
+	 * datums rejected by CloudWatch, in the format of the journal, kept for inspection and never replayed
+	 */
+	private final Path quarantineFile;
+	/**
+	 * AWS client for S3 Service, of the durable tier, built at the first spill or replay; null without durable tier
+	 */
+	private volatile LazyService<S3Client> s3Client;
+	/**
+	 * builds the AWS client of the durable tier; null when the client was given, it is never built again
+	 */
+	private Supplier<S3Client> clientFactory;
+	/**
+	 * bucket of the durable tier
+	 */
+	private String bucket;
+	/**
+	 * key prefix of the durable tier
+	 */
+	private String prefix = DEFAULT_PREFIX;
+	/**
+	 * moment (epoch millis) of the next listing of the durable tier
+	 */
+	private long nextDurableList;
+	/**
+	 * source of the current time, replaced in tests
+	 */
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 *
+	 * @param directory directory of the journal file; created when missing
+	 */
+	public MetricJournal(Path directory) {
+		this.file = directory.toAbsolutePath().resolve(FILE_NAME);
+		this.quarantineFile = directory.toAbsolutePath().resolve(QUARANTINE_FILE_NAME);
+	}
+
+	/**
+	 * builds the journal configured for this deployment
+	 * @return a new journal in /tmp, with the durable tier when its bucket is configured; null when the journal is disabled
+	 */
+	public static MetricJournal build() {
+
+		if ("OFF".equalsIgnoreCase(setting("health.metric.journal", "HEALTH_METRIC_JOURNAL"))) {
+			return null;
+		}
+		String directory = setting("health.metric.journal.dir", "HEALTH_METRIC_JOURNAL_DIR");
+		MetricJournal journal = new MetricJournal(Paths.get((directory == null) ? DEFAULT_DIRECTORY : directory));
+
+		String bucket = setting("health.metric.journal.bucket", "HEALTH_METRIC_JOURNAL_BUCKET");
+		if (bucket != null) {
+			String prefix = setting("health.metric.journal.prefix", "HEALTH_METRIC_JOURNAL_PREFIX");
+			journal.setDurableTier(S3Service::buildS3Client, bucket, (prefix == null) ? DEFAULT_PREFIX : prefix);
+		}
+		return journal;
+	}
+
+	/**
+	 * appends the datums to the journal and forces them to disk; with the durable tier, the journal is then moved to S3<br>
+	 * a datum without timestamp gets the current time, the moment it should have been put
+	 * @param namespace CloudWatch namespace of the datums
+	 * @param metricDataList datums not put
+	 */
+	public synchronized void append(String namespace, List<MetricDatum> metricDataList) {
+
+		if (metricDataList.isEmpty()) {
+			return;
+		}
+		Map<String, List<MetricDatum>> record = new LinkedHashMap<String, List<MetricDatum>>();
+		record.put(namespace, metricDataList);
+		writeLocal(file, record, true);
+		logger.info("journaled " + metricDataList.size() + " datums of " + namespace);
+
+		moveToDurableTier();
+	}
+
+	/**
+	 * puts the journaled datums, oldest first, in batches of at most {@link CloudWatchService#MAX_DATUMS_PER_REQUEST};
+	 * datums older than CloudWatch accepts are dropped<br>
+	 * the local journal first, then the segments of the durable tier, listed at most every few minutes;
+	 * a batch that failed stops the replay, and the datums not put stay in the journal; a batch rejected by CloudWatch is quarantined, see {@link #quarantine(String, List)}
+	 * @param maxBatches most batches put by this replay
+	 * @param sender puts one batch of one namespace; throws when the batch was not put
+	 * @return number of datums put
+	 * @throws RuntimeException the failure of the sender
+	 */
+	public synchronized int replay(int maxBatches, BiConsumer<String, List<MetricDatum>> sender) {
+
+		int[] budget = {maxBatches};
+		int replayed = 0;
+
+		byte[] local = readLocal();
+		if (local != null) {
+			Map<String, List<MetricDatum>> pending = new LinkedHashMap<String, List<MetricDatum>>();
+			try {
+				replayed += send(decode(local), budget, sender, pending);
+			} finally {
+				if (pending.isEmpty()) {
+					delete();
+				} else {
+					writeLocal(file, pending, false);
+				}
+			}
+		}
+
+		if (s3Client != null && budget[0] > 0 && clock.millis() >= nextDurableList) {
+			nextDurableList = clock.millis() + DURABLE_LIST_INTERVAL_MILLIS;
+			List<S3Object> segments = s3Client.get().listObjectsV2(ListObjectsV2Request.builder()
+					.bucket(bucket).prefix(prefix).maxKeys(MAX_SEGMENTS_PER_REPLAY).build()).contents();
+			for (S3Object segment : segments) {
+				if (budget[0] <= 0) {
+					break;
+				}
+				byte[] content = s3Client.get().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(segment.key()).build()).asByteArray();
+				Map<String, List<MetricDatum>> pending = new LinkedHashMap<String, List<MetricDatum>>();
+				try {
+					replayed += send(decode(content), budget, sender, pending);
+				} finally {
+					// the datums not put go to the local journal, and back to the durable tier with the next spill
+					if (!pending.isEmpty()) {
+						writeLocal(file, pending, true);
+					}
+					s3Client.get().deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(segment.key()).build());
+				}
+			}
+			if (segments.size() == MAX_SEGMENTS_PER_REPLAY) {
+				// more segments: the next replay lists them
+				nextDurableList = 0;
+			}
+		}
+		if (replayed > 0) {
+			logger.info("replayed " + replayed + " journaled datums");
+		}
+		return replayed;
+	}
+
+	/**
+	 *
+	 * @return true if the local journal has no datum; the durable tier is not checked
+	 */
+	public synchronized boolean isEmpty() {
+		try {
+			return !Files.exists(file) || Files.size(file) == 0;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * puts the datums of the records by namespace, oldest first, while the budget of batches lasts
+	 * @param records datums by namespace
+	 * @param budget batches left, decremented
+	 * @param sender puts one batch
+	 * @param pending receives the datums not put
+	 * @return number of datums put
+	 */
+	private int send(Map<String, List<MetricDatum>> records, int[] budget, BiConsumer<String, List<MetricDatum>> sender, Map<String, List<MetricDatum>> pending) {
+
+		long oldest = clock.millis() - CloudWatchService.MAX_DATUM_AGE.toMillis();
+		int sent = 0;
+		RuntimeException failure = null;
+		for (Map.Entry<String, List<MetricDatum>> namespace : records.entrySet()) {
+			List<MetricDatum> datums = new ArrayList<MetricDatum>(namespace.getValue());
+			datums.removeIf(datum -> datum.timestamp().toEpochMilli() < oldest);
+			datums.sort(Comparator.comparing(MetricDatum::timestamp));
+
+			int from = 0;
+			while (from < datums.size() && failure == null && budget[0] > 0) {
+				int to = Math.min(from + CloudWatchService.MAX_DATUMS_PER_REQUEST, datums.size());
+				try {
+					sender.accept(namespace.getKey(), datums.subList(from, to));
+					sent += to - from;
+				} catch (RuntimeException e) {
+					if (CircuitBreaker.isRetryable(e)) {
+						failure = e;
+						break;
+					}
+					// rejected by CloudWatch: it would be rejected again, it must not block the datums after it
+					quarantine(namespace.getKey(), new ArrayList<MetricDatum>(datums.subList(from, to)));
+				}
+				from = to;
+				budget[0]--;
+			}
+			if (from < datums.size()) {
+				pending.put(namespace.getKey(), new ArrayList<MetricDatum>(datums.subList(from, datums.size())));
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return sent;
+	}
+
+	/**
+	 * moves the local journal to a new segment of the durable tier; when S3 fails too, the journal stays local
+	 */
+	private void moveToDurableTier() {
+
+		if (s3Client == null) {
+			return;
+		}
+		byte[] local = readLocal();
+		if (local == null) {
+			return;
+		}
+		// segments are listed in key order: oldest first
+		String key = prefix + String.format("%013d", clock.millis()) + "-" + UUID.randomUUID() + ".journal";
+		try {
+			s3Client.get().putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), RequestBody.fromBytes(local));
+			delete();
+			logger.info("journal moved to s3://" + bucket + "/" + key);
+		} catch (RuntimeException e) {
+			logger.info("journal kept in " + file + ", durable tier failed: " + e);
+		}
+	}
+
+	/**
+	 *
+	 * @return content of the local journal; null when there is none
+	 */
+	private byte[] readLocal() {
+		try {
+			byte[] content = Files.readAllBytes(file);
+			return (content.length == 0) ? null : content;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * keeps datums rejected by CloudWatch (ex: InvalidParameterValue) apart from the journal: they would be rejected on every replay<br>
+	 * the quarantine file has the format of the journal and is never replayed; it is bounded, datums beyond the bound are only logged
+	 * @param namespace CloudWatch namespace of the datums
+	 * @param metricDataList datums rejected
+	 */
+	public synchronized void quarantine(String namespace, List<MetricDatum> metricDataList) {
+
+		if (metricDataList.isEmpty()) {
+			return;
+		}
+		try {
+			if (Files.exists(quarantineFile) && Files.size(quarantineFile) >= MAX_QUARANTINE_BYTES) {
+				logger.error("quarantine full, " + metricDataList.size() + " rejected datums of " + namespace + " dropped: " + metricDataList);
+				return;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Map<String, List<MetricDatum>> record = new LinkedHashMap<String, List<MetricDatum>>();
+		record.put(namespace, metricDataList);
+		writeLocal(quarantineFile, record, true);
+		logger.error("quarantined " + metricDataList.size() + " rejected datums of " + namespace + " in " + quarantineFile);
+	}
+
+	/**
+	 * writes datums to a local file of records, in one record per namespace, forced to disk
+	 * @param target journal or quarantine file
+	 * @param pending datums by namespace
+	 * @param append true to add them after the records of the file, false to replace the file
+	 */
+	private void writeLocal(Path target, Map<String, List<MetricDatum>> pending, boolean append) {
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		for (Map.Entry<String, List<MetricDatum>> namespace : pending.entrySet()) {
+			content.writeBytes(encode(namespace.getKey(), namespace.getValue(), clock.instant()));
+		}
+		try {
+			Files.createDirectories(target.getParent());
+			Path written = append ? target : Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+			try (FileChannel channel = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+					append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			}
+			if (!append) {
+				Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * deletes the local journal
+	 */
+	private void delete() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * encodes one record: length, version, namespace, datums, CRC32 of the bytes before it
+	 */
+	private static byte[] encode(String namespace, List<MetricDatum> metricDataList, Instant now) {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64 + metricDataList.size() * 96);
+		try (DataOutputStream out = new DataOutputStream(body)) {
+			out.writeByte(RECORD_VERSION);
+			out.writeUTF(namespace);
+			out.writeInt(metricDataList.size());
+			for (MetricDatum datum : metricDataList) {
+				out.writeUTF(datum.metricName());
+				out.writeUTF((datum.unitAsString() == null) ? "" : datum.unitAsString());
+				out.writeDouble((datum.value() == null) ? 0 : datum.value());
+				out.writeLong(((datum.timestamp() == null) ? now : datum.timestamp()).toEpochMilli());
+				out.writeByte(datum.dimensions().size());
+				for (Dimension dimension : datum.dimensions()) {
+					out.writeUTF(dimension.name());
+					out.writeUTF(dimension.value());
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] bytes = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		ByteBuffer record = ByteBuffer.allocate(4 + bytes.length + 8);
+		record.putInt(bytes.length).put(bytes).putLong(crc.getValue());
+		return record.array();
+	}
+
+	/**
+	 * decodes the records of a journal; a record cut or corrupted ends the journal
+	 * @return datums by namespace
+	 */
+	private Map<String, List<MetricDatum>> decode(byte[] content) {
+
+		Map<String, List<MetricDatum>> records = new LinkedHashMap<String, List<MetricDatum>>();
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt();
+			if (length < 0 || buffer.remaining() < length + 8) {
+				logger.info("journal record cut at " + (buffer.position() - 4) + ", ignored");
+				break;
+			}
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if (crc.getValue() != buffer.getLong()) {
+				logger.info("journal record corrupted at " + (buffer.position() - length - 12) + ", ignored with the next ones");
+				break;
+			}
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+				byte version = in.readByte();
+				if (version != RECORD_VERSION) {
+					throw new IOException("journal record version " + version + " not supported");
+				}
+				String namespace = in.readUTF();
+				int count = in.readInt();
+				List<MetricDatum> datums = records.computeIfAbsent(namespace, name -> new ArrayList<MetricDatum>());
+				for (int i = 0; i < count; i++) {
+					MetricDatum.Builder datum = MetricDatum.builder().metricName(in.readUTF());
+					String unit = in.readUTF();
+					if (!unit.isEmpty()) {
+						datum.unit(unit);
+					}
+					datum.value(in.readDouble()).timestamp(Instant.ofEpochMilli(in.readLong()));
+					int dimensionCount = in.readUnsignedByte();
+					List<Dimension> dimensions = new ArrayList<Dimension>(dimensionCount);
+					for (int d = 0; d < dimensionCount; d++) {
+						dimensions.add(Dimension.builder().name(in.readUTF()).value(in.readUTF()).build());
+					}
+					datums.add(datum.dimensions(dimensions).build());
+				}
+			} catch (EOFException e) {
+				logger.info("journal record truncated, ignored");
+				break;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return records;
+	}
+
+	private static String setting(String property, String variable) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			value = System.getenv(variable);
+		}
+		return (value == null || value.isBlank()) ? null : value.trim();
+	}
+
+	/**
+	 * adds the durable tier
+	 * @param s3Client AWS client for S3 Service
+	 * @param bucket bucket of the segments
+	 * @param prefix key prefix of the segments
+	 */
+	public void setDurableTier(S3Client s3Client, String bucket, String prefix) {
+		this.s3Client = LazyService.of(s3Client);
+		this.clientFactory = null;
+		this.bucket = bucket;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * adds the durable tier, with a client built at the first spill or replay
+	 * @param clientFactory builds the AWS client for S3 Service, ex: <code>S3Service::buildS3Client</code>
+	 * @param bucket bucket of the segments
+	 * @param prefix key prefix of the segments
+	 */
+	public void setDurableTier(Supplier<S3Client> clientFactory, String bucket, String prefix) {
+		this.s3Client = new LazyService<S3Client>(clientFactory);
+		this.clientFactory = clientFactory;
+		this.bucket = bucket;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * the connections of a client built before a SnapStart snapshot are not valid in the restored environment: 
+	 * the client of the durable tier is closed, and a new one is built at the next spill or replay, with the HTTP client shared at that time
+	 */
+	public void renewS3Client() {
+
+		LazyService<S3Client> old = s3Client;
+		S3Client built = (old == null) ? null : old.getIfBuilt();
+		if (clientFactory == null || built == null) {
+			return;
+		}
+		s3Client = new LazyService<S3Client>(clientFactory);
+		built.close();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public Path getQuarantineFile() {
+		return quarantineFile;
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+}
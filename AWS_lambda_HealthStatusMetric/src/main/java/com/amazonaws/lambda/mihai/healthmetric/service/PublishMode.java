@@ -0,0 +1,37 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+/**
+ * how {@link CloudWatchService} sends metric data to AWS CloudWatch Metrics Service; 
+ * selected per deployment with the environment variable HEALTH_METRIC_PUBLISH_MODE (or the system property health.metric.publish.mode)
+ * @author mike
+ *
+ */
+public enum PublishMode {
+	/**
+	 * synchronous PutMetricData requests, made inside the invocation
+	 */
+	API,
+	/**
+	 * CloudWatch Embedded Metric Format lines written to stdout; CloudWatch Logs extracts the metrics asynchronously
+	 */
+	EMF;
+
+	/**
+	 *
+	 * @return mode configured for this deployment; API when not configured, or not known
+	 */
+	public static PublishMode fromEnvironment() {
+		String value = System.getProperty("health.metric.publish.mode");
+		if (value == null) {
+			value = System.getenv("HEALTH_METRIC_PUBLISH_MODE");
+		}
+		if (value == null || value.isBlank()) {
+			return API;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return API;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * health state store in one small S3 object, versioned by its ETag: a write is a conditional PUT, with <code>If-Match</code>
+ * the ETag read, or with <code>If-None-Match: *</code> when the object did not exist; S3 rejects it (412, or 409 for a concurrent
+ * conditional write) when another instance wrote the object in between<br>
+ * the S3 client is built at the first read or write, and built again after a SnapStart restore, see {@link #renewS3Client()}
+ * @author mike
+ *
+ */
+public class S3HealthStateStore implements HealthStateStore {
+
+	/**
+	 * default key of the state object
+	 */
+	public static final String DEFAULT_KEY = "health-state/health-state.json";
+	/**
+	 * AWS client for S3 Service, built when the state is first read
+	 */
+	private volatile LazyService<S3Client> s3Client;
+	/**
+	 * builds the AWS client for S3 Service; null when the client was given, it is never built again
+	 */
+	private final Supplier<S3Client> clientFactory;
+	/**
+	 * bucket of the state object
+	 */
+	private final String bucketName;
+	/**
+	 * key of the state object
+	 */
+	private final String key;
+	/**
+	 * timeouts of the calls, within the deadline of the invocation; null when the calls have only the timeouts of the client
+	 */
+	private HttpClientFactory httpClientFactory;
+
+	/**
+	 *
+	 * @param s3Client AWS client for S3 Service
+	 * @param bucketName bucket of the state object
+	 * @param key key of the state object
+	 */
+	public S3HealthStateStore(S3Client s3Client, String bucketName, String key) {
+		this.s3Client = LazyService.of(s3Client);
+		this.clientFactory = null;
+		this.bucketName = bucketName;
+		this.key = key;
+	}
+
+	/**
+	 *
+	 * @param clientFactory builds the AWS client for S3 Service, at the first read or write, ex: <code>S3Service::buildS3Client</code>
+	 * @param bucketName bucket of the state object
+	 * @param key key of the state object
+	 */
+	public S3HealthStateStore(Supplier<S3Client> clientFactory, String bucketName, String key) {
+		this.s3Client = new LazyService<S3Client>(clientFactory);
+		this.clientFactory = clientFactory;
+		this.bucketName = bucketName;
+		this.key = key;
+	}
+
+	/**
+	 * the connections of a client built before a SnapStart snapshot are not valid in the restored environment: 
+	 * the client is closed, and a new one is built at the next read or write, with the HTTP client shared at that time
+	 */
+	public void renewS3Client() {
+
+		LazyService<S3Client> old = s3Client;
+		S3Client built = old.getIfBuilt();
+		if (clientFactory == null || built == null) {
+			return;
+		}
+		s3Client = new LazyService<S3Client>(clientFactory);
+		built.close();
+	}
+
+	@Override
+	public Stored read() {
+
+		GetObjectRequest request = GetObjectRequest.builder()
+				.bucket(bucketName)
+				.key(key)
+				.overrideConfiguration(requestOverride())
+				.build();
+		try {
+			ResponseBytes<GetObjectResponse> object = s3Client.get().getObjectAsBytes(request);
+			return new Stored(Utils.getJsonAsObject(object.asUtf8String(), HealthState.class), object.response().eTag());
+
+		} catch (NoSuchKeyException e) {
+			return new Stored(null, null);
+		}
+	}
+
+	@Override
+	public String write(HealthState state, String version) {
+
+		PutObjectRequest.Builder request = PutObjectRequest.builder()
+				.bucket(bucketName)
+				.key(key)
+				.contentType("application/json");
+		if (version == null) {
+			request.ifNoneMatch("*");
+		}
+		AwsRequestOverrideConfiguration override = requestOverride();
+		if (version != null) {
+			// no If-Match setter in this SDK version: the header is added to the request
+			AwsRequestOverrideConfiguration.Builder conditional = (override == null) ? AwsRequestOverrideConfiguration.builder() : override.toBuilder();
+			override = conditional.putHeader("If-Match", version).build();
+		}
+		request.overrideConfiguration(override);
+
+		try {
+			return s3Client.get().putObject(request.build(), RequestBody.fromString(Utils.getObjectAsJson(state), StandardCharsets.UTF_8)).eTag();
+
+		} catch (S3Exception e) {
+			if (e.statusCode() == 412 || e.statusCode() == 409) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * @return timeouts of the next call; null when not configured
+	 */
+	private AwsRequestOverrideConfiguration requestOverride() {
+		return (httpClientFactory == null) ? null : httpClientFactory.requestOverride();
+	}
+
+	public String getBucketName() {
+		return bucketName;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setHttpClientFactory(HttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
+}
@@ -0,0 +1,308 @@
+package com.amazonaws.lambda.mihai.healthmetric.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * reads an S3 object with ranged GET requests, only as far as the reader needs:
+ * the first request fetches a prefix of the object, and each next request fetches twice as much as the previous one<br>
+ * when S3 ignores the range and sends the whole object, the stream simply reads it<br>
+ * the next requests are pinned to the version of the first response with <code>If-Match</code> its ETag: when the object is overwritten
+ * between two ranges, S3 answers 412 and the stream fails with {@link ObjectChangedException}, so the reader never mixes two objects; 
+ * the reader starts again with a new stream
+ * @author mike
+ *
+ */
+public class S3RangeInputStream extends InputStream {
+
+	/**
+	 * the object was overwritten after the first range was read: the bytes read so far are not of the current object
+	 */
+	public static class ObjectChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ObjectChangedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * biggest range fetched by one request
+	 */
+	public static final int MAX_RANGE_SIZE = 4 * 1024 * 1024;
+	/**
+	 * logger named by this class
+	 */
+	private Logger logger = LogManager.getLogger(S3RangeInputStream.class);
+	/**
+	 * AWS client for S3 Service
+	 */
+	private final S3Client s3Client;
+	/**
+	 * where the object is stored
+	 */
+	private final String bucketName;
+	/**
+	 * name of the object
+	 */
+	private final String key;
+	/**
+	 * called on close with the number of bytes read by the reader
+	 */
+	private final LongConsumer onClose;
+	/**
+	 * permits of the S3 requests in flight, shared by all streams of the service; null when not bounded
+	 */
+	private final Semaphore requestPermits;
+	/**
+	 * timeouts of the requests, within the deadline of the invocation; null when the requests have only the timeouts of the client
+	 */
+	private HttpClientFactory httpClientFactory;
+	/**
+	 * size of the next range
+	 */
+	private int rangeSize;
+	/**
+	 * bytes of the last range
+	 */
+	private byte[] range = new byte[0];
+	/**
+	 * next byte to read in <code>range</code>
+	 */
+	private int rangePosition;
+	/**
+	 * offset in object of the first byte of <code>range</code>
+	 */
+	private long rangeOffset;
+	/**
+	 * size of the object; null until the first response
+	 */
+	private Long objectSize;
+	/**
+	 * ETag of the object in the first response, sent with If-Match by the next requests; null until the first response, or when S3 sent none
+	 */
+	private String eTag;
+	/**
+	 * number of GET requests made
+	 */
+	private int requests;
+	/**
+	 * number of bytes received from S3
+	 */
+	private long fetchedBytes;
+	/**
+	 * true after close
+	 */
+	private boolean closed;
+
+	/**
+	 *
+	 * @param s3Client AWS client for S3 Service
+	 * @param bucketName where the object is stored
+	 * @param key name of the object
+	 * @param prefixSize size of the first range
+	 * @param onClose called on close with the number of bytes read by the reader; may be null
+	 * @param requestPermits permits of the S3 requests in flight, one is held during each GET; may be null
+	 */
+	public S3RangeInputStream(S3Client s3Client, String bucketName, String key, int prefixSize, LongConsumer onClose, Semaphore requestPermits) {
+		this.s3Client = s3Client;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.rangeSize = Math.max(1, Math.min(prefixSize, MAX_RANGE_SIZE));
+		this.onClose = onClose;
+		this.requestPermits = requestPermits;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return range[rangePosition++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int count = Math.min(length, range.length - rangePosition);
+		System.arraycopy(range, rangePosition, buffer, offset, count);
+		rangePosition += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return range.length - rangePosition;
+	}
+
+	/**
+	 * fetches the next range when the current one was read
+	 * @return false at the end of the object
+	 * @throws IOException when the object could not be read
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("stream closed");
+		}
+		if (rangePosition < range.length) {
+			return true;
+		}
+
+		long start = rangeOffset + range.length;
+		if (objectSize != null && start >= objectSize) {
+			return false;
+		}
+
+		GetObjectRequest request = GetObjectRequest.builder()
+				.bucket(bucketName)
+				.key(key)
+				.range("bytes=" + start + "-" + (start + rangeSize - 1))
+				.ifMatch(eTag)
+				.overrideConfiguration((httpClientFactory == null) ? null : httpClientFactory.requestOverride())
+				.build();
+
+		byte[] data;
+		GetObjectResponse response;
+		acquirePermit();
+		try (ResponseInputStream<GetObjectResponse> object = s3Client.getObject(request)) {
+			response = object.response();
+			data = object.readAllBytes();
+
+		} catch (S3Exception e) {
+			// 416: the range starts after the end of the object, ex: empty object
+			if (e.statusCode() == 416) {
+				objectSize = start;
+				return false;
+			}
+			// 412: the object is no longer the version of the first range
+			if (e.statusCode() == 412 && eTag != null) {
+				throw new ObjectChangedException("s3://" + bucketName + "/" + key + " changed while read, ETag was " + eTag, e);
+			}
+			throw e;
+		} finally {
+			if (requestPermits != null) {
+				requestPermits.release();
+			}
+		}
+		requests++;
+		fetchedBytes += data.length;
+		if (eTag == null && response != null) {
+			eTag = response.eTag();
+		}
+
+		String contentRange = (response == null) ? null : response.contentRange();
+		if (contentRange != null && contentRange.lastIndexOf('/') > 0 && !contentRange.endsWith("*")) {
+			objectSize = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+			rangeOffset = start;
+		} else {
+			// range ignored: the response is the whole object
+			objectSize = (long) data.length;
+			rangeOffset = 0;
+			if (start > 0) {
+				data = (start >= data.length) ? new byte[0] : Arrays.copyOfRange(data, (int) start, data.length);
+				rangeOffset = start;
+			}
+		}
+		logger.debug("range " + start + "-" + (start + data.length - 1) + " of " + objectSize + " bytes, request " + requests);
+
+		range = data;
+		rangePosition = 0;
+		rangeSize = (int) Math.min((long) rangeSize * 2, MAX_RANGE_SIZE);
+
+		return range.length > 0;
+	}
+
+	/**
+	 * waits for a permit of the S3 requests in flight
+	 * @throws InterruptedIOException when the reader is interrupted while waiting, ex: at the deadline of the invocation
+	 */
+	private void acquirePermit() throws InterruptedIOException {
+		if (requestPermits == null) {
+			return;
+		}
+		try {
+			requestPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for an S3 request permit");
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (onClose != null) {
+			onClose.accept(getPosition());
+		}
+	}
+
+	/**
+	 *
+	 * @return number of bytes read by the reader
+	 */
+	public long getPosition() {
+		return rangeOffset + rangePosition;
+	}
+
+	/**
+	 *
+	 * @return number of bytes fetched from S3
+	 */
+	public long getFetchedBytes() {
+		return fetchedBytes;
+	}
+
+	/**
+	 *
+	 * @return size of the object; null before the first request
+	 */
+	public Long getObjectSize() {
+		return objectSize;
+	}
+
+	/**
+	 *
+	 * @return ETag of the object read; null before the first request
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 *
+	 * @return number of GET requests made
+	 */
+	public int getRequests() {
+		return requests;
+	}
+
+	/**
+	 *
+	 * @param httpClientFactory gives the timeouts of the next requests, within the deadline of the invocation
+	 */
+	public void setHttpClientFactory(HttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
+}
@@ -1,17 +1,29 @@
 package com.amazonaws.lambda.mihai.healthmetric.service;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.amazonaws.lambda.mihai.healthmetric.aspect.TraceAll;
 
-import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 /**
  * layer between lambda logic and S3 filesystem; files are treated as objects
@@ -21,10 +33,39 @@ import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 @TraceAll
 public class S3Service {
 
+	/**
+	 * emails up to this size (bytes) are read in memory; bigger emails are streamed to a temporary file
+	 */
+	public static final long MAX_IN_MEMORY_MAIL_SIZE = 4L * 1024 * 1024;
+	/**
+	 * smallest prefix fetched by the first ranged GET of an email
+	 */
+	public static final int MIN_PREFIX_SIZE = 8 * 1024;
+	/**
+	 * biggest prefix fetched by the first ranged GET of an email
+	 */
+	public static final int MAX_PREFIX_SIZE = 1024 * 1024;
+	/**
+	 * default number of GET requests in flight at the same time, for all records processed concurrently
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 16;
+	/**
+	 * moving average of the bytes that readers needed, with a margin; the first ranged GET of an email is this size rounded up to 4 KB,
+	 * see {@link #learnPrefixSize(long, Long)}
+	 */
+	private final AtomicInteger prefixAverage = new AtomicInteger(16 * 1024);
+	/**
+	 * permits of the GET requests in flight; one is held from the request until its body is read
+	 */
+	private Semaphore requestPermits = new Semaphore(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
 	/** 
 	 * AWS client for S3 Service 
 	 */
     private S3Client s3Client;
+	/**
+	 * timeouts of the calls, within the deadline of the invocation; null when the calls have only the timeouts of the client, ex: in local test environment
+	 */
+    private HttpClientFactory httpClientFactory;
 	/**
 	 * logger named by this class
 	 */
@@ -36,38 +77,171 @@ public class S3Service {
 	 */	  
     public static S3Service build() {
     	
-    	S3Client s3Client = S3Client.builder()
-    			.region(Region.US_WEST_2)
-    			.build();
-    	
     	S3Service s3dao = new S3Service();
-    	s3dao.setS3Client(s3Client);
+    	s3dao.setS3Client(buildS3Client());
+    	s3dao.setHttpClientFactory(HttpClientFactory.getShared());
+    	
+    	String maxInFlight = System.getProperty("s3.max.in.flight.requests");
+    	if (maxInFlight == null) {
+    		maxInFlight = System.getenv("S3_MAX_IN_FLIGHT_REQUESTS");
+    	}
+    	if (maxInFlight != null && !maxInFlight.isBlank()) {
+    		s3dao.setRequestPermits(new Semaphore(Integer.parseInt(maxInFlight.trim())));
+    	}
     	
     	return s3dao;
     }
+    
+    /**
+     * builds the AWS client used by this Service; a new client is needed when the connections of the old one are no longer valid, ex: after a SnapStart restore<br>
+     * the client uses the HTTP client shared by all Services, see {@link HttpClientFactory}
+     * @return a new client for S3 Service
+     */
+    public static S3Client buildS3Client() {
+    	
+    	HttpClientFactory httpClientFactory = HttpClientFactory.getShared();
+    	return S3Client.builder()
+    			.region(Region.US_WEST_2)
+    			.httpClient(httpClientFactory.getHttpClient())
+    			.overrideConfiguration(httpClientFactory.getOverrideConfiguration())
+    			.build();
+    }
 
     /**
-     * 
+     * opens the email file as a stream that can be consumed directly by <code>MimeMessage</code>, without intermediate copies<br>
+     * the content length of the object decides the path: small emails are read once in a byte array shared by all mail parts, 
+     * big emails are streamed to a temporary file and mail parts are read from that file only when needed; the file is deleted when the stream is closed
+     * @param bucketName where the email file is stored
+     * @param key name of the email file
+     * @return email file as a {@link javax.mail.internet.SharedInputStream}; must be closed by caller
+     * @throws IOException when error while email read
+     */
+    public InputStream getMailEMLStream (String bucketName, String key) throws IOException {
+    	return getMailEMLStream(bucketName, key, null);
+    }
+
+    /**
+     * same as {@link #getMailEMLStream(String, String)}, for the version of the email already read in part, 
+     * ex: by a {@link S3RangeInputStream}, so the reader never mixes two objects
      * @param bucketName where the email file is stored
      * @param key name of the email file
-     * @return email file as String
+     * @param eTag ETag of the version to read, sent as If-Match; null for the current version
+     * @return email file as a {@link javax.mail.internet.SharedInputStream}; must be closed by caller
+     * @throws S3RangeInputStream.ObjectChangedException when the email is no longer the version of the ETag
      * @throws IOException when error while email read
      */
-    public String getMailEMLFile (String bucketName, String key) throws IOException {
+    public InputStream getMailEMLStream (String bucketName, String key, String eTag) throws IOException {
     	
     	GetObjectRequest objectRequest = GetObjectRequest.builder()
                 .key(key)
                 .bucket(bucketName)
+                .ifMatch(eTag)
+                .overrideConfiguration(requestOverride())
                 .build(); 
     	
-    	 ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(objectRequest);
-         byte[] data = objectBytes.asByteArray();
-         
-         //logger.debug(new String(data));
-    	    	
-    	return new String(data);
+    	acquirePermit();
+    	try (ResponseInputStream<GetObjectResponse> object = s3Client.getObject(objectRequest)) {
+    		Long contentLength = object.response().contentLength();
+    		
+    		if (contentLength != null && contentLength <= MAX_IN_MEMORY_MAIL_SIZE) {
+    			byte[] data = object.readNBytes(contentLength.intValue());
+    			return new SharedByteArrayInputStream(data);
+    		}
+    		
+    		logger.debug("email streamed to file, size: " + contentLength);
+    		
+    		File mailFile = File.createTempFile("mail-", ".eml");
+    		try {
+    			Files.copy(object, mailFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    			return new SharedFileInputStream(mailFile) {
+    				@Override
+    				public void close() throws IOException {
+    					try {
+    						super.close();
+    					} finally {
+    						// the streams of the mail parts are closed with it
+    						Files.deleteIfExists(mailFile.toPath());
+    					}
+    				}
+    			};
+    		} catch (IOException | RuntimeException e) {
+    			Files.deleteIfExists(mailFile.toPath());
+    			throw e;
+    		}
+    	} catch (S3Exception e) {
+    		// 412: the email was overwritten since the ETag was read
+    		if (e.statusCode() == 412 && eTag != null) {
+    			throw new S3RangeInputStream.ObjectChangedException("s3://" + bucketName + "/" + key + " changed while read, ETag was " + eTag, e);
+    		}
+    		throw e;
+    	} finally {
+    		requestPermits.release();
+    	}
     }
 
+    /**
+     * opens the email file as a stream that is fetched with ranged GET requests, only as far as it is read: 
+     * the first request fetches an adaptive prefix of the object, next requests fetch more only when the reader needs it
+     * @param bucketName where the email file is stored
+     * @param key name of the email file
+     * @return email file as a stream of ranges; must be closed by caller
+     */
+    public S3RangeInputStream getMailEMLRangeStream (String bucketName, String key) {
+    	
+    	S3RangeInputStream[] stream = new S3RangeInputStream[1];
+    	stream[0] = new S3RangeInputStream(s3Client, bucketName, key, getPrefixSize(), 
+    			position -> learnPrefixSize(position, stream[0].getObjectSize()), requestPermits);
+    	stream[0].setHttpClientFactory(httpClientFactory);
+    	
+    	return stream[0];
+    }
+    
+    /**
+     * adapts the size of the first range to the number of bytes the readers needed: a moving average, with a margin of 50%; 
+     * only readers that stopped before the end of the email are considered, they found what they searched
+     * @param position number of bytes read from the email
+     * @param objectSize size of the email
+     */
+    private void learnPrefixSize (long position, Long objectSize) {
+    	
+    	if (objectSize == null || position <= 0 || position >= objectSize) {
+    		return;
+    	}
+    	prefixAverage.updateAndGet(average -> {
+    		long needed = position + position / 2;
+    		return (int) Math.max(MIN_PREFIX_SIZE, Math.min(MAX_PREFIX_SIZE, (3L * average + needed) / 4));
+    	});
+    }
+
+    /**
+     * 
+     * @return timeouts of the next call, within the deadline of the invocation; null when not configured
+     */
+    private AwsRequestOverrideConfiguration requestOverride() {
+    	return (httpClientFactory == null) ? null : httpClientFactory.requestOverride();
+    }
+
+    /**
+     * waits for a permit of the GET requests in flight
+     * @throws InterruptedIOException when the caller is interrupted while waiting, ex: at the deadline of the invocation
+     */
+    private void acquirePermit() throws InterruptedIOException {
+    	try {
+    		requestPermits.acquire();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("interrupted while waiting for an S3 request permit");
+    	}
+    }
+
+	/**
+	 * 
+	 * @return size of the first range of the next email, a multiple of 4 KB
+	 */
+	public int getPrefixSize() {
+		return ((prefixAverage.get() + 4095) / 4096) * 4096;
+	}
+
 	public S3Client getS3Client() {
 		return s3Client;
 	}
@@ -75,6 +249,22 @@ public class S3Service {
 	public void setS3Client(S3Client s3Client) {
 		this.s3Client = s3Client;
 	}
+
+	public HttpClientFactory getHttpClientFactory() {
+		return httpClientFactory;
+	}
+
+	public void setHttpClientFactory(HttpClientFactory httpClientFactory) {
+		this.httpClientFactory = httpClientFactory;
+	}
+
+	public Semaphore getRequestPermits() {
+		return requestPermits;
+	}
+
+	public void setRequestPermits(Semaphore requestPermits) {
+		this.requestPermits = requestPermits;
+	}
     
     
 }
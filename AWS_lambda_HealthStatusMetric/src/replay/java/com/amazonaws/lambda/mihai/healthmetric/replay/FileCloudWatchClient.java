@@ -0,0 +1,152 @@
+package com.amazonaws.lambda.mihai.healthmetric.replay;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * CloudWatch client that writes each datum put as one JSON line in a file, and counts the requests and datums<br>
+ * an optional latency is added to each request, to stand for the network
+ * @author mike
+ *
+ */
+public class FileCloudWatchClient implements CloudWatchClient {
+
+	/**
+	 * response of every request
+	 */
+	private static final PutMetricDataResponse RESPONSE = PutMetricDataResponse.builder().build();
+	/**
+	 * writer of the datum lines; null when the datums are only counted
+	 */
+	private final BufferedWriter out;
+	/**
+	 * time added to each request, in milliseconds
+	 */
+	private final long latencyMillis;
+	/**
+	 * number of PutMetricData requests
+	 */
+	private final AtomicLong requests = new AtomicLong();
+	/**
+	 * number of datums put
+	 */
+	private final AtomicLong datums = new AtomicLong();
+	/**
+	 * number of datums put with value 1.0
+	 */
+	private final AtomicLong healthyDatums = new AtomicLong();
+
+	/**
+	 *
+	 * @param file file of the datum lines, replaced; null to only count the datums
+	 * @param latencyMillis time added to each request, in milliseconds
+	 */
+	public FileCloudWatchClient(Path file, long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+		try {
+			this.out = (file == null) ? null : Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public PutMetricDataResponse putMetricData(PutMetricDataRequest putMetricDataRequest) {
+
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		requests.incrementAndGet();
+
+		for (MetricDatum datum : putMetricDataRequest.metricData()) {
+			datums.incrementAndGet();
+			if (datum.value() != null && datum.value() == 1.0) {
+				healthyDatums.incrementAndGet();
+			}
+			if (out != null) {
+				write(putMetricDataRequest.namespace(), datum);
+			}
+		}
+		return RESPONSE;
+	}
+
+	/**
+	 * writes one datum line: namespace, metric name, value, timestamp, dimensions
+	 * @param namespace CloudWatch namespace
+	 * @param datum metric datum
+	 */
+	private void write(String namespace, MetricDatum datum) {
+
+		Map<String, Object> line = new LinkedHashMap<String, Object>();
+		line.put("namespace", namespace);
+		line.put("metricName", datum.metricName());
+		line.put("value", datum.value());
+		line.put("timestamp", (datum.timestamp() == null) ? null : datum.timestamp().toString());
+		Map<String, String> dimensions = new LinkedHashMap<String, String>();
+		for (Dimension dimension : datum.dimensions()) {
+			dimensions.put(dimension.name(), dimension.value());
+		}
+		line.put("dimensions", dimensions);
+
+		String json = Utils.getObjectAsJson(line);
+		synchronized (out) {
+			try {
+				out.write(json);
+				out.newLine();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getDatums() {
+		return datums.get();
+	}
+
+	public long getHealthyDatums() {
+		return healthyDatums.get();
+	}
+
+	@Override
+	public String serviceName() {
+		return SERVICE_NAME;
+	}
+
+	@Override
+	public void close() {
+		if (out == null) {
+			return;
+		}
+		synchronized (out) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.amazonaws.lambda.mihai.healthmetric.replay;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * S3 client that serves the objects of any bucket from the files of a directory: the key is the file name<br>
+ * GetObject honors the Range header "bytes=start-end" and reads only the range from the file;
+ * an optional latency is added to each request, to stand for the network
+ * @author mike
+ *
+ */
+public class FileS3Client implements S3Client {
+
+	/**
+	 * directory of the objects
+	 */
+	private final Path directory;
+	/**
+	 * time added to each request, in milliseconds
+	 */
+	private final long latencyMillis;
+	/**
+	 * number of GetObject requests
+	 */
+	private final AtomicLong requests = new AtomicLong();
+	/**
+	 * number of object bytes served
+	 */
+	private final AtomicLong servedBytes = new AtomicLong();
+
+	/**
+	 *
+	 * @param directory directory of the objects
+	 * @param latencyMillis time added to each request, in milliseconds
+	 */
+	public FileS3Client(Path directory, long latencyMillis) {
+		this.directory = directory.toAbsolutePath().normalize();
+		this.latencyMillis = latencyMillis;
+	}
+
+	@Override
+	public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest getObjectRequest) {
+
+		Path file = file(getObjectRequest.key());
+		latency();
+		requests.incrementAndGet();
+
+		try (RandomAccessFile object = new RandomAccessFile(file.toFile(), "r")) {
+			long size = object.length();
+			long start = 0;
+			long end = size - 1;
+			String range = getObjectRequest.range();
+
+			if (range != null) {
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				start = Long.parseLong(bounds[0]);
+				if (start >= size) {
+					throw (S3Exception) S3Exception.builder().statusCode(416).message("InvalidRange").build();
+				}
+				if (bounds.length > 1 && !bounds[1].isEmpty()) {
+					end = Math.min(Long.parseLong(bounds[1]), size - 1);
+				}
+			}
+
+			byte[] data = new byte[(int) (end - start + 1)];
+			object.seek(start);
+			object.readFully(data);
+			servedBytes.addAndGet(data.length);
+
+			GetObjectResponse.Builder response = GetObjectResponse.builder().contentLength((long) data.length);
+			if (range != null) {
+				response.contentRange("bytes " + start + "-" + end + "/" + size);
+			}
+			return new ResponseInputStream<GetObjectResponse>(response.build(), new ByteArrayInputStream(data));
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public ResponseBytes<GetObjectResponse> getObjectAsBytes(GetObjectRequest getObjectRequest) {
+
+		Path file = file(getObjectRequest.key());
+		latency();
+		requests.incrementAndGet();
+
+		try {
+			byte[] data = Files.readAllBytes(file);
+			servedBytes.addAndGet(data.length);
+			return ResponseBytes.fromByteArrayUnsafe(GetObjectResponse.builder().contentLength((long) data.length).build(), data);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 *
+	 * @param key object key
+	 * @return file of the object
+	 */
+	private Path file(String key) {
+		Path file = directory.resolve(key).normalize();
+		if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+			throw NoSuchKeyException.builder().message("no object " + key).build();
+		}
+		return file;
+	}
+
+	/**
+	 * waits the configured latency
+	 */
+	private void latency() {
+		if (latencyMillis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(latencyMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getServedBytes() {
+		return servedBytes.get();
+	}
+
+	@Override
+	public String serviceName() {
+		return SERVICE_NAME;
+	}
+
+	@Override
+	public void close() {
+	}
+}
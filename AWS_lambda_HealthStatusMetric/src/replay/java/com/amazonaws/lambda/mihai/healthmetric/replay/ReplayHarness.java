@@ -0,0 +1,372 @@
+package com.amazonaws.lambda.mihai.healthmetric.replay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.joda.time.DateTime;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricChangeFilter;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNS;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNSRecord;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * local replay and load test of {@link LambdaFunctionHandler}: a directory of EML files is replayed as synthetic SNS events,
+ * at a given concurrency and rate, with file backed stand-ins of the S3 and CloudWatch clients, so no network is needed<br>
+ * reports throughput, latency percentiles, allocation per invocation, S3 traffic and the datums put in CloudWatch<br>
+ * with a rate, the latency of an invocation is measured from its planned start, so the time it waited behind slow invocations is counted<br>
+ * all workers share one handler, as if the warm caches of one execution environment served all concurrent invocations
+ * @author mike
+ *
+ */
+public class ReplayHarness {
+
+	/**
+	 * mapper of the synthetic SNS messages
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * directory of the EML files
+	 */
+	private Path mails = Paths.get("src/test/resources");
+	/**
+	 * glob of the EML file names in the directory
+	 */
+	private String pattern = "*";
+	/**
+	 * number of measured invocations
+	 */
+	private int invocations = 1000;
+	/**
+	 * number of invocations run before the measure
+	 */
+	private int warmup = 100;
+	/**
+	 * number of invocations in progress at the same time
+	 */
+	private int concurrency = 1;
+	/**
+	 * invocations started per second; 0 to start each one as soon as a worker is free
+	 */
+	private double rate = 0;
+	/**
+	 * SNS records in each event
+	 */
+	private int records = 1;
+	/**
+	 * time added to each S3 request, in milliseconds
+	 */
+	private long s3Latency = 0;
+	/**
+	 * time added to each CloudWatch request, in milliseconds
+	 */
+	private long cwLatency = 0;
+	/**
+	 * heartbeat of the publish on change mode, in seconds; 0 to put every datum
+	 */
+	private long heartbeat = 0;
+	/**
+	 * true to keep the idempotency cache: the replayed mails are then duplicates after their first invocation
+	 */
+	private boolean dedupe = false;
+	/**
+	 * file of the datums put in CloudWatch, one JSON line each
+	 */
+	private Path metricsOut = Paths.get("target/replay-metrics.jsonl");
+	/**
+	 * file of the report, as JSON
+	 */
+	private Path reportOut = Paths.get("target/replay-report.json");
+
+	/**
+	 * runs the harness; options: --mails dir --pattern glob --invocations n --warmup n --concurrency n --rate per-second
+	 * --records n --s3-latency ms --cw-latency ms --heartbeat s --dedupe --metrics-out file --report file
+	 * @param args options
+	 * @throws Exception when the replay could not run
+	 */
+	public static void main(String[] args) throws Exception {
+
+		ReplayHarness harness = new ReplayHarness();
+		harness.parse(args);
+		Map<String, Object> report = harness.run();
+
+		report.forEach((name, value) -> System.out.println(String.format("%-24s %s", name, value)));
+		Files.writeString(harness.reportOut, Utils.getObjectAsJson(report), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @param args command line options
+	 */
+	private void parse(String[] args) {
+
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if ("--dedupe".equals(option)) {
+				dedupe = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("no value for " + option);
+			}
+			String value = args[++i];
+
+			switch (option) {
+			case "--mails": mails = Paths.get(value); break;
+			case "--pattern": pattern = value; break;
+			case "--invocations": invocations = Integer.parseInt(value); break;
+			case "--warmup": warmup = Integer.parseInt(value); break;
+			case "--concurrency": concurrency = Integer.parseInt(value); break;
+			case "--rate": rate = Double.parseDouble(value); break;
+			case "--records": records = Integer.parseInt(value); break;
+			case "--s3-latency": s3Latency = Long.parseLong(value); break;
+			case "--cw-latency": cwLatency = Long.parseLong(value); break;
+			case "--heartbeat": heartbeat = Long.parseLong(value); break;
+			case "--metrics-out": metricsOut = Paths.get(value); break;
+			case "--report": reportOut = Paths.get(value); break;
+			default: throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+	}
+
+	/**
+	 * replays the mails: warmup, then measured invocations
+	 * @return report of the measured invocations
+	 * @throws Exception when the replay could not run
+	 */
+	private Map<String, Object> run() throws Exception {
+
+		List<String> keys = new ArrayList<String>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(mails, pattern)) {
+			for (Path file : files) {
+				if (Files.isRegularFile(file)) {
+					keys.add(file.getFileName().toString());
+				}
+			}
+		}
+		if (keys.isEmpty()) {
+			throw new IllegalArgumentException("no mail " + pattern + " in " + mails.toAbsolutePath());
+		}
+		keys.sort(null);
+
+		ObjectNode messageTemplate;
+		try (InputStream template = LambdaFunctionHandler.class.getResourceAsStream("/priming/destination-event.json")) {
+			messageTemplate = (ObjectNode) MAPPER.readTree(template);
+		}
+
+		FileS3Client s3Client = new FileS3Client(mails, s3Latency);
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+
+		Files.createDirectories(metricsOut.toAbsolutePath().getParent());
+		FileCloudWatchClient cwClient = new FileCloudWatchClient(metricsOut, cwLatency);
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		if (heartbeat > 0) {
+			cwService.setChangeFilter(new MetricChangeFilter(Duration.ofSeconds(heartbeat)));
+		}
+
+		IdempotencyService idempotencyService = dedupe
+				? new IdempotencyService()
+				: new IdempotencyService(0, IdempotencyService.DEFAULT_TTL, null);
+		LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Service, cwService, idempotencyService);
+
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		try {
+			replay(handler, keys, messageTemplate, workers, warmup, 0, new long[warmup], new AtomicLong());
+
+			long s3Requests = s3Client.getRequests();
+			long s3Bytes = s3Client.getServedBytes();
+			long cwRequests = cwClient.getRequests();
+			long datums = cwClient.getDatums();
+			long healthy = cwClient.getHealthyDatums();
+
+			long[] latencies = new long[invocations];
+			AtomicLong errors = new AtomicLong();
+			long allocatedBefore = allocatedBytes();
+			long startTime = System.nanoTime();
+
+			long eventBytes = replay(handler, keys, messageTemplate, workers, invocations, warmup, latencies, errors);
+
+			long wallNanos = System.nanoTime() - startTime;
+			long allocated = allocatedBytes() - allocatedBefore - eventBytes;
+
+			Arrays.sort(latencies);
+			Map<String, Object> report = new LinkedHashMap<String, Object>();
+			report.put("mails", keys.size());
+			report.put("invocations", invocations);
+			report.put("warmup", warmup);
+			report.put("concurrency", concurrency);
+			report.put("rate", (rate > 0) ? rate + " /s" : "unbounded");
+			report.put("recordsPerEvent", records);
+			report.put("errors", errors.get());
+			report.put("wallSeconds", round(wallNanos / 1e9));
+			report.put("throughput", round(invocations / (wallNanos / 1e9)) + " invocations/s");
+			report.put("latencyP50Ms", round(percentile(latencies, 0.50) / 1e6));
+			report.put("latencyP99Ms", round(percentile(latencies, 0.99) / 1e6));
+			report.put("latencyP999Ms", round(percentile(latencies, 0.999) / 1e6));
+			report.put("latencyMaxMs", round(latencies[latencies.length - 1] / 1e6));
+			report.put("allocationPerInvocationKB", round(allocated / 1024.0 / invocations));
+			report.put("s3Requests", s3Client.getRequests() - s3Requests);
+			report.put("s3BytesPerInvocation", (s3Client.getServedBytes() - s3Bytes) / invocations);
+			report.put("cwRequests", cwClient.getRequests() - cwRequests);
+			report.put("datums", cwClient.getDatums() - datums);
+			report.put("healthyDatums", cwClient.getHealthyDatums() - healthy);
+			report.put("unhealthyDatums", (cwClient.getDatums() - datums) - (cwClient.getHealthyDatums() - healthy));
+			return report;
+
+		} finally {
+			workers.shutdownNow();
+			cwClient.close();
+		}
+	}
+
+	/**
+	 * runs invocations on the workers, paced by the rate
+	 * @param handler handler under test
+	 * @param keys names of the mails
+	 * @param messageTemplate lambda destination event, whose response payload is replaced
+	 * @param workers pool of <code>concurrency</code> threads
+	 * @param count number of invocations
+	 * @param first index of the first invocation, used to pick the mails
+	 * @param latencies receives the latency of each invocation, in nanoseconds
+	 * @param errors counts the invocations that failed
+	 * @return bytes allocated to build the events, not part of the handler allocation
+	 * @throws Exception when a worker could not run
+	 */
+	private long replay(LambdaFunctionHandler handler, List<String> keys, ObjectNode messageTemplate, ExecutorService workers,
+			int count, int first, long[] latencies, AtomicLong errors) throws Exception {
+
+		AtomicLong next = new AtomicLong();
+		AtomicLong eventBytes = new AtomicLong();
+		long intervalNanos = (rate > 0) ? (long) (1e9 / rate) : 0;
+		long startTime = System.nanoTime();
+
+		List<Future<?>> runs = new ArrayList<Future<?>>(concurrency);
+		for (int w = 0; w < concurrency; w++) {
+			runs.add(workers.submit(() -> {
+				TestContext context = new TestContext();
+				context.setFunctionName("SiteHealthStatusMetric");
+
+				for (long i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+					long allocated = threadAllocatedBytes();
+					SNSEvent event = event(keys, messageTemplate, first + i);
+					eventBytes.addAndGet(threadAllocatedBytes() - allocated);
+
+					long plannedStart = startTime + i * intervalNanos;
+					while (System.nanoTime() < plannedStart) {
+						LockSupport.parkNanos(plannedStart - System.nanoTime());
+					}
+					long invocationStart = (intervalNanos > 0) ? plannedStart : System.nanoTime();
+					try {
+						handler.handleRequest(event, context);
+					} catch (RuntimeException e) {
+						errors.incrementAndGet();
+					}
+					latencies[(int) i] = System.nanoTime() - invocationStart;
+				}
+				return null;
+			}));
+		}
+		for (Future<?> run : runs) {
+			run.get();
+		}
+		return eventBytes.get();
+	}
+
+	/**
+	 *
+	 * @param keys names of the mails
+	 * @param messageTemplate lambda destination event, whose response payload is replaced
+	 * @param index index of the invocation
+	 * @return SNS event with <code>records</code> records, each one a new SNS message about the next mail
+	 * @throws IOException when the message could not be written
+	 */
+	private SNSEvent event(List<String> keys, ObjectNode messageTemplate, long index) throws IOException {
+
+		List<SNSRecord> snsRecords = new ArrayList<SNSRecord>(records);
+		for (int r = 0; r < records; r++) {
+			ObjectNode message = messageTemplate.deepCopy();
+			ObjectNode payload = (ObjectNode) message.get("responsePayload");
+			payload.put("s3Bucket", "replay");
+			payload.put("s3Key", keys.get((int) ((index * records + r) % keys.size())));
+
+			SNS sns = new SNS();
+			sns.setMessageId(UUID.randomUUID().toString());
+			sns.setTimestamp(DateTime.now());
+			sns.setMessage(MAPPER.writeValueAsString(message));
+			SNSRecord record = new SNSRecord();
+			record.setSns(sns);
+			snsRecords.add(record);
+		}
+
+		SNSEvent event = new SNSEvent();
+		event.setRecords(snsRecords);
+		return event;
+	}
+
+	/**
+	 *
+	 * @return bytes allocated by all live threads, including the record processors of the handler
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, allocated);
+		}
+		return total;
+	}
+
+	/**
+	 *
+	 * @return bytes allocated by the current thread
+	 */
+	private static long threadAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 *
+	 * @param sorted sorted values
+	 * @param quantile quantile, ex: 0.99
+	 * @return value at the quantile, nearest rank
+	 */
+	private static long percentile(long[] sorted, double quantile) {
+		int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+}
@@ -0,0 +1,148 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.BackfillHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.BackfillCheckpoint;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * checks that the archived emails of a prefix are put at their mail date, in timestamp order, and that a stopped backfill resumes after its checkpoint
+ */
+public class BackfillHandlerTest {
+
+	private static final String BUCKET = "mike-mail-bucket";
+
+	private static final String PREFIX = "archive/";
+
+	/**
+	 * a few days after the mails of the test fixtures, so they are recent enough for CloudWatch
+	 */
+	private static final Clock NOW = Clock.fixed(Instant.parse("2024-11-20T00:00:00Z"), ZoneOffset.UTC);
+
+	@Test
+	@DisplayName("Ensure the mails of the prefix are put at their Date header in timestamp order, other and old mails are skipped")
+	public void testBackfill() throws Exception {
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+
+		BackfillCheckpoint checkpoint;
+		try (BackfillHandler backfill = backfill(archive(), cwClient)) {
+			backfill.setPageSize(2);
+			checkpoint = backfill.run(BUCKET, PREFIX);
+		}
+
+		assertEquals(3, checkpoint.getMails());
+		assertEquals(1, checkpoint.getSkipped(), "not sent by website monitor");
+		assertEquals(1, checkpoint.getTooOld(), "stored more than two weeks ago");
+		assertEquals(3, checkpoint.getDatums());
+		assertEquals(PREFIX + "4-other.eml", checkpoint.getStartAfter());
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, times(2)).putMetricData(requests.capture());
+		List<MetricDatum> datums = new ArrayList<MetricDatum>();
+		requests.getAllValues().forEach(request -> datums.addAll(request.metricData()));
+
+		// the page of back online and still down is put in mail date order, not in key order
+		assertEquals(Instant.parse("2024-11-16T11:47:29Z"), datums.get(0).timestamp());
+		assertEquals(Instant.parse("2024-11-16T12:50:42Z"), datums.get(1).timestamp());
+		assertEquals(0.0, datums.get(1).value());
+		assertEquals(Instant.parse("2024-11-16T12:55:50Z"), datums.get(2).timestamp());
+		assertEquals(1.0, datums.get(2).value());
+	}
+
+	@Test
+	@DisplayName("Ensure a backfill stopped by a failed put resumes after the last page put, without putting it again")
+	public void testResume(@TempDir Path directory) throws Exception {
+
+		Path checkpointFile = directory.resolve("backfill-checkpoint.json");
+		StubS3Client s3Client = archive();
+
+		CloudWatchClient failing = mock(CloudWatchClient.class);
+		when(failing.putMetricData(any(PutMetricDataRequest.class)))
+				.thenReturn(PutMetricDataResponse.builder().build())
+				.thenThrow(new RuntimeException("throttled"));
+		try (BackfillHandler backfill = backfill(s3Client, failing)) {
+			backfill.setPageSize(2);
+			backfill.setCheckpointFile(checkpointFile);
+			assertThrows(RuntimeException.class, () -> backfill.run(BUCKET, PREFIX));
+		}
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		BackfillCheckpoint checkpoint;
+		try (BackfillHandler backfill = backfill(s3Client, cwClient)) {
+			backfill.setPageSize(2);
+			backfill.setCheckpointFile(checkpointFile);
+			checkpoint = backfill.run(BUCKET, PREFIX);
+		}
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, times(1)).putMetricData(requests.capture());
+		assertEquals(2, requests.getValue().metricData().size(), "only the page not put");
+		assertEquals(3, checkpoint.getMails());
+		assertEquals(3, checkpoint.getDatums());
+		assertEquals(2, checkpoint.getRequests());
+	}
+
+	/**
+	 *
+	 * @return archive of 3 website monitor mails, a mail of another sender and a mail stored too long ago, and a mail outside of the prefix
+	 */
+	private static StubS3Client archive() throws Exception {
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject(PREFIX + "0-old.eml", fixture("jetpack_down.txt"), Instant.parse("2024-10-01T00:00:00Z"));
+		s3Client.putObject(PREFIX + "1-down.eml", fixture("jetpack_down.txt"), Instant.parse("2024-11-16T11:47:30Z"));
+		s3Client.putObject(PREFIX + "2-back.eml", fixture("jetpack_back_online.txt"), Instant.parse("2024-11-16T12:55:51Z"));
+		s3Client.putObject(PREFIX + "3-still.eml", fixture("jetpack_still_down.txt"), Instant.parse("2024-11-16T12:50:43Z"));
+		s3Client.putObject(PREFIX + "4-other.eml", ("From: someone@example.com\r\nDate: Sat, 16 Nov 2024 13:00:00 +0000\r\n"
+				+ "Content-Type: text/plain\r\n\r\nError reference: 214785651/server\r\n").getBytes(StandardCharsets.US_ASCII), Instant.parse("2024-11-16T13:00:01Z"));
+		s3Client.putObject("inbox/5-new.eml", fixture("jetpack_down.txt"), Instant.parse("2024-11-19T00:00:00Z"));
+		return s3Client;
+	}
+
+	private static byte[] fixture(String name) throws Exception {
+		return TestUtils.readStreamFromProjectResource("src/test/resources/" + name).readAllBytes();
+	}
+
+	private static BackfillHandler backfill(StubS3Client s3Client, CloudWatchClient cwClient) {
+
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+
+		BackfillHandler backfill = new BackfillHandler(s3Service, cwService, 4);
+		backfill.setClock(NOW);
+		return backfill;
+	}
+}
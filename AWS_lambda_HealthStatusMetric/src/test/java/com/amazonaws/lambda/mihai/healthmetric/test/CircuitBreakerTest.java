@@ -0,0 +1,152 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.CircuitBreaker;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.cloudwatch.model.CloudWatchException;
+
+/**
+ * checks the states of the circuit: one probe when half open, the open time doubled by each failed probe up to the longest one,
+ * throttling opening the circuit at once, and which failures count
+ */
+public class CircuitBreakerTest {
+
+	private static final Instant START = Instant.parse("2024-11-19T08:40:23Z");
+
+	private static final Exception UNAVAILABLE = CloudWatchException.builder().message("Service Unavailable").statusCode(503).build();
+
+	@Test
+	@DisplayName("Ensure the circuit opens after the threshold of failures, and half open it lets a single probe through")
+	public void testHalfOpenProbe() {
+
+		CircuitBreaker breaker = breaker(START);
+		assertTrue(breaker.allowRequest());
+		breaker.onFailure(UNAVAILABLE);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "one failure is under the threshold");
+		breaker.onFailure(UNAVAILABLE);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+
+		breaker.setClock(at(START.plusMillis(1000)));
+		assertTrue(breaker.allowRequest(), "the probe");
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(), "a single probe at a time");
+		assertFalse(breaker.allowRequest());
+
+		breaker.onSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getFailures());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	@DisplayName("Ensure each failed probe doubles the open time up to the longest one, and a success resets it")
+	public void testBackoff() {
+
+		CircuitBreaker breaker = breaker(START);
+		breaker.setFailureThreshold(1);
+		breaker.setMaxOpenMillis(4000);
+
+		// the open time is between half of it and all of it (equal jitter)
+		Instant now = START;
+		breaker.onFailure(UNAVAILABLE);
+		now = assertOpen(breaker, now, 1000);
+		breaker.onFailure(UNAVAILABLE);
+		now = assertOpen(breaker, now, 2000);
+		breaker.onFailure(UNAVAILABLE);
+		now = assertOpen(breaker, now, 4000);
+		breaker.onFailure(UNAVAILABLE);
+		now = assertOpen(breaker, now, 4000);
+
+		breaker.onSuccess();
+		breaker.onFailure(UNAVAILABLE);
+		assertOpen(breaker, now, 1000);
+	}
+
+	@Test
+	@DisplayName("Ensure throttling opens the circuit at the first failure")
+	public void testThrottling() {
+
+		CircuitBreaker throttled = breaker(START);
+		throttled.onFailure(CloudWatchException.builder().message("Rate exceeded")
+				.awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").build()).statusCode(400).build());
+		assertEquals(CircuitBreaker.State.OPEN, throttled.getState());
+		assertFalse(throttled.allowRequest());
+
+		CircuitBreaker tooMany = breaker(START);
+		tooMany.onFailure(new CompletionException(CloudWatchException.builder().message("Too Many Requests").statusCode(429).build()));
+		assertEquals(CircuitBreaker.State.OPEN, tooMany.getState(), "found in the causes");
+	}
+
+	@Test
+	@DisplayName("Ensure only throttling, server errors, timeouts and network errors are retryable")
+	public void testRetryable() {
+
+		assertTrue(CircuitBreaker.isRetryable(UNAVAILABLE));
+		assertTrue(CircuitBreaker.isRetryable(CloudWatchException.builder().message("Too Many Requests").statusCode(429).build()));
+		assertTrue(CircuitBreaker.isRetryable(ApiCallTimeoutException.create(1000)));
+		assertTrue(CircuitBreaker.isRetryable(new CompletionException(SdkClientException.create("Connection reset"))));
+
+		assertFalse(CircuitBreaker.isRetryable(CloudWatchException.builder().message("The value NaN is not valid")
+				.awsErrorDetails(AwsErrorDetails.builder().errorCode("InvalidParameterValue").build()).statusCode(400).build()));
+		assertFalse(CircuitBreaker.isRetryable(CloudWatchException.builder().message("Access Denied").statusCode(403).build()));
+		assertFalse(CircuitBreaker.isRetryable(new IllegalStateException("bug")));
+	}
+
+	@Test
+	@DisplayName("Ensure a setting that is not a number falls back to its default instead of failing the cold start")
+	public void testMalformedSetting() {
+
+		System.setProperty("health.metric.breaker.failures", "five");
+		System.setProperty("health.metric.breaker.max.open.millis", "60000");
+		try {
+			CircuitBreaker breaker = CircuitBreaker.fromEnvironment();
+			assertEquals(new CircuitBreaker().getFailureThreshold(), breaker.getFailureThreshold());
+			assertEquals(60000, breaker.getMaxOpenMillis(), "the other settings are kept");
+		} finally {
+			System.clearProperty("health.metric.breaker.failures");
+			System.clearProperty("health.metric.breaker.max.open.millis");
+		}
+	}
+
+	/**
+	 * checks the circuit is open at least half of the open time, and lets a probe through at its end
+	 * @return moment of the probe
+	 */
+	private static Instant assertOpen(CircuitBreaker breaker, Instant now, long openMillis) {
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		breaker.setClock(at(now.plusMillis(openMillis / 2 - 1)));
+		assertFalse(breaker.allowRequest(), "open at least " + (openMillis / 2) + " ms");
+		Instant probe = now.plusMillis(openMillis);
+		breaker.setClock(at(probe));
+		assertTrue(breaker.allowRequest(), "open at most " + openMillis + " ms");
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		return probe;
+	}
+
+	private static CircuitBreaker breaker(Instant now) {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setBaseOpenMillis(1000);
+		breaker.setClock(at(now));
+		return breaker;
+	}
+
+	private static Clock at(Instant now) {
+		return Clock.fixed(now, ZoneOffset.UTC);
+	}
+}
@@ -0,0 +1,122 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * checks how the datums are packed in PutMetricData requests
+ */
+public class CloudWatchServiceTest {
+
+	@Test
+	@DisplayName("Ensure a burst of datums is sent in requests of at most 1000 datums")
+	public void testBatchByCount() throws Exception {
+
+		CloudWatchClient cwClient = mockClient();
+		CloudWatchService cwService = service(cwClient);
+
+		List<MailStatus> statuses = new ArrayList<MailStatus>();
+		for (int i = 0; i < 2500; i++) {
+			MailStatus status = new MailStatus();
+			status.setHealthy(i % 2 == 0);
+			statuses.add(status);
+		}
+		assertEquals(2500, cwService.putHealthStatusData(statuses).size(), "all put");
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, times(3)).putMetricData(requests.capture());
+		assertEquals(1000, requests.getAllValues().get(0).metricData().size());
+		assertEquals(1000, requests.getAllValues().get(1).metricData().size());
+		assertEquals(500, requests.getAllValues().get(2).metricData().size());
+		assertEquals("MIKE/Route53", requests.getAllValues().get(2).namespace());
+	}
+
+	@Test
+	@DisplayName("Ensure requests stay under 1 MB when datums are big")
+	public void testBatchBySize() throws Exception {
+
+		CloudWatchClient cwClient = mockClient();
+		CloudWatchService cwService = service(cwClient);
+
+		Map<String, String> dimensions = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 30; i++) {
+			dimensions.put("dimension" + i, "x".repeat(250));
+		}
+		List<MailStatus> statuses = new ArrayList<MailStatus>();
+		for (int i = 0; i < 300; i++) {
+			MailStatus status = new MailStatus();
+			status.setHealthy(Boolean.TRUE);
+			status.setDimensions(dimensions);
+			statuses.add(status);
+		}
+		cwService.putHealthStatusData(statuses);
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, Mockito.atLeast(2)).putMetricData(requests.capture());
+
+		int sent = 0;
+		for (PutMetricDataRequest request : requests.getAllValues()) {
+			assertTrue(formEncodedSize(request) <= CloudWatchService.MAX_REQUEST_BYTES, "request size");
+			sent += request.metricData().size();
+		}
+		assertEquals(300, sent);
+	}
+
+	private static CloudWatchClient mockClient() {
+		CloudWatchClient cwClient = Mockito.mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(Mockito.any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		return cwClient;
+	}
+
+	private static CloudWatchService service(CloudWatchClient cwClient) {
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		return cwService;
+	}
+
+	/**
+	 * size of the query protocol payload of the request, as sent by the SDK
+	 */
+	private static long formEncodedSize(PutMetricDataRequest request) {
+		long size = "Action=PutMetricData&Version=2010-08-01&Namespace=".length() + request.namespace().length();
+		int index = 1;
+		for (MetricDatum datum : request.metricData()) {
+			String prefix = "&MetricData.member." + index + ".";
+			size += prefix.length() + "MetricName=".length() + datum.metricName().length();
+			size += prefix.length() + "Unit=".length() + datum.unitAsString().length();
+			size += prefix.length() + "Value=".length() + String.valueOf(datum.value()).length();
+			int dimensionIndex = 1;
+			for (Dimension dimension : datum.dimensions()) {
+				size += 2 * (prefix.length() + ("Dimensions.member." + dimensionIndex + ".Value=").length());
+				size += dimension.name().length() + dimension.value().length();
+				dimensionIndex++;
+			}
+			index++;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,120 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Iterator;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.EmfMetricPublisher;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+
+/**
+ * checks the Embedded Metric Format lines written for the health metric
+ */
+public class EmfMetricPublisherTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final String EXPECTED_UNHEALTHY = "{\"_aws\":{\"Timestamp\":1731757649000,\"CloudWatchMetrics\":[{\"Namespace\":\"MIKE/Route53\","
+			+ "\"Dimensions\":[[\"HostedZoneId\"]],\"Metrics\":[{\"Name\":\"ExternalHealthCheckStatus\",\"Unit\":\"Count\"}]}]},"
+			+ "\"HostedZoneId\":\"Z04702051WDZH2C7LSLUO\",\"ExternalHealthCheckStatus\":0.0}\n";
+
+	@Test
+	@DisplayName("Ensure the health metric is written as one valid EMF line in EMF mode")
+	public void testEmfLine() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EmfMetricPublisher publisher = new EmfMetricPublisher();
+		publisher.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+		publisher.setClock(Clock.fixed(Instant.ofEpochMilli(1731757649000L), ZoneOffset.UTC));
+
+		CloudWatchClient cwClient = Mockito.mock(CloudWatchClient.class);
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.EMF);
+		cwService.setEmfPublisher(publisher);
+
+		cwService.putHealthStatusData(Boolean.FALSE);
+
+		String emf = out.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n");
+		assertEquals(EXPECTED_UNHEALTHY, emf, "EMF line byte for byte");
+		assertValidEmf(mapper.readTree(emf));
+		Mockito.verifyNoInteractions(cwClient);
+	}
+
+	@Test
+	@DisplayName("Ensure datum timestamp is kept in EMF line")
+	public void testEmfTimestamp() throws Exception {
+
+		CloudWatchService cwService = new CloudWatchService();
+		EmfMetricPublisher publisher = new EmfMetricPublisher();
+
+		String emf = publisher.toEmf("MIKE/Route53", cwService.buildHealthStatusDatum(Boolean.TRUE, Instant.ofEpochMilli(1731761750000L)));
+
+		JsonNode root = mapper.readTree(emf);
+		assertValidEmf(root);
+		assertEquals(1731761750000L, root.get("_aws").get("Timestamp").asLong());
+		assertEquals(1.0, root.get("ExternalHealthCheckStatus").asDouble());
+	}
+
+	/**
+	 * checks the rules of the EMF specification schema
+	 * @param root EMF line as JSON tree
+	 */
+	private static void assertValidEmf(JsonNode root) {
+
+		assertTrue(root.isObject(), "root is an object");
+		JsonNode aws = root.get("_aws");
+		assertTrue(aws != null && aws.isObject(), "_aws is an object");
+		assertTrue(aws.get("Timestamp").isIntegralNumber() && aws.get("Timestamp").asLong() >= 0, "Timestamp is epoch millis");
+
+		JsonNode directives = aws.get("CloudWatchMetrics");
+		assertTrue(directives.isArray() && directives.size() > 0, "CloudWatchMetrics is a non empty array");
+
+		for (JsonNode directive : directives) {
+			String namespace = directive.get("Namespace").asText();
+			assertTrue(directive.get("Namespace").isTextual() && !namespace.isBlank() && namespace.length() <= 1024, "Namespace");
+
+			JsonNode dimensionSets = directive.get("Dimensions");
+			assertTrue(dimensionSets.isArray(), "Dimensions is an array");
+			for (JsonNode dimensionSet : dimensionSets) {
+				assertTrue(dimensionSet.isArray() && dimensionSet.size() <= 30, "DimensionSet has at most 30 dimensions");
+				for (JsonNode dimension : dimensionSet) {
+					assertTrue(dimension.isTextual() && dimension.asText().length() <= 250, "dimension name");
+					assertTrue(root.get(dimension.asText()).isTextual(), "dimension value is a root string member");
+				}
+			}
+
+			JsonNode metrics = directive.get("Metrics");
+			assertTrue(metrics.isArray() && metrics.size() > 0 && metrics.size() <= 100, "Metrics has 1 to 100 definitions");
+			for (JsonNode metric : metrics) {
+				String name = metric.get("Name").asText();
+				assertTrue(!name.isEmpty() && name.length() <= 1024, "metric name");
+				assertTrue(root.get(name).isNumber(), "metric value is a root number member");
+				if (metric.has("Unit")) {
+					assertTrue(StandardUnit.fromValue(metric.get("Unit").asText()) != StandardUnit.UNKNOWN_TO_SDK_VERSION, "Unit");
+				}
+				for (Iterator<String> fields = metric.fieldNames(); fields.hasNext();) {
+					String field = fields.next();
+					assertTrue("Name".equals(field) || "Unit".equals(field) || "StorageResolution".equals(field), "MetricDefinition member " + field);
+				}
+			}
+		}
+	}
+}
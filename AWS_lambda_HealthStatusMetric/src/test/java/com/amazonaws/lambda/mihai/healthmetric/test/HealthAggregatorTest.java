@@ -0,0 +1,115 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthPolicy;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthAggregator;
+
+/**
+ * checks the debounced verdicts of the sliding window, and the snapshot of the state
+ */
+public class HealthAggregatorTest {
+
+	private static final long MINUTE = 60_000;
+
+	@Test
+	@DisplayName("Ensure a site is down only after N of M failures lasting the minimum duration, or at once for an immediate status")
+	public void testVerdicts() {
+
+		HealthPolicy policy = new HealthPolicy();
+		policy.setWindow(4);
+		policy.setFailuresToDown(2);
+		policy.setMinDownDuration(Duration.ofMinutes(5));
+		policy.setSuccessesToUp(2);
+		HealthAggregator aggregator = new HealthAggregator(policy);
+
+		assertTrue(aggregator.offer("a", "intermittent", false, 0), "one blip");
+		assertTrue(aggregator.offer("a", "success", true, 1 * MINUTE));
+		assertTrue(aggregator.offer("a", "intermittent", false, 2 * MINUTE), "2 of 4, but not for 5 minutes");
+		assertTrue(aggregator.offer("a", "intermittent", false, 4 * MINUTE), "down for 2 minutes only");
+		assertFalse(aggregator.offer("a", "intermittent", false, 7 * MINUTE), "down for 5 minutes");
+		assertFalse(aggregator.offer("a", "intermittent", false, 6 * MINUTE), "older than the window, ignored");
+
+		assertFalse(aggregator.offer("a", "success", true, 8 * MINUTE), "one success of two");
+		assertTrue(aggregator.offer("a", "success", true, 9 * MINUTE), "back up");
+
+		assertFalse(aggregator.offer("b", "server", false, 0), "immediate status");
+		assertNull(aggregator.getVerdict("c"));
+	}
+
+	@Test
+	@DisplayName("Ensure the statuses of one invocation are aggregated in mail date order, and each site gets one verdict")
+	public void testAggregate() {
+
+		HealthPolicy policy = new HealthPolicy();
+		policy.setWindow(3);
+		policy.setFailuresToDown(2);
+		HealthAggregator aggregator = new HealthAggregator(policy);
+
+		Map<String, MailStatus> verdicts = aggregator.aggregate(List.of(
+				status("a", "intermittent", false, 2 * MINUTE),
+				status("b", "success", true, 0),
+				status("a", "intermittent", false, 1 * MINUTE)));
+
+		assertEquals(2, verdicts.size());
+		assertEquals(Boolean.FALSE, verdicts.get("a").getHealthy());
+		assertEquals(new Date(2 * MINUTE), verdicts.get("a").getMailDate(), "verdict of the newest status");
+		assertEquals(Boolean.TRUE, verdicts.get("b").getHealthy());
+
+		// a retried event does not count the same statuses twice
+		verdicts = aggregator.aggregate(List.of(status("b", "client", false, 0)));
+		assertEquals(Boolean.TRUE, verdicts.get("b").getHealthy());
+	}
+
+	@Test
+	@DisplayName("Ensure the state survives a new execution environment through its snapshot")
+	public void testSnapshot() {
+
+		HealthPolicy policy = new HealthPolicy();
+		policy.setWindow(3);
+		policy.setFailuresToDown(2);
+
+		HealthAggregator aggregator = new HealthAggregator(policy);
+		aggregator.offer("a", "success", true, 0);
+		aggregator.offer("a", "intermittent", false, 1 * MINUTE);
+		byte[] snapshot = aggregator.snapshot();
+		assertTrue(snapshot.length < 64, "compact: " + snapshot.length + " bytes");
+
+		HealthAggregator restarted = new HealthAggregator(policy);
+		restarted.restore(snapshot);
+		assertEquals(Boolean.TRUE, restarted.getVerdict("a"));
+		assertFalse(restarted.offer("a", "intermittent", false, 2 * MINUTE), "second failure of the window");
+		assertFalse(restarted.offer("a", "intermittent", false, 1 * MINUTE), "old status ignored");
+
+		// a shorter window keeps the newest statuses
+		policy.setWindow(1);
+		HealthAggregator shorter = new HealthAggregator(policy);
+		shorter.restore(restarted.snapshot());
+		assertFalse(shorter.getVerdict("a"));
+		assertTrue(shorter.offer("a", "success", true, 3 * MINUTE));
+
+		shorter.restore(null);
+		assertNull(shorter.getVerdict("a"), "no state");
+	}
+
+	private static MailStatus status(String siteId, String status, boolean healthy, long at) {
+		MailStatus mailStatus = new MailStatus();
+		mailStatus.setSiteId(siteId);
+		mailStatus.setStatus(status);
+		mailStatus.setHealthy(healthy);
+		mailStatus.setMailDate(new Date(at));
+		return mailStatus;
+	}
+}
@@ -0,0 +1,184 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HealthState;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteHealthState;
+import com.amazonaws.lambda.mihai.healthmetric.service.FileHealthStateStore;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateService;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateStore;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3HealthStateStore;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * checks that concurrent instances never lose an update of the health state, and that a warm instance reads it from memory
+ */
+public class HealthStateServiceTest {
+
+	@Test
+	@DisplayName("Ensure concurrent instances sharing the store never lose an update")
+	public void testConcurrentUpdates(@TempDir Path directory) throws Exception {
+
+		Path file = directory.resolve("health-state.json");
+		int instances = 4;
+		int updates = 20;
+
+		ExecutorService executor = Executors.newFixedThreadPool(instances);
+		try {
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			for (int i = 0; i < instances; i++) {
+				String instance = "instance-" + i;
+				// each instance has its own cache, as an execution environment
+				HealthStateService service = new HealthStateService(new FileHealthStateStore(file));
+				service.setMaxAttempts(1000);
+				done.add(executor.submit(() -> {
+					for (int update = 0; update < updates; update++) {
+						String siteId = instance + "-" + update;
+						MailStatus status = status(siteId, update % 2 == 0);
+						service.update(state -> {
+							state.site(siteId).record(status, 1000L);
+							return state;
+						});
+					}
+				}));
+			}
+			for (Future<?> instance : done) {
+				instance.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		HealthState state = new FileHealthStateStore(file).read().getState();
+		assertEquals(instances * updates, state.getSites().size(), "no update lost");
+	}
+
+	@Test
+	@DisplayName("Ensure a warm instance reads the store once, and reads it again only after a conflict")
+	public void testWriteThroughCache(@TempDir Path directory) {
+
+		Path file = directory.resolve("health-state.json");
+		AtomicInteger reads = new AtomicInteger();
+		FileHealthStateStore fileStore = new FileHealthStateStore(file);
+		HealthStateStore counting = new HealthStateStore() {
+			@Override
+			public Stored read() {
+				reads.incrementAndGet();
+				return fileStore.read();
+			}
+
+			@Override
+			public String write(HealthState state, String version) {
+				return fileStore.write(state, version);
+			}
+		};
+		HealthStateService service = new HealthStateService(counting);
+
+		service.update(state -> {
+			state.site("a").record(status("a", false), 1000);
+			return state;
+		});
+		service.update(state -> {
+			state.site("a").record(status("a", false), 2000);
+			state.site("a").published(2000);
+			return state;
+		});
+		assertEquals(1, reads.get(), "the state written is cached");
+		SiteHealthState site = service.read().getSites().get("a");
+		assertEquals(Boolean.FALSE, site.getHealthy());
+		assertEquals(2000, site.getLastPublishedAt());
+
+		// another instance writes: the cached version is stale
+		new HealthStateService(new FileHealthStateStore(file)).update(state -> {
+			state.site("b").record(status("b", true), 3000);
+			return state;
+		});
+		HealthState state = service.update(current -> {
+			current.site("a").record(status("a", true), 4000);
+			return current;
+		});
+		assertEquals(2, reads.get(), "one read after the conflict");
+		assertEquals(2, state.getSites().size());
+		assertEquals(Boolean.TRUE, state.getSites().get("a").getHealthy());
+	}
+
+	@Test
+	@DisplayName("Ensure the S3 store writes with If-Match the ETag read, or If-None-Match for a new object, and reports a conflict")
+	public void testS3ConditionalWrite() {
+
+		S3Client s3Client = mock(S3Client.class);
+		when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class)))
+				.thenReturn(PutObjectResponse.builder().eTag("\"v1\"").build())
+				.thenThrow(S3Exception.builder().statusCode(412).message("At least one of the pre-conditions you specified did not hold").build());
+		S3HealthStateStore store = new S3HealthStateStore(s3Client, "bucket", S3HealthStateStore.DEFAULT_KEY);
+
+		assertEquals("\"v1\"", store.write(new HealthState(), null));
+		assertNull(store.write(new HealthState(), "\"v0\""), "conflict");
+
+		ArgumentCaptor<PutObjectRequest> requests = ArgumentCaptor.forClass(PutObjectRequest.class);
+		verify(s3Client, times(2)).putObject(requests.capture(), any(RequestBody.class));
+		assertEquals("*", requests.getAllValues().get(0).ifNoneMatch());
+		assertEquals(List.of("\"v0\""), requests.getAllValues().get(1).overrideConfiguration().get().headers().get("If-Match"));
+	}
+
+	@Test
+	@DisplayName("Ensure the S3 client is built at the first write, and closed and built again after a restore")
+	public void testS3ClientRenewed() {
+
+		List<S3Client> built = new ArrayList<S3Client>();
+		S3HealthStateStore store = new S3HealthStateStore(() -> {
+			S3Client s3Client = mock(S3Client.class);
+			when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenReturn(PutObjectResponse.builder().eTag("\"v1\"").build());
+			built.add(s3Client);
+			return s3Client;
+		}, "bucket", S3HealthStateStore.DEFAULT_KEY);
+		HealthStateService service = new HealthStateService(store);
+
+		service.renewClients();
+		assertEquals(0, built.size(), "nothing to renew before the first call");
+
+		store.write(new HealthState(), null);
+		service.renewClients();
+		verify(built.get(0)).close();
+		assertEquals(1, built.size(), "the new client is built by the next call");
+
+		store.write(new HealthState(), "\"v1\"");
+		assertEquals(2, built.size());
+		verify(built.get(1)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+	}
+
+	private static MailStatus status(String siteId, boolean healthy) {
+		MailStatus status = new MailStatus();
+		status.setSiteId(siteId);
+		status.setStatus(healthy ? "success" : "intermittent");
+		status.setHealthy(healthy);
+		status.setMailDate(new Date(0));
+		return status;
+	}
+}
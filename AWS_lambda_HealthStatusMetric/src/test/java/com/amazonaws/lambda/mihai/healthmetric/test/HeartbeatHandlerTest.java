@@ -0,0 +1,117 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.HeartbeatHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.FileHealthStateStore;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateService;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricChangeFilter;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * checks that the scheduled heartbeat puts again the status of the sites without emails for a heartbeat interval, and only of them
+ */
+public class HeartbeatHandlerTest {
+
+	private static final Instant START = Instant.parse("2024-11-19T08:40:23Z");
+
+	private static final Duration HEARTBEAT = Duration.ofMinutes(10);
+
+	@Test
+	@DisplayName("Ensure a site without emails for a heartbeat interval is published again once, with the dimensions of its rule")
+	public void testHeartbeat(@TempDir Path directory) {
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		cwService.setChangeFilter(new MetricChangeFilter(HEARTBEAT));
+
+		HealthStateService healthStateService = new HealthStateService(new FileHealthStateStore(directory.resolve("health-state.json")));
+		MailStatus status = new MailStatus();
+		status.setSiteId("214785651");
+		status.setStatus("server");
+		status.setHealthy(Boolean.FALSE);
+		status.setMailDate(Date.from(START));
+		healthStateService.update(state -> {
+			state.site(status.getSiteId()).record(status, START.toEpochMilli());
+			state.site(status.getSiteId()).published(START.toEpochMilli());
+			return state;
+		});
+
+		HeartbeatHandler handler = new HeartbeatHandler(HEARTBEAT, healthStateService, cwService);
+		handler.setClock(Clock.fixed(START.plus(HEARTBEAT).minusSeconds(1), ZoneOffset.UTC));
+		assertEquals("republished : 0", handler.handleRequest(new ScheduledEvent(), new TestContext()));
+		verify(cwClient, never()).putMetricData(any(PutMetricDataRequest.class));
+
+		handler.setClock(Clock.fixed(START.plus(HEARTBEAT), ZoneOffset.UTC));
+		assertEquals("republished : 1", handler.handleRequest(new ScheduledEvent(), new TestContext()));
+		assertEquals("republished : 0", handler.handleRequest(new ScheduledEvent(), new TestContext()), "claimed by the first invocation");
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, times(1)).putMetricData(requests.capture());
+		MetricDatum datum = requests.getValue().metricData().get(0);
+		assertEquals(0.0, datum.value());
+		assertEquals("HostedZoneId", datum.dimensions().get(0).name());
+		assertEquals(START.plus(HEARTBEAT).toEpochMilli(), healthStateService.read().getSites().get("214785651").getLastPublishedAt());
+	}
+
+	@Test
+	@DisplayName("Ensure a warm heartbeat sees the sites written by other instances after its first read")
+	public void testStateWrittenAfterFirstRead(@TempDir Path directory) {
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+
+		Path file = directory.resolve("health-state.json");
+		HeartbeatHandler handler = new HeartbeatHandler(HEARTBEAT, new HealthStateService(new FileHealthStateStore(file)), cwService);
+		handler.setClock(Clock.fixed(START, ZoneOffset.UTC));
+		assertEquals("republished : 0", handler.handleRequest(new ScheduledEvent(), new TestContext()), "nothing stored yet");
+
+		// the email handler of another instance
+		MailStatus status = new MailStatus();
+		status.setSiteId("214785651");
+		status.setStatus("success");
+		status.setHealthy(Boolean.TRUE);
+		new HealthStateService(new FileHealthStateStore(file)).update(state -> {
+			state.site(status.getSiteId()).record(status, START.toEpochMilli());
+			state.site(status.getSiteId()).published(START.toEpochMilli());
+			return state;
+		});
+
+		handler.setClock(Clock.fixed(START.plus(HEARTBEAT), ZoneOffset.UTC));
+		assertEquals("republished : 1", handler.handleRequest(new ScheduledEvent(), new TestContext()));
+		verify(cwClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
+	}
+}
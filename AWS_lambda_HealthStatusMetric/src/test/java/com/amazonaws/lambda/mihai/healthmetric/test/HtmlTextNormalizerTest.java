@@ -0,0 +1,85 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.HtmlTextNormalizer;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+
+/**
+ * checks that html is turned into lines of plain text, whatever the size of the pieces it is fed in
+ */
+public class HtmlTextNormalizerTest {
+
+	private static final String HTML = "<!DOCTYPE html><html><head><title>Site&nbsp;down</title>"
+			+ "<style>p { color: #333; } /* </p> */</style><script>if (a < b) { x = '<p>'; }</script></head>\n"
+			+ "<body><!-- Error reference: 1/success --><p class=\"status\" data-x='a>b'>Your   site\n is <b>down</b> &amp; "
+			+ "&#x201C;unreachable&#8221;</p>\n"
+			+ "<div>Error reference:<br/></div><p>Error&#32;reference: <b>214785651</b>&#x2F;<span>server</span></p>"
+			+ "<table><tr><td>a</td><td>b</td></tr></table><p>1 &lt; 2 &unknown; a < b</p></body></html>";
+
+	private static final List<String> LINES = Arrays.asList(
+			"Site down",
+			"Your site is down & “unreachable”",
+			"Error reference:",
+			"Error reference: 214785651/server",
+			"a b",
+			"1 < 2 &unknown; a < b");
+
+	@Test
+	@DisplayName("Ensure tags, comments, script and style are stripped, entities decoded and whitespace collapsed, for any piece size")
+	public void testNormalize() {
+
+		for (int piece : new int[] {1, 3, 7, HTML.length()}) {
+			List<String> lines = new ArrayList<String>();
+			HtmlTextNormalizer normalizer = new HtmlTextNormalizer(line -> {
+				lines.add(line.toString());
+				return false;
+			});
+			for (int start = 0; start < HTML.length(); start += piece) {
+				normalizer.feed(HTML, start, Math.min(HTML.length(), start + piece));
+			}
+			normalizer.finish();
+
+			assertEquals(LINES, lines, "piece of " + piece);
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure the status of an html only mail is found by the scanner and by the text extraction")
+	public void testHtmlOnlyMail() throws Exception {
+
+		String eml = "From: Jetpack Support <support+monitor@jetpack.com>\r\n"
+				+ "Content-Type: text/html; charset=us-ascii\r\n"
+				+ "Content-Transfer-Encoding: quoted-printable\r\n\r\n"
+				+ "<p style=3D\"color: #333;\">Your site is down.</p>\r\n"
+				+ "<p>Error reference: <strong>214785651</strong>&#47;<a href=3D\"https://jetpack.com=\r\n"
+				+ "/support\">intermittent</a></p>\r\n";
+		byte[] data = eml.getBytes(StandardCharsets.US_ASCII);
+
+		StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+		assertEquals(ScanResult.FOUND, new MimeStatusScanner(new ByteArrayInputStream(data)).scan(matcher));
+		assertEquals("214785651", matcher.getSiteId());
+		assertEquals("intermittent", matcher.getStatus());
+
+		String text = MailFilter.extractTextContent(new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(data)));
+		assertEquals("Your site is down.\nError reference: 214785651/intermittent\n", text);
+		assertFalse(text.contains("<"));
+	}
+}
@@ -0,0 +1,95 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientFactory;
+import com.amazonaws.lambda.mihai.healthmetric.service.HttpClientType;
+
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+
+/**
+ * checks the shared HTTP client and the timeouts of the calls
+ */
+public class HttpClientFactoryTest {
+
+	@Test
+	@DisplayName("Ensure one HTTP client is shared until renewed, and a client not packaged falls back to Apache")
+	public void testSharedHttpClient() {
+
+		HttpClientFactory factory = new HttpClientFactory();
+		assertEquals(HttpClientType.APACHE, factory.getType(), "the client always packaged");
+		assertNull(factory.getBuiltType(), "built on first use");
+
+		SdkHttpClient httpClient = factory.getHttpClient();
+		assertSame(httpClient, factory.getHttpClient());
+		assertEquals(HttpClientType.APACHE, factory.getBuiltType());
+
+		assertSame(httpClient, factory.renewHttpClient());
+		SdkHttpClient renewed = factory.getHttpClient();
+		assertNotSame(httpClient, renewed);
+		httpClient.close();
+		renewed.close();
+
+		// only apache-client is packaged in the test environment
+		factory = new HttpClientFactory();
+		factory.setType(HttpClientType.CRT);
+		factory.getHttpClient().close();
+		assertEquals(HttpClientType.APACHE, factory.getBuiltType());
+	}
+
+	@Test
+	@DisplayName("Ensure the timeouts of a call are bounded by the deadline of the invocation")
+	public void testRequestOverride() {
+
+		HttpClientFactory factory = new HttpClientFactory();
+		factory.setCallTimeoutMillis(8000);
+		factory.setCallAttemptTimeoutMillis(3000);
+		factory.setMaxAttempts(2);
+
+		ClientOverrideConfiguration client = factory.getOverrideConfiguration();
+		assertEquals(Duration.ofMillis(8000), client.apiCallTimeout().get());
+		assertEquals(Duration.ofMillis(3000), client.apiCallAttemptTimeout().get());
+		assertNull(factory.requestOverride(), "no deadline before the first invocation");
+
+		factory.startInvocation(60_000);
+		AwsRequestOverrideConfiguration request = factory.requestOverride();
+		assertEquals(Duration.ofMillis(8000), request.apiCallTimeout().get());
+		assertEquals(Duration.ofMillis(3000), request.apiCallAttemptTimeout().get());
+
+		factory.startInvocation(2000);
+		request = factory.requestOverride();
+		assertTrue(request.apiCallTimeout().get().toMillis() <= 2000);
+		assertTrue(request.apiCallAttemptTimeout().get().toMillis() <= 2000);
+
+		factory.startInvocation(-500);
+		request = factory.requestOverride();
+		assertEquals(Duration.ofMillis(HttpClientFactory.MIN_CALL_TIMEOUT_MILLIS), request.apiCallTimeout().get());
+	}
+
+	@Test
+	@DisplayName("Ensure a setting that is not a number falls back to its default instead of failing the construction of the clients")
+	public void testMalformedSetting() {
+
+		System.setProperty("health.metric.http.max.connections", "24 connections");
+		System.setProperty("health.metric.http.call.timeout.millis", "5000");
+		try {
+			HttpClientFactory factory = HttpClientFactory.build();
+			assertEquals(HttpClientFactory.DEFAULT_MAX_CONNECTIONS, factory.getMaxConnections());
+			assertEquals(5000, factory.getCallTimeoutMillis(), "the other settings are kept");
+		} finally {
+			System.clearProperty("health.metric.http.max.connections");
+			System.clearProperty("health.metric.http.call.timeout.millis");
+		}
+	}
+}
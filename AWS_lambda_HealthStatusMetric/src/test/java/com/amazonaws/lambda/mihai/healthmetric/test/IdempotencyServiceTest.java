@@ -0,0 +1,103 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.ProcessedMail;
+import com.amazonaws.lambda.mihai.healthmetric.service.FileIdempotencyStore;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+
+/**
+ * checks the memory and durable tiers of the idempotency layer
+ */
+public class IdempotencyServiceTest {
+
+	private static final Instant NOW = Instant.parse("2024-11-19T08:40:23Z");
+
+	@TempDir
+	Path storeDir;
+
+	@Test
+	@DisplayName("Ensure the memory tier keeps the most recently used keys and forgets expired ones")
+	public void testLruAndTtl() {
+
+		IdempotencyService service = new IdempotencyService(2, Duration.ofMinutes(10), null);
+		service.setClock(Clock.fixed(NOW, ZoneOffset.UTC));
+
+		service.save(mail("sns:1"));
+		service.save(mail("sns:2"));
+		assertNotNull(service.find("sns:1"));
+
+		// sns:2 is the least recently used
+		service.save(mail("sns:3"));
+		assertEquals(2, service.size());
+		assertNull(service.find("sns:2"));
+		assertNotNull(service.find("sns:1"));
+		assertTrue(service.find("sns:3").isDuplicate());
+
+		service.setClock(Clock.fixed(NOW.plus(Duration.ofMinutes(10)), ZoneOffset.UTC));
+		assertNull(service.find("sns:1"));
+		assertNull(service.find("sns:3"));
+		assertEquals(0, service.size());
+	}
+
+	@Test
+	@DisplayName("Ensure the durable tier answers a new execution environment, until the record expires")
+	public void testFileStore() {
+
+		IdempotencyService service = new IdempotencyService(10, Duration.ofHours(6), new FileIdempotencyStore(storeDir));
+		service.setClock(Clock.fixed(NOW, ZoneOffset.UTC));
+		ProcessedMail saved = ProcessedMail.build(Arrays.asList("sns:1", "s3:bucket/key"), Collections.singletonList(status()));
+		service.save(saved);
+
+		IdempotencyService restarted = new IdempotencyService(10, Duration.ofHours(6), new FileIdempotencyStore(storeDir));
+		restarted.setClock(Clock.fixed(NOW.plus(Duration.ofHours(1)), ZoneOffset.UTC));
+
+		ProcessedMail found = restarted.find("s3:bucket/key");
+		assertNotNull(found);
+		assertTrue(found.isDuplicate());
+		assertEquals(saved.getKeys(), found.getKeys());
+		MailStatus status = found.getStatuses().get(0);
+		assertEquals("214785651", status.getSiteId());
+		assertEquals("server", status.getStatus());
+		assertEquals(Boolean.FALSE, status.getHealthy());
+		assertEquals(Date.from(NOW), status.getMailDate());
+		assertEquals("Z04702051WDZH2C7LSLUO", status.getDimensions().get("HostedZoneId"));
+		assertEquals(1, restarted.size());
+
+		IdempotencyService later = new IdempotencyService(10, Duration.ofHours(6), new FileIdempotencyStore(storeDir));
+		later.setClock(Clock.fixed(NOW.plus(Duration.ofHours(7)), ZoneOffset.UTC));
+		assertNull(later.find("sns:1"));
+		assertNull(new FileIdempotencyStore(storeDir).get("sns:1"), "expired record removed");
+	}
+
+	private static ProcessedMail mail(String key) {
+		return ProcessedMail.build(Collections.singletonList(key), Collections.singletonList(status()));
+	}
+
+	private static MailStatus status() {
+		MailStatus status = new MailStatus();
+		status.setSiteId("214785651");
+		status.setStatus("server");
+		status.setHealthy(Boolean.FALSE);
+		status.setMailDate(Date.from(NOW));
+		status.setDimensions(Collections.singletonMap("HostedZoneId", "Z04702051WDZH2C7LSLUO"));
+		return status;
+	}
+}
@@ -1,27 +1,45 @@
 package com.amazonaws.lambda.mihai.healthmetric.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 
+import com.amazonaws.lambda.mihai.healthmetric.handler.HeartbeatHandler;
 import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
 import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
 import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
 import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
 import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.FileHealthStateStore;
+import com.amazonaws.lambda.mihai.healthmetric.service.HealthStateService;
+import com.amazonaws.lambda.mihai.healthmetric.service.IdempotencyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.LazyService;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricChangeFilter;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
 import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
 import com.amazonaws.lambda.mihai.healthmetric.test.data.CloudWatchData;
 import com.amazonaws.lambda.mihai.healthmetric.test.data.S3Data;
@@ -30,11 +48,15 @@ import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.LambdaDestinationEvent;
 import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent.SNSRecord;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
 import com.amazonaws.services.lambda.runtime.serialization.PojoSerializer;
 import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
 
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 
 /**
  * A simple test harness for locally invoking your Lambda function handler.
@@ -148,6 +170,196 @@ public class LambdaFunctionHandlerTest {
     	assertEquals("healthy : true", response, "should be healthy");
 
     }
+    @Test
+    @DisplayName("Ensure all records of an event are processed and the newest status is put once")
+    public void testBatchLambdaFunctionHandler()  throws IOException {
+    	
+    	SNSEvent event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+    	List<SNSRecord> records = new ArrayList<SNSRecord>();
+    	
+    	for (String key : new String[] {"jetpack_down.txt", "jetpack_back_online.txt", "jetpack_still_down.txt"}) {
+    		SNSEvent recordEvent = TestUtils.parse("/sns-event.json", SNSEvent.class);
+    		
+	        FilteredMail mail = new FilteredMail();
+	        mail.setS3Key(key);
+	        mail.setS3Bucket("ses-received-mail-mihaiadam");
+	        MailFilter filter = new MailFilter();
+	        mail.setFilter(filter);
+	        filter.setField("FROM");
+	        filter.setModifier("CONTAINS");
+	        filter.setValue("@jetpack");
+	        
+	        alterPrototypeEvent (recordEvent, mail);
+	        records.add(recordEvent.getRecords().get(0));
+    	}
+    	event.setRecords(records);
+    	
+    	String response = handler.handleRequest(event, createContext());
+    	
+    	System.out.println("TEST RESP: " + response);
+    	assertEquals("healthy : true", response, "newest mail is back online");
+    	
+    	ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+    	Mockito.verify(cwClient, Mockito.times(1)).putMetricData(request.capture());
+    	assertEquals(1, request.getValue().metricData().size(), "one datum for the only site");
+    	assertEquals(1.0, request.getValue().metricData().get(0).value(), "newest status is healthy");
+    }
+    
+    @Test
+    @DisplayName("Ensure a duplicate delivery is answered from the idempotency cache, without reading the mail or putting the metric again")
+    public void testDuplicateLambdaFunctionHandler()  throws IOException {
+    	
+    	SNSEvent event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+    	
+        FilteredMail mail = new FilteredMail();
+        mail.setS3Key("jetpack_down.txt");
+        mail.setS3Bucket("ses-received-mail-mihaiadam");
+        MailFilter filter = new MailFilter();
+        mail.setFilter(filter);
+        filter.setField("FROM");
+        filter.setModifier("CONTAINS");
+        filter.setValue("@jetpack");
+            	
+        alterPrototypeEvent (event, mail);
+    	
+    	assertEquals("healthy : false", handler.handleRequest(event, createContext()), "should be unhealthy");
+    	Mockito.verify(s3Client, Mockito.atLeastOnce()).getObject(Mockito.any(GetObjectRequest.class));
+    	Mockito.verify(cwClient, Mockito.times(1)).putMetricData(Mockito.any(PutMetricDataRequest.class));
+    	Mockito.clearInvocations(s3Client, cwClient);
+    	
+    	// same SNS message delivered again
+    	assertEquals("healthy : false", handler.handleRequest(event, createContext()), "cached result");
+    	
+    	// same mail in a new SNS message, ex: the filter was retried
+    	event.getRecords().get(0).getSNS().setMessageId("8cd4f099-3967-64ff-ad63-c74f8a72d399");
+    	assertEquals("healthy : false", handler.handleRequest(event, createContext()), "cached result");
+    	
+    	Mockito.verifyNoInteractions(s3Client, cwClient);
+    }
+    
+    @Test
+    @DisplayName("Ensure the Services are built only for an event that needs them, and only once")
+    public void testLazyServicesLambdaFunctionHandler()  throws IOException {
+    	
+    	AtomicInteger s3Builds = new AtomicInteger();
+    	AtomicInteger cwBuilds = new AtomicInteger();
+    	LambdaFunctionHandler lazyHandler = new LambdaFunctionHandler(
+    			new LazyService<S3Service>(() -> {
+    				s3Builds.incrementAndGet();
+    				return s3Service;
+    			}),
+    			new LazyService<CloudWatchService>(() -> {
+    				cwBuilds.incrementAndGet();
+    				return cwService;
+    			}),
+    			new IdempotencyService());
+    	
+    	SNSEvent event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+        FilteredMail mail = new FilteredMail();
+        mail.setS3Key("jetpack_down.txt");
+        mail.setS3Bucket("ses-received-mail-mihaiadam");
+        MailFilter filter = new MailFilter();
+        mail.setFilter(filter);
+        filter.setField("FROM");
+        filter.setModifier("CONTAINS");
+        filter.setValue("@example.com");
+        alterPrototypeEvent (event, mail);
+        
+        assertThrows(RuntimeException.class, () -> lazyHandler.handleRequest(event, createContext()), "not for this processor");
+        assertEquals(0, s3Builds.get() + cwBuilds.get(), "no Service built for an invalid event");
+        
+        filter.setValue("@jetpack");
+        alterPrototypeEvent (event, mail);
+        assertEquals("healthy : false", lazyHandler.handleRequest(event, createContext()), "should be unhealthy");
+        
+        event.getRecords().get(0).getSNS().setMessageId("8cd4f099-3967-64ff-ad63-c74f8a72d399");
+        mail.setS3Key("jetpack_back_online.txt");
+        alterPrototypeEvent (event, mail);
+        assertEquals("healthy : true", lazyHandler.handleRequest(event, createContext()), "should be healthy");
+        
+        assertEquals(1, s3Builds.get(), "S3 Service built once");
+        assertEquals(1, cwBuilds.get(), "CloudWatch Service built once");
+    }
+    
+    @Test
+    @DisplayName("Ensure a mail not sent by website monitor, ex: forwarded, is skipped without failing the invocation, and not read again")
+    public void testForwardedLambdaFunctionHandler()  throws IOException {
+    	
+    	SNSEvent event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+        FilteredMail mail = new FilteredMail();
+        mail.setS3Key("forwarded_down.txt");
+        mail.setS3Bucket("ses-received-mail-mihaiadam");
+        MailFilter filter = new MailFilter();
+        mail.setFilter(filter);
+        filter.setField("FROM");
+        filter.setModifier("CONTAINS");
+        filter.setValue("@jetpack");
+        alterPrototypeEvent (event, mail);
+        
+        assertEquals("", handler.handleRequest(event, createContext()), "no status");
+        Mockito.verifyNoInteractions(cwClient);
+        Mockito.clearInvocations(s3Client);
+        
+        assertEquals("", handler.handleRequest(event, createContext()), "cached result");
+        Mockito.verifyNoInteractions(s3Client, cwClient);
+    }
+    
+    @Test
+    @DisplayName("Ensure a status dropped by publish on change does not count as published: the heartbeat puts the site again in time")
+    public void testSuppressedThenHeartbeatLambdaFunctionHandler(@TempDir Path directory)  throws IOException {
+    	
+    	Instant start = Instant.parse("2024-11-19T08:40:23Z");
+    	Duration heartbeat = Duration.ofMinutes(10);
+    	MetricChangeFilter changeFilter = new MetricChangeFilter(heartbeat);
+    	cwService.setPublishMode(PublishMode.API);
+    	cwService.setChangeFilter(changeFilter);
+    	HealthStateService healthStateService = new HealthStateService(new FileHealthStateStore(directory.resolve("health-state.json")));
+    	handler.setHealthStateService(healthStateService);
+    	
+    	SNSEvent event = TestUtils.parse("/sns-event.json", SNSEvent.class);
+        FilteredMail mail = new FilteredMail();
+        mail.setS3Key("jetpack_down.txt");
+        mail.setS3Bucket("ses-received-mail-mihaiadam");
+        MailFilter filter = new MailFilter();
+        mail.setFilter(filter);
+        filter.setField("FROM");
+        filter.setModifier("CONTAINS");
+        filter.setValue("@jetpack");
+        alterPrototypeEvent (event, mail);
+        
+        handler.setClock(Clock.fixed(start, ZoneOffset.UTC));
+        changeFilter.setClock(Clock.fixed(start, ZoneOffset.UTC));
+        assertEquals("healthy : false", handler.handleRequest(event, createContext()), "should be unhealthy");
+        
+        // same health status: not put
+        Instant unchanged = start.plus(heartbeat.dividedBy(2));
+        handler.setClock(Clock.fixed(unchanged, ZoneOffset.UTC));
+        changeFilter.setClock(Clock.fixed(unchanged, ZoneOffset.UTC));
+        event.getRecords().get(0).getSNS().setMessageId("8cd4f099-3967-64ff-ad63-c74f8a72d399");
+        mail.setS3Key("jetpack_still_down.txt");
+        alterPrototypeEvent (event, mail);
+        assertEquals("healthy : false", handler.handleRequest(event, createContext()), "should be unhealthy");
+        Mockito.verify(cwClient, Mockito.times(1)).putMetricData(Mockito.any(PutMetricDataRequest.class));
+        assertEquals(start.toEpochMilli(), healthStateService.read().getSites().get("214785651").getLastPublishedAt(), "the put of the first mail");
+        
+        CloudWatchService heartbeatCwService = new CloudWatchService();
+        heartbeatCwService.setCwClient(cwClient);
+        heartbeatCwService.setPublishMode(PublishMode.API);
+        HeartbeatHandler heartbeatHandler = new HeartbeatHandler(heartbeat, healthStateService, heartbeatCwService);
+        heartbeatHandler.setClock(Clock.fixed(start.plus(heartbeat), ZoneOffset.UTC));
+        assertEquals("republished : 1", heartbeatHandler.handleRequest(new ScheduledEvent(), createContext()), "a heartbeat after the last put");
+        Mockito.verify(cwClient, Mockito.times(2)).putMetricData(Mockito.any(PutMetricDataRequest.class));
+    }
+    
+    @Test
+    @DisplayName("Ensure priming runs the hot path without calling AWS services")
+    public void testPrimeLambdaFunctionHandler()  throws Exception {
+    	
+    	handler.prime();
+    	
+    	Mockito.verifyNoInteractions(s3Client, cwClient);
+    }
+    
     /**
      * 
      * @param event prototype event
@@ -0,0 +1,79 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.LazyService;
+
+/**
+ * checks that a Service is built once, whoever asks for it first
+ */
+public class LazyServiceTest {
+
+	@Test
+	@DisplayName("Ensure concurrent callers and a background start share one build")
+	public void testBuildOnce() throws Exception {
+
+		AtomicInteger builds = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		LazyService<Object> holder = new LazyService<Object>(() -> {
+			builds.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return new Object();
+		});
+
+		holder.start();
+		assertNull(holder.getIfBuilt(), "build in progress");
+
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Object>> services = new ArrayList<Future<Object>>();
+			for (int i = 0; i < 8; i++) {
+				services.add(callers.submit(holder::get));
+			}
+			release.countDown();
+			for (Future<Object> service : services) {
+				assertSame(holder.get(), service.get());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+		assertEquals(1, builds.get());
+		assertSame(holder.get(), holder.getIfBuilt());
+	}
+
+	@Test
+	@DisplayName("Ensure a failed build is tried again by the next caller")
+	public void testRetryAfterFailure() {
+
+		AtomicInteger builds = new AtomicInteger();
+		LazyService<String> holder = new LazyService<String>(() -> {
+			if (builds.incrementAndGet() == 1) {
+				throw new IllegalStateException("no credentials");
+			}
+			return "service";
+		});
+
+		assertThrows(IllegalStateException.class, holder::get);
+		assertNull(holder.getIfBuilt());
+		assertEquals("service", holder.get());
+		assertEquals(2, builds.get());
+	}
+}
@@ -0,0 +1,144 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilterSet;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+/**
+ * checks the compiled mail filters on the headers of the website monitor mails
+ */
+public class MailFilterTest {
+
+	private static final String HEADERS = "From: Jetpack Support <support+monitor@jetpack.com>\r\n"
+			+ "To: contact@mihaiadam.com, Other <other@example.com>\r\n"
+			+ "Subject: =?UTF-8?B?8J+UtCBtaWhhaWFkYW0uY29tIGlzIGRvd24=?=\r\n\r\n";
+
+	@Test
+	@DisplayName("Ensure FROM, TO and SUBJECT filters work with both modifiers")
+	public void testFields() throws Exception {
+
+		InternetHeaders headers = headers(HEADERS);
+
+		assertTrue(filter("FROM", "CONTAINS", "@jetpack").filtered(headers), "address contains value");
+		assertTrue(filter("FROM", "CONTAINS", "JETPACK SUPPORT").filtered(headers), "personal name, case insensitive");
+		assertFalse(filter("FROM", "CONTAINS", "support+monitor@jetpack.com.evil").filtered(headers), "value is not searched in address");
+		assertTrue(filter("FROM", "EXACT", "Support+Monitor@jetpack.com").filtered(headers));
+		assertFalse(filter("FROM", "EXACT", "@jetpack").filtered(headers));
+
+		assertTrue(filter("TO", "EXACT", "other@example.com").filtered(headers), "any recipient");
+		assertTrue(filter("TO", "CONTAINS", "mihaiadam").filtered(headers));
+		assertFalse(filter("TO", "CONTAINS", "jetpack").filtered(headers));
+
+		assertTrue(filter("SUBJECT", "CONTAINS", "is down").filtered(headers), "decoded subject");
+		assertTrue(filter("SUBJECT", "EXACT", "🔴 mihaiadam.com is down").filtered(headers));
+		assertFalse(filter("SUBJECT", "EXACT", "mihaiadam.com is down").filtered(headers));
+
+		assertFalse(filter("CC", "CONTAINS", "x").filtered(headers), "unknown field selects nothing");
+	}
+
+	@Test
+	@DisplayName("Ensure filter sets compose with AND and OR")
+	public void testFilterSet() throws Exception {
+
+		InternetHeaders headers = headers(HEADERS);
+
+		MailFilterSet and = new MailFilterSet();
+		and.setFilters(Arrays.asList(filter("FROM", "CONTAINS", "@jetpack"), filter("SUBJECT", "CONTAINS", "is down")));
+		assertTrue(and.filtered(headers));
+
+		MailFilterSet or = new MailFilterSet();
+		or.setOperator(MailFilterSet.OPERATOR_OR);
+		or.setFilters(Arrays.asList(filter("FROM", "CONTAINS", "@telegraph"), filter("SUBJECT", "CONTAINS", "back online")));
+		assertFalse(or.filtered(headers));
+
+		and.setSets(Arrays.asList(or));
+		assertFalse(and.filtered(headers), "nested OR set fails");
+
+		or.setFilters(Arrays.asList(filter("FROM", "CONTAINS", "@telegraph"), filter("TO", "EXACT", "contact@mihaiadam.com")));
+		assertTrue(and.filtered(headers), "nested OR set passes");
+
+		and.setOperator(MailFilterSet.OPERATOR_OR);
+		and.setFilters(Arrays.asList(filter("FROM", "CONTAINS", "@telegraph")));
+		and.setSets(Arrays.asList());
+		assertFalse(and.filtered(headers), "compiled again after a change");
+	}
+
+	@Test
+	@DisplayName("Ensure equal filters share one compiled predicate and only headers are read")
+	public void testCompiledOnce() throws Exception {
+
+		assertSame(filter("FROM", "CONTAINS", "@jetpack").compile(), filter("FROM", "CONTAINS", "@jetpack").compile());
+		// filters of the events beyond the compiled ones still work, without being kept
+		for (int i = 0; i < 100; i++) {
+			assertFalse(filter("SUBJECT", "EXACT", "subject " + i).filtered(headers(HEADERS)));
+		}
+		assertTrue(filter("SUBJECT", "CONTAINS", "is down").filtered(headers(HEADERS)));
+
+		for (String mail : new String[] {"jetpack_down.txt", "jetpack_still_down.txt", "jetpack_back_online.txt"}) {
+			byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/" + mail).readAllBytes();
+
+			// the body is cut: a filter that decodes it would fail
+			int bodyStart = new String(eml, StandardCharsets.ISO_8859_1).indexOf("\n\n");
+			assertTrue(bodyStart > 0, mail);
+			InputStream headersOnly = new ByteArrayInputStream(eml, 0, bodyStart + 2);
+			assertTrue(filter("FROM", "CONTAINS", "@jetpack").filtered(new InternetHeaders(headersOnly)), mail);
+
+			MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(eml));
+			assertEquals(Boolean.TRUE, filter("FROM", "CONTAINS", "@jetpack").filtered(message), mail);
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure filters share a selection key only when they select the same emails, the value compared as the match compares it")
+	public void testSelectionKey() throws Exception {
+
+		InternetHeaders headers = headers(HEADERS);
+
+		assertTrue(LambdaFunctionHandler.isProcessorFilter("FROM", "CONTAINS", "@Jetpack"), "the event filter selects the same emails");
+		assertFalse(LambdaFunctionHandler.isProcessorFilter("FROM", "CONTAINS", "jetpack"));
+		assertFalse(LambdaFunctionHandler.isProcessorFilter("FROM", "EXACT", "@jetpack"));
+
+		assertEquals(filter("FROM", "CONTAINS", "@jetpack").selectionKey(), filter("FROM", "CONTAINS", "@JetPack").selectionKey());
+		assertSame(filter("FROM", "CONTAINS", "@jetpack").compile(), filter("FROM", "CONTAINS", "@JetPack").compile());
+		assertEquals(filter("TO", "EXACT", "contact@mihaiadam.com").selectionKey(), filter("TO", "EXACT", "Contact@MihaiAdam.com").selectionKey());
+		assertTrue(filter("TO", "EXACT", "Contact@MihaiAdam.com").filtered(headers), "addresses ignore case");
+
+		assertNotEquals(filter("SUBJECT", "EXACT", "🔴 mihaiadam.com is down").selectionKey(), filter("SUBJECT", "EXACT", "🔴 MihaiAdam.com is down").selectionKey());
+		assertFalse(filter("SUBJECT", "EXACT", "🔴 MihaiAdam.com is down").filtered(headers), "exact subject is case sensitive");
+
+		assertNotEquals(filter("FROM", "CONTAINS", "@jetpack").selectionKey(), filter("FROM", "EXACT", "@jetpack").selectionKey());
+		assertNotEquals(filter("FROM", "CONTAINS", "@jetpack").selectionKey(), filter("TO", "CONTAINS", "@jetpack").selectionKey());
+	}
+
+	private static MailFilter filter(String field, String modifier, String value) {
+		MailFilter filter = new MailFilter();
+		filter.setField(field);
+		filter.setModifier(modifier);
+		filter.setValue(value);
+		return filter;
+	}
+
+	private static InternetHeaders headers(String headers) throws Exception {
+		return new InternetHeaders(new ByteArrayInputStream(headers.getBytes(StandardCharsets.US_ASCII)));
+	}
+}
@@ -0,0 +1,120 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricChangeFilter;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.CloudWatchException;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * checks that the health metric is put only on a transition, or when the heartbeat interval expired
+ */
+public class MetricChangeFilterTest {
+
+	private static final Instant START = Instant.parse("2024-11-19T08:40:23Z");
+
+	private static final Duration HEARTBEAT = Duration.ofMinutes(5);
+
+	private CloudWatchClient cwClient = Mockito.mock(CloudWatchClient.class);
+
+	@Test
+	@DisplayName("Ensure only transitions are put while the heartbeat interval runs")
+	public void testTransitions() {
+
+		CloudWatchService cwService = service(new MetricChangeFilter(HEARTBEAT), START);
+
+		Boolean[] storm = {Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, Boolean.TRUE, Boolean.TRUE, Boolean.FALSE, Boolean.FALSE};
+		for (int i = 0; i < storm.length; i++) {
+			cwService.getChangeFilter().setClock(Clock.fixed(START.plusSeconds(10 * i), ZoneOffset.UTC));
+			cwService.putHealthStatusData(storm[i]);
+		}
+
+		assertEquals(List.of(0.0, 1.0, 0.0), putValues());
+	}
+
+	@Test
+	@DisplayName("Ensure an unchanged value is put again when the heartbeat interval expired, and each site is a series of its own")
+	public void testHeartbeat() {
+
+		CloudWatchService cwService = service(new MetricChangeFilter(HEARTBEAT), START);
+
+		cwService.putHealthStatusData(List.of(status("site-a", true), status("site-b", false)));
+		cwService.getChangeFilter().setClock(Clock.fixed(START.plus(HEARTBEAT).minusSeconds(1), ZoneOffset.UTC));
+		cwService.putHealthStatusData(List.of(status("site-a", true), status("site-b", false)));
+		cwService.getChangeFilter().setClock(Clock.fixed(START.plus(HEARTBEAT), ZoneOffset.UTC));
+		cwService.putHealthStatusData(List.of(status("site-a", true)));
+
+		assertEquals(List.of(1.0, 0.0, 1.0), putValues());
+	}
+
+	@Test
+	@DisplayName("Ensure a cold filter puts the first value, and a failed put is not remembered")
+	public void testColdCacheAndFailure() {
+
+		// a new execution environment knows nothing about the values put by the old one
+		CloudWatchService cwService = service(new MetricChangeFilter(HEARTBEAT), START);
+		cwService.putHealthStatusData(Boolean.FALSE);
+		CloudWatchService restarted = service(new MetricChangeFilter(HEARTBEAT), START.plusSeconds(10));
+		restarted.putHealthStatusData(Boolean.FALSE);
+		assertEquals(List.of(0.0, 0.0), putValues());
+
+		Mockito.reset(cwClient);
+		when(cwClient.putMetricData(Mockito.any(PutMetricDataRequest.class)))
+				.thenThrow(CloudWatchException.builder().message("Throttling").build())
+				.thenReturn(PutMetricDataResponse.builder().build());
+		assertThrows(CloudWatchException.class, () -> restarted.putHealthStatusData(Boolean.TRUE));
+		restarted.putHealthStatusData(Boolean.TRUE);
+		assertEquals(List.of(1.0, 1.0), putValues());
+	}
+
+	private CloudWatchService service(MetricChangeFilter changeFilter, Instant now) {
+
+		when(cwClient.putMetricData(Mockito.any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		changeFilter.setClock(Clock.fixed(now, ZoneOffset.UTC));
+
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		cwService.setChangeFilter(changeFilter);
+		return cwService;
+	}
+
+	private List<Double> putValues() {
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		Mockito.verify(cwClient, Mockito.atLeast(0)).putMetricData(requests.capture());
+
+		List<Double> values = new ArrayList<Double>();
+		requests.getAllValues().forEach(request -> request.metricData().forEach(datum -> values.add(datum.value())));
+		return values;
+	}
+
+	private static MailStatus status(String siteId, boolean healthy) {
+		MailStatus status = new MailStatus();
+		status.setSiteId(siteId);
+		status.setHealthy(healthy);
+		status.setDimensions(Collections.singletonMap("SiteId", siteId));
+		return status;
+	}
+}
@@ -0,0 +1,255 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.lambda.mihai.healthmetric.service.CircuitBreaker;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.MetricJournal;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.CloudWatchException;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * checks that the datums not put survive in the journal, a torn record included, and are put later in timestamp order, 
+ * that an open circuit stops the calls to a failing CloudWatch, and that the datums rejected by CloudWatch are quarantined
+ */
+public class MetricJournalTest {
+
+	private static final Instant START = Instant.parse("2024-11-19T08:40:23Z");
+
+	@Test
+	@DisplayName("Ensure the journaled datums are replayed oldest first within the batch budget, and a torn last record is ignored")
+	public void testReplay(@TempDir Path directory) throws Exception {
+
+		MetricJournal journal = journal(directory);
+		journal.append("MIKE/Route53", List.of(datum(1.0, START.plusSeconds(20)), datum(0.0, START)));
+		journal.append("MIKE/Other", List.of(datum(1.0, START.plusSeconds(10))));
+		// an append cut by the end of the execution environment
+		Files.write(journal.getFile(), new byte[] {0, 0, 0, 40, 1, 0}, StandardOpenOption.APPEND);
+
+		List<String> namespaces = new ArrayList<String>();
+		List<MetricDatum> replayed = new ArrayList<MetricDatum>();
+		assertEquals(2, journal.replay(1, (namespace, batch) -> {
+			namespaces.add(namespace);
+			replayed.addAll(batch);
+		}));
+		assertEquals(List.of("MIKE/Route53"), namespaces);
+		assertEquals(START, replayed.get(0).timestamp());
+		assertEquals(START.plusSeconds(20), replayed.get(1).timestamp());
+		assertEquals(datum(1.0, START.plusSeconds(20)), replayed.get(1), "name, unit, value and dimensions kept");
+		assertFalse(journal.isEmpty(), "the batch over the budget stays");
+
+		assertEquals(1, journal.replay(5, (namespace, batch) -> namespaces.add(namespace)));
+		assertEquals(List.of("MIKE/Route53", "MIKE/Other"), namespaces);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	@DisplayName("Ensure a failing CloudWatch does not fail the put, opens the circuit, and the journal is replayed when a probe succeeds")
+	public void testCircuitBreaker(@TempDir Path directory) {
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class)))
+				.thenThrow(CloudWatchException.builder().message("Service Unavailable").statusCode(503).build());
+
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setClock(Clock.fixed(START, ZoneOffset.UTC));
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		cwService.setJournal(journal(directory));
+		cwService.setBreaker(breaker);
+
+		cwService.putHealthStatusData(Boolean.FALSE);
+		cwService.flush();
+		cwService.putHealthStatusData(Boolean.FALSE);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		cwService.putHealthStatusData(Boolean.TRUE);
+		cwService.flush();
+		verify(cwClient, times(2)).putMetricData(any(PutMetricDataRequest.class));
+
+		// after the longest open time, the next put probes CloudWatch, then the journal follows
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class))).thenReturn(PutMetricDataResponse.builder().build());
+		breaker.setClock(Clock.fixed(START.plusSeconds(61), ZoneOffset.UTC));
+		cwService.putHealthStatusData(Boolean.TRUE);
+		cwService.flush();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		verify(cwClient, times(4)).putMetricData(requests.capture());
+		List<MetricDatum> replayed = requests.getAllValues().get(3).metricData();
+		assertEquals(3, replayed.size());
+		assertEquals(List.of(0.0, 0.0, 1.0), List.of(replayed.get(0).value(), replayed.get(1).value(), replayed.get(2).value()));
+		assertTrue(replayed.stream().allMatch(datum -> datum.timestamp() != null), "put at the moment of the status, not of the replay");
+		assertTrue(cwService.getJournal().isEmpty());
+	}
+
+	@Test
+	@DisplayName("Ensure a put rejected by CloudWatch is quarantined, not journaled, and does not open the circuit")
+	public void testRejectedPut(@TempDir Path directory) throws Exception {
+
+		CloudWatchClient cwClient = mock(CloudWatchClient.class);
+		when(cwClient.putMetricData(any(PutMetricDataRequest.class)))
+				.thenThrow(CloudWatchException.builder().message("The value NaN is not valid").statusCode(400).build());
+
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setClock(Clock.fixed(START, ZoneOffset.UTC));
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+		cwService.setJournal(journal(directory));
+		cwService.setBreaker(breaker);
+
+		cwService.putHealthStatusData(Boolean.FALSE);
+		cwService.putHealthStatusData(Boolean.FALSE);
+		cwService.putHealthStatusData(Boolean.FALSE);
+		cwService.flush();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getFailures());
+		verify(cwClient, times(3)).putMetricData(any(PutMetricDataRequest.class));
+		assertTrue(cwService.getJournal().isEmpty(), "not replayed, it would be rejected again");
+		assertTrue(Files.size(cwService.getJournal().getQuarantineFile()) > 0);
+	}
+
+	@Test
+	@DisplayName("Ensure a replayed batch rejected by CloudWatch is quarantined, and the batches after it are still put")
+	public void testRejectedReplay(@TempDir Path directory) throws Exception {
+
+		MetricJournal journal = journal(directory);
+		journal.append("MIKE/Rejected", List.of(datum(0.0, START)));
+		journal.append("MIKE/Route53", List.of(datum(1.0, START.plusSeconds(10))));
+
+		List<String> namespaces = new ArrayList<String>();
+		assertEquals(1, journal.replay(5, (namespace, batch) -> {
+			namespaces.add(namespace);
+			if (namespace.equals("MIKE/Rejected")) {
+				throw CloudWatchException.builder().message("The value NaN is not valid").statusCode(400).build();
+			}
+		}));
+		assertEquals(List.of("MIKE/Rejected", "MIKE/Route53"), namespaces);
+		assertTrue(journal.isEmpty());
+		assertTrue(Files.size(journal.getQuarantineFile()) > 0);
+
+		// a throttled batch stops the replay and stays
+		journal.append("MIKE/Route53", List.of(datum(1.0, START.plusSeconds(20))));
+		assertThrows(CloudWatchException.class, () -> journal.replay(5, (namespace, batch) -> {
+			throw CloudWatchException.builder().message("Too Many Requests").statusCode(429).build();
+		}));
+		assertFalse(journal.isEmpty());
+	}
+
+	@Test
+	@DisplayName("Ensure the journal is moved to the durable tier, and its segments are replayed and deleted")
+	public void testDurableTier(@TempDir Path directory) throws Exception {
+
+		S3Client s3Client = mock(S3Client.class);
+		when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenReturn(PutObjectResponse.builder().build());
+		MetricJournal journal = journal(directory);
+		journal.setDurableTier(s3Client, "mike-journal-bucket", "metric-journal/");
+
+		journal.append("MIKE/Route53", List.of(datum(0.0, START)));
+		assertTrue(journal.isEmpty(), "moved to S3");
+
+		ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+		ArgumentCaptor<RequestBody> bodies = ArgumentCaptor.forClass(RequestBody.class);
+		verify(s3Client).putObject(puts.capture(), bodies.capture());
+		String key = puts.getValue().key();
+		assertTrue(key.startsWith("metric-journal/"));
+		byte[] segment = bodies.getValue().contentStreamProvider().newStream().readAllBytes();
+
+		when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+				.thenReturn(ListObjectsV2Response.builder().contents(S3Object.builder().key(key).build()).build());
+		when(s3Client.getObjectAsBytes(any(GetObjectRequest.class)))
+				.thenReturn(ResponseBytes.fromByteArray(GetObjectResponse.builder().build(), segment));
+
+		List<MetricDatum> replayed = new ArrayList<MetricDatum>();
+		assertEquals(1, journal.replay(5, (namespace, batch) -> replayed.addAll(batch)));
+		assertEquals(List.of(datum(0.0, START)), replayed);
+
+		ArgumentCaptor<DeleteObjectRequest> deletes = ArgumentCaptor.forClass(DeleteObjectRequest.class);
+		verify(s3Client).deleteObject(deletes.capture());
+		assertEquals(key, deletes.getValue().key());
+	}
+
+	@Test
+	@DisplayName("Ensure the client of the durable tier is built at the first spill, and closed and built again after a restore")
+	public void testDurableTierRenewed(@TempDir Path directory) {
+
+		List<S3Client> built = new ArrayList<S3Client>();
+		MetricJournal journal = journal(directory);
+		journal.setDurableTier(() -> {
+			S3Client s3Client = mock(S3Client.class);
+			when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenReturn(PutObjectResponse.builder().build());
+			built.add(s3Client);
+			return s3Client;
+		}, "mike-journal-bucket", "metric-journal/");
+
+		journal.renewS3Client();
+		assertEquals(0, built.size(), "nothing to renew before the first spill");
+
+		journal.append("MIKE/Route53", List.of(datum(0.0, START)));
+		journal.renewS3Client();
+		verify(built.get(0)).close();
+
+		journal.append("MIKE/Route53", List.of(datum(1.0, START.plusSeconds(10))));
+		assertEquals(2, built.size());
+		verify(built.get(1)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+		assertTrue(journal.isEmpty(), "moved to S3 by the new client");
+	}
+
+	private static MetricJournal journal(Path directory) {
+		MetricJournal journal = new MetricJournal(directory);
+		// a few minutes after the datums, so they are recent enough for CloudWatch
+		journal.setClock(Clock.fixed(START.plusSeconds(300), ZoneOffset.UTC));
+		return journal;
+	}
+
+	private static MetricDatum datum(double value, Instant timestamp) {
+		return MetricDatum.builder()
+				.metricName("ExternalHealthCheckStatus")
+				.unit(StandardUnit.COUNT)
+				.value(value)
+				.timestamp(timestamp)
+				.dimensions(Dimension.builder().name("SiteId").value("site-a").build())
+				.build();
+	}
+}
@@ -0,0 +1,124 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+/**
+ * compares the streaming scanner with the <code>MimeMessage</code> path on the website monitor mails
+ */
+public class MimeStatusScannerTest {
+
+	private static final String[] MAILS = {"jetpack_down.txt", "jetpack_still_down.txt", "jetpack_back_online.txt"};
+
+	private static final int ROUNDS = 200;
+
+	@Test
+	@DisplayName("Ensure scanner finds the same status as the full text extraction")
+	public void testSameStatusAsExtractTextContent() throws Exception {
+
+		for (String mail : MAILS) {
+			byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/" + mail).readAllBytes();
+
+			StatusReferenceMatcher expected = new StatusReferenceMatcher();
+			expected.matchText(MailFilter.extractTextContent(parse(eml)));
+
+			StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+			ScanResult result = new MimeStatusScanner(new ByteArrayInputStream(eml)).scan(matcher);
+
+			assertEquals(expected.getReference(), matcher.getReference(), mail);
+			assertEquals((expected.getReference() == null) ? ScanResult.NOT_FOUND : ScanResult.FOUND, result, mail);
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure base64 and quoted-printable text parts are decoded")
+	public void testEncodedParts() throws Exception {
+
+		String base64Body = Base64.getMimeEncoder().encodeToString(
+				"Hello,\nError reference: 214785651/server\nBye".getBytes(StandardCharsets.US_ASCII));
+		String eml = "From: support@jetpack.com\r\n"
+				+ "Content-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n"
+				+ "--outer\r\n"
+				+ "Content-Type: application/pdf\r\n"
+				+ "Content-Disposition: attachment; filename=a.pdf\r\n\r\n"
+				+ "Error reference: 1/ignored\r\n"
+				+ "--outer\r\n"
+				+ "Content-Type: text/plain; charset=us-ascii\r\n"
+				+ "Content-Transfer-Encoding: base64\r\n\r\n"
+				+ base64Body + "\r\n"
+				+ "--outer--\r\n";
+
+		StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+		assertEquals(ScanResult.FOUND, new MimeStatusScanner(stream(eml)).scan(matcher));
+		assertEquals("214785651/server", matcher.getReference());
+
+		String qpEml = "Content-Type: text/html; charset=us-ascii\r\n"
+				+ "Content-Transfer-Encoding: quoted-printable\r\n\r\n"
+				+ "<p style=3D\"color: red;\">Error refer=\r\n"
+				+ "ence: 214785651/blocked=09</p>\r\n";
+
+		matcher = new StatusReferenceMatcher();
+		assertEquals(ScanResult.FOUND, new MimeStatusScanner(stream(qpEml)).scan(matcher));
+		assertEquals("214785651/blocked", matcher.getReference());
+	}
+
+	@Test
+	@DisplayName("Ensure malformed mails are reported for the javax.mail fallback")
+	public void testMalformedMail() throws Exception {
+
+		String noBoundary = "Content-Type: multipart/alternative\r\n\r\nbody\r\n";
+		assertThrows(MessagingException.class, () -> new MimeStatusScanner(stream(noBoundary)).scan(new StatusReferenceMatcher()));
+
+		String notClosed = "Content-Type: multipart/alternative; boundary=b\r\n\r\n--b\r\nContent-Type: text/plain\r\n\r\nno status\r\n";
+		assertEquals(ScanResult.INCOMPLETE, new MimeStatusScanner(stream(notClosed)).scan(new StatusReferenceMatcher()));
+	}
+
+	@Test
+	@DisplayName("Compare scanner and extractTextContent execution time")
+	public void testScannerTime() throws Exception {
+
+		for (String mail : MAILS) {
+			byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/" + mail).readAllBytes();
+
+			long startTime = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				new StatusReferenceMatcher().matchText(MailFilter.extractTextContent(parse(eml)));
+			}
+			long extractTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				new MimeStatusScanner(new ByteArrayInputStream(eml)).scan(new StatusReferenceMatcher());
+			}
+			long scanTime = System.nanoTime() - startTime;
+
+			System.out.println(mail + " extractTextContent: " + (extractTime / ROUNDS / 1000) + " us/mail, scanner: " + (scanTime / ROUNDS / 1000) + " us/mail");
+		}
+	}
+
+	private static MimeMessage parse(byte[] eml) throws MessagingException {
+		return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(eml));
+	}
+
+	private static ByteArrayInputStream stream(String eml) {
+		return new ByteArrayInputStream(eml.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}
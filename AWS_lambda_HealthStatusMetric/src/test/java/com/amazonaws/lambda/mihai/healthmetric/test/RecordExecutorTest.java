@@ -0,0 +1,122 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.ExecutionMode;
+import com.amazonaws.lambda.mihai.healthmetric.handler.RecordExecutor;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3RangeInputStream;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+/**
+ * checks that the records run concurrently, that failures and the deadline do not lose the other results, and that S3 requests are bounded
+ */
+public class RecordExecutorTest {
+
+	@Test
+	@DisplayName("Ensure a failed task is reported without losing the results of the others, in both modes")
+	public void testFailureKeepsResults() {
+
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			try (RecordExecutor executor = new RecordExecutor(mode)) {
+				boolean virtualThreads = Runtime.version().feature() >= 21;
+				assertEquals((mode == ExecutionMode.VIRTUAL && virtualThreads) ? ExecutionMode.VIRTUAL : ExecutionMode.PLATFORM, executor.getMode());
+
+				List<Callable<String>> tasks = Arrays.asList(
+						() -> "first",
+						() -> { throw new IllegalStateException("broken mail"); },
+						() -> "third");
+				List<String> results = new ArrayList<String>();
+				List<Exception> failures = new ArrayList<Exception>();
+
+				executor.invokeAll(tasks, 5000, results, failures);
+
+				assertEquals(Arrays.asList("first", "third"), results, mode.name());
+				assertEquals(1, failures.size(), mode.name());
+				assertEquals("broken mail", failures.get(0).getMessage(), mode.name());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a task still running at the deadline is interrupted and reported as a timeout")
+	public void testDeadline() throws Exception {
+
+		CountDownLatch interrupted = new CountDownLatch(1);
+		List<Callable<String>> tasks = Arrays.asList(
+				() -> "fast",
+				() -> {
+					try {
+						Thread.sleep(60_000);
+						return "slow";
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw e;
+					}
+				});
+		List<String> results = new ArrayList<String>();
+		List<Exception> failures = new ArrayList<Exception>();
+
+		long start = System.nanoTime();
+		try (RecordExecutor executor = RecordExecutor.build()) {
+			executor.invokeAll(tasks, 200, results, failures);
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertEquals(Arrays.asList("fast"), results);
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(0) instanceof TimeoutException, failures.get(0).toString());
+		assertTrue(elapsedMillis < 5000, "waited " + elapsedMillis + " ms");
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS), "slow task not interrupted");
+	}
+
+	@Test
+	@DisplayName("Ensure concurrent records never have more S3 requests in flight than the permits of the service")
+	public void testBoundedS3Requests() throws Exception {
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("jetpack_down.txt", TestUtils.readStreamFromProjectResource("src/test/resources/jetpack_down.txt").readAllBytes());
+		s3Client.setLatencyMillis(20);
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		s3Service.setRequestPermits(new Semaphore(2));
+
+		List<Callable<ScanResult>> tasks = new ArrayList<Callable<ScanResult>>();
+		for (int i = 0; i < 12; i++) {
+			tasks.add(() -> {
+				try (S3RangeInputStream in = s3Service.getMailEMLRangeStream("mike-mail-bucket", "jetpack_down.txt")) {
+					return new MimeStatusScanner(in).scan(new StatusReferenceMatcher());
+				}
+			});
+		}
+		List<ScanResult> results = new ArrayList<ScanResult>();
+		List<Exception> failures = new ArrayList<Exception>();
+
+		try (RecordExecutor executor = RecordExecutor.build()) {
+			executor.invokeAll(tasks, 10_000, results, failures);
+		}
+
+		assertEquals(new ArrayList<Exception>(), failures);
+		assertEquals(12, results.size());
+		assertTrue(results.stream().allMatch(result -> result == ScanResult.FOUND), results.toString());
+		assertTrue(s3Client.getMaxInFlight() <= 2, "in flight: " + s3Client.getMaxInFlight());
+		assertEquals(2, s3Service.getRequestPermits().availablePermits());
+	}
+}
@@ -0,0 +1,284 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner;
+import com.amazonaws.lambda.mihai.healthmetric.model.MimeStatusScanner.ScanResult;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3RangeInputStream;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * checks that the email is classified from a prefix fetched with ranged GET requests, and that the whole email is read in memory or through a temporary file
+ */
+public class S3ServiceTest {
+
+	private static final String BUCKET = "mike-mail-bucket";
+
+	@Test
+	@DisplayName("Ensure the website monitor mails are classified from one range smaller than the mail")
+	public void testStatusFromPrefix() throws Exception {
+
+		StubS3Client s3Client = new StubS3Client();
+		S3Service s3Service = service(s3Client);
+
+		for (String mail : new String[] {"jetpack_down.txt", "jetpack_still_down.txt"}) {
+			byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/" + mail).readAllBytes();
+			s3Client.putObject(mail, eml);
+			s3Client.resetCounters();
+
+			StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+			try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, mail)) {
+				assertEquals(ScanResult.FOUND, new MimeStatusScanner(in).scan(matcher), mail);
+			}
+
+			assertTrue(matcher.getReference().startsWith("214785651/"), mail);
+			assertEquals(1, s3Client.getGetRequests(), mail);
+			assertTrue(s3Client.getServedBytes() < eml.length, mail + " fetched " + s3Client.getServedBytes() + " of " + eml.length);
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a big attachment after the status is not fetched, and a mail without status is read to the end")
+	public void testBigAttachment() throws Exception {
+
+		StringBuilder eml = new StringBuilder()
+				.append("From: support@jetpack.com\r\n")
+				.append("Content-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n")
+				.append("--outer\r\n")
+				.append("Content-Type: text/plain; charset=us-ascii\r\n\r\n")
+				.append("Your site is down.\r\nError reference: 214785651/server\r\n")
+				.append("--outer\r\n")
+				.append("Content-Type: application/pdf\r\n")
+				.append("Content-Transfer-Encoding: base64\r\n\r\n");
+		String attachmentLine = "QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5ejAxMjM0\r\n";
+		while (eml.length() < 2 * 1024 * 1024) {
+			eml.append(attachmentLine);
+		}
+		eml.append("--outer--\r\n");
+		byte[] data = eml.toString().getBytes(StandardCharsets.US_ASCII);
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("big.eml", data);
+		S3Service s3Service = service(s3Client);
+
+		StatusReferenceMatcher matcher = new StatusReferenceMatcher();
+		try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "big.eml")) {
+			assertEquals(ScanResult.FOUND, new MimeStatusScanner(in).scan(matcher));
+			assertEquals(Long.valueOf(data.length), in.getObjectSize());
+		}
+		assertEquals("214785651/server", matcher.getReference());
+		assertTrue(s3Client.getServedBytes() <= S3Service.MAX_PREFIX_SIZE, "fetched " + s3Client.getServedBytes());
+
+		// no status: the stream goes on with bigger ranges up to the end, and gives the exact content
+		s3Client.resetCounters();
+		byte[] read;
+		try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "big.eml")) {
+			read = in.readAllBytes();
+			assertEquals(data.length, in.getFetchedBytes());
+		}
+		assertArrayEquals(data, read);
+		assertTrue(s3Client.getGetRequests() > 1 && s3Client.getGetRequests() < 16, "requests " + s3Client.getGetRequests());
+	}
+
+	@Test
+	@DisplayName("Ensure the first range adapts to the bytes the readers needed")
+	public void testAdaptivePrefix() throws Exception {
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("mail.eml", new byte[512 * 1024]);
+		S3Service s3Service = service(s3Client);
+		int initial = s3Service.getPrefixSize();
+
+		// readers that stop early shrink the prefix down to the minimum
+		for (int i = 0; i < 20; i++) {
+			try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "mail.eml")) {
+				in.read(new byte[100]);
+			}
+		}
+		assertEquals(S3Service.MIN_PREFIX_SIZE, s3Service.getPrefixSize());
+
+		// readers that need more grow it
+		for (int i = 0; i < 20; i++) {
+			try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "mail.eml")) {
+				in.readNBytes(100 * 1024);
+			}
+		}
+		assertTrue(s3Service.getPrefixSize() > initial, "prefix " + s3Service.getPrefixSize());
+		assertEquals(0, s3Service.getPrefixSize() % 4096);
+
+		// readers that reach the end give no hint
+		int learned = s3Service.getPrefixSize();
+		try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "mail.eml")) {
+			in.readAllBytes();
+		}
+		assertEquals(learned, s3Service.getPrefixSize());
+	}
+
+	@Test
+	@DisplayName("Ensure the ranges after the first one, and the whole object read after them, are pinned to its ETag, and an object overwritten in between fails the read")
+	public void testObjectChanged() throws Exception {
+
+		byte[] first = new byte[64 * 1024];
+		Arrays.fill(first, (byte) 'a');
+		byte[] second = new byte[64 * 1024];
+		Arrays.fill(second, (byte) 'b');
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("mail.eml", first);
+		S3Service s3Service = service(s3Client);
+
+		try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "mail.eml")) {
+			in.readNBytes(S3Service.MIN_PREFIX_SIZE);
+			assertEquals(StubS3Client.eTag(first), in.getETag());
+
+			s3Client.putObject("mail.eml", second);
+			assertThrows(S3RangeInputStream.ObjectChangedException.class, () -> in.readAllBytes());
+		}
+
+		// a new stream reads the new object
+		try (S3RangeInputStream in = s3Service.getMailEMLRangeStream(BUCKET, "mail.eml")) {
+			assertArrayEquals(second, in.readAllBytes());
+		}
+
+		// the whole object, read after a range: pinned to the ETag of the range
+		assertThrows(S3RangeInputStream.ObjectChangedException.class, () -> s3Service.getMailEMLStream(BUCKET, "mail.eml", StubS3Client.eTag(first)));
+		try (InputStream in = s3Service.getMailEMLStream(BUCKET, "mail.eml", StubS3Client.eTag(second))) {
+			assertArrayEquals(second, in.readAllBytes());
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a small mail is read in memory and parsed from the shared bytes")
+	public void testMailInMemory() throws Exception {
+
+		byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/jetpack_down.txt").readAllBytes();
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("jetpack_down.txt", eml);
+
+		try (InputStream in = service(s3Client).getMailEMLStream(BUCKET, "jetpack_down.txt")) {
+			assertTrue(in instanceof SharedByteArrayInputStream);
+			MimeMessage message = new MimeMessage(Session.getInstance(new Properties()), ((SharedInputStream) in).newStream(0, -1));
+			assertTrue(message.getFrom()[0].toString().contains("@jetpack"));
+			assertTrue(MailFilter.extractTextContent(message).contains("Error reference: 214785651/"));
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a mail over the in-memory limit is streamed to a temporary file, deleted when the stream is closed")
+	public void testMailStreamedToFile() throws Exception {
+
+		StringBuilder text = new StringBuilder("From: Jetpack <support@jetpack.com>\r\nContent-Type: text/plain; charset=utf-8\r\n"
+				+ "Content-Transfer-Encoding: 8bit\r\n\r\nVotre site est hors ligne \u00e9t\u00e9.\r\nError reference: 214785651/server\r\n");
+		while (text.length() <= S3Service.MAX_IN_MEMORY_MAIL_SIZE) {
+			text.append("padding line of a big mail, after the status line of website monitor\r\n");
+		}
+		byte[] eml = text.toString().getBytes(StandardCharsets.UTF_8);
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("big.eml", eml);
+
+		Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+		Set<Path> before = mailFiles(tmp);
+		Set<Path> opened;
+		try (InputStream in = service(s3Client).getMailEMLStream(BUCKET, "big.eml")) {
+			assertTrue(in instanceof SharedFileInputStream);
+			opened = mailFiles(tmp);
+			opened.removeAll(before);
+			assertEquals(1, opened.size(), "one temporary file while the mail is read");
+
+			MimeMessage message = new MimeMessage(Session.getInstance(new Properties()), ((SharedInputStream) in).newStream(0, -1));
+			assertTrue(MailFilter.extractTextContent(message).startsWith("Votre site est hors ligne \u00e9t\u00e9."), "decoded as utf-8");
+		}
+		assertFalse(Files.exists(opened.iterator().next()), "deleted on close");
+	}
+
+	private static Set<Path> mailFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().matches("mail-.*\\.eml")).collect(Collectors.toCollection(HashSet::new));
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a mail overwritten between two ranges is classified again from the start, on the new object")
+	public void testMailReadAgain() throws Exception {
+
+		byte[] down = mail("server");
+		byte[] online = mail("success");
+		AtomicInteger gets = new AtomicInteger();
+		StubS3Client s3Client = new StubS3Client() {
+			@Override
+			public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest getObjectRequest) {
+				ResponseInputStream<GetObjectResponse> response = super.getObject(getObjectRequest);
+				if (gets.incrementAndGet() == 1) {
+					putObject("mail.eml", online);
+				}
+				return response;
+			}
+		};
+		s3Client.putObject("mail.eml", down);
+		LambdaFunctionHandler handler = new LambdaFunctionHandler(service(s3Client), new CloudWatchService());
+
+		List<MailStatus> statuses = handler.classifyMail(BUCKET, "mail.eml", new Date());
+		assertEquals("success", statuses.get(0).getStatus(), "not the status of the first object");
+		assertTrue(gets.get() > 2, "read again");
+	}
+
+	/**
+	 *
+	 * @param status status of the status line
+	 * @return website monitor mail whose status line is after the first range
+	 */
+	private static byte[] mail(String status) {
+		StringBuilder eml = new StringBuilder("From: Jetpack <support@jetpack.com>\r\nContent-Type: text/plain\r\n\r\n");
+		while (eml.length() < 3 * S3Service.MAX_PREFIX_SIZE / 64) {
+			eml.append("Your site is being checked by website monitor, this line is only padding.\r\n");
+		}
+		eml.append("Error reference: 214785651/" + status + "\r\n");
+		return eml.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static S3Service service(StubS3Client s3Client) {
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		return s3Service;
+	}
+}
@@ -0,0 +1,170 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailStatus;
+import com.amazonaws.lambda.mihai.healthmetric.model.PatternAutomaton;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRule;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRules;
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteStatusMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.StubS3Client;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.StatusReferenceMatcher;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+
+/**
+ * checks the classification of the status lines of many sites in one pass
+ */
+public class SiteStatusMatcherTest {
+
+	private static final String[] MAILS = {"jetpack_down.txt", "jetpack_still_down.txt", "jetpack_back_online.txt"};
+
+	@Test
+	@DisplayName("Ensure the configured rule table finds the same status as the single site matcher")
+	public void testConfiguredRules() throws Exception {
+
+		SiteRules siteRules = SiteRules.getConfigured();
+		assertEquals("214785651", siteRules.getDefaultRule().getSiteId());
+		assertEquals("Z04702051WDZH2C7LSLUO", siteRules.getDefaultRule().getDimensions().get("HostedZoneId"));
+
+		for (String mail : MAILS) {
+			byte[] eml = TestUtils.readStreamFromProjectResource("src/test/resources/" + mail).readAllBytes();
+			String text = MailFilter.extractTextContent(new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(eml)));
+
+			StatusReferenceMatcher expected = new StatusReferenceMatcher();
+			expected.matchText(text);
+
+			SiteStatusMatcher matcher = siteRules.newMatcher();
+			matcher.matchText(text);
+
+			assertEquals(expected.getStatus(), matcher.getStatuses().get(siteRules.getDefaultRule()), mail);
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure each site gets its own status from one mail body")
+	public void testManySites() throws Exception {
+
+		List<SiteRule> rules = new ArrayList<SiteRule>();
+		for (int site = 1; site <= 500; site++) {
+			rules.add(rule(String.valueOf(site), "Z" + site));
+		}
+		SiteRules siteRules = new SiteRules(rules);
+
+		SiteStatusMatcher matcher = siteRules.newMatcher();
+		matcher.matchText("Hello\n<p>Error reference: 21/server</p>\nError reference: 1/success\n"
+				+ "Error reference: 1/server\nError reference: 300/successful\nError reference: 4000/client\nError reference: 7/intermittent");
+
+		Map<SiteRule, String> statuses = matcher.getStatuses();
+		assertEquals(4, statuses.size(), "site 4000 is not configured");
+		assertEquals("server", statuses.get(rules.get(20)));
+		assertEquals("successful", statuses.get(rules.get(299)), "the status is a whole word");
+		assertEquals(Boolean.FALSE, rules.get(299).isHealthy("successful"));
+		assertEquals("success", statuses.get(rules.get(0)), "first status line of a site is kept");
+		assertEquals("intermittent", statuses.get(rules.get(6)));
+		assertEquals(Boolean.FALSE, rules.get(6).isHealthy("intermittent"));
+	}
+
+	@Test
+	@DisplayName("Ensure a status not listed by website monitor is found and classified as unhealthy")
+	public void testUnlistedStatus() throws Exception {
+
+		SiteRules siteRules = SiteRules.getConfigured();
+		SiteStatusMatcher matcher = siteRules.newMatcher();
+		matcher.matchText("Your site is down.\nError reference: 214785651/maintenance.\n");
+		assertEquals("maintenance", matcher.getStatuses().get(siteRules.getDefaultRule()));
+
+		matcher = siteRules.newMatcher();
+		matcher.matchText("Error reference: 214785651/\n");
+		assertEquals("", matcher.getStatuses().get(siteRules.getDefaultRule()), "a reference without status is found");
+
+		StubS3Client s3Client = new StubS3Client();
+		s3Client.putObject("maintenance.eml", ("From: Jetpack <support@jetpack.com>\r\nDate: Sat, 16 Nov 2024 13:00:00 +0000\r\n"
+				+ "Content-Type: text/plain\r\n\r\nYour site is down.\r\nError reference: 214785651/maintenance\r\n").getBytes(StandardCharsets.US_ASCII));
+		S3Service s3Service = new S3Service();
+		s3Service.setS3Client(s3Client);
+		LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Service, new CloudWatchService());
+
+		List<MailStatus> statuses = handler.classifyMail("ses-received-mail-mihaiadam", "maintenance.eml", new Date());
+		assertEquals(1, statuses.size());
+		assertEquals("maintenance", statuses.get(0).getStatus());
+		assertEquals(Boolean.FALSE, statuses.get(0).getHealthy());
+	}
+
+	@Test
+	@DisplayName("Ensure the automaton reports overlapping patterns")
+	public void testAutomaton() {
+
+		PatternAutomaton automaton = new PatternAutomaton(Arrays.asList("he", "she", "his", "hers"));
+		List<String> found = new ArrayList<String>();
+		automaton.search("ushers", (pattern, end) -> {
+			found.add(pattern + "@" + end);
+			return false;
+		});
+		// "she" ends at the same position as "he": the longest pattern is reported
+		assertEquals(Arrays.asList("1@4", "3@6"), found);
+		assertTrue(automaton.getStates() <= 11);
+	}
+
+	@Test
+	@DisplayName("Ensure each site publishes to its own dimension")
+	public void testDimensionPerSite() {
+
+		CloudWatchClient cwClient = Mockito.mock(CloudWatchClient.class);
+		CloudWatchService cwService = new CloudWatchService();
+		cwService.setCwClient(cwClient);
+		cwService.setPublishMode(PublishMode.API);
+
+		List<MailStatus> statuses = new ArrayList<MailStatus>();
+		for (SiteRule rule : Arrays.asList(rule("1", "ZONE1"), rule("2", "ZONE2"))) {
+			MailStatus status = new MailStatus();
+			status.setSiteId(rule.getSiteId());
+			status.setHealthy(rule.getSiteId().equals("1"));
+			status.setDimensions(rule.getDimensions());
+			statuses.add(status);
+		}
+		cwService.putHealthStatusData(statuses);
+
+		ArgumentCaptor<PutMetricDataRequest> request = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+		Mockito.verify(cwClient).putMetricData(request.capture());
+		List<MetricDatum> datums = request.getValue().metricData();
+		assertEquals("ZONE1", datums.get(0).dimensions().get(0).value());
+		assertEquals(1.0, datums.get(0).value());
+		assertEquals("ZONE2", datums.get(1).dimensions().get(0).value());
+		assertEquals(0.0, datums.get(1).value());
+	}
+
+	private static SiteRule rule(String siteId, String hostedZoneId) {
+		SiteRule rule = new SiteRule();
+		rule.setSiteId(siteId);
+		rule.setDimensions(Collections.singletonMap("HostedZoneId", hostedZoneId));
+		return rule;
+	}
+}
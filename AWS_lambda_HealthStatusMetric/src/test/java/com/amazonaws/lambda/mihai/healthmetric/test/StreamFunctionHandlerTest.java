@@ -0,0 +1,172 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.amazonaws.lambda.mihai.healthmetric.handler.LambdaFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.handler.StreamFunctionHandler;
+import com.amazonaws.lambda.mihai.healthmetric.model.FilteredMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.NotifiedMail;
+import com.amazonaws.lambda.mihai.healthmetric.model.Utils;
+import com.amazonaws.lambda.mihai.healthmetric.service.CloudWatchService;
+import com.amazonaws.lambda.mihai.healthmetric.service.PublishMode;
+import com.amazonaws.lambda.mihai.healthmetric.service.S3Service;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.CloudWatchData;
+import com.amazonaws.lambda.mihai.healthmetric.test.data.S3Data;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestContext;
+import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
+import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.serialization.events.LambdaEventSerializers;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * runs the streaming entry point and the POJO entry point on the same invocation bytes, and expects the same behavior
+ */
+public class StreamFunctionHandlerTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	@DisplayName("Ensure both entry points give the same response and put the same metric data, for each mail and for a batch")
+	public void testSameBehavior() throws Exception {
+
+		for (String[] keys : new String[][] {{"jetpack_down.txt"}, {"jetpack_still_down.txt"}, {"jetpack_back_online.txt"},
+				{"jetpack_down.txt", "jetpack_back_online.txt", "jetpack_still_down.txt"}}) {
+
+			byte[] event = snsEvent(FilteredMailFixture.JETPACK, keys);
+
+			Runner pojo = new Runner();
+			String expected = pojo.handler.handleRequest(
+					LambdaEventSerializers.serializerFor(SNSEvent.class, SNSEvent.class.getClassLoader()).fromJson(new ByteArrayInputStream(event)),
+					context());
+
+			Runner stream = new Runner();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			new StreamFunctionHandler(stream.handler).handleRequest(new ByteArrayInputStream(event), output, context());
+
+			assertEquals(mapper.writeValueAsString(expected), output.toString(StandardCharsets.UTF_8), String.join(",", keys));
+			assertEquals(pojo.putData(), stream.putData(), String.join(",", keys));
+		}
+	}
+
+	@Test
+	@DisplayName("Ensure a filter of another processor is rejected from the raw tokens, with the same failure and without S3 requests")
+	public void testRejectedFilter() throws Exception {
+
+		byte[] event = snsEvent(FilteredMailFixture.OTHER, "jetpack_down.txt");
+
+		List<NotifiedMail> mails = StreamFunctionHandler.readNotifiedMails(new ByteArrayInputStream(event));
+		assertEquals(1, mails.size());
+		assertTrue(mails.get(0).isRejected());
+		assertEquals(null, mails.get(0).getMail());
+		assertEquals("7bc3e988-2856-53ee-9c52-b63e7961c288", mails.get(0).getMessageId());
+
+		Runner pojo = new Runner();
+		RuntimeException expected = assertThrows(RuntimeException.class, () -> pojo.handler.handleRequest(
+				LambdaEventSerializers.serializerFor(SNSEvent.class, SNSEvent.class.getClassLoader()).fromJson(new ByteArrayInputStream(event)),
+				context()));
+
+		Runner stream = new Runner();
+		RuntimeException actual = assertThrows(RuntimeException.class, () -> new StreamFunctionHandler(stream.handler)
+				.handleRequest(new ByteArrayInputStream(event), new ByteArrayOutputStream(), context()));
+
+		assertEquals(expected.getCause().getMessage(), actual.getCause().getMessage());
+		Mockito.verifyNoInteractions(pojo.s3Client, stream.s3Client, pojo.cwClient, stream.cwClient);
+	}
+
+	/**
+	 * filters sent by the mail filter function
+	 */
+	private enum FilteredMailFixture {
+		JETPACK("@jetpack"), OTHER("@example.com");
+
+		private final String from;
+
+		FilteredMailFixture(String from) {
+			this.from = from;
+		}
+	}
+
+	/**
+	 * one handler with its own mocked AWS clients
+	 */
+	private static class Runner {
+		private S3Client s3Client = Mockito.mock(S3Client.class);
+		private CloudWatchClient cwClient = Mockito.mock(CloudWatchClient.class);
+		private LambdaFunctionHandler handler;
+
+		private Runner() {
+			S3Data.resetS3Data(s3Client);
+			CloudWatchData.resetCloudWatchData(cwClient);
+
+			S3Service s3Service = new S3Service();
+			s3Service.setS3Client(s3Client);
+			CloudWatchService cwService = new CloudWatchService();
+			cwService.setCwClient(cwClient);
+			cwService.setPublishMode(PublishMode.API);
+			handler = new LambdaFunctionHandler(s3Service, cwService);
+		}
+
+		private List<PutMetricDataRequest> putData() {
+			ArgumentCaptor<PutMetricDataRequest> requests = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+			Mockito.verify(cwClient, Mockito.atLeast(0)).putMetricData(requests.capture());
+			return requests.getAllValues();
+		}
+	}
+
+	/**
+	 * sns-event.json with one record for each mail, as sent by the Lambda service
+	 */
+	private static byte[] snsEvent(FilteredMailFixture fixture, String... keys) throws Exception {
+
+		ObjectNode event = (ObjectNode) mapper.readTree(TestUtils.readFromProjectResource("src/test/resources/sns-event.json"));
+		ObjectNode prototype = (ObjectNode) event.get("Records").get(0);
+		ArrayNode records = mapper.createArrayNode();
+
+		for (String key : keys) {
+			FilteredMail mail = new FilteredMail();
+			mail.setS3Key(key);
+			mail.setS3Bucket("ses-received-mail-mihaiadam");
+			MailFilter filter = new MailFilter();
+			mail.setFilter(filter);
+			filter.setField("FROM");
+			filter.setModifier("CONTAINS");
+			filter.setValue(fixture.from);
+
+			ObjectNode record = prototype.deepCopy();
+			ObjectNode sns = (ObjectNode) record.get("Sns");
+			ObjectNode message = (ObjectNode) mapper.readTree(sns.get("Message").asText());
+			message.set("responsePayload", mapper.readTree(Utils.getObjectAsJson(mail)));
+			sns.put("Message", mapper.writeValueAsString(message));
+			records.add(record);
+		}
+		event.set("Records", records);
+
+		return mapper.writeValueAsBytes(event);
+	}
+
+	private static TestContext context() {
+		TestContext context = new TestContext();
+		context.setFunctionName("SiteHealthStatusMetric");
+		return context;
+	}
+}
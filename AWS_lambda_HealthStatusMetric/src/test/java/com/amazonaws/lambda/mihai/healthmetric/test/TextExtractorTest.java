@@ -0,0 +1,90 @@
+package com.amazonaws.lambda.mihai.healthmetric.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.MailFilter;
+import com.amazonaws.lambda.mihai.healthmetric.model.TextExtractor;
+
+/**
+ * checks that only the text parts are extracted, within the budget
+ */
+public class TextExtractorTest {
+
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+	@Test
+	@DisplayName("Ensure attachments are skipped and text/plain is preferred in multipart/alternative")
+	public void testSkipAttachments() throws Exception {
+
+		StringBuilder eml = new StringBuilder()
+				.append("From: support@jetpack.com\r\n")
+				.append("Content-Type: multipart/mixed; boundary=\"outer\"\r\n\r\n")
+				.append("--outer\r\n")
+				.append("Content-Type: multipart/alternative; boundary=\"inner\"\r\n\r\n")
+				.append("--inner\r\n")
+				.append("Content-Type: text/plain; charset=utf-8\r\n")
+				.append("Content-Transfer-Encoding: quoted-printable\r\n\r\n")
+				.append("Your site is down =E2=80=94 Error reference: 214785651/server\r\n")
+				.append("--inner\r\n")
+				.append("Content-Type: text/html; charset=us-ascii\r\n\r\n")
+				.append("<p>Error reference: 214785651/server</p>\r\n")
+				.append("--inner--\r\n")
+				.append("--outer\r\n")
+				.append("Content-Type: text/plain; name=\"log.txt\"\r\n")
+				.append("Content-Disposition: attachment; filename=\"log.txt\"\r\n\r\n")
+				.append("Error reference: 214785651/success\r\n")
+				.append("--outer\r\n")
+				.append("Content-Type: image/png\r\n")
+				.append("Content-Transfer-Encoding: base64\r\n\r\n")
+				.append("iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==\r\n")
+				.append("--outer--\r\n");
+
+		String text = MailFilter.extractTextContent(parse(eml.toString()));
+
+		assertEquals("Your site is down — Error reference: 214785651/server", text);
+		assertFalse(text.contains("<p>"));
+		assertFalse(text.contains("success"));
+	}
+
+	@Test
+	@DisplayName("Ensure the nesting depth and the number of characters extracted are limited")
+	public void testBudget() throws Exception {
+
+		StringBuilder eml = new StringBuilder()
+				.append("From: support@jetpack.com\r\n")
+				.append("Content-Type: multipart/mixed; boundary=\"b0\"\r\n\r\n")
+				.append("--b0\r\n")
+				.append("Content-Type: text/plain\r\n\r\n")
+				.append("top\r\n")
+				.append("--b0\r\n")
+				.append("Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n")
+				.append("--b1\r\n")
+				.append("Content-Type: multipart/mixed; boundary=\"b2\"\r\n\r\n")
+				.append("--b2\r\n")
+				.append("Content-Type: text/plain\r\n\r\n")
+				.append("deep\r\n")
+				.append("--b2--\r\n")
+				.append("--b1--\r\n")
+				.append("--b0--\r\n");
+
+		assertTrue(new TextExtractor(8, 1024).extract(parse(eml.toString())).contains("deep"));
+		assertEquals("top", new TextExtractor(2, 1024).extract(parse(eml.toString())));
+		assertEquals("to", new TextExtractor(8, 2).extract(parse(eml.toString())));
+	}
+
+	private static MimeMessage parse(String eml) throws Exception {
+		return new MimeMessage(SESSION, new ByteArrayInputStream(eml.getBytes(StandardCharsets.US_ASCII)));
+	}
+}
@@ -13,6 +13,7 @@ import org.mockito.stubbing.Answer;
 import com.amazonaws.lambda.mihai.healthmetric.test.utils.TestUtils;
 
 import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
@@ -39,6 +40,21 @@ public class S3Data {
 		    	 
 		     }
 		 });
+		
+		when(s3Client.getObject(Mockito.any(GetObjectRequest.class))).thenAnswer(new Answer<ResponseInputStream<GetObjectResponse>>() {
+			
+		     public ResponseInputStream<GetObjectResponse> answer(InvocationOnMock invocation) throws Throwable {
+		    	 
+		    	Object[] args = invocation.getArguments();
+		    	
+		    	logger.debug("s3Client.getObject " + (GetObjectRequest)args[0]);
+		    			    	
+		    	byte[] data = TestUtils.readStreamFromProjectResource("src/test/resources/" + ((GetObjectRequest)args[0]).key()).readAllBytes();
+		    	
+		    	return StubS3Client.rangeResponse((GetObjectRequest)args[0], data);
+		    	 
+		     }
+		 });
 
 	}
 }
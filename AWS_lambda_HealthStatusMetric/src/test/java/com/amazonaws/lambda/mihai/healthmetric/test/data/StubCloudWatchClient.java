@@ -0,0 +1,43 @@
+package com.amazonaws.lambda.mihai.healthmetric.test.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+
+/**
+ * CloudWatch client that only counts the requests and datums, without Mockito; used where the stub must be cheap, ex: benchmarks
+ */
+public class StubCloudWatchClient implements CloudWatchClient {
+
+	private static final PutMetricDataResponse RESPONSE = PutMetricDataResponse.builder().build();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong datums = new AtomicLong();
+
+	@Override
+	public PutMetricDataResponse putMetricData(PutMetricDataRequest putMetricDataRequest) {
+		requests.incrementAndGet();
+		datums.addAndGet(putMetricDataRequest.metricData().size());
+		return RESPONSE;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getDatums() {
+		return datums.get();
+	}
+
+	@Override
+	public String serviceName() {
+		return SERVICE_NAME;
+	}
+
+	@Override
+	public void close() {
+	}
+}
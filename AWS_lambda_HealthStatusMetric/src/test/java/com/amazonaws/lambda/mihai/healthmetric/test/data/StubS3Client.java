@@ -0,0 +1,195 @@
+package com.amazonaws.lambda.mihai.healthmetric.test.data;
+
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * S3 client that serves objects from memory, without Mockito; used where the stub must be cheap, ex: benchmarks<br>
+ * GetObject honors the Range header "bytes=start-end" and If-Match as S3 does, the ETag is a hash of the content, and counts the requests and the bytes served;
+ * ListObjectsV2 lists the keys in order, by pages, with prefix, start after and continuation token;
+ * an optional latency stands for the network, and the most GetObject requests in flight at the same time are recorded
+ */
+public class StubS3Client implements S3Client {
+
+	private final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<String, byte[]>();
+
+	private final Map<String, Instant> lastModified = new ConcurrentHashMap<String, Instant>();
+
+	private final AtomicLong getRequests = new AtomicLong();
+
+	private final AtomicLong servedBytes = new AtomicLong();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	private volatile long latencyMillis;
+
+	public void putObject(String key, byte[] data) {
+		objects.put(key, data);
+	}
+
+	public void putObject(String key, byte[] data, Instant modified) {
+		objects.put(key, data);
+		lastModified.put(key, modified);
+	}
+
+	@Override
+	public ListObjectsV2Response listObjectsV2(ListObjectsV2Request listObjectsV2Request) {
+		String prefix = (listObjectsV2Request.prefix() == null) ? "" : listObjectsV2Request.prefix();
+		String after = (listObjectsV2Request.continuationToken() != null) ? listObjectsV2Request.continuationToken() : listObjectsV2Request.startAfter();
+		int maxKeys = (listObjectsV2Request.maxKeys() == null) ? 1000 : listObjectsV2Request.maxKeys();
+
+		List<S3Object> contents = new ArrayList<S3Object>(Math.min(maxKeys, objects.size()));
+		String lastKey = null;
+		boolean truncated = false;
+		for (Map.Entry<String, byte[]> object : ((after == null) ? objects.tailMap(prefix, true) : objects.tailMap(after, false)).entrySet()) {
+			if (!object.getKey().startsWith(prefix)) {
+				if (object.getKey().compareTo(prefix) > 0) {
+					break;
+				}
+				continue;
+			}
+			if (contents.size() == maxKeys) {
+				truncated = true;
+				break;
+			}
+			contents.add(S3Object.builder().key(object.getKey()).size((long) object.getValue().length).lastModified(lastModified.get(object.getKey())).build());
+			lastKey = object.getKey();
+		}
+		return ListObjectsV2Response.builder()
+				.contents(contents)
+				.keyCount(contents.size())
+				.isTruncated(truncated)
+				.nextContinuationToken(truncated ? lastKey : null)
+				.build();
+	}
+
+	@Override
+	public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest getObjectRequest) {
+		maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+		try {
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			ResponseInputStream<GetObjectResponse> response = rangeResponse(getObjectRequest, readObject(getObjectRequest));
+			getRequests.incrementAndGet();
+			servedBytes.addAndGet(response.response().contentLength());
+			return response;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * builds the response of GetObject, for the whole object or for the range of the request
+	 * @param getObjectRequest request, with or without range
+	 * @param data whole object
+	 * @return object or range, with Content-Range when a range was requested
+	 */
+	public static ResponseInputStream<GetObjectResponse> rangeResponse(GetObjectRequest getObjectRequest, byte[] data) {
+		String eTag = eTag(data);
+		if (getObjectRequest.ifMatch() != null && !getObjectRequest.ifMatch().equals(eTag)) {
+			throw (S3Exception) S3Exception.builder().statusCode(412).message("PreconditionFailed").build();
+		}
+		String range = getObjectRequest.range();
+		if (range == null) {
+			return new ResponseInputStream<GetObjectResponse>(
+					GetObjectResponse.builder().contentLength((long) data.length).eTag(eTag).build(),
+					new ByteArrayInputStream(data));
+		}
+
+		String[] bounds = range.substring("bytes=".length()).split("-");
+		long start = Long.parseLong(bounds[0]);
+		if (start >= data.length) {
+			throw (S3Exception) S3Exception.builder().statusCode(416).message("InvalidRange").build();
+		}
+		long end = (bounds.length < 2 || bounds[1].isEmpty()) ? data.length - 1 : Math.min(Long.parseLong(bounds[1]), data.length - 1);
+		byte[] part = Arrays.copyOfRange(data, (int) start, (int) end + 1);
+
+		return new ResponseInputStream<GetObjectResponse>(
+				GetObjectResponse.builder()
+						.contentLength((long) part.length)
+						.contentRange("bytes " + start + "-" + end + "/" + data.length)
+						.eTag(eTag)
+						.build(),
+				new ByteArrayInputStream(part));
+	}
+
+	/**
+	 *
+	 * @param data whole object
+	 * @return ETag of the object, quoted as S3 does
+	 */
+	public static String eTag(byte[] data) {
+		return "\"" + Integer.toHexString(Arrays.hashCode(data)) + "\"";
+	}
+
+	public long getGetRequests() {
+		return getRequests.get();
+	}
+
+	public long getServedBytes() {
+		return servedBytes.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void resetCounters() {
+		getRequests.set(0);
+		servedBytes.set(0);
+		maxInFlight.set(0);
+	}
+
+	@Override
+	public ResponseBytes<GetObjectResponse> getObjectAsBytes(GetObjectRequest getObjectRequest) {
+		byte[] data = readObject(getObjectRequest);
+		return ResponseBytes.fromByteArrayUnsafe(GetObjectResponse.builder().contentLength((long) data.length).build(), data);
+	}
+
+	private byte[] readObject(GetObjectRequest getObjectRequest) {
+		byte[] data = objects.get(getObjectRequest.key());
+		if (data == null) {
+			throw NoSuchKeyException.builder().message("no object " + getObjectRequest.key()).build();
+		}
+		return data;
+	}
+
+	@Override
+	public String serviceName() {
+		return SERVICE_NAME;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,70 @@
+package com.amazonaws.lambda.mihai.healthmetric.test.utils;
+
+import com.amazonaws.lambda.mihai.healthmetric.model.SiteRules;
+import com.amazonaws.lambda.mihai.healthmetric.model.TextMatcher;
+
+/**
+ * searches the first status line written by website monitor in mail body, whatever the site; 
+ * reference of the scans in tests and benchmarks, the handler classifies with {@link SiteRules}<br>
+ * format: "Error reference: &lt;site number&gt;/&lt;status&gt;"
+ * @author mike
+ */
+public class StatusReferenceMatcher implements TextMatcher {
+
+	/**
+	 * value found after the status token; ex: 214785651/intermittent
+	 */
+	private String reference;
+
+	@Override
+	public boolean matchLine(CharSequence line) {
+		String text = line.toString();
+		int tokenIndex = text.indexOf(SiteRules.STATUS_TOKEN);
+		if (tokenIndex < 0) {
+			return false;
+		}
+
+		int start = tokenIndex + SiteRules.STATUS_TOKEN.length();
+		while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		int end = start;
+		while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && text.charAt(end) != '<') {
+			end++;
+		}
+
+		reference = text.substring(start, end);
+		return true;
+	}
+
+	/**
+	 *
+	 * @return site number from the status line, or null if no status line was found
+	 */
+	public String getSiteId() {
+		if (reference == null || reference.indexOf('/') < 0) {
+			return null;
+		}
+		return reference.substring(0, reference.indexOf('/'));
+	}
+
+	/**
+	 *
+	 * @return status from the status line, or null if no status line was found; ex: success, intermittent
+	 */
+	public String getStatus() {
+		if (reference == null || reference.indexOf('/') < 0) {
+			return null;
+		}
+		return reference.substring(reference.indexOf('/') + 1);
+	}
+
+	public String getReference() {
+		return reference;
+	}
+
+	@Override
+	public String toString() {
+		return " reference : " + reference;
+	}
+}